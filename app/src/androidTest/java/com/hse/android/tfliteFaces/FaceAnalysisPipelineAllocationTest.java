@@ -0,0 +1,229 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the frame loop of {@link FaceAnalysisPipeline} on synthetic frames with a face, with the
+ * {@link AllocationCheck} in {@link AllocationCheck#MODE_STRICT}: the first item that allocates
+ * in steady state throws on a pipeline thread and ends the test process. The engine predicts a
+ * fixed result without an interpreter, whose allocations are not checked anyway, so that the
+ * test does not need the model.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FaceAnalysisPipelineAllocationTest {
+
+  private static final int FRAME_WIDTH = 640;
+  private static final int FRAME_HEIGHT = 480;
+  private static final int FACE_SIZE = 160;
+
+  /** Input size of the engine. */
+  private static final int INPUT_SIZE = 112;
+
+  /** Frames per run; all but the warm-up items of the checks are checked. */
+  private static final int FRAMES = AllocationCheck.DEFAULT_WARM_UP_ITEMS + 100;
+
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private static String cascadePath;
+
+  @BeforeClass
+  public static void loadCascade() throws IOException {
+    assertTrue("OpenCV failed to load", OpenCVLoader.initDebug());
+    cascadePath =
+        CascadeCache.get(
+                InstrumentationRegistry.getTargetContext(),
+                R.raw.lbpcascade_frontalface,
+                "lbpcascade_frontalface.xml")
+            .file
+            .getAbsolutePath();
+  }
+
+  @Test
+  public void untrackedBitmapFacesDoNotAllocate() throws InterruptedException {
+    runFrames(false, FaceAttributeEngine.INPUT_NONE);
+  }
+
+  @Test
+  public void trackedNativeFacesDoNotAllocate() throws InterruptedException {
+    assumeTrue("The native detection library is not built", loadDetectionLibrary());
+    runFrames(true, FaceAttributeEngine.INPUT_RGB);
+  }
+
+  private static void runFrames(boolean tracking, int inputOrder) throws InterruptedException {
+    final Semaphore classified = new Semaphore(0);
+    final AtomicLong faces = new AtomicLong();
+    List<FaceAttributeEngine> engines =
+        Collections.<FaceAttributeEngine>singletonList(new FixedResultEngine(inputOrder));
+    FaceAnalysisPipeline pipeline =
+        new FaceAnalysisPipeline(
+            engines,
+            1,
+            FaceAnalysisPipeline.DEFAULT_QUEUE_CAPACITY,
+            tracking,
+            new VisitorCounter(AgeGenderResult.FEATURE_SIZE),
+            new FaceAnalysisPipeline.Listener() {
+              @Override
+              public void onFacesClassified(FaceAnalysisPipeline.FaceBatch batch) {
+                faces.addAndGet(batch.faceCount);
+                classified.release();
+              }
+            });
+    pipeline.setCascadePath(cascadePath, null, null);
+    pipeline.setAllocationCheck(AllocationCheck.MODE_STRICT);
+    pipeline.start();
+    try {
+      long deadline = SystemClock.elapsedRealtime() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+      while (!pipeline.isReady()) {
+        assertTrue("The classifier did not warm up", SystemClock.elapsedRealtime() < deadline);
+        Thread.sleep(10);
+      }
+      // The face moves a little between frames, like in a preview.
+      YuvFrame[] frames = {createFrame(200, 120), createFrame(208, 124), createFrame(204, 130)};
+      for (int i = 0; i < FRAMES; ++i) {
+        // One frame at a time, so that none is dropped and the frames can be reused.
+        pipeline.submitFrame(frames[i % frames.length]);
+        assertTrue(
+            "Frame " + i + " was not classified",
+            classified.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      }
+      assertTrue("No face was detected", faces.get() > 0);
+      assertTrue("No item was checked", pipeline.getCheckedItems() > 0);
+      assertEquals(0, pipeline.getAllocatingItems());
+    } finally {
+      pipeline.stop();
+    }
+  }
+
+  /** Creates a frame of a {@link SyntheticFace} with neutral chroma in direct buffers. */
+  private static YuvFrame createFrame(int faceX, int faceY) {
+    Mat gray = new Mat(FRAME_HEIGHT, FRAME_WIDTH, CvType.CV_8UC1, new Scalar(90));
+    SyntheticFace.draw(gray, faceX, faceY, FACE_SIZE, 190);
+    byte[] luma = new byte[FRAME_WIDTH * FRAME_HEIGHT];
+    gray.get(0, 0, luma);
+    gray.release();
+    ByteBuffer yBuffer = ByteBuffer.allocateDirect(luma.length);
+    yBuffer.put(luma);
+    byte[] chroma = new byte[FRAME_WIDTH * FRAME_HEIGHT / 4];
+    Arrays.fill(chroma, (byte) 128);
+    ByteBuffer uvBuffer = ByteBuffer.allocateDirect(chroma.length);
+    uvBuffer.put(chroma);
+    YuvFrame frame = new YuvFrame();
+    frame.setPlanes(
+        yBuffer, uvBuffer, uvBuffer, FRAME_WIDTH, 1, FRAME_WIDTH / 2, 1, FRAME_WIDTH, FRAME_HEIGHT);
+    return frame;
+  }
+
+  private static boolean loadDetectionLibrary() {
+    try {
+      System.loadLibrary("OpenCvDetectionLib");
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      return false;
+    }
+  }
+
+  /** Predicts the same age and gender for every face, without allocating. */
+  private static final class FixedResultEngine implements FaceAttributeEngine {
+    private final int inputOrder;
+    private final float[] ageProbabilities = new float[AgeGenderResult.AGE_BINS];
+    private final float[] features = new float[AgeGenderResult.FEATURE_SIZE];
+
+    FixedResultEngine(int inputOrder) {
+      this.inputOrder = inputOrder;
+      ageProbabilities[30] = 0.7f;
+      ageProbabilities[31] = 0.3f;
+      Arrays.fill(features, (float) (1 / Math.sqrt(features.length)));
+    }
+
+    @Override
+    public boolean classifyFace(PixelSource face, AgeGenderResult result) {
+      predict(result);
+      return true;
+    }
+
+    @Override
+    public boolean classifyPixels(
+        List<? extends PixelSource> faces, List<AgeGenderResult> results) {
+      for (int i = 0; i < faces.size(); ++i) {
+        predict(results.get(i));
+      }
+      return true;
+    }
+
+    @Override
+    public int getDirectInputOrder() {
+      return inputOrder;
+    }
+
+    @Override
+    public boolean classifyInput(ByteBuffer input, int count, List<AgeGenderResult> results) {
+      for (int i = 0; i < count; ++i) {
+        predict(results.get(i));
+      }
+      return true;
+    }
+
+    @Override
+    public int getImageSizeX() {
+      return INPUT_SIZE;
+    }
+
+    @Override
+    public int getImageSizeY() {
+      return INPUT_SIZE;
+    }
+
+    @Override
+    public void close() {}
+
+    private void predict(AgeGenderResult result) {
+      AbstractFaceAttributeEngine.decodeAge(ageProbabilities, result);
+      if (result.ageProbabilities != null) {
+        System.arraycopy(ageProbabilities, 0, result.ageProbabilities, 0, ageProbabilities.length);
+      }
+      result.genderProbability = 0.8f;
+      if (result.features != null) {
+        System.arraycopy(features, 0, result.features, 0, features.length);
+      }
+      result.batchSize = 1;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Follows one track over frames of a synthetic face and checks when {@link FaceTrackCache} asks
+ * for a new prediction and when it reports the smoothed estimate instead.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FaceTrackCacheTest {
+
+  private static final int REFRESH_INTERVAL = 8;
+  private static final int TRACK = 7;
+  private static final int FACE_SIZE = 80;
+
+  private final Rect box = new Rect(100, 60, FACE_SIZE, FACE_SIZE);
+  private final AgeGenderResult result = new AgeGenderResult();
+  private FaceTrackCache cache;
+  private Mat gray;
+
+  @BeforeClass
+  public static void loadOpenCv() {
+    assertTrue("OpenCV failed to load", OpenCVLoader.initDebug());
+  }
+
+  @Before
+  public void setUp() {
+    cache = new FaceTrackCache(REFRESH_INTERVAL);
+    gray = new Mat(240, 320, CvType.CV_8UC1);
+    SyntheticFace.draw(gray, box.x, box.y, FACE_SIZE, 190);
+  }
+
+  @After
+  public void tearDown() {
+    cache.release();
+    gray.release();
+  }
+
+  @Test
+  public void stableTrackIsReusedUntilTheRefreshInterval() {
+    classifyUntilStable();
+    for (int frame = 0; frame < REFRESH_INTERVAL; ++frame) {
+      cache.beginFrame();
+      assertFalse(cache.lookup(TRACK, gray, box, result));
+      assertEquals(30.5f, result.age, 1e-3f);
+      assertEquals(0.9f, result.genderProbability, 1e-6f);
+    }
+    cache.beginFrame();
+    assertTrue(cache.lookup(TRACK, gray, box, result));
+  }
+
+  @Test
+  public void changedAppearanceIsClassifiedAgain() {
+    classifyUntilStable();
+    SyntheticFace.draw(gray, box.x, box.y, FACE_SIZE, 240);
+    cache.beginFrame();
+    assertTrue(cache.lookup(TRACK, gray, box, result));
+  }
+
+  @Test
+  public void changedSizeIsClassifiedAgain() {
+    classifyUntilStable();
+    int size = FACE_SIZE * 3 / 2;
+    Rect larger = new Rect(box.x - FACE_SIZE / 4, box.y - FACE_SIZE / 4, size, size);
+    cache.beginFrame();
+    assertTrue(cache.lookup(TRACK, gray, larger, result));
+  }
+
+  @Test
+  public void trackNotSeenForAWhileIsForgotten() {
+    classifyUntilStable();
+    assertEquals(1, cache.getTrackCount());
+    for (int frame = 0; frame <= 30; ++frame) {
+      cache.beginFrame();
+    }
+    assertEquals(0, cache.getTrackCount());
+    cache.beginFrame();
+    assertTrue(cache.lookup(TRACK, gray, box, result));
+  }
+
+  /** Classifies the face until its fusion allows reusing the estimate. */
+  private void classifyUntilStable() {
+    AgeGenderResult prediction =
+        new AgeGenderResult(AgeGenderResult.DEFAULT_TOP_K, 0, AgeGenderResult.AGE_BINS);
+    prediction.ageProbabilities[30] = 1;
+    prediction.genderProbability = 0.9f;
+    for (int frame = 0; frame < 3; ++frame) {
+      cache.beginFrame();
+      assertTrue(cache.lookup(TRACK, gray, box, result));
+      cache.update(TRACK, prediction, result);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Clusters synthetic embeddings: every face is a random direction, and its embeddings in the
+ * frames are that direction with a little noise, at a cosine similarity of about 0.95.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VisitorCounterTest {
+
+  private static final int DIMENSION = 128;
+  private static final float NOISE = 0.3f;
+
+  private final Random random = new Random(8);
+  private final float[] embedding = new float[DIMENSION];
+
+  @Test
+  public void faceSeenInManyFramesCountsOnce() {
+    VisitorCounter counter = new VisitorCounter(DIMENSION);
+    float[] face = randomFace();
+    long visitor = counter.observe(-1, frameOf(face), 0);
+    for (int frame = 1; frame < 100; ++frame) {
+      assertEquals(visitor, counter.observe(-1, frameOf(face), frame * 33));
+    }
+    assertEquals(1, counter.getUniqueVisitors());
+    assertEquals(1, counter.getActiveClusters());
+  }
+
+  @Test
+  public void distinctFacesCountSeparately() {
+    VisitorCounter counter = new VisitorCounter(DIMENSION);
+    float[][] faces = new float[20][];
+    long[] visitors = new long[faces.length];
+    for (int i = 0; i < faces.length; ++i) {
+      faces[i] = randomFace();
+      visitors[i] = counter.observe(-1, frameOf(faces[i]), 0);
+    }
+    for (int frame = 1; frame < 5; ++frame) {
+      for (int i = 0; i < faces.length; ++i) {
+        assertEquals(visitors[i], counter.observe(-1, frameOf(faces[i]), frame * 33));
+      }
+    }
+    assertEquals(faces.length, counter.getUniqueVisitors());
+    assertEquals(faces.length, counter.getActiveClusters());
+  }
+
+  @Test
+  public void trackedFaceKeepsItsVisitor() {
+    VisitorCounter counter = new VisitorCounter(DIMENSION);
+    float[] face = randomFace();
+    float[] other = randomFace();
+    long visitor = counter.observe(3, frameOf(face), 0);
+    long otherVisitor = counter.observe(4, frameOf(other), 0);
+    assertNotEquals(visitor, otherVisitor);
+    for (int frame = 1; frame < 20; ++frame) {
+      assertEquals(visitor, counter.observe(3, frameOf(face), frame * 33));
+      assertEquals(otherVisitor, counter.observe(4, frameOf(other), frame * 33));
+    }
+    // A new track of the same face is the same visitor.
+    assertEquals(visitor, counter.observe(5, frameOf(face), 1000));
+    assertEquals(2, counter.getUniqueVisitors());
+  }
+
+  @Test
+  public void facesNotSeenWithinTheTimeoutAreForgotten() {
+    VisitorCounter counter =
+        new VisitorCounter(
+            DIMENSION,
+            VisitorCounter.DEFAULT_MAX_CLUSTERS,
+            VisitorCounter.DEFAULT_MATCH_THRESHOLD,
+            VisitorCounter.DEFAULT_MERGE_THRESHOLD,
+            1000);
+    float[] face = randomFace();
+    long visitor = counter.observe(-1, frameOf(face), 0);
+    counter.observe(-1, frameOf(randomFace()), 2000);
+    assertEquals(1, counter.getActiveClusters());
+    // The face comes back as a new visitor once it was forgotten.
+    assertNotEquals(visitor, counter.observe(-1, frameOf(face), 2100));
+    assertEquals(3, counter.getUniqueVisitors());
+    assertEquals(2, counter.getActiveClusters());
+  }
+
+  @Test
+  public void leastRecentlySeenFaceIsForgottenWhenFull() {
+    VisitorCounter counter =
+        new VisitorCounter(
+            DIMENSION,
+            4,
+            VisitorCounter.DEFAULT_MATCH_THRESHOLD,
+            VisitorCounter.DEFAULT_MERGE_THRESHOLD,
+            VisitorCounter.DEFAULT_TIMEOUT_MS);
+    for (int i = 0; i < 6; ++i) {
+      counter.observe(-1, frameOf(randomFace()), i);
+    }
+    assertEquals(6, counter.getUniqueVisitors());
+    assertEquals(4, counter.getActiveClusters());
+  }
+
+  private float[] randomFace() {
+    float[] face = new float[DIMENSION];
+    for (int i = 0; i < DIMENSION; ++i) {
+      face[i] = (float) random.nextGaussian();
+    }
+    return face;
+  }
+
+  /** The embedding of {@code face} in one frame. */
+  private float[] frameOf(float[] face) {
+    for (int i = 0; i < DIMENSION; ++i) {
+      embedding[i] = face[i] + NOISE * (float) random.nextGaussian();
+    }
+    return embedding;
+  }
+}
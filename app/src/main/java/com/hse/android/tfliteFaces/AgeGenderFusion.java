@@ -0,0 +1,115 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.util.Arrays;
+
+/**
+ * Fuses the predictions for one tracked face over time. The age bin probabilities and the gender
+ * probability are exponentially weighted moving averages of the predictions, and the smoothed
+ * estimate is decoded from them like a single prediction.
+ *
+ * <p>The fusion also tells how long the estimate may be reused without a new prediction: not at
+ * all until a few predictions were fused, briefly while the estimate still moves or the gender
+ * is close to the threshold, and for the full refresh interval once it is stable.
+ */
+final class AgeGenderFusion {
+
+  /** Weight of a new prediction in the moving averages. */
+  static final float DEFAULT_WEIGHT = 0.3f;
+
+  /** Number of predictions fused before the estimate is reused between predictions. */
+  private static final int MIN_OBSERVATIONS = 3;
+
+  /** Change of the expected age in years by one prediction below which the age is stable. */
+  private static final float STABLE_AGE_CHANGE = 1.5f;
+
+  /** Distance of the gender probability from the threshold above which the gender is stable. */
+  private static final float STABLE_GENDER_MARGIN = 0.1f;
+
+  private final float weight;
+  private final float[] ageProbabilities = new float[AgeGenderResult.AGE_BINS];
+  private float genderProbability;
+  private final AgeGenderResult estimate = new AgeGenderResult();
+  private int observations = 0;
+  private boolean stable = false;
+
+  /** @param weight weight of a new prediction in the moving averages, in (0, 1] */
+  AgeGenderFusion(float weight) {
+    this.weight = weight;
+  }
+
+  /** Adds a prediction to the moving averages and updates the estimate. */
+  void add(AgeGenderResult prediction) {
+    float w = observations == 0 ? 1 : weight;
+    float[] probabilities = prediction.ageProbabilities;
+    if (probabilities != null) {
+      int bins = Math.min(probabilities.length, ageProbabilities.length);
+      for (int i = 0; i < bins; ++i) {
+        ageProbabilities[i] += w * (probabilities[i] - ageProbabilities[i]);
+      }
+    } else {
+      // Only the top bins are known; the rest of the distribution counts as zero.
+      for (int i = 0; i < ageProbabilities.length; ++i) {
+        ageProbabilities[i] *= 1 - w;
+      }
+      for (int j = 0; j < prediction.topK; ++j) {
+        ageProbabilities[prediction.topAgeBins[j]] += w * prediction.topAgeProbabilities[j];
+      }
+    }
+    genderProbability += w * (prediction.genderProbability - genderProbability);
+
+    float previousAge = estimate.age;
+    AbstractFaceAttributeEngine.decodeAge(ageProbabilities, estimate);
+    estimate.genderProbability = genderProbability;
+    estimate.inferenceTimeMs = prediction.inferenceTimeMs;
+    estimate.batchSize = prediction.batchSize;
+    ++observations;
+    stable =
+        observations >= MIN_OBSERVATIONS
+            && Math.abs(estimate.age - previousAge) < STABLE_AGE_CHANGE
+            && Math.abs(genderProbability - AgeGenderResult.MALE_THRESHOLD) > STABLE_GENDER_MARGIN;
+  }
+
+  /** Forgets all predictions, so that the fusion can be reused for another face. */
+  void reset() {
+    Arrays.fill(ageProbabilities, 0);
+    genderProbability = 0;
+    observations = 0;
+    stable = false;
+  }
+
+  boolean hasEstimate() {
+    return observations > 0;
+  }
+
+  /** Copies the smoothed estimate into {@code result}. */
+  void getEstimate(AgeGenderResult result) {
+    result.set(estimate);
+  }
+
+  /**
+   * Number of frames the estimate may be reused before a new prediction is worth its cost.
+   *
+   * @param refreshInterval the number of frames for a stable estimate
+   */
+  int getReuseFrames(int refreshInterval) {
+    if (observations < MIN_OBSERVATIONS) {
+      return 0;
+    }
+    return stable ? refreshInterval : refreshInterval / 4;
+  }
+}
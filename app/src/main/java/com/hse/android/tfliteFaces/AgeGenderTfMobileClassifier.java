@@ -16,21 +16,21 @@ limitations under the License.
 package com.hse.android.tfliteFaces;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
-import android.os.SystemClock;
 import android.util.Log;
 
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 
 /**
- * Classifies images with Tensorflow Lite.
+ * Classifies images with Tensorflow Mobile.
+ *
+ * <p>In quantized mode the graph with 8-bit weights is loaded. Its input placeholder is still
+ * float, so the input conversion is the same as for the float graph.
  */
-public class AgeGenderTfMobileClassifier {
+public class AgeGenderTfMobileClassifier extends AbstractFaceAttributeEngine {
 
   /** Tag for the {@link Log}. */
   private static final String TAG = "TfMobileClassifier";
@@ -39,160 +39,118 @@ public class AgeGenderTfMobileClassifier {
 
     private TensorFlowInferenceInterface inferenceInterface;
 
-    /* Preallocated buffers for storing image data in. */
-    private int[] intValues = new int[getImageSizeX() * getImageSizeY()];
-    private float[] floatValues=new float[getImageSizeX() * getImageSizeY()*DIM_PIXEL_SIZE];
-    private float[][] outputs;
-    private float[] prevFeatures=null;
+    /* Preallocated buffers for storing image data of up to getMaxBatchSize() faces in. */
+    private float[] floatValues=new float[getMaxBatchSize()*getImageSizeX() * getImageSizeY()*DIM_PIXEL_SIZE];
+    private FloatBuffer inputBuffer=FloatBuffer.wrap(floatValues);
+    /* Outputs of the whole batch as fetched from the graph, and split per face. */
+    private float[][] batchOutputs;
+    private float[][][] outputs;
 
     private static final String INPUT_NAME = "input_1";
     private static final String[] OUTPUT_NAMES = {"global_pooling/Mean","age_pred/Softmax","gender_pred/Sigmoid"};
     private static final String MODEL_FILE =
             "file:///android_asset/age_gender_tf2_new-01-0.14-0.92.pb";
-            //"file:///android_asset/optimized_quantized_graph.pb";
+    private static final String QUANTIZED_MODEL_FILE =
+            "file:///android_asset/optimized_quantized_graph.pb";
 
-  /** Initializes an {@code TfLiteImageClassifier}. */
-  AgeGenderTfMobileClassifier(Activity activity) throws IOException {
-      inferenceInterface = new TensorFlowInferenceInterface(activity.getAssets(),MODEL_FILE);
-      outputs = new float[OUTPUT_NAMES.length][];
+  /**
+   * Initializes an {@code AgeGenderTfMobileClassifier}.
+   *
+   * @param quantized true to load the graph with quantized weights
+   */
+  AgeGenderTfMobileClassifier(Activity activity, boolean quantized) throws IOException {
+      super(TAG);
+      inferenceInterface = new TensorFlowInferenceInterface(activity.getAssets(),
+              quantized ? QUANTIZED_MODEL_FILE : MODEL_FILE);
+      batchOutputs = new float[OUTPUT_NAMES.length][];
+      outputs = new float[OUTPUT_NAMES.length][][];
       for(int i=0;i<OUTPUT_NAMES.length;++i) {
           String featureOutputName = OUTPUT_NAMES[i];
           // The shape of the output is [N, NUM_OF_FEATURES], where N is the batch size.
           int numOFFeatures = (int) inferenceInterface.graph().operation(featureOutputName).output(0).shape().size(1);
           Log.i(TAG, "Read output layer size is " + numOFFeatures);
-          outputs[i] = new float[numOFFeatures];
+          batchOutputs[i] = new float[getMaxBatchSize() * numOFFeatures];
+          outputs[i] = new float[getMaxBatchSize()][numOFFeatures];
       }
     Log.d(TAG, "Created a Tensorflow Mobile Image Classifier.");
   }
 
-  /** Classifies a frame from the preview stream. */
-  String classifyFrame(Bitmap bitmap) {
-      long startTime = SystemClock.elapsedRealtime();
-      convertBitmapToByteBuffer(bitmap);
-    runInference();
-    long endTime = SystemClock.elapsedRealtime();
-    Log.i(TAG, "Timecost to run model inference: " + Long.toString(endTime - startTime));
-
-    // Print the results.
-    String textToShow = printResults();
-    textToShow = Long.toString(endTime - startTime) + "ms " + textToShow;
-    return textToShow;
-  }
-
   /** Closes tflite to release resources. */
+  @Override
   public void close() {
     inferenceInterface.close();
+    inferenceInterface = null;
+  }
+
+  @Override
+  protected boolean isInitialized() {
+    return inferenceInterface != null;
   }
 
+  @Override
+  protected void prepareBatch(int batchSize) {
+    // buffers are allocated for the largest batch
+  }
 
   /** Writes Image data into a {@code ByteBuffer}. */
-  private void convertBitmapToByteBuffer(Bitmap bitmap) {
-      bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-      for (int i = 0; i < intValues.length; ++i) {
-          final int val = intValues[i];
+  @Override
+  protected void convertPixelsToInput(int[] pixels, int batchIndex) {
+      final int offset = batchIndex * pixels.length * DIM_PIXEL_SIZE;
+      for (int i = 0; i < pixels.length; ++i) {
+          final int val = pixels[i];
           //'RGB'->'BGR'
-          floatValues[i * 3 + 0] = ((val & 0xFF) - 103.939f);
-          floatValues[i * 3 + 1] = (((val >> 8) & 0xFF) - 116.779f);
-          floatValues[i * 3 + 2] = (((val >> 16) & 0xFF) - 123.68f);
+          floatValues[offset + i * 3 + 0] = ((val & 0xFF) - 103.939f);
+          floatValues[offset + i * 3 + 1] = (((val >> 8) & 0xFF) - 116.779f);
+          floatValues[offset + i * 3 + 2] = (((val >> 16) & 0xFF) - 123.68f);
       }
   }
 
-  /** Prints top-K labels, to be shown in UI as the results. */
-  private String printResults() {
-      //normalize features (first dim)
-      StringBuilder str=new StringBuilder();
-
-      float[] features=outputs[0];
-      float sum=0;
-      for(int i=0;i<features.length;++i)
-          sum+=features[i]*features[i];
-      sum=(float)Math.sqrt(sum);
-      for(int i=0;i<features.length;++i)
-          features[i]/=sum;
-      Log.i(TAG,"!!!!!!!!!!!!!!!!!!!!!!!!! end feature extraction first feat="+features[0]+" last feat="+features[features.length-1]);
-
-      if(prevFeatures!=null){
-          float dist=0;
-          for(int fi=0;fi<features.length;++fi)
-              dist+=(features[fi]-prevFeatures[fi])*(features[fi]-prevFeatures[fi]);
-          dist/=features.length;
-          str.append(String.format("dist=%.4f",dist));
-      }
-      else
-          prevFeatures=new float[features.length];
-      System.arraycopy( features, 0, prevFeatures, 0, features.length );
-
-      //age
-
-      //age
-      final float[] age_features=outputs[1];
-      ArrayList<Integer> indices = new ArrayList<>();
-      for (int j=0;j<age_features.length;++j){
-          indices.add(j);
-      }
-      Collections.sort(indices, new Comparator<Integer>() {
-          @Override
-          public int compare(Integer idx1, Integer idx2) {
-              if (age_features[idx1]==age_features[idx2])
-                  return 0;
-              else if (age_features[idx1]>age_features[idx2])
-                  return -1;
-              else
-                  return 1;
-          }
-      });
-      int max_index=2;
-      float[] probabs=new float[max_index];
-      sum=0;
-      for(int j=0;j<max_index;++j){
-          probabs[j]=age_features[indices.get(j)];
-          sum+=probabs[j];
-      }
-      double age=0;
-      for(int j=0;j<max_index;++j) {
-          age+=(indices.get(j)+0.5)*probabs[j]/sum;
-      }
-      str.append(" age=").append((int) Math.round(age));
-
-      //gender
-      float gender=outputs[2][0];
-      str.append(gender>=0.6?" male":" female").append("\n");
-
-      Log.i(TAG,"age="+age+" gender="+gender);
-
-    return str.toString();
+  @Override
+  protected float[] getAgeProbabilities(int batchIndex) {
+    return outputs[1][batchIndex];
   }
 
-
-  /**
-   * Get the image size along the x axis.
-   *
-   * @return
-   */
-  protected int getImageSizeX() {
-    return 224;
+  @Override
+  protected float getGenderProbability(int batchIndex) {
+    return outputs[2][batchIndex][0];
   }
 
-  /**
-   * Get the image size along the y axis.
-   *
-   * @return
-   */
-  protected int getImageSizeY() {
-    return 224;
+  @Override
+  protected float[] getFeatures(int batchIndex) {
+    return outputs[0][batchIndex];
   }
 
+  @Override
+  protected void runInference(int batchSize) {
+    // The feed must hold exactly batchSize images.
+    inputBuffer.clear();
+    inputBuffer.limit(batchSize * getImageSizeX() * getImageSizeY() * DIM_PIXEL_SIZE);
+    runGraph(inputBuffer, batchSize);
+  }
 
+  /** The graph takes mean-subtracted BGR floats, the layout the pixels are converted into. */
+  @Override
+  public int getDirectInputOrder() {
+    return INPUT_BGR;
+  }
 
-  protected void runInference() {
-      inferenceInterface.feed(INPUT_NAME, floatValues, 1, getImageSizeX(), getImageSizeY(), DIM_PIXEL_SIZE);
-      inferenceInterface.run(OUTPUT_NAMES);
+  @Override
+  protected void runInference(ByteBuffer input, int batchSize) {
+    runGraph(input.asFloatBuffer(), batchSize);
+  }
 
-      // Copy the output Tensor back into the output array.
-      for(int i=0;i<OUTPUT_NAMES.length;++i) {
-          inferenceInterface.fetch(OUTPUT_NAMES[i], outputs[i]);
+  private void runGraph(FloatBuffer input, int batchSize) {
+    inferenceInterface.feed(
+        INPUT_NAME, input, batchSize, getImageSizeX(), getImageSizeY(), DIM_PIXEL_SIZE);
+    inferenceInterface.run(OUTPUT_NAMES);
+
+    // Copy the output Tensor back into the output array.
+    for (int i = 0; i < OUTPUT_NAMES.length; ++i) {
+      inferenceInterface.fetch(OUTPUT_NAMES[i], batchOutputs[i]);
+      final int size = outputs[i][0].length;
+      for (int face = 0; face < batchSize; ++face) {
+        System.arraycopy(batchOutputs[i], face * size, outputs[i][face], 0, size);
       }
-
+    }
   }
-
 }
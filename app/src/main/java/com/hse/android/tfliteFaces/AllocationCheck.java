@@ -0,0 +1,170 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Counts the Java heap allocations of the items a pipeline worker processes, with the per-thread
+ * counters of {@link Debug}, to catch allocations creeping back into a loop that is meant to be
+ * allocation-free once its pools are sized.
+ *
+ * <p>Items are only checked after a few warm-up items and when their pools did not have to grow,
+ * i.e. when an item was no larger than any item before it. Calls into code the pipeline does not
+ * own, i.e. the interpreter, are bracketed with {@link #pause()} and {@link #resume()}; their
+ * allocations are reported separately and do not fail the check.
+ *
+ * <p>In {@link #MODE_STRICT}, the first allocating item throws an {@link AssertionError} that
+ * ends the app, like a {@code StrictMode} death penalty, so that a regression fails a test run
+ * instead of only showing up in the log. It is an error rather than an exception, so that the
+ * pipeline stages, which survive a {@link RuntimeException} of a single item, do not swallow it.
+ *
+ * <p>Every instance is used by one thread; the counts may be read from any thread.
+ */
+final class AllocationCheck {
+
+  /** Tag for the {@link Log}. */
+  private static final String TAG = "AllocationCheck";
+
+  /** Allocations are not counted. */
+  static final int MODE_OFF = 0;
+
+  /** Allocating items are logged and counted in the stats. */
+  static final int MODE_REPORT = 1;
+
+  /** The first allocating item throws. */
+  static final int MODE_STRICT = 2;
+
+  /** Number of items that are not checked, while lazily created buffers are filled. */
+  static final int DEFAULT_WARM_UP_ITEMS = 30;
+
+  private final String name;
+  private final boolean enabled;
+  private final boolean strict;
+  private final int warmUpItems;
+
+  private int startCount;
+  private int pauseCount;
+  private int excludedCount;
+  private int items;
+
+  private volatile long checkedItems;
+  private volatile long allocatingItems;
+  private volatile long allocations;
+  private volatile long excludedAllocations;
+
+  /**
+   * @param name the name of the checked loop in messages
+   * @param mode {@link #MODE_OFF}, {@link #MODE_REPORT} or {@link #MODE_STRICT}; with the
+   *     former, the check does nothing
+   */
+  AllocationCheck(String name, int mode, int warmUpItems) {
+    this.name = name;
+    this.enabled = mode != MODE_OFF;
+    this.strict = mode == MODE_STRICT;
+    this.warmUpItems = warmUpItems;
+  }
+
+  /**
+   * Starts counting allocations on all threads; they are only counted between this and {@link
+   * #stopCounting()}.
+   */
+  static void startCounting() {
+    Debug.startAllocCounting();
+  }
+
+  static void stopCounting() {
+    Debug.stopAllocCounting();
+  }
+
+  /** Starts an item. */
+  void begin() {
+    if (!enabled) {
+      return;
+    }
+    excludedCount = 0;
+    startCount = Debug.getThreadAllocCount();
+  }
+
+  /** Stops counting towards the item, before a call into code the pipeline does not own. */
+  void pause() {
+    if (!enabled) {
+      return;
+    }
+    pauseCount = Debug.getThreadAllocCount();
+  }
+
+  /** Counts towards the item again. */
+  void resume() {
+    if (!enabled) {
+      return;
+    }
+    excludedCount += Debug.getThreadAllocCount() - pauseCount;
+  }
+
+  /**
+   * Ends an item and checks its allocations.
+   *
+   * @param grown whether the pools had to grow for the item, which excuses its allocations
+   * @throws AssertionError in {@link #MODE_STRICT} if the item allocated
+   */
+  void end(boolean grown) {
+    if (!enabled) {
+      return;
+    }
+    int count = Debug.getThreadAllocCount() - startCount - excludedCount;
+    if (++items <= warmUpItems || grown) {
+      return;
+    }
+    ++checkedItems;
+    excludedAllocations += excludedCount;
+    if (count <= 0) {
+      return;
+    }
+    allocations += count;
+    if (++allocatingItems == 1 || strict) {
+      String message =
+          name + " allocated " + count + " objects in steady state, item " + items + ".";
+      if (strict) {
+        throw new AssertionError(message);
+      }
+      Log.e(TAG, message);
+    }
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  long getCheckedItems() {
+    return checkedItems;
+  }
+
+  long getAllocatingItems() {
+    return allocatingItems;
+  }
+
+  /**
+   * Appends e.g. {@code "detect allocs=0/120 (0 objects, +12 outside)"}: the allocating and the
+   * checked items, their allocations and the allocations of the paused calls.
+   */
+  StringBuilder appendStats(StringBuilder str) {
+    str.append(name).append(" allocs=").append(allocatingItems).append('/').append(checkedItems);
+    str.append(" (").append(allocations).append(" objects, +").append(excludedAllocations);
+    return str.append(" outside)");
+  }
+}
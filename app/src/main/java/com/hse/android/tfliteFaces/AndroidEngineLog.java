@@ -0,0 +1,45 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.util.Log;
+
+/**
+ * Routes the messages of the engines to logcat. Debug messages, e.g. the inference timings, are
+ * built only when enabled with {@code adb shell setprop log.tag.<tag> DEBUG}.
+ */
+final class AndroidEngineLog implements EngineLog {
+
+  @Override
+  public boolean isDebugEnabled(String tag) {
+    return Log.isLoggable(tag, Log.DEBUG);
+  }
+
+  @Override
+  public void debug(String tag, String message) {
+    Log.d(tag, message);
+  }
+
+  @Override
+  public void info(String tag, String message) {
+    Log.i(tag, message);
+  }
+
+  @Override
+  public void error(String tag, String message) {
+    Log.e(tag, message);
+  }
+}
@@ -0,0 +1,47 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.graphics.Bitmap;
+
+/**
+ * A {@link Bitmap} as a {@link PixelSource}, so that the engines, which use no Android classes,
+ * classify the face crops of the app. Reads the pixels straight from the bitmap, without a copy
+ * of its own.
+ */
+final class BitmapPixels implements PixelSource {
+
+  final Bitmap bitmap;
+
+  BitmapPixels(Bitmap bitmap) {
+    this.bitmap = bitmap;
+  }
+
+  @Override
+  public int getWidth() {
+    return bitmap.getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return bitmap.getHeight();
+  }
+
+  @Override
+  public void getPixels(int[] dst) {
+    bitmap.getPixels(dst, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+  }
+}
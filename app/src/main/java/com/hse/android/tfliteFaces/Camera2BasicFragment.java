@@ -25,7 +25,6 @@ import android.content.DialogInterface;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
@@ -40,10 +39,12 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
 import android.media.ImageReader;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v13.app.FragmentCompat;
@@ -61,9 +62,6 @@ import android.widget.Toast;
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
-import org.opencv.android.Utils;
-import org.opencv.core.*;
-import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
 
 import java.io.*;
@@ -72,6 +70,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -88,12 +88,68 @@ public class Camera2BasicFragment extends Fragment
 
   private static final int PERMISSIONS_REQUEST_CODE = 1;
 
-  private final Object lock = new Object();
-  private boolean runClassifier = false;
+  /** Argument with the name of the {@link FaceAttributeBackend} to classify faces with. */
+  private static final String ARG_BACKEND = "backend";
+
+  /** Argument that requests a {@link FaceAttributeBenchmark} run before the pipeline starts. */
+  private static final String ARG_BENCHMARK = "benchmark";
+
+  /** Argument with the highest rate at which preview frames are classified. */
+  private static final String ARG_TARGET_FPS = "target_fps";
+
+  /** Classification rate used when none was requested. */
+  static final float DEFAULT_TARGET_FPS = 15;
+
+  /** Argument with the number of face detection threads. */
+  private static final String ARG_DETECTION_THREADS = "detection_threads";
+
+  /** Argument with the number of face classification threads, each with its own model. */
+  private static final String ARG_CLASSIFICATION_THREADS = "classification_threads";
+
+  /** Argument with the number of threads of every Tensorflow Lite interpreter. */
+  private static final String ARG_INTERPRETER_THREADS = "interpreter_threads";
+
+  /** Argument with the number of warm-up inferences of every classification thread. */
+  private static final String ARG_WARM_UP_RUNS = "warm_up_runs";
+
+  /** Argument with the smallest face in frame pixels that is detected. */
+  private static final String ARG_MIN_FACE_SIZE = "min_face_size";
+
+  /** Argument with the {@link AllocationCheck} mode of the frame loop. */
+  private static final String ARG_ALLOCATION_CHECK = "allocation_check";
+
+  /** Argument that follows faces with a {@link DetectionBasedTracker}. */
+  private static final String ARG_TRACKING = "tracking";
+
+  /** Argument with how often untracked frames are scanned for faces in full. */
+  private static final String ARG_FULL_SCAN_INTERVAL = "full_scan_interval";
+
   private boolean checkedPermissions = false;
   private TextView textView;
-  private AgeGenderTfMobileClassifier classifier;
-  //private TfLiteImageClassifier classifier;
+  private FaceAttributeEngine classifier;
+
+  /**
+   * The classifier of every classification thread, starting with {@link #classifier}; the same
+   * {@link InterpreterPool} for all of them if the backend can share its model. Empty until the
+   * {@link #modelLoader} is done.
+   */
+  private final List<FaceAttributeEngine> classifiers = new ArrayList<>();
+
+  /** Loads the models and the cascade off the UI thread, in parallel. */
+  private final ExecutorService modelLoader = Executors.newFixedThreadPool(2);
+
+  /** A detector parsed while the models were loading, until a pipeline takes it over. */
+  private CascadeClassifier preloadedDetector;
+
+  /** A tracker started while the models were loading, until a pipeline takes it over. */
+  private DetectionBasedTracker preloadedTracker;
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  /** When the models started loading, until the first pipeline has been started. */
+  private long modelLoadStartMs = -1;
+
+  private boolean destroyed = false;
 
   /** Max preview width that is guaranteed by Camera2 API */
   private static final int MAX_PREVIEW_WIDTH = 1920;
@@ -142,8 +198,8 @@ public class Camera2BasicFragment extends Fragment
   /** The {@link android.util.Size} of camera preview. */
   private Size previewSize;
 
-  private DetectionBasedTracker  mNativeDetector=null;
-    private CascadeClassifier cascadeClassifier=null;
+  /** Cascade file extracted from the resources, or null until OpenCV is loaded. */
+  private volatile String cascadePath = null;
 
   /** {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state. */
   private final CameraDevice.StateCallback stateCallback =
@@ -182,9 +238,30 @@ public class Camera2BasicFragment extends Fragment
   /** A {@link Handler} for running tasks in the background. */
   private Handler backgroundHandler;
 
-  /** An {@link ImageReader} that handles image capture. */
+  /** An {@link ImageReader} that receives the {@code YUV_420_888} frames analyzed for faces. */
   private ImageReader imageReader;
 
+  /** Clockwise rotation in degrees that turns {@link #imageReader} frames upright. */
+  private int analysisRotation;
+
+  /** Hands every new analysis frame to the {@link #frameScheduler}. */
+  private final ImageReader.OnImageAvailableListener onImageAvailableListener =
+      new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+          Image image = reader.acquireLatestImage();
+          if (image == null) {
+            return;
+          }
+          FrameScheduler<Image> scheduler = frameScheduler;
+          if (scheduler != null) {
+            scheduler.onFrameAvailable(image);
+          } else {
+            image.close();
+          }
+        }
+      };
+
   /** {@link CaptureRequest.Builder} for the camera preview */
   private CaptureRequest.Builder previewRequestBuilder;
 
@@ -288,7 +365,65 @@ public class Camera2BasicFragment extends Fragment
   }
 
   public static Camera2BasicFragment newInstance() {
-    return new Camera2BasicFragment();
+    return newInstance(
+        FaceAttributeBackend.DEFAULT,
+        false,
+        DEFAULT_TARGET_FPS,
+        1,
+        1,
+        0,
+        FaceAnalysisPipeline.DEFAULT_WARM_UP_RUNS,
+        FaceAnalysisPipeline.DEFAULT_MIN_FACE_SIZE,
+        AllocationCheck.MODE_OFF,
+        true,
+        FaceAnalysisPipeline.DEFAULT_FULL_SCAN_INTERVAL);
+  }
+
+  /**
+   * @param backend the inference library used to classify faces
+   * @param runBenchmark whether every backend should be benchmarked first
+   * @param targetFps the highest rate at which preview frames are classified, or 0 for as fast
+   *     as frames arrive
+   * @param detectionThreads the number of threads searching frames for faces
+   * @param classificationThreads the number of threads classifying faces
+   * @param interpreterThreads the number of threads of every Tensorflow Lite interpreter, or 0
+   *     for its default
+   * @param warmUpRuns the number of inferences each classification thread runs on a blank face
+   *     before the first frame
+   * @param minFaceSize the smallest face in frame pixels that is detected; frames are scaled
+   *     down for detection accordingly
+   * @param allocationCheck the {@link AllocationCheck} mode of the frame loop
+   * @param tracking whether faces are followed with a tracker; otherwise frames are scanned
+   *     around the previous faces and in full every {@code fullScanInterval} frames
+   * @param fullScanInterval how often untracked frames are scanned in full; 1 scans every frame
+   */
+  public static Camera2BasicFragment newInstance(
+      FaceAttributeBackend backend,
+      boolean runBenchmark,
+      float targetFps,
+      int detectionThreads,
+      int classificationThreads,
+      int interpreterThreads,
+      int warmUpRuns,
+      int minFaceSize,
+      int allocationCheck,
+      boolean tracking,
+      int fullScanInterval) {
+    Camera2BasicFragment fragment = new Camera2BasicFragment();
+    Bundle args = new Bundle();
+    args.putString(ARG_BACKEND, backend.name());
+    args.putBoolean(ARG_BENCHMARK, runBenchmark);
+    args.putFloat(ARG_TARGET_FPS, targetFps);
+    args.putInt(ARG_DETECTION_THREADS, detectionThreads);
+    args.putInt(ARG_CLASSIFICATION_THREADS, classificationThreads);
+    args.putInt(ARG_INTERPRETER_THREADS, interpreterThreads);
+    args.putInt(ARG_WARM_UP_RUNS, warmUpRuns);
+    args.putInt(ARG_MIN_FACE_SIZE, minFaceSize);
+    args.putInt(ARG_ALLOCATION_CHECK, allocationCheck);
+    args.putBoolean(ARG_TRACKING, tracking);
+    args.putInt(ARG_FULL_SCAN_INTERVAL, fullScanInterval);
+    fragment.setArguments(args);
+    return fragment;
   }
 
   /** Layout the preview and buttons. */
@@ -317,39 +452,23 @@ public class Camera2BasicFragment extends Fragment
                     {
                         Log.i(TAG, "OpenCV loaded successfully");
 
-                        System.loadLibrary("OpenCvDetectionLib");
-                        Log.i(TAG, "After loading all libraries" );
-
-
                         try {
-                            // load cascade file from application resources
-                            InputStream is = getResources().openRawResource(R.raw.lbpcascade_frontalface);
-                            File tmpDir = activity.getDir("cascade", Context.MODE_PRIVATE);
-                            File cascadeFile = new File(tmpDir, "lbpcascade_frontalface.xml");
-                            FileOutputStream os = new FileOutputStream(cascadeFile);
-
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = is.read(buffer)) != -1) {
-                                os.write(buffer, 0, bytesRead);
-                            }
-                            is.close();
-                            os.close();
-
-                            //mNativeDetector = new DetectionBasedTracker(cascadeFile.getAbsolutePath(), 0);
-                            cascadeClassifier = new CascadeClassifier(cascadeFile.getAbsolutePath());
-                            if (cascadeClassifier.empty()) {
-                                Log.e(TAG, "Failed to load cascade classifier");
-                                cascadeClassifier = null;
-                            }
+                            System.loadLibrary("OpenCvDetectionLib");
+                            Log.i(TAG, "After loading all libraries" );
+                        } catch (UnsatisfiedLinkError e) {
+                            // No build for this ABI: faces are detected with the Java cascade
+                            // and cropped to bitmaps.
+                            Log.e(TAG, "Failed to load the native detection library", e);
+                        }
 
-                            cascadeFile.delete();
-                            tmpDir.delete();
 
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            Log.e(TAG, "Failed to load models. Exception thrown: " + e);
-                        }
+                        // Extracted and parsed while the classifiers are loading.
+                        modelLoader.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                loadCascade(activity.getApplicationContext());
+                            }
+                        });
 
                     } break;
                     default:
@@ -367,18 +486,127 @@ public class Camera2BasicFragment extends Fragment
             mLoaderCallback.onManagerConnected(LoaderCallbackInterface.SUCCESS);
         }
     }
-    /** Load the model and labels. */
+    /**
+     * Gets the cascade file from the {@link CascadeCache} and starts the tracker on it, or parses
+     * it into a detector when faces are not tracked, so that the first frame waits for neither;
+     * runs on the {@link #modelLoader}.
+     */
+    private void loadCascade(Context context) {
+        CascadeCache.Entry cascade;
+        try {
+            cascade = CascadeCache.get(
+                    context, R.raw.lbpcascade_frontalface, "lbpcascade_frontalface.xml");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to extract the cascade file.", e);
+            return;
+        }
+        final String path = cascade.file.getAbsolutePath();
+        long loadStart = SystemClock.elapsedRealtime();
+        final DetectionBasedTracker tracker = isTracking() ? startTracker(path) : null;
+        // The Java detector is only needed without a tracker.
+        final CascadeClassifier detector = tracker == null ? new CascadeClassifier(path) : null;
+        long loadMs = SystemClock.elapsedRealtime() - loadStart;
+        if (detector != null && detector.empty()) {
+            Log.e(TAG, "Failed to load cascade classifier");
+            return;
+        }
+        Log.i(TAG, "Startup: cascade "
+                + (cascade.reused
+                        ? "reused in " + cascade.timeMs + " ms instead of extracting in "
+                                + cascade.extractionTimeMs + " ms"
+                        : "extracted in " + cascade.timeMs + " ms")
+                + (tracker != null ? ", tracker started in " : ", parsed in ")
+                + loadMs + " ms");
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (destroyed) {
+                    if (tracker != null) {
+                        tracker.stop();
+                        tracker.release();
+                    }
+                    return;
+                }
+                // Every detection thread loads its own detector from this file; the first one
+                // takes over the tracker or detector loaded here.
+                cascadePath = path;
+                FaceAnalysisPipeline pipeline = faceAnalysisPipeline;
+                if (pipeline != null) {
+                    pipeline.setCascadePath(path, detector, tracker);
+                } else {
+                    preloadedDetector = detector;
+                    preloadedTracker = tracker;
+                }
+            }
+        });
+    }
+
+    /** Whether the pipeline follows faces with a {@link DetectionBasedTracker}. */
+    private boolean isTracking() {
+        Bundle args = getArguments();
+        return args == null || args.getBoolean(ARG_TRACKING, true);
+    }
+
+    /** Starts a tracker for the min face size of the pipeline, or returns null if it fails. */
+    private DetectionBasedTracker startTracker(String path) {
+        Bundle args = getArguments();
+        int minFaceSize = FaceAnalysisPipeline.DEFAULT_MIN_FACE_SIZE;
+        if (args != null) {
+            minFaceSize = args.getInt(ARG_MIN_FACE_SIZE, minFaceSize);
+        }
+        try {
+            DetectionBasedTracker tracker = new DetectionBasedTracker(
+                    path, FaceAnalysisPipeline.getDetectionSize(minFaceSize));
+            tracker.start();
+            return tracker;
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            Log.e(TAG, "Failed to start the face tracker, the cascade is parsed instead.", e);
+            return null;
+        }
+    }
+
+    /** Start loading the models. */
   @Override
   public void onActivityCreated(Bundle savedInstanceState) {
     super.onActivityCreated(savedInstanceState);
 
       setupOpencv();
-    try {
-        classifier = new AgeGenderTfMobileClassifier(getActivity());
-        //classifier=new TfLiteImageClassifier(getActivity());
-    } catch (IOException e) {
-      Log.e(TAG, "Failed to initialize an image classifier.", e);
-    }
+    Bundle args = getArguments();
+    final FaceAttributeBackend backend =
+        FaceAttributeBackend.fromName(args != null ? args.getString(ARG_BACKEND) : null);
+    final int classificationThreads =
+        args != null ? args.getInt(ARG_CLASSIFICATION_THREADS, 1) : 1;
+    final int interpreterThreads = args != null ? args.getInt(ARG_INTERPRETER_THREADS, 0) : 0;
+    final boolean runBenchmark = args != null && args.getBoolean(ARG_BENCHMARK);
+    final Activity activity = getActivity();
+    // Parsing a Tensorflow Mobile graph takes seconds, so the UI thread must not wait for it.
+    modelLoader.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (runBenchmark) {
+              // The pipeline starts once the classifiers are loaded, so the benchmark does not
+              // compete with it for the cores.
+              showToast(FaceAttributeBenchmark.runAll(activity));
+            }
+            final long loadStartMs = SystemClock.elapsedRealtime();
+            final List<FaceAttributeEngine> loaded =
+                loadClassifiers(activity, backend, classificationThreads, interpreterThreads);
+            Log.i(
+                TAG,
+                "Startup: classifiers loaded in "
+                    + (SystemClock.elapsedRealtime() - loadStartMs)
+                    + " ms");
+            mainHandler.post(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    modelLoadStartMs = loadStartMs;
+                    onClassifiersLoaded(loaded);
+                  }
+                });
+          }
+        });
     startBackgroundThread();
   }
 
@@ -407,10 +635,76 @@ public class Camera2BasicFragment extends Fragment
 
   @Override
   public void onDestroy() {
-    classifier.close();
+    destroyed = true;
+    modelLoader.shutdown();
+    if (preloadedTracker != null) {
+      preloadedTracker.stop();
+      preloadedTracker.release();
+      preloadedTracker = null;
+    }
+    closeClassifiers(classifiers);
     super.onDestroy();
   }
 
+  /**
+   * Loads the classifier of every classification thread; runs on the {@link #modelLoader}.
+   *
+   * @return the classifiers, or an empty list if the model failed to load
+   */
+  private static List<FaceAttributeEngine> loadClassifiers(
+      Activity activity,
+      FaceAttributeBackend backend,
+      int classificationThreads,
+      int interpreterThreads) {
+    List<FaceAttributeEngine> loaded = new ArrayList<>();
+    try {
+      FaceAttributeEngine shared = backend.createShared(activity, interpreterThreads);
+      if (shared != null) {
+        // The pool gives every classification thread an interpreter of its own.
+        for (int i = 0; i < classificationThreads; ++i) {
+          loaded.add(shared);
+        }
+      } else {
+        // Interpreters are not thread-safe, so every classification thread gets its own.
+        for (int i = 0; i < classificationThreads; ++i) {
+          loaded.add(backend.create(activity));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Failed to initialize an image classifier.", e);
+      closeClassifiers(loaded);
+      loaded.clear();
+    }
+    return loaded;
+  }
+
+  /** Takes over the loaded classifiers on the UI thread and starts the pipeline if it can. */
+  private void onClassifiersLoaded(List<FaceAttributeEngine> loaded) {
+    if (destroyed) {
+      closeClassifiers(loaded);
+      return;
+    }
+    if (loaded.isEmpty()) {
+      return;
+    }
+    classifier = loaded.get(0);
+    classifiers.addAll(loaded);
+    if (backgroundHandler != null) {
+      startPipeline();
+    }
+  }
+
+  /** Closes every classifier once; a shared pool appears several times in the list. */
+  private static void closeClassifiers(List<FaceAttributeEngine> engines) {
+    FaceAttributeEngine previous = null;
+    for (FaceAttributeEngine engine : engines) {
+      if (engine != previous) {
+        engine.close();
+      }
+      previous = engine;
+    }
+  }
+
   /**
    * Sets up member variables related to camera.
    *
@@ -442,9 +736,6 @@ public class Camera2BasicFragment extends Fragment
         Size largest =
             Collections.max(
                 Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)), new CompareSizesByArea());
-        imageReader =
-            ImageReader.newInstance(
-                largest.getWidth(), largest.getHeight(), ImageFormat.JPEG, /*maxImages*/ 2);
 
         // Find out if we need to swap dimension to get the preview size relative to sensor
         // coordinate.
@@ -501,6 +792,34 @@ public class Camera2BasicFragment extends Fragment
                 maxPreviewHeight,
                 largest);
 
+        // Faces are analyzed on YUV frames of about the preview size. The pipeline copies an image
+        // and closes it before queueing the copy, so the app holds only the image waiting in the
+        // scheduler. acquireLatestImage needs two more, since it acquires the next image before
+        // it closes the one it skips.
+        Size analysisSize =
+            chooseOptimalSize(
+                map.getOutputSizes(ImageFormat.YUV_420_888),
+                previewSize.getWidth(),
+                previewSize.getHeight(),
+                MAX_PREVIEW_WIDTH,
+                MAX_PREVIEW_HEIGHT,
+                previewSize);
+        imageReader =
+            ImageReader.newInstance(
+                analysisSize.getWidth(),
+                analysisSize.getHeight(),
+                ImageFormat.YUV_420_888,
+                /*maxImages*/ 3);
+        imageReader.setOnImageAvailableListener(onImageAvailableListener, backgroundHandler);
+        if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
+          analysisRotation = (sensorOrientation + displayRotation * 90) % 360;
+        } else {
+          analysisRotation = (sensorOrientation - displayRotation * 90 + 360) % 360;
+        }
+        if (faceAnalysisPipeline != null) {
+          faceAnalysisPipeline.setRotation(analysisRotation);
+        }
+
         // We fit the aspect ratio of TextureView to the size of preview we picked.
         int orientation = getResources().getConfiguration().orientation;
         if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
@@ -610,38 +929,104 @@ public class Camera2BasicFragment extends Fragment
     backgroundThread = new HandlerThread(HANDLE_THREAD_NAME);
     backgroundThread.start();
     backgroundHandler = new Handler(backgroundThread.getLooper());
-    synchronized (lock) {
-      runClassifier = true;
+    if (frameScheduler != null) {
+      frameScheduler.stop();
+    }
+    Bundle args = getArguments();
+    float targetFps =
+        args != null ? args.getFloat(ARG_TARGET_FPS, DEFAULT_TARGET_FPS) : DEFAULT_TARGET_FPS;
+    frameScheduler = new FrameScheduler<Image>(backgroundHandler, frameProcessor, targetFps);
+    startPipeline();
+  }
+
+  /** Starts the {@link #faceAnalysisPipeline} once the classifiers are loaded. */
+  private void startPipeline() {
+    if (faceAnalysisPipeline == null && !classifiers.isEmpty()) {
+      Bundle args = getArguments();
+      int detectionThreads = args != null ? args.getInt(ARG_DETECTION_THREADS, 1) : 1;
+      faceAnalysisPipeline =
+          new FaceAnalysisPipeline(
+              classifiers,
+              detectionThreads,
+              FaceAnalysisPipeline.DEFAULT_QUEUE_CAPACITY,
+              isTracking(),
+              new VisitorCounter(AgeGenderResult.FEATURE_SIZE),
+              pipelineListener);
+      faceAnalysisPipeline.setCascadePath(cascadePath, preloadedDetector, preloadedTracker);
+      preloadedDetector = null;
+      preloadedTracker = null;
+      faceAnalysisPipeline.setRotation(analysisRotation);
+      faceAnalysisPipeline.setWarmUpRuns(
+          args != null
+              ? args.getInt(ARG_WARM_UP_RUNS, FaceAnalysisPipeline.DEFAULT_WARM_UP_RUNS)
+              : FaceAnalysisPipeline.DEFAULT_WARM_UP_RUNS);
+      faceAnalysisPipeline.setMinFaceSize(
+          args != null
+              ? args.getInt(ARG_MIN_FACE_SIZE, FaceAnalysisPipeline.DEFAULT_MIN_FACE_SIZE)
+              : FaceAnalysisPipeline.DEFAULT_MIN_FACE_SIZE);
+      faceAnalysisPipeline.setFullScanInterval(
+          args != null
+              ? args.getInt(
+                  ARG_FULL_SCAN_INTERVAL, FaceAnalysisPipeline.DEFAULT_FULL_SCAN_INTERVAL)
+              : FaceAnalysisPipeline.DEFAULT_FULL_SCAN_INTERVAL);
+      faceAnalysisPipeline.setAllocationCheck(
+          args != null
+              ? args.getInt(ARG_ALLOCATION_CHECK, AllocationCheck.MODE_OFF)
+              : AllocationCheck.MODE_OFF);
+      if (modelLoadStartMs >= 0) {
+        // The first pipeline reports its startup times from when the models started loading.
+        faceAnalysisPipeline.setStartTime(modelLoadStartMs);
+        modelLoadStartMs = -1;
+      }
+      faceAnalysisPipeline.start();
     }
-    backgroundHandler.post(periodicClassify);
   }
 
   /** Stops the background thread and its {@link Handler}. */
   private void stopBackgroundThread() {
+    frameScheduler.stop();
+    StringBuilder stats = new StringBuilder("Preview frames processed: ");
+    stats.append(frameScheduler.getProcessedFrames());
+    stats.append(", dropped: ").append(frameScheduler.getDroppedFrames());
+    frameScheduler = null;
+    if (faceAnalysisPipeline != null) {
+      faceAnalysisPipeline.stop();
+      faceAnalysisPipeline.appendStats(stats.append(", "));
+      faceAnalysisPipeline = null;
+    }
+    Log.i(TAG, stats.toString());
     backgroundThread.quitSafely();
     try {
       backgroundThread.join();
       backgroundThread = null;
       backgroundHandler = null;
-      synchronized (lock) {
-        runClassifier = false;
-      }
     } catch (InterruptedException e) {
       Log.e(TAG, "Interrupted when stopping background thread", e);
     }
   }
 
-  /** Takes photos and classify them periodically. */
-  private Runnable periodicClassify =
-      new Runnable() {
+  /** Passes analysis frames to the {@link #faceAnalysisPipeline} at the target rate. */
+  private volatile FrameScheduler<Image> frameScheduler;
+
+  /** Detects and classifies the faces of the analysis frames on its own threads. */
+  private volatile FaceAnalysisPipeline faceAnalysisPipeline;
+
+  /** Hands the latest analysis frame to the pipeline, which copies and closes it. */
+  private final FrameScheduler.FrameProcessor<Image> frameProcessor =
+      new FrameScheduler.FrameProcessor<Image>() {
         @Override
-        public void run() {
-          synchronized (lock) {
-            if (runClassifier) {
-              classifyFrame();
-            }
+        public void processFrame(Image frame) {
+          FaceAnalysisPipeline pipeline = faceAnalysisPipeline;
+          if (pipeline != null && cameraDevice != null) {
+            pipeline.submitFrame(frame);
+          } else {
+            frame.close();
           }
-          backgroundHandler.post(periodicClassify);
+        }
+
+        @Override
+        public void releaseFrame(Image frame) {
+          frame.close();
         }
       };
 
@@ -660,10 +1045,11 @@ public class Camera2BasicFragment extends Fragment
       // We set up a CaptureRequest.Builder with the output Surface.
       previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
       previewRequestBuilder.addTarget(surface);
+      previewRequestBuilder.addTarget(imageReader.getSurface());
 
       // Here, we create a CameraCaptureSession for camera preview.
       cameraDevice.createCaptureSession(
-          Arrays.asList(surface),
+          Arrays.asList(surface, imageReader.getSurface()),
           new CameraCaptureSession.StateCallback() {
 
             @Override
@@ -735,80 +1121,98 @@ public class Camera2BasicFragment extends Fragment
     textureView.setTransform(matrix);
   }
 
-    private Mat mRgba=null, mGray=null;
-  /** Classifies a frame from the preview stream. */
-  private void classifyFrame() {
-    if (classifier == null || getActivity() == null || cameraDevice == null) {
-      showToast("Uninitialized Classifier or invalid context.");
-      return;
-    }
-    Bitmap bitmap = textureView.getBitmap();
-      if (false){
-          String textToShow = classifier.classifyFrame(Bitmap.createScaledBitmap(bitmap,224,224,false));
-          showToast(textToShow);
-      }
-      else {
-          if (mRgba == null) {
-              mRgba = new Mat();
-              mGray = new Mat();
+  /**
+   * Room for the stats and a few dozen faces, so that the texts of the predictions do not grow in
+   * steady state.
+   */
+  private static final int PREDICTION_TEXT_CAPACITY = 2048;
+
+  /**
+   * The text of the predictions being built; guarded by itself, since every classification thread
+   * reports its frames.
+   */
+  private final StringBuilder predictionText = new StringBuilder(PREDICTION_TEXT_CAPACITY);
+
+  /** The text last posted to the {@link #textView}; guarded by {@link #predictionText}. */
+  private final StringBuilder postedPredictionText = new StringBuilder(PREDICTION_TEXT_CAPACITY);
+
+  /** Whether {@link #showPredictionText} is posted and has not run; guarded likewise. */
+  private boolean predictionTextPending = false;
+
+  /** Shows {@link #postedPredictionText}; the text view copies it. */
+  private final Runnable showPredictionText =
+      new Runnable() {
+        @Override
+        public void run() {
+          synchronized (predictionText) {
+            predictionTextPending = false;
+            textView.setText(postedPredictionText);
           }
-          long startTime = SystemClock.elapsedRealtime();
-          Utils.bitmapToMat(bitmap, mRgba);
-          Imgproc.cvtColor(mRgba, mGray, Imgproc.COLOR_BGR2GRAY);
-
-          MatOfRect faces = new MatOfRect();
-
-          if (mNativeDetector != null)
-              mNativeDetector.detect(mGray, faces);
-          else if (cascadeClassifier != null)
-              cascadeClassifier.detectMultiScale(mGray, faces, 1.1, 2, 2,
-                      new org.opencv.core.Size(40, 40), new org.opencv.core.Size());
-
-          long endTime = SystemClock.elapsedRealtime();
-          Log.i(TAG, "Timecost to run face detection: " + Long.toString(endTime - startTime));
-
-          Rect[] facesArray = faces.toArray();
-          Log.d(TAG, "mNativeDetector=" + mNativeDetector + " facesArray.length=" + facesArray.length);
-          StringBuilder str = new StringBuilder();
-          if (facesArray.length == 0) {
-              str.append("No faces found");
-              //facesArray=new Rect[]{new Rect(10,10,mGray.cols()-20,mGray.rows()-20)};
+        }
+      };
+
+  /**
+   * Shows the predictions for the faces of each frame. It runs within the allocation check of the
+   * classification threads, so it reuses its texts and only posts to the UI thread when the text
+   * changes.
+   */
+  private final FaceAnalysisPipeline.Listener pipelineListener =
+      new FaceAnalysisPipeline.Listener() {
+        @Override
+        public void onFacesClassified(FaceAnalysisPipeline.FaceBatch batch) {
+          if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Face detection took " + batch.detectionTimeMs + " ms");
           }
-          StringBuilder sb = new StringBuilder();
-          for (int i = 0; i < facesArray.length; i++) {
-              int dw = facesArray[i].width / 8;
-              int dh = facesArray[i].height / 8;
-              int x = facesArray[i].x - dw;
-              if (x < 0)
-                  x = 0;
-              int y = facesArray[i].y - dh;
-              if (y < 0)
-                  y = 0;
-              int w = facesArray[i].width + 2 * dw;
-              if (x + w >= mRgba.cols())
-                  w = mRgba.cols() - x - 1;
-              int h = facesArray[i].height + 2 * dh;
-              if (y + h >= mRgba.rows())
-                  h = mRgba.rows() - y - 1;
-              facesArray[i] = new Rect(x, y, w, h);
-
-
-              Mat face = mRgba.submat(facesArray[i]);
-              Imgproc.resize(face, face, new org.opencv.core.Size(classifier.getImageSizeX(), classifier.getImageSizeY()));
-              final Bitmap resultBitmap = Bitmap.createBitmap(face.cols(), face.rows(), Bitmap.Config.ARGB_8888);
-              Utils.matToBitmap(face, resultBitmap);
-
-              //Bitmap bitmap = textureView.getBitmap(classifier.getImageSizeX(), classifier.getImageSizeY());
-              //String textToShow = classifier.classifyFrame(resultBitmap);
-              String textToShow ="female 25 ";
-              sb.append(i + 1).append(":").append(textToShow);
-              Scalar    FACE_RECT_COLOR     = new Scalar(255, 64, 207);
-              Imgproc.rectangle(mRgba, facesArray[i].tl(), facesArray[i].br(), FACE_RECT_COLOR, 3);
+          synchronized (predictionText) {
+            StringBuilder sb = predictionText;
+            sb.setLength(0);
+            if (batch.faceCount == 0) {
+              sb.append("No faces found");
+            } else if (!batch.classified) {
+              sb.append("Uninitialized Classifier.");
+            } else {
+              for (int i = 0; i < batch.faceCount; i++) {
+                sb.append(i + 1);
+                if (batch.trackIds[i] >= 0) {
+                  sb.append('#').append(batch.trackIds[i]);
+                }
+                sb.append(":");
+                batch.results.get(i).appendTo(sb).append("\n");
+              }
+            }
+            FrameScheduler<Image> scheduler = frameScheduler;
+            FaceAnalysisPipeline pipeline = faceAnalysisPipeline;
+            if (batch.faceCount > 0 && scheduler != null && pipeline != null) {
+              sb.append("frames=").append(scheduler.getProcessedFrames());
+              sb.append(" dropped=")
+                  .append(scheduler.getDroppedFrames() + pipeline.getDroppedFrames())
+                  .append("\n");
+              pipeline.appendStats(sb);
+            }
+            if (contentEquals(sb, postedPredictionText)) {
+              return;
+            }
+            postedPredictionText.setLength(0);
+            postedPredictionText.append(sb);
+            Activity activity = getActivity();
+            if (!predictionTextPending && activity != null) {
+              predictionTextPending = true;
+              activity.runOnUiThread(showPredictionText);
+            }
           }
-          String textToShow ="female 19 ";
-          showToast(textToShow);
+        }
+      };
+
+  private static boolean contentEquals(CharSequence a, CharSequence b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    for (int i = 0; i < a.length(); ++i) {
+      if (a.charAt(i) != b.charAt(i)) {
+        return false;
       }
-    bitmap.recycle();
+    }
+    return true;
   }
 
   /** Compares two {@code Size}s based on their areas. */
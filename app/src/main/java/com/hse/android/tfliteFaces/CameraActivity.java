@@ -16,19 +16,98 @@ limitations under the License.
 package com.hse.android.tfliteFaces;
 
 import android.app.Activity;
+import android.content.Intent;
 import android.os.Bundle;
 
 /** Main {@code Activity} class for the Camera app. */
 public class CameraActivity extends Activity {
 
+  /** String extra with the name of the {@link FaceAttributeBackend} to use. */
+  public static final String EXTRA_BACKEND = "backend";
+
+  /** Boolean extra that benchmarks all backends before the preview starts. */
+  public static final String EXTRA_BENCHMARK = "benchmark";
+
+  /** Float extra with the highest rate at which preview frames are classified. */
+  public static final String EXTRA_TARGET_FPS = "target_fps";
+
+  /** Int extra with the number of face detection threads. */
+  public static final String EXTRA_DETECTION_THREADS = "detection_threads";
+
+  /** Int extra with the number of face classification threads. */
+  public static final String EXTRA_CLASSIFICATION_THREADS = "classification_threads";
+
+  /** Int extra with the number of threads of every Tensorflow Lite interpreter. */
+  public static final String EXTRA_INTERPRETER_THREADS = "interpreter_threads";
+
+  /** Int extra with the number of warm-up inferences before the first frame is classified. */
+  public static final String EXTRA_WARM_UP_RUNS = "warm_up_runs";
+
+  /** Int extra with the smallest face in frame pixels that is detected. */
+  public static final String EXTRA_MIN_FACE_SIZE = "min_face_size";
+
+  /**
+   * Int extra that counts the allocations of the frame loop: 1 logs them, 2 ends the app on the
+   * first allocation in steady state, e.g. in a test run.
+   */
+  public static final String EXTRA_ALLOCATION_CHECK = "allocation_check";
+
+  /**
+   * Boolean extra that follows faces with a tracker, true by default; without it, frames are
+   * scanned around the previous faces and in full every {@link #EXTRA_FULL_SCAN_INTERVAL} frames.
+   */
+  public static final String EXTRA_TRACKING = "tracking";
+
+  /** Int extra with how often untracked frames are scanned in full; 1 scans every frame. */
+  public static final String EXTRA_FULL_SCAN_INTERVAL = "full_scan_interval";
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_camera);
     if (null == savedInstanceState) {
+      Intent intent = getIntent();
+      FaceAttributeBackend backend =
+          FaceAttributeBackend.fromName(intent.getStringExtra(EXTRA_BACKEND));
+      boolean runBenchmark = intent.getBooleanExtra(EXTRA_BENCHMARK, false);
+      float targetFps =
+          intent.getFloatExtra(EXTRA_TARGET_FPS, Camera2BasicFragment.DEFAULT_TARGET_FPS);
+      int detectionThreads = Math.max(1, intent.getIntExtra(EXTRA_DETECTION_THREADS, 1));
+      int classificationThreads =
+          Math.max(1, intent.getIntExtra(EXTRA_CLASSIFICATION_THREADS, 1));
+      int interpreterThreads = Math.max(0, intent.getIntExtra(EXTRA_INTERPRETER_THREADS, 0));
+      int warmUpRuns =
+          Math.max(
+              0,
+              intent.getIntExtra(EXTRA_WARM_UP_RUNS, FaceAnalysisPipeline.DEFAULT_WARM_UP_RUNS));
+      int minFaceSize =
+          Math.max(
+              1,
+              intent.getIntExtra(EXTRA_MIN_FACE_SIZE, FaceAnalysisPipeline.DEFAULT_MIN_FACE_SIZE));
+      int allocationCheck =
+          intent.getIntExtra(EXTRA_ALLOCATION_CHECK, AllocationCheck.MODE_OFF);
+      boolean tracking = intent.getBooleanExtra(EXTRA_TRACKING, true);
+      int fullScanInterval =
+          Math.max(
+              1,
+              intent.getIntExtra(
+                  EXTRA_FULL_SCAN_INTERVAL, FaceAnalysisPipeline.DEFAULT_FULL_SCAN_INTERVAL));
       getFragmentManager()
           .beginTransaction()
-          .replace(R.id.container, Camera2BasicFragment.newInstance())
+          .replace(
+              R.id.container,
+              Camera2BasicFragment.newInstance(
+                  backend,
+                  runBenchmark,
+                  targetFps,
+                  detectionThreads,
+                  classificationThreads,
+                  interpreterThreads,
+                  warmUpRuns,
+                  minFaceSize,
+                  allocationCheck,
+                  tracking,
+                  fullScanInterval))
           .commit();
     }
   }
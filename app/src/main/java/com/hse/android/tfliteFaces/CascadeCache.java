@@ -0,0 +1,174 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Extracts a raw resource such as a cascade file to private storage once and reuses it on later
+ * launches, since OpenCV can only load cascades from files.
+ *
+ * <p>A small stamp file next to the extracted file records the CRC32 of its content and the
+ * install time of the app. The file is reused while both match, i.e. as long as the app has not
+ * been updated and the file has not been truncated or changed; otherwise it is extracted again.
+ * The stamp also records how long the extraction took, so that a reuse can report the time saved.
+ */
+final class CascadeCache {
+
+  /** Tag for the {@link Log}. */
+  private static final String TAG = "CascadeCache";
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  /** The extracted file and what it cost to get it. */
+  static final class Entry {
+    final File file;
+
+    /** Whether the file of an earlier launch was reused. */
+    final boolean reused;
+
+    /** Time spent in milliseconds on checking or extracting the file. */
+    final long timeMs;
+
+    /** Time the last extraction took, in milliseconds. */
+    final long extractionTimeMs;
+
+    Entry(File file, boolean reused, long timeMs, long extractionTimeMs) {
+      this.file = file;
+      this.reused = reused;
+      this.timeMs = timeMs;
+      this.extractionTimeMs = extractionTimeMs;
+    }
+  }
+
+  private CascadeCache() {}
+
+  /**
+   * Returns the extracted resource, extracting it if there is no valid file from an earlier
+   * launch.
+   *
+   * @param fileName the name of the file in the app's {@code cascade} directory
+   */
+  static Entry get(Context context, int resourceId, String fileName) throws IOException {
+    long startTime = SystemClock.elapsedRealtime();
+    File directory = context.getDir("cascade", Context.MODE_PRIVATE);
+    File file = new File(directory, fileName);
+    File stamp = new File(directory, fileName + ".crc");
+    long installTime = getInstallTime(context);
+
+    long[] stamped = readStamp(stamp);
+    if (stamped != null && stamped[1] == installTime && file.isFile()) {
+      if (checksum(file) == stamped[0]) {
+        return new Entry(file, true, SystemClock.elapsedRealtime() - startTime, stamped[2]);
+      }
+      Log.w(TAG, "Extracted " + fileName + " is damaged, extracting it again.");
+    }
+
+    File tmp = new File(directory, fileName + ".tmp");
+    CRC32 crc = new CRC32();
+    InputStream is = context.getResources().openRawResource(resourceId);
+    try {
+      OutputStream os = new FileOutputStream(tmp);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int bytesRead;
+        while ((bytesRead = is.read(buffer)) != -1) {
+          crc.update(buffer, 0, bytesRead);
+          os.write(buffer, 0, bytesRead);
+        }
+      } finally {
+        os.close();
+      }
+    } finally {
+      is.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Cannot rename " + tmp + " to " + file);
+    }
+    long timeMs = SystemClock.elapsedRealtime() - startTime;
+    writeStamp(stamp, crc.getValue(), installTime, timeMs);
+    return new Entry(file, false, timeMs, timeMs);
+  }
+
+  /** The time the app was installed or last updated, or 0 if it is unknown. */
+  private static long getInstallTime(Context context) {
+    try {
+      return context
+          .getPackageManager()
+          .getPackageInfo(context.getPackageName(), 0)
+          .lastUpdateTime;
+    } catch (PackageManager.NameNotFoundException e) {
+      return 0;
+    }
+  }
+
+  private static long checksum(File file) throws IOException {
+    CRC32 crc = new CRC32();
+    InputStream is = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int bytesRead;
+      while ((bytesRead = is.read(buffer)) != -1) {
+        crc.update(buffer, 0, bytesRead);
+      }
+    } finally {
+      is.close();
+    }
+    return crc.getValue();
+  }
+
+  /** Returns the checksum, install time and extraction time, or null if there is no stamp. */
+  private static long[] readStamp(File stamp) {
+    if (!stamp.isFile()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(stamp));
+      try {
+        return new long[] {in.readLong(), in.readLong(), in.readLong()};
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static void writeStamp(File stamp, long checksum, long installTime, long extractionMs)
+      throws IOException {
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(stamp));
+    try {
+      out.writeLong(checksum);
+      out.writeLong(installTime);
+      out.writeLong(extractionMs);
+    } finally {
+      out.close();
+    }
+  }
+}
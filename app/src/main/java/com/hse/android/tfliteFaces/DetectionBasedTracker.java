@@ -1,6 +1,7 @@
 package com.hse.android.tfliteFaces;
 
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
 import org.opencv.core.MatOfRect;
 
 public class DetectionBasedTracker
@@ -25,6 +26,14 @@ public class DetectionBasedTracker
         nativeDetect(mNativeObj, imageGray.getNativeObjAddr(), faces.getNativeObjAddr());
     }
 
+    /**
+     * Like {@link #detect(Mat, MatOfRect)}, and also returns the id of the track of every face.
+     * Ids stay the same while the tracker follows a face from frame to frame.
+     */
+    public void detect(Mat imageGray, MatOfRect faces, MatOfInt ids) {
+        nativeDetectTracked(mNativeObj, imageGray.getNativeObjAddr(), faces.getNativeObjAddr(), ids.getNativeObjAddr());
+    }
+
     public void release() {
         nativeDestroyObject(mNativeObj);
         mNativeObj = 0;
@@ -38,4 +47,5 @@ public class DetectionBasedTracker
     private static native void nativeStop(long thiz);
     private static native void nativeSetFaceSize(long thiz, int size);
     private static native void nativeDetect(long thiz, long inputImage, long faces);
+    private static native void nativeDetectTracked(long thiz, long inputImage, long faces, long ids);
 }
@@ -0,0 +1,1067 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Detects and classifies the faces of camera frames in two pipelined {@link PipelineStage}s, so
+ * that the faces of one frame are classified while the next frame is searched for faces.
+ *
+ * <p>Frames enter the detection stage through a bounded queue that drops the oldest frame when
+ * it is full. Detection crops the faces into a {@link FaceBatch} and hands it to the
+ * classification stage through another bounded queue, waiting while that queue is full; a slow
+ * classifier therefore shows up as a full classification queue and dropped frames.
+ *
+ * <p>Every classification thread first runs its engine a few times on a blank face, since the
+ * first inferences of an interpreter allocate its tensors and are much slower than the later
+ * ones. Frames are only accepted once all threads are warmed up; the time from {@link
+ * #setStartTime} until then and until the first classified frame is reported with the stats.
+ *
+ * <p>Once its pools are sized by the first frames, the frame loop allocates nothing on the Java
+ * heap: frames, face batches, their boxes, bitmaps and model input, the detection buffers and
+ * the face tracks are all reused, and only grow for a frame with more faces than any frame
+ * before it. {@link #setAllocationCheck} makes every worker count its allocations with an {@link
+ * AllocationCheck}, to catch allocations creeping back in.
+ */
+final class FaceAnalysisPipeline {
+
+  /** Tag for the {@link Log}. */
+  private static final String TAG = "FaceAnalysisPipeline";
+
+  /** Number of frames or face batches that may wait in front of a stage by default. */
+  static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+  /** Number of inferences on a blank face each classification thread runs before frames. */
+  static final int DEFAULT_WARM_UP_RUNS = 2;
+
+  /** Largest batch of faces each classification thread runs once before frames by default. */
+  static final int DEFAULT_WARM_UP_FACES = 4;
+
+  /** Receives the classified faces of each frame. */
+  interface Listener {
+    /**
+     * Called on a classification thread. The batch is reused once this returns, so it must not
+     * be kept. The call is part of the item the {@link AllocationCheck} of the thread checks, so
+     * it should not allocate in steady state.
+     */
+    void onFacesClassified(FaceBatch batch);
+  }
+
+  /**
+   * The faces found in one frame, with their predictions once they are classified. Only the faces
+   * that need to be classified are cropped; the others reuse the prediction of their track.
+   */
+  static final class FaceBatch {
+    /** Predictions for the faces; the first {@link #faceCount} are valid. */
+    final List<AgeGenderResult> results = new ArrayList<>();
+
+    /**
+     * Face boxes in the upright frame; the first {@link #faceCount} are valid. The boxes are
+     * pooled and overwritten by the next frame.
+     */
+    Rect[] boxes = new Rect[0];
+
+    /** Track id of every face, or -1 when the faces are not tracked. */
+    int[] trackIds = new int[0];
+
+    int faceCount;
+
+    /** Crops of the faces to classify at the classifier input size, unless {@link #directInput}. */
+    final List<BitmapPixels> faces = new ArrayList<>();
+
+    /** Whether the faces to classify were written into {@link #input} instead of bitmaps. */
+    boolean directInput;
+
+    /** Model input of the faces to classify, written by {@link FaceInputWriter}; grows. */
+    DirectInputBuffer input;
+
+    /** Number of faces {@link #input} holds. */
+    int inputCapacity;
+
+    /** x, y, width and height of every face to classify, for {@link FaceInputWriter}. */
+    int[] rects = new int[0];
+
+    /** Predictions for {@link #faces}. */
+    final List<AgeGenderResult> facePredictions = new ArrayList<>();
+
+    /** Index in {@link #results} of every face to classify. */
+    int[] faceIndices = new int[0];
+
+    /** Number of valid entries in {@link #faces}. */
+    int classifyCount;
+
+    /** Whether {@link #results} hold predictions for this frame. */
+    boolean classified;
+
+    /** Time cost of the face detection, in milliseconds. */
+    long detectionTimeMs;
+
+    /** Whether the pools of the batch had to grow for this frame. */
+    private boolean grown;
+
+    /** The first {@link #classifyCount} of {@link #faces}, without a subList per frame. */
+    private final List<BitmapPixels> facesToClassify =
+        new AbstractList<BitmapPixels>() {
+          @Override
+          public BitmapPixels get(int index) {
+            return faces.get(index);
+          }
+
+          @Override
+          public int size() {
+            return classifyCount;
+          }
+        };
+
+    List<BitmapPixels> getFaces() {
+      return facesToClassify;
+    }
+
+    private void reset(int count) {
+      grown = false;
+      if (boxes.length < count) {
+        int pooled = boxes.length;
+        boxes = Arrays.copyOf(boxes, count);
+        for (int i = pooled; i < count; ++i) {
+          boxes[i] = new Rect();
+        }
+        grown = true;
+      }
+      while (results.size() < count) {
+        results.add(new AgeGenderResult());
+        grown = true;
+      }
+      if (trackIds.length < count) {
+        trackIds = new int[count];
+        faceIndices = new int[count];
+        grown = true;
+      }
+      faceCount = count;
+      classifyCount = 0;
+      classified = false;
+      directInput = false;
+    }
+
+    /**
+     * Marks the face at {@code faceIndex} for classification.
+     *
+     * @param featureSize the length of the embedding kept with the prediction, or 0
+     * @return the position of the face among the faces to classify
+     */
+    private int addFaceToClassify(int faceIndex, int featureSize) {
+      if (facePredictions.size() == classifyCount) {
+        facePredictions.add(
+            new AgeGenderResult(
+                AgeGenderResult.DEFAULT_TOP_K, featureSize, AgeGenderResult.AGE_BINS));
+        grown = true;
+      }
+      faceIndices[classifyCount] = faceIndex;
+      return classifyCount++;
+    }
+
+    /** Returns the bitmap to crop the face to classify at {@code position} into. */
+    private Bitmap getFaceBitmap(int position, int width, int height) {
+      while (faces.size() <= position) {
+        faces.add(new BitmapPixels(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)));
+        grown = true;
+      }
+      return faces.get(position).bitmap;
+    }
+
+    /** Makes {@link #input} and {@link #rects} hold the faces to classify. */
+    private void reserveInput(int bytesPerFace) {
+      if (inputCapacity < classifyCount) {
+        inputCapacity = Math.max(classifyCount, 2 * inputCapacity);
+        input = new DirectInputBuffer(bytesPerFace, inputCapacity);
+        rects = new int[4 * inputCapacity];
+        grown = true;
+      }
+    }
+  }
+
+  /** Smallest face in frame pixels that is detected by default. */
+  static final int DEFAULT_MIN_FACE_SIZE = 40;
+
+  /**
+   * Smallest face in pixels that the cascade finds reliably, its 24 x 24 pixel window. Frames
+   * are scaled down for detection so that the smallest face of interest has this size.
+   */
+  private static final int DETECTION_FACE_SIZE = 24;
+
+  /**
+   * Untracked frames are scanned in full at least every this many frames by default, and only
+   * around the faces of the previous frame in between.
+   */
+  static final int DEFAULT_FULL_SCAN_INTERVAL = 10;
+
+  private final List<FaceAttributeEngine> engines;
+  private final Listener listener;
+  private final int faceWidth;
+  private final int faceHeight;
+
+  /**
+   * The {@link FaceAttributeEngine#getDirectInputOrder()} of the engines; unless it is {@link
+   * FaceAttributeEngine#INPUT_NONE}, faces are written straight into the model input.
+   */
+  private final int directInputOrder;
+  private final PipelineStage<YuvFrame> detectionStage;
+  private final PipelineStage<FaceBatch> classificationStage;
+
+  /** Batches that are not in use; enough for every queue slot and worker. */
+  private final ObjectPool<FaceBatch> freeBatches;
+
+  /** Frames to copy camera images into that are not in use; enough for every slot and worker. */
+  private final ObjectPool<YuvFrame> freeFrames;
+
+  /** Predictions of the tracked faces, or null if faces are not tracked. */
+  private final FaceTrackCache tracks;
+
+  /** Clusters the embeddings of the classified faces, or null if visitors are not counted. */
+  private final VisitorCounter visitors;
+
+  private volatile String cascadePath;
+  private final AtomicReference<CascadeClassifier> preloadedDetector = new AtomicReference<>();
+  private final AtomicReference<DetectionBasedTracker> preloadedTracker = new AtomicReference<>();
+  private volatile int rotation;
+  private volatile int warmUpRuns = DEFAULT_WARM_UP_RUNS;
+  private volatile int warmUpFaces = DEFAULT_WARM_UP_FACES;
+  private volatile int minFaceSize = DEFAULT_MIN_FACE_SIZE;
+  private volatile int fullScanInterval = DEFAULT_FULL_SCAN_INTERVAL;
+  private volatile int allocationCheckMode = AllocationCheck.MODE_OFF;
+
+  /** The {@link AllocationCheck} of every worker. */
+  private final List<AllocationCheck> allocationChecks = new CopyOnWriteArrayList<>();
+
+  /** Untracked detections restricted to the regions of the previous faces. */
+  private final AtomicLong roiScans = new AtomicLong();
+
+  /** Untracked detections over the whole frame. */
+  private final AtomicLong fullScans = new AtomicLong();
+
+  /** {@link SystemClock#elapsedRealtime()} that the startup times are measured from. */
+  private volatile long startTimeMs = -1;
+
+  /** Number of classification threads that are not warmed up yet. */
+  private final AtomicInteger warmingUp;
+
+  /** Milliseconds from the start until all classification threads were warmed up, or -1. */
+  private volatile long modelReadyMs = -1;
+
+  /** Milliseconds from the start until a detector or tracker was set up, or -1. */
+  private volatile long detectorReadyMs = -1;
+
+  /** Milliseconds from the start until the first frame was classified, or -1. */
+  private volatile long firstResultMs = -1;
+
+  /** Frames skipped because the classifiers were still warming up. */
+  private final AtomicLong framesBeforeReady = new AtomicLong();
+
+  /**
+   * @param engines the classifier of each classification thread; their number is the number of
+   *     classification threads
+   * @param detectionThreads the number of detection threads; a single one is used when tracking
+   * @param queueCapacity the number of items that may wait in front of each stage
+   * @param tracking whether faces are followed with a {@link DetectionBasedTracker}, so that their
+   *     predictions are fused over time and they are only classified from time to time
+   * @param visitors counts the unique faces from the embeddings of the classified faces, or null
+   */
+  FaceAnalysisPipeline(
+      List<FaceAttributeEngine> engines,
+      int detectionThreads,
+      int queueCapacity,
+      boolean tracking,
+      VisitorCounter visitors,
+      Listener listener) {
+    this.engines = engines;
+    this.visitors = visitors;
+    this.listener = listener;
+    if (tracking) {
+      // Tracks follow consecutive frames, so they cannot be split between threads.
+      tracks = new FaceTrackCache(FaceTrackCache.DEFAULT_REFRESH_INTERVAL);
+      detectionThreads = 1;
+    } else {
+      tracks = null;
+    }
+    FaceAttributeEngine engine = engines.get(0);
+    faceWidth = engine.getImageSizeX();
+    faceHeight = engine.getImageSizeY();
+    directInputOrder = engine.getDirectInputOrder();
+    freeBatches = new ObjectPool<>(queueCapacity + detectionThreads + engines.size());
+    freeFrames = new ObjectPool<>(queueCapacity + detectionThreads + 1);
+    warmingUp = new AtomicInteger(engines.size());
+
+    detectionStage =
+        new PipelineStage<>(
+            "detect",
+            queueCapacity,
+            detectionThreads,
+            new PipelineStage.WorkerFactory<YuvFrame>() {
+              @Override
+              public PipelineStage.Worker<YuvFrame> createWorker(int index) {
+                return new DetectionWorker();
+              }
+
+              @Override
+              public void release(YuvFrame frame) {
+                releaseFrame(frame);
+              }
+            });
+    classificationStage =
+        new PipelineStage<>(
+            "classify",
+            queueCapacity,
+            engines.size(),
+            new PipelineStage.WorkerFactory<FaceBatch>() {
+              @Override
+              public PipelineStage.Worker<FaceBatch> createWorker(int index) {
+                FaceAttributeEngine engine = FaceAnalysisPipeline.this.engines.get(index);
+                // A shared pool lends the thread an engine until the worker closes, so that a
+                // restarted pipeline reuses the interpreters instead of creating new ones.
+                InterpreterPool pool =
+                    engine instanceof InterpreterPool ? (InterpreterPool) engine : null;
+                ClassificationWorker worker =
+                    new ClassificationWorker(pool != null ? pool.acquire() : engine, pool);
+                worker.warmUp(warmUpRuns);
+                return worker;
+              }
+
+              @Override
+              public void release(FaceBatch batch) {
+                releaseBatch(batch);
+              }
+            });
+  }
+
+  /**
+   * Sets the cascade file the detectors are loaded from, once it is available.
+   *
+   * @param detector a detector already loaded from the file, taken over by the first detection
+   *     thread instead of parsing the file again, or null
+   * @param tracker a tracker already started on the file for {@link #getDetectionSize} of the
+   *     min face size, taken over when faces are tracked, or null; the pipeline releases it
+   */
+  void setCascadePath(
+      String cascadePath, CascadeClassifier detector, DetectionBasedTracker tracker) {
+    preloadedDetector.set(detector);
+    releaseTracker(preloadedTracker.getAndSet(tracks != null ? tracker : null));
+    if (tracks == null) {
+      releaseTracker(tracker);
+    }
+    this.cascadePath = cascadePath;
+  }
+
+  /** Sets the clockwise rotation in degrees that turns the frames upright. */
+  void setRotation(int rotation) {
+    this.rotation = rotation;
+  }
+
+  /**
+   * Sets the smallest face in frame pixels that is detected; before {@link #start}. Detection
+   * runs on the frame scaled down by {@link #getDetectionScale}, so larger values make detection
+   * cheaper.
+   */
+  void setMinFaceSize(int minFaceSize) {
+    this.minFaceSize = minFaceSize;
+  }
+
+  /**
+   * Scale of the image that faces are detected on relative to the frame: the smallest face of
+   * interest shrinks to the size the cascade was trained for, and the search pyramid loses all
+   * levels below it.
+   */
+  static double getDetectionScale(int minFaceSize) {
+    return Math.min(1.0, (double) DETECTION_FACE_SIZE / minFaceSize);
+  }
+
+  /** Smallest face in pixels of the image that faces are detected on, for the tracker. */
+  static int getDetectionSize(int minFaceSize) {
+    return (int) Math.round(minFaceSize * getDetectionScale(minFaceSize));
+  }
+
+  /**
+   * Sets how often frames that are not tracked are scanned in full, with a {@link
+   * RoiFaceDetector} that only searches around the previous faces in between; 1 scans every frame
+   * in full. Before {@link #start}.
+   */
+  void setFullScanInterval(int fullScanInterval) {
+    this.fullScanInterval = fullScanInterval;
+  }
+
+  /**
+   * Sets the {@link AllocationCheck} mode of the workers, {@link AllocationCheck#MODE_OFF} by
+   * default; before {@link #start}. Allocation counting slows every allocation of the app down,
+   * so it is meant for test runs.
+   */
+  void setAllocationCheck(int mode) {
+    this.allocationCheckMode = mode;
+  }
+
+  /** Sets the number of warm-up inferences per classification thread; before {@link #start}. */
+  void setWarmUpRuns(int warmUpRuns) {
+    this.warmUpRuns = warmUpRuns;
+  }
+
+  /**
+   * Sets the largest batch of faces that the classification threads run once while warming up,
+   * as the interpreter resizes its tensors for every new batch size; before {@link #start}.
+   */
+  void setWarmUpFaces(int warmUpFaces) {
+    this.warmUpFaces = warmUpFaces;
+  }
+
+  /**
+   * Sets the {@link SystemClock#elapsedRealtime()} that the time to model ready and to the first
+   * result are measured from, e.g. when the model started loading; by default {@link #start}.
+   */
+  void setStartTime(long startTimeMs) {
+    this.startTimeMs = startTimeMs;
+  }
+
+  void start() {
+    if (startTimeMs < 0) {
+      startTimeMs = SystemClock.elapsedRealtime();
+    }
+    if (allocationCheckMode != AllocationCheck.MODE_OFF) {
+      AllocationCheck.startCounting();
+    }
+    classificationStage.start();
+    detectionStage.start();
+  }
+
+  /** Stops all threads and releases the frames still queued. */
+  void stop() {
+    detectionStage.stop();
+    classificationStage.stop();
+    if (tracks != null) {
+      tracks.release();
+    }
+    // A tracker handed over before any frame was detected.
+    releaseTracker(preloadedTracker.getAndSet(null));
+    if (allocationCheckMode != AllocationCheck.MODE_OFF) {
+      AllocationCheck.stopCounting();
+    }
+  }
+
+  /**
+   * Queues a copy of a {@code YUV_420_888} image and closes the image, so that the camera gets
+   * it back before the frame waits for detection.
+   */
+  void submitFrame(Image image) {
+    if (modelReadyMs < 0) {
+      framesBeforeReady.incrementAndGet();
+      image.close();
+      return;
+    }
+    YuvFrame frame = freeFrames.poll();
+    if (frame == null) {
+      frame = new YuvFrame(true);
+    }
+    try {
+      frame.copyImage(image);
+    } finally {
+      image.close();
+    }
+    detectionStage.offerDropOldest(frame);
+  }
+
+  /**
+   * Queues a frame that the caller owns, e.g. a synthetic one. Its planes are read until the
+   * frame is processed, so they must not change while it is queued.
+   */
+  void submitFrame(YuvFrame frame) {
+    if (modelReadyMs < 0) {
+      framesBeforeReady.incrementAndGet();
+      return;
+    }
+    detectionStage.offerDropOldest(frame);
+  }
+
+  /** Whether all classification threads are warmed up, so that frames are accepted. */
+  boolean isReady() {
+    return modelReadyMs >= 0;
+  }
+
+  /** Number of items that allocated in steady state, over all workers; 0 unless checked. */
+  long getAllocatingItems() {
+    long count = 0;
+    for (AllocationCheck check : allocationChecks) {
+      count += check.getAllocatingItems();
+    }
+    return count;
+  }
+
+  /** Number of items whose allocations were checked, over all workers. */
+  long getCheckedItems() {
+    long count = 0;
+    for (AllocationCheck check : allocationChecks) {
+      count += check.getCheckedItems();
+    }
+    return count;
+  }
+
+  /** Number of frames dropped because detection could not keep up. */
+  long getDroppedFrames() {
+    return detectionStage.getDroppedItems();
+  }
+
+  /** Appends the queue depth and utilization of both stages. */
+  StringBuilder appendStats(StringBuilder str) {
+    str.append("ready=").append(modelReadyMs).append("ms first=").append(firstResultMs);
+    str.append("ms detector=").append(detectorReadyMs);
+    str.append("ms skipped=").append(framesBeforeReady.get()).append(", ");
+    detectionStage.appendStats(str).append(", ");
+    classificationStage.appendStats(str);
+    if (tracks != null) {
+      tracks.appendStats(str.append(", "));
+    }
+    if (visitors != null) {
+      visitors.appendStats(str.append(", "));
+    }
+    if (directInputOrder != FaceAttributeEngine.INPUT_NONE) {
+      // Shows on the device whether the native writer is used or faces fall back to bitmaps.
+      str.append(", input=").append(FaceInputWriter.isAvailable() ? "native" : "bitmap");
+    }
+    if (roiScans.get() + fullScans.get() > 0) {
+      str.append(", scans roi=").append(roiScans.get()).append(" full=").append(fullScans.get());
+    }
+    for (AllocationCheck check : allocationChecks) {
+      check.appendStats(str.append(", "));
+    }
+    return str;
+  }
+
+  /** Called by every classification thread once its engine is warmed up. */
+  private void onWorkerReady() {
+    if (warmingUp.decrementAndGet() == 0) {
+      modelReadyMs = SystemClock.elapsedRealtime() - startTimeMs;
+      Log.i(TAG, "Classifiers ready after " + modelReadyMs + " ms");
+    }
+  }
+
+  private void onFrameClassified() {
+    if (firstResultMs < 0) {
+      synchronized (this) {
+        if (firstResultMs < 0) {
+          firstResultMs = SystemClock.elapsedRealtime() - startTimeMs;
+          Log.i(TAG, "First result after " + firstResultMs + " ms");
+        }
+      }
+    }
+  }
+
+  private static void releaseTracker(DetectionBasedTracker tracker) {
+    if (tracker != null) {
+      tracker.stop();
+      tracker.release();
+    }
+  }
+
+  private void releaseBatch(FaceBatch batch) {
+    freeBatches.offer(batch);
+  }
+
+  private void releaseFrame(YuvFrame frame) {
+    if (frame.pooled) {
+      freeFrames.offer(frame);
+    }
+  }
+
+  /** Creates the {@link AllocationCheck} of a worker; it does nothing unless checks are on. */
+  private AllocationCheck createAllocationCheck(String name) {
+    AllocationCheck check =
+        new AllocationCheck(name, allocationCheckMode, AllocationCheck.DEFAULT_WARM_UP_ITEMS);
+    if (check.isEnabled()) {
+      allocationChecks.add(check);
+    }
+    return check;
+  }
+
+  /** Finds faces on the luma plane and crops them to RGB; owns a detector per thread. */
+  private final class DetectionWorker implements PipelineStage.Worker<YuvFrame> {
+    private final Mat gray = new Mat();
+    private final MatOfRect faces = new MatOfRect();
+    private final MatOfInt ids = new MatOfInt();
+    private final YuvImageConverter converter = new YuvImageConverter();
+    private final AllocationCheck allocationCheck = createAllocationCheck("detect");
+    private DetectionBasedTracker tracker;
+    private RoiFaceDetector roiDetector;
+    private double scale;
+    private org.opencv.core.Size detectionMinSize;
+
+    /* Pooled buffers of the tracked faces, sized for the most faces of a frame so far. */
+    private int[] rectValues = new int[0];
+    private int[] idValues = new int[0];
+    private final Rect detectedBox = new Rect();
+
+    /** Most faces or tracks of a frame so far; the pools only grow beyond it. */
+    private int peakFaces;
+
+    /** Whether the pools had to grow for the last frame. */
+    private boolean grown;
+
+    @Override
+    public void process(YuvFrame frame) throws InterruptedException {
+      allocationCheck.begin();
+      FaceBatch batch = freeBatches.poll();
+      boolean pooled = batch != null;
+      if (!pooled) {
+        batch = new FaceBatch();
+      }
+      boolean detected = false;
+      try {
+        boolean found = detect(frame, batch);
+        allocationCheck.end(grown || !pooled);
+        detected = found;
+      } finally {
+        releaseFrame(frame);
+        if (!detected) {
+          // Also when detection threw, so that the pool does not lose the batch.
+          releaseBatch(batch);
+        }
+      }
+      if (detected) {
+        classificationStage.put(batch);
+      }
+    }
+
+    /**
+     * Detects the faces of a frame into {@code batch}.
+     *
+     * @return false if the frame was skipped because no detector is available yet
+     */
+    private boolean detect(YuvFrame frame, FaceBatch batch) {
+      grown = false;
+      if (tracker == null && roiDetector == null && !startDetection()) {
+        return false;
+      }
+      int frameRotation = rotation;
+      boolean upright = frameRotation == 90 || frameRotation == 270;
+      int frameWidth = upright ? frame.height : frame.width;
+      int frameHeight = upright ? frame.width : frame.height;
+      long startTime = SystemClock.elapsedRealtime();
+      // The luma plane is the gray image, so the full frame is never converted to RGB; it is
+      // scaled down first, so that detection only sees the pixels it needs.
+      converter.toUprightGray(frame, frameRotation, scale, gray);
+      boolean tracked = tracker != null && detectTracked();
+      if (!tracked && roiDetector == null) {
+        return false;
+      }
+      int count;
+      int[] detected;
+      if (tracked) {
+        // Read into pooled arrays, as toArray() would allocate arrays and Rects per frame.
+        count = faces.rows();
+        if (idValues.length < count) {
+          rectValues = new int[4 * count];
+          idValues = new int[count];
+        }
+        if (count > 0) {
+          faces.get(0, 0, rectValues);
+          ids.get(0, 0, idValues);
+        }
+        detected = rectValues;
+      } else {
+        count = roiDetector.detect(gray, detectionMinSize);
+        detected = roiDetector.getFaces();
+        (roiDetector.wasFullScan() ? fullScans : roiScans).incrementAndGet();
+      }
+
+      boolean direct =
+          directInputOrder != FaceAttributeEngine.INPUT_NONE && FaceInputWriter.isAvailable();
+      batch.reset(count);
+      if (tracked) {
+        tracks.beginFrame();
+      }
+      for (int i = 0; i < count; i++) {
+        int dw = detected[4 * i + 2] / 8;
+        int dh = detected[4 * i + 3] / 8;
+        detectedBox.x = Math.max(detected[4 * i] - dw, 0);
+        detectedBox.y = Math.max(detected[4 * i + 1] - dh, 0);
+        detectedBox.width = Math.min(detected[4 * i + 2] + 2 * dw, gray.cols() - detectedBox.x - 1);
+        detectedBox.height =
+            Math.min(detected[4 * i + 3] + 2 * dh, gray.rows() - detectedBox.y - 1);
+        Rect box = batch.boxes[i];
+        toFrame(detectedBox, frameWidth, frameHeight, box);
+
+        batch.trackIds[i] = tracked ? idValues[i] : -1;
+        if (tracked && !tracks.lookup(idValues[i], gray, detectedBox, batch.results.get(i))) {
+          continue;
+        }
+        int position =
+            batch.addFaceToClassify(i, visitors != null ? AgeGenderResult.FEATURE_SIZE : 0);
+        if (!direct) {
+          // Only the face region is converted to RGB, directly at the classifier input size.
+          converter.cropToBitmap(
+              frame, frameRotation, box, batch.getFaceBitmap(position, faceWidth, faceHeight));
+        }
+      }
+      if (direct && batch.classifyCount > 0) {
+        batch.directInput = writeInput(batch, frame, frameRotation);
+        if (!batch.directInput) {
+          for (int p = 0; p < batch.classifyCount; ++p) {
+            converter.cropToBitmap(
+                frame,
+                frameRotation,
+                batch.boxes[batch.faceIndices[p]],
+                batch.getFaceBitmap(p, faceWidth, faceHeight));
+          }
+        }
+      }
+      batch.detectionTimeMs = SystemClock.elapsedRealtime() - startTime;
+      // The pools of the worker and the tracks only grow with a new peak of faces or tracks.
+      int peak = Math.max(count, tracked ? tracks.getTrackCount() : 0);
+      grown = batch.grown || peak > peakFaces;
+      peakFaces = Math.max(peakFaces, peak);
+      return true;
+    }
+
+    /**
+     * Writes the faces to classify straight into the model input of the batch.
+     *
+     * @return false if the native routine is not available
+     */
+    private boolean writeInput(FaceBatch batch, YuvFrame frame, int frameRotation) {
+      batch.reserveInput(faceWidth * faceHeight * 3 * 4);
+      for (int p = 0; p < batch.classifyCount; ++p) {
+        Rect box = batch.boxes[batch.faceIndices[p]];
+        batch.rects[4 * p] = box.x;
+        batch.rects[4 * p + 1] = box.y;
+        batch.rects[4 * p + 2] = box.width;
+        batch.rects[4 * p + 3] = box.height;
+      }
+      return FaceInputWriter.writeFaces(
+          frame,
+          frameRotation,
+          batch.rects,
+          batch.classifyCount,
+          batch.input.getBuffer(),
+          faceWidth,
+          faceHeight,
+          directInputOrder == FaceAttributeEngine.INPUT_BGR);
+    }
+
+    /**
+     * Maps a box of the scaled detection image to the full resolution upright frame.
+     *
+     * @param frameBox receives the box in the frame
+     */
+    private void toFrame(Rect box, int frameWidth, int frameHeight, Rect frameBox) {
+      if (scale >= 1) {
+        frameBox.x = box.x;
+        frameBox.y = box.y;
+        frameBox.width = box.width;
+        frameBox.height = box.height;
+        return;
+      }
+      frameBox.x = (int) (box.x / scale);
+      frameBox.y = (int) (box.y / scale);
+      frameBox.width = Math.min((int) Math.round(box.width / scale), frameWidth - frameBox.x - 1);
+      frameBox.height =
+          Math.min((int) Math.round(box.height / scale), frameHeight - frameBox.y - 1);
+    }
+
+    /**
+     * Sets up the tracker when faces are tracked, or a {@link RoiFaceDetector} otherwise, once the
+     * cascade is available. A tracker or detector that was loaded with the models is taken over,
+     * and the cascade is only parsed in Java if there is no tracker.
+     *
+     * @return false if there is no cascade yet or it fails to load
+     */
+    private boolean startDetection() {
+      String path = cascadePath;
+      if (path == null) {
+        return false;
+      }
+      long startTime = SystemClock.elapsedRealtime();
+      scale = getDetectionScale(minFaceSize);
+      int detectionSize = getDetectionSize(minFaceSize);
+      detectionMinSize = new org.opencv.core.Size(detectionSize, detectionSize);
+      boolean preloaded;
+      if (tracks != null) {
+        tracker = preloadedTracker.getAndSet(null);
+        preloaded = tracker != null;
+        if (tracker == null) {
+          tracker = createTracker(path, detectionSize);
+        }
+      } else {
+        preloaded = preloadedDetector.get() != null;
+      }
+      if (tracker == null && !startRoiDetector(path)) {
+        return false;
+      }
+      if (detectorReadyMs < 0) {
+        detectorReadyMs = SystemClock.elapsedRealtime() - startTimeMs;
+        Log.i(
+            TAG,
+            "Startup: "
+                + (tracker != null ? "tracker " : "detector ")
+                + (preloaded ? "taken over" : "loaded")
+                + " in "
+                + (SystemClock.elapsedRealtime() - startTime)
+                + " ms, detection ready after "
+                + detectorReadyMs
+                + " ms");
+      }
+      return true;
+    }
+
+    /**
+     * Loads the cascade into a {@link RoiFaceDetector}.
+     *
+     * @return false if the cascade fails to load
+     */
+    private boolean startRoiDetector(String path) {
+      CascadeClassifier detector = preloadedDetector.getAndSet(null);
+      if (detector == null) {
+        detector = new CascadeClassifier(path);
+      }
+      if (detector.empty()) {
+        Log.e(TAG, "Failed to load cascade classifier");
+        cascadePath = null;
+        return false;
+      }
+      roiDetector = new RoiFaceDetector(detector, fullScanInterval);
+      return true;
+    }
+
+    /**
+     * Runs the tracker on {@link #gray}. If the native library predates the tracked detection,
+     * the tracker is replaced with a {@link RoiFaceDetector}, like {@link FaceInputWriter} falls
+     * back to bitmaps, instead of the missing symbol ending the detection thread.
+     *
+     * @return false if the tracker turned out to be unavailable
+     */
+    private boolean detectTracked() {
+      try {
+        tracker.detect(gray, faces, ids);
+        return true;
+      } catch (UnsatisfiedLinkError e) {
+        Log.e(TAG, "The face tracker is not available, faces are not tracked.", e);
+        releaseTracker(tracker);
+        tracker = null;
+        String path = cascadePath;
+        if (path != null) {
+          startRoiDetector(path);
+        }
+        return false;
+      }
+    }
+
+    /** Starts a tracker, or returns null to detect every frame from scratch if it fails. */
+    private DetectionBasedTracker createTracker(String path, int minFaceSize) {
+      try {
+        DetectionBasedTracker tracker = new DetectionBasedTracker(path, minFaceSize);
+        tracker.start();
+        return tracker;
+      } catch (RuntimeException | UnsatisfiedLinkError e) {
+        Log.e(TAG, "Failed to start the face tracker, faces are not tracked.", e);
+        return null;
+      }
+    }
+
+    @Override
+    public void close() {
+      releaseTracker(tracker);
+      gray.release();
+      faces.release();
+      ids.release();
+      converter.release();
+      if (roiDetector != null) {
+        roiDetector.release();
+      }
+    }
+  }
+
+  /** Classifies all faces of a batch in one interpreter call. */
+  private final class ClassificationWorker implements PipelineStage.Worker<FaceBatch> {
+    private final FaceAttributeEngine engine;
+    private final InterpreterPool pool;
+    private final AllocationCheck allocationCheck = createAllocationCheck("classify");
+
+    /** @param pool the pool that lent {@code engine}, which gets it back on close, or null */
+    ClassificationWorker(FaceAttributeEngine engine, InterpreterPool pool) {
+      this.engine = engine;
+      this.pool = pool;
+    }
+
+    /**
+     * Classifies blank faces on this thread, then reports it ready. The faces take the route of
+     * the frames, through {@link FaceInputWriter} or as bitmaps, and a single face runs {@code
+     * runs} times, then every batch size up to {@link #warmUpFaces} once.
+     */
+    void warmUp(int runs) {
+      try {
+        if (runs > 0) {
+          classifyBlankFaces(runs, Math.max(1, warmUpFaces));
+        }
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Failed to warm up the classifier.", e);
+      } finally {
+        onWorkerReady();
+      }
+    }
+
+    private void classifyBlankFaces(int runs, int maxFaces) {
+      List<AgeGenderResult> results = new ArrayList<>(maxFaces);
+      for (int i = 0; i < maxFaces; ++i) {
+        results.add(
+            new AgeGenderResult(
+                AgeGenderResult.DEFAULT_TOP_K,
+                visitors != null ? AgeGenderResult.FEATURE_SIZE : 0,
+                AgeGenderResult.AGE_BINS));
+      }
+      DirectInputBuffer input =
+          directInputOrder != FaceAttributeEngine.INPUT_NONE ? writeBlankFaces(maxFaces) : null;
+      List<BitmapPixels> faces = new ArrayList<>();
+      if (input == null) {
+        for (int i = 0; i < maxFaces; ++i) {
+          Bitmap bitmap = Bitmap.createBitmap(faceWidth, faceHeight, Bitmap.Config.ARGB_8888);
+          bitmap.eraseColor(0xFF808080);
+          faces.add(new BitmapPixels(bitmap));
+        }
+      }
+      try {
+        for (int count = 1; count <= maxFaces; ++count) {
+          List<AgeGenderResult> batchResults = results.subList(0, count);
+          for (int i = 0; i < (count == 1 ? runs : 1); ++i) {
+            if (input != null) {
+              engine.classifyInput(input.forBatch(count), count, batchResults);
+            } else {
+              engine.classifyPixels(faces.subList(0, count), batchResults);
+            }
+          }
+        }
+      } finally {
+        for (BitmapPixels face : faces) {
+          face.bitmap.recycle();
+        }
+      }
+    }
+
+    /**
+     * Writes {@code count} gray faces from a synthetic frame of the model input size.
+     *
+     * @return the model input, or null if the native routine is not available
+     */
+    private DirectInputBuffer writeBlankFaces(int count) {
+      int chromaWidth = (faceWidth + 1) / 2;
+      ByteBuffer luma = ByteBuffer.allocateDirect(faceWidth * faceHeight);
+      ByteBuffer chroma = ByteBuffer.allocateDirect(chromaWidth * ((faceHeight + 1) / 2));
+      for (int i = 0; i < luma.capacity(); ++i) {
+        luma.put(i, (byte) 128);
+      }
+      for (int i = 0; i < chroma.capacity(); ++i) {
+        chroma.put(i, (byte) 128);
+      }
+      int[] rects = new int[4 * count];
+      for (int i = 0; i < count; ++i) {
+        rects[4 * i + 2] = faceWidth;
+        rects[4 * i + 3] = faceHeight;
+      }
+      YuvFrame frame = new YuvFrame();
+      frame.setPlanes(luma, chroma, chroma, faceWidth, 1, chromaWidth, 1, faceWidth, faceHeight);
+      DirectInputBuffer input = new DirectInputBuffer(faceWidth * faceHeight * 3 * 4, count);
+      boolean written =
+          FaceInputWriter.writeFaces(
+              frame,
+              0,
+              rects,
+              count,
+              input.getBuffer(),
+              faceWidth,
+              faceHeight,
+              directInputOrder == FaceAttributeEngine.INPUT_BGR);
+      return written ? input : null;
+    }
+
+    @Override
+    public void process(FaceBatch batch) {
+      allocationCheck.begin();
+      try {
+        classify(batch);
+        listener.onFacesClassified(batch);
+        allocationCheck.end(false);
+        onFrameClassified();
+      } finally {
+        // A failure reaches the stage, which logs it and counts the batch as failed.
+        releaseBatch(batch);
+      }
+    }
+
+    private void classify(FaceBatch batch) {
+      // The allocations of the interpreter are not the pipeline's.
+      if (batch.classifyCount == 0) {
+        batch.classified = true;
+      } else if (batch.directInput) {
+        allocationCheck.pause();
+        batch.classified =
+            engine.classifyInput(
+                batch.input.forBatch(batch.classifyCount),
+                batch.classifyCount,
+                batch.facePredictions);
+        allocationCheck.resume();
+      } else {
+        allocationCheck.pause();
+        batch.classified = engine.classifyPixels(batch.getFaces(), batch.facePredictions);
+        allocationCheck.resume();
+      }
+      if (!batch.classified) {
+        return;
+      }
+      for (int i = 0; i < batch.classifyCount; i++) {
+        int faceIndex = batch.faceIndices[i];
+        AgeGenderResult prediction = batch.facePredictions.get(i);
+        if (batch.trackIds[faceIndex] >= 0) {
+          // Tracked faces report the estimate fused over all their predictions.
+          tracks.update(batch.trackIds[faceIndex], prediction, batch.results.get(faceIndex));
+        } else {
+          batch.results.get(faceIndex).set(prediction);
+        }
+        if (visitors != null && prediction.getFeatures() != null) {
+          visitors.observe(
+              batch.trackIds[faceIndex], prediction.getFeatures(), SystemClock.elapsedRealtime());
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      if (pool != null) {
+        pool.release(engine);
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.app.Activity;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Inference libraries that can run the age/gender model. */
+public enum FaceAttributeBackend {
+
+  /** Tensorflow Lite fed from a direct {@code ByteBuffer}. */
+  TFLITE {
+    @Override
+    FaceAttributeEngine create(Activity activity) throws IOException {
+      return new AgeGenderClassifier(
+          loadModelFile(activity, AgeGenderClassifier.modelPath(false)), false, 0);
+    }
+
+    @Override
+    FaceAttributeEngine createShared(Activity activity, int interpreterThreads)
+        throws IOException {
+      return new InterpreterPool(
+          loadModelFile(activity, AgeGenderClassifier.modelPath(false)),
+          interpreterThreads,
+          new InterpreterPool.InstanceFactory() {
+            @Override
+            public FaceAttributeEngine create(MappedByteBuffer model, int numThreads) {
+              return new AgeGenderClassifier(model, false, numThreads);
+            }
+          });
+    }
+  },
+
+  /** Quantized Tensorflow Lite model fed with raw uint8 RGB values. */
+  TFLITE_QUANTIZED {
+    @Override
+    FaceAttributeEngine create(Activity activity) throws IOException {
+      return new AgeGenderClassifier(
+          loadModelFile(activity, AgeGenderClassifier.modelPath(true)), true, 0);
+    }
+
+    @Override
+    FaceAttributeEngine createShared(Activity activity, int interpreterThreads)
+        throws IOException {
+      return new InterpreterPool(
+          loadModelFile(activity, AgeGenderClassifier.modelPath(true)),
+          interpreterThreads,
+          new InterpreterPool.InstanceFactory() {
+            @Override
+            public FaceAttributeEngine create(MappedByteBuffer model, int numThreads) {
+              return new AgeGenderClassifier(model, true, numThreads);
+            }
+          });
+    }
+  },
+
+  /** Tensorflow Lite fed in BGR order from a row-major direct buffer. */
+  TFLITE_DIRECT {
+    @Override
+    FaceAttributeEngine create(Activity activity) throws IOException {
+      return new TfLiteImageClassifier(
+          loadModelFile(activity, TfLiteImageClassifier.modelPath()), true, 0);
+    }
+
+    @Override
+    FaceAttributeEngine createShared(Activity activity, int interpreterThreads)
+        throws IOException {
+      return new InterpreterPool(
+          loadModelFile(activity, TfLiteImageClassifier.modelPath()),
+          interpreterThreads,
+          new InterpreterPool.InstanceFactory() {
+            @Override
+            public FaceAttributeEngine create(MappedByteBuffer model, int numThreads) {
+              return new TfLiteImageClassifier(model, true, numThreads);
+            }
+          });
+    }
+  },
+
+  /** Quantized Tensorflow Lite model fed with quantized BGR bytes from a direct buffer. */
+  TFLITE_DIRECT_QUANTIZED {
+    @Override
+    FaceAttributeEngine create(Activity activity) throws IOException {
+      return new TfLiteImageClassifier(
+          loadModelFile(activity, TfLiteImageClassifier.modelPath(true)), true, true, 0);
+    }
+
+    @Override
+    FaceAttributeEngine createShared(Activity activity, int interpreterThreads)
+        throws IOException {
+      return new InterpreterPool(
+          loadModelFile(activity, TfLiteImageClassifier.modelPath(true)),
+          interpreterThreads,
+          new InterpreterPool.InstanceFactory() {
+            @Override
+            public FaceAttributeEngine create(MappedByteBuffer model, int numThreads) {
+              return new TfLiteImageClassifier(model, true, true, numThreads);
+            }
+          });
+    }
+  },
+
+  /** Tensorflow Lite fed in BGR order from a nested Java float array. */
+  TFLITE_ARRAY {
+    @Override
+    FaceAttributeEngine create(Activity activity) throws IOException {
+      return new TfLiteImageClassifier(
+          loadModelFile(activity, TfLiteImageClassifier.modelPath()), false, 0);
+    }
+
+    @Override
+    FaceAttributeEngine createShared(Activity activity, int interpreterThreads)
+        throws IOException {
+      return new InterpreterPool(
+          loadModelFile(activity, TfLiteImageClassifier.modelPath()),
+          interpreterThreads,
+          new InterpreterPool.InstanceFactory() {
+            @Override
+            public FaceAttributeEngine create(MappedByteBuffer model, int numThreads) {
+              return new TfLiteImageClassifier(model, false, numThreads);
+            }
+          });
+    }
+  },
+
+  /** Tensorflow Mobile running the frozen {@code .pb} graph. */
+  TF_MOBILE {
+    @Override
+    FaceAttributeEngine create(Activity activity) throws IOException {
+      return new AgeGenderTfMobileClassifier(activity, false);
+    }
+  },
+
+  /** Tensorflow Mobile running the graph with 8-bit weights. */
+  TF_MOBILE_QUANTIZED {
+    @Override
+    FaceAttributeEngine create(Activity activity) throws IOException {
+      return new AgeGenderTfMobileClassifier(activity, true);
+    }
+  };
+
+  /** Backend used when nothing else was requested. */
+  static final FaceAttributeBackend DEFAULT = TF_MOBILE;
+
+  static {
+    // The engines of the app are created through the backends, so they all log to logcat.
+    AbstractFaceAttributeEngine.setLog(new AndroidEngineLog());
+  }
+
+  /** Loads the model of this backend. */
+  abstract FaceAttributeEngine create(Activity activity) throws IOException;
+
+  /**
+   * Loads the model once for several classification threads.
+   *
+   * @param interpreterThreads the number of threads of every interpreter, or 0 for its default
+   * @return an engine that may be called from several threads at once, or null if this backend
+   *     cannot share its model, so that every thread has to {@link #create} its own engine
+   */
+  FaceAttributeEngine createShared(Activity activity, int interpreterThreads) throws IOException {
+    return null;
+  }
+
+  /** Memory-maps a model file in Assets, which are stored uncompressed for it. */
+  static MappedByteBuffer loadModelFile(Activity activity, String modelPath) throws IOException {
+    AssetFileDescriptor fileDescriptor = activity.getAssets().openFd(modelPath);
+    FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
+    FileChannel fileChannel = inputStream.getChannel();
+    long startOffset = fileDescriptor.getStartOffset();
+    long declaredLength = fileDescriptor.getDeclaredLength();
+    return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+  }
+
+  /**
+   * Looks up a backend by its name.
+   *
+   * @return the matching backend, or {@link #DEFAULT} if {@code name} is null or unknown
+   */
+  static FaceAttributeBackend fromName(String name) {
+    if (name != null) {
+      for (FaceAttributeBackend backend : values()) {
+        if (backend.name().equalsIgnoreCase(name)) {
+          return backend;
+        }
+      }
+    }
+    return DEFAULT;
+  }
+}
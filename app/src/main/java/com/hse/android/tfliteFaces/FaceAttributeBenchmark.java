@@ -0,0 +1,449 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.util.Log;
+
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends the same recorded face crops through every {@link FaceAttributeBackend} and reports
+ * latency percentiles, throughput and Java heap allocations per call. Every backend is measured
+ * once face by face and once with all crops in a single {@link
+ * FaceAttributeEngine#classifyPixels(List, List)} batch. The input path of {@link
+ * TfLiteImageClassifier} is also compared on its own: nested Java array versus direct buffer.
+ * Finally the quantized backends are compared with their float counterparts on the same crops,
+ * and the embedding search of a {@link FaceGallery} is measured with {@link
+ * FaceGalleryBenchmark}.
+ *
+ * <p>Face crops are read from the {@value #FACES_ASSET_DIR} folder in Assets. Without them, the
+ * costs are measured on {@link SyntheticFace}s instead, and only the accuracy of the quantized
+ * backends, which needs real faces, is left out. The benchmark is started from the camera screen
+ * with {@code adb shell am start -n com.hse.android.tfliteFaces/.CameraActivity --ez benchmark
+ * true}; the report goes to logcat.
+ */
+final class FaceAttributeBenchmark {
+
+  /** Tag for the {@link Log}. */
+  private static final String TAG = "FaceAttributeBenchmark";
+
+  /** Assets folder with the recorded face crops. */
+  static final String FACES_ASSET_DIR = "benchmark_faces";
+
+  /** Passes over the crops that are not measured, to let the interpreter warm up. */
+  private static final int WARMUP_ROUNDS = 2;
+
+  /** Measured passes over the crops. */
+  private static final int MEASURED_ROUNDS = 10;
+
+  /** Number of faces drawn when there are no recorded crops. */
+  private static final int SYNTHETIC_FACES = 8;
+
+  private FaceAttributeBenchmark() {}
+
+  /** Benchmarks every backend that can be loaded and returns the combined report. */
+  static String runAll(Activity activity) {
+    StringBuilder str = new StringBuilder();
+    for (FaceAttributeBackend backend : FaceAttributeBackend.values()) {
+      FaceAttributeEngine engine;
+      try {
+        engine = backend.create(activity);
+      } catch (IOException | RuntimeException e) {
+        Log.e(TAG, "Failed to load backend " + backend, e);
+        continue;
+      }
+      try {
+        List<BitmapPixels> faces =
+            loadOrDrawFaces(activity, engine.getImageSizeX(), engine.getImageSizeY());
+        if (faces.isEmpty()) {
+          continue;
+        }
+        Report report = run(backend.name(), engine, faces);
+        Log.i(TAG, report.toString());
+        str.append(report).append('\n');
+        Report batchReport = runBatched(backend.name() + " batch", engine, faces);
+        Log.i(TAG, batchReport.toString());
+        str.append(batchReport).append('\n');
+        recycle(faces);
+      } finally {
+        engine.close();
+      }
+    }
+    str.append(compareInputCopy(activity));
+    str.append(compareQuantized(activity, FaceAttributeBackend.TFLITE,
+        FaceAttributeBackend.TFLITE_QUANTIZED));
+    str.append(compareQuantized(activity, FaceAttributeBackend.TFLITE_DIRECT,
+        FaceAttributeBackend.TFLITE_DIRECT_QUANTIZED));
+    str.append(compareQuantized(activity, FaceAttributeBackend.TF_MOBILE,
+        FaceAttributeBackend.TF_MOBILE_QUANTIZED));
+    String galleryReport = FaceGalleryBenchmark.runAll();
+    Log.i(TAG, galleryReport);
+    str.append(galleryReport);
+    return str.toString();
+  }
+
+  /**
+   * Reports the median latency of a float backend and its quantized counterpart, and how far the
+   * quantized predictions are from the float ones: mean absolute age difference, gender
+   * agreement and mean cosine similarity of the features. The differences are only reported on
+   * recorded crops, as they say little about real faces when measured on synthetic ones.
+   */
+  static String compareQuantized(
+      Activity activity, FaceAttributeBackend floatBackend, FaceAttributeBackend quantBackend) {
+    FaceAttributeEngine floatEngine = null;
+    FaceAttributeEngine quantEngine = null;
+    try {
+      floatEngine = floatBackend.create(activity);
+      quantEngine = quantBackend.create(activity);
+      List<BitmapPixels> faces =
+          loadFaces(activity, floatEngine.getImageSizeX(), floatEngine.getImageSizeY());
+      boolean recorded = !faces.isEmpty();
+      if (!recorded) {
+        faces = drawFaces(floatEngine.getImageSizeX(), floatEngine.getImageSizeY());
+        if (faces.isEmpty()) {
+          return "";
+        }
+      }
+      Report floatReport = run(floatBackend.name(), floatEngine, faces);
+      Report quantReport = run(quantBackend.name(), quantEngine, faces);
+      if (!recorded) {
+        String line = String.format(
+            "%s vs %s: p50 %.2fms vs %.2fms on %d synthetic faces",
+            floatBackend,
+            quantBackend,
+            floatReport.percentileMs(50),
+            quantReport.percentileMs(50),
+            faces.size());
+        Log.i(TAG, line);
+        recycle(faces);
+        return line + "\n";
+      }
+
+      AgeGenderResult floatResult = new AgeGenderResult(AgeGenderResult.DEFAULT_TOP_K, 1024);
+      AgeGenderResult quantResult = new AgeGenderResult(AgeGenderResult.DEFAULT_TOP_K, 1024);
+      double ageError = 0;
+      int genderAgreement = 0;
+      double cosine = 0;
+      for (BitmapPixels face : faces) {
+        floatEngine.classifyFace(face, floatResult);
+        quantEngine.classifyFace(face, quantResult);
+        ageError += Math.abs(quantResult.getExpectedAge() - floatResult.getExpectedAge());
+        if (quantResult.isMale() == floatResult.isMale()) {
+          ++genderAgreement;
+        }
+        float[] floatFeatures = floatResult.getFeatures();
+        float[] quantFeatures = quantResult.getFeatures();
+        double dot = 0;
+        for (int i = 0; i < floatFeatures.length; ++i) {
+          dot += floatFeatures[i] * quantFeatures[i];
+        }
+        cosine += dot;
+      }
+      String line = String.format(
+          "%s vs %s: p50 %.2fms vs %.2fms, age MAE=%.2f years, gender agreement=%.1f%%,"
+              + " feature cosine=%.4f over %d faces",
+          floatBackend,
+          quantBackend,
+          floatReport.percentileMs(50),
+          quantReport.percentileMs(50),
+          ageError / faces.size(),
+          100.0 * genderAgreement / faces.size(),
+          cosine / faces.size(),
+          faces.size());
+      Log.i(TAG, line);
+      recycle(faces);
+      return line + "\n";
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Failed to compare " + floatBackend + " with " + quantBackend, e);
+      return "";
+    } finally {
+      if (floatEngine != null) {
+        floatEngine.close();
+      }
+      if (quantEngine != null) {
+        quantEngine.close();
+      }
+    }
+  }
+
+  /**
+   * Measures the per-frame input copy time and allocations of {@link TfLiteImageClassifier} with
+   * the nested array input and with the direct buffer input.
+   */
+  static String compareInputCopy(Activity activity) {
+    StringBuilder str = new StringBuilder();
+    for (boolean useDirectBuffer : new boolean[] {false, true}) {
+      TfLiteImageClassifier classifier;
+      try {
+        classifier =
+            new TfLiteImageClassifier(
+                FaceAttributeBackend.loadModelFile(activity, TfLiteImageClassifier.modelPath()),
+                useDirectBuffer,
+                0);
+      } catch (IOException | RuntimeException e) {
+        Log.e(TAG, "Failed to load Tensorflow Lite model", e);
+        return str.toString();
+      }
+      try {
+        List<BitmapPixels> faces =
+            loadOrDrawFaces(activity, classifier.getImageSizeX(), classifier.getImageSizeY());
+        if (faces.isEmpty()) {
+          return str.toString();
+        }
+        AgeGenderResult result = new AgeGenderResult();
+        for (int round = 0; round < WARMUP_ROUNDS; ++round) {
+          for (BitmapPixels face : faces) {
+            classifier.classifyFace(face, result);
+          }
+        }
+        long copyTime = 0;
+        int calls = MEASURED_ROUNDS * faces.size();
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        for (int round = 0; round < MEASURED_ROUNDS; ++round) {
+          for (BitmapPixels face : faces) {
+            classifier.classifyFace(face, result);
+            copyTime += classifier.getInputCopyNanos();
+          }
+        }
+        int allocCount = Debug.getThreadAllocCount();
+        int allocSize = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+        String line = String.format(
+            "%s input: copy=%.3fms alloc=%.1f objects %.0f bytes per frame",
+            useDirectBuffer ? "direct buffer" : "java array",
+            copyTime / 1e6 / calls,
+            (double) allocCount / calls,
+            (double) allocSize / calls);
+        Log.i(TAG, line);
+        str.append(line).append('\n');
+        recycle(faces);
+      } finally {
+        classifier.close();
+      }
+    }
+    return str.toString();
+  }
+
+  /** Classifies every face {@link #MEASURED_ROUNDS} times after a warm-up. */
+  static Report run(String name, FaceAttributeEngine engine, List<BitmapPixels> faces) {
+    AgeGenderResult result = new AgeGenderResult();
+    for (int round = 0; round < WARMUP_ROUNDS; ++round) {
+      for (BitmapPixels face : faces) {
+        engine.classifyFace(face, result);
+      }
+    }
+
+    long[] latencies = new long[MEASURED_ROUNDS * faces.size()];
+    int call = 0;
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    long startTime = System.nanoTime();
+    for (int round = 0; round < MEASURED_ROUNDS; ++round) {
+      for (int i = 0; i < faces.size(); ++i) {
+        long callStart = System.nanoTime();
+        engine.classifyFace(faces.get(i), result);
+        latencies[call++] = System.nanoTime() - callStart;
+      }
+    }
+    long totalTime = System.nanoTime() - startTime;
+    int allocCount = Debug.getThreadAllocCount();
+    int allocSize = Debug.getThreadAllocSize();
+    Debug.stopAllocCounting();
+    return new Report(name, latencies, totalTime, allocCount, allocSize, 1);
+  }
+
+  /** Classifies all faces in one batch {@link #MEASURED_ROUNDS} times after a warm-up. */
+  static Report runBatched(String name, FaceAttributeEngine engine, List<BitmapPixels> faces) {
+    List<AgeGenderResult> results = new ArrayList<>(faces.size());
+    for (int i = 0; i < faces.size(); ++i) {
+      results.add(new AgeGenderResult());
+    }
+    for (int round = 0; round < WARMUP_ROUNDS; ++round) {
+      engine.classifyPixels(faces, results);
+    }
+
+    long[] latencies = new long[MEASURED_ROUNDS];
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    long startTime = System.nanoTime();
+    for (int round = 0; round < MEASURED_ROUNDS; ++round) {
+      long callStart = System.nanoTime();
+      engine.classifyPixels(faces, results);
+      latencies[round] = System.nanoTime() - callStart;
+    }
+    long totalTime = System.nanoTime() - startTime;
+    int allocCount = Debug.getThreadAllocCount();
+    int allocSize = Debug.getThreadAllocSize();
+    Debug.stopAllocCounting();
+    return new Report(name, latencies, totalTime, allocCount, allocSize, faces.size());
+  }
+
+  /** Returns the recorded face crops, or synthetic faces if there are none. */
+  static List<BitmapPixels> loadOrDrawFaces(Activity activity, int width, int height) {
+    List<BitmapPixels> faces = loadFaces(activity, width, height);
+    if (faces.isEmpty()) {
+      Log.w(TAG, "No face crops found in assets/" + FACES_ASSET_DIR + ", using synthetic faces");
+      faces = drawFaces(width, height);
+    }
+    return faces;
+  }
+
+  /**
+   * Draws {@value #SYNTHETIC_FACES} faces of the model input size, each with another brightness,
+   * size and position, like crops of a detector.
+   *
+   * @return the faces, or an empty list if OpenCV cannot be loaded
+   */
+  static List<BitmapPixels> drawFaces(int width, int height) {
+    List<BitmapPixels> faces = new ArrayList<>();
+    if (!OpenCVLoader.initDebug()) {
+      Log.e(TAG, "Failed to load OpenCV, cannot draw synthetic faces");
+      return faces;
+    }
+    Mat gray = new Mat(height, width, CvType.CV_8UC1);
+    Mat rgba = new Mat();
+    int side = Math.min(width, height);
+    for (int i = 0; i < SYNTHETIC_FACES; ++i) {
+      int size = side - (i % 4) * side / 16;
+      int x = (width - size) / 2 + (i % 2 == 0 ? 0 : (width - size) / 2);
+      int y = (height - size) / 2;
+      gray.setTo(new Scalar(60));
+      SyntheticFace.draw(gray, x, y, size, 160 + 10 * i);
+      Imgproc.cvtColor(gray, rgba, Imgproc.COLOR_GRAY2RGBA);
+      Bitmap face = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+      Utils.matToBitmap(rgba, face);
+      faces.add(new BitmapPixels(face));
+    }
+    gray.release();
+    rgba.release();
+    return faces;
+  }
+
+  private static void recycle(List<BitmapPixels> faces) {
+    for (BitmapPixels face : faces) {
+      face.bitmap.recycle();
+    }
+  }
+
+  /** Decodes the recorded face crops and scales them to the model input size. */
+  static List<BitmapPixels> loadFaces(Activity activity, int width, int height) {
+    List<BitmapPixels> faces = new ArrayList<>();
+    try {
+      String[] names = activity.getAssets().list(FACES_ASSET_DIR);
+      if (names == null) {
+        return faces;
+      }
+      Arrays.sort(names);
+      for (String name : names) {
+        InputStream is = activity.getAssets().open(FACES_ASSET_DIR + "/" + name);
+        Bitmap bitmap = BitmapFactory.decodeStream(is);
+        is.close();
+        if (bitmap == null) {
+          Log.w(TAG, "Skipped " + name + ": not an image");
+          continue;
+        }
+        Bitmap face = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (face != bitmap) {
+          bitmap.recycle();
+        }
+        faces.add(new BitmapPixels(face));
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to read face crops", e);
+    }
+    return faces;
+  }
+
+  /** Costs of one backend over the measured calls. */
+  static final class Report {
+    final String name;
+    final long[] sortedLatencies;
+    final long totalTimeNs;
+    final int allocCount;
+    final int allocSize;
+    final int facesPerCall;
+
+    Report(
+        String name,
+        long[] latencies,
+        long totalTimeNs,
+        int allocCount,
+        int allocSize,
+        int facesPerCall) {
+      this.name = name;
+      this.sortedLatencies = latencies.clone();
+      Arrays.sort(sortedLatencies);
+      this.totalTimeNs = totalTimeNs;
+      this.allocCount = allocCount;
+      this.allocSize = allocSize;
+      this.facesPerCall = facesPerCall;
+    }
+
+    int calls() {
+      return sortedLatencies.length;
+    }
+
+    /** Latency in milliseconds below which {@code percent} percent of the calls finished. */
+    double percentileMs(double percent) {
+      int index = (int) Math.ceil(percent / 100 * calls()) - 1;
+      index = Math.max(0, Math.min(calls() - 1, index));
+      return sortedLatencies[index] / 1e6;
+    }
+
+    int faces() {
+      return calls() * facesPerCall;
+    }
+
+    double facesPerSecond() {
+      return faces() * 1e9 / totalTimeNs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s: %d calls p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms %.1f faces/s"
+              + " alloc=%.1f objects %.0f bytes per face",
+          name,
+          calls(),
+          percentileMs(50),
+          percentileMs(90),
+          percentileMs(99),
+          percentileMs(100),
+          facesPerSecond(),
+          (double) allocCount / faces(),
+          (double) allocSize / faces());
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * An in-memory gallery of face embeddings, searched for the nearest faces by cosine similarity.
+ *
+ * <p>Embeddings are stored L2-normalized, one after the other in large float blocks, and their
+ * ids in a parallel array; the cosine similarity to a normalized query is then a plain dot
+ * product over contiguous memory. Blocks have a fixed number of rows, so the gallery grows
+ * without copying the embeddings already enrolled.
+ *
+ * <p>A gallery is not thread-safe; {@link #search} reuses buffers of the gallery.
+ */
+final class FaceGallery {
+
+  /** Number of embeddings per storage block. */
+  private static final int BLOCK_ROWS = 1024;
+
+  private final int dimension;
+  private float[][] blocks = new float[0][];
+  private long[] ids = new long[BLOCK_ROWS];
+  private int size = 0;
+
+  /* Search buffers. */
+  private final float[] query;
+  private TopKHeap heap = new TopKHeap(16);
+  private int[] topIndices = new int[16];
+
+  /** @param dimension the length of the embeddings, {@link AgeGenderResult#FEATURE_SIZE} */
+  FaceGallery(int dimension) {
+    this.dimension = dimension;
+    this.query = new float[dimension];
+  }
+
+  int getDimension() {
+    return dimension;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** The id of the embedding at {@code index}, in enrollment order. */
+  long getId(int index) {
+    return ids[index];
+  }
+
+  /** Bytes taken by the embeddings and ids. */
+  long getMemoryBytes() {
+    return (long) blocks.length * BLOCK_ROWS * dimension * 4 + (long) ids.length * 8;
+  }
+
+  /**
+   * Adds an embedding; it is normalized on the way in.
+   *
+   * @return the index of the embedding in the gallery
+   */
+  int enroll(long id, float[] embedding) {
+    if (embedding.length != dimension) {
+      throw new IllegalArgumentException(
+          "Embedding has " + embedding.length + " values, expected " + dimension);
+    }
+    int block = size / BLOCK_ROWS;
+    if (block == blocks.length) {
+      blocks = Arrays.copyOf(blocks, block + 1);
+      blocks[block] = new float[BLOCK_ROWS * dimension];
+    }
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, 2 * ids.length);
+    }
+    normalize(embedding, blocks[block], (size % BLOCK_ROWS) * dimension);
+    ids[size] = id;
+    return size++;
+  }
+
+  /** Cosine similarity of the embedding at {@code index} to a normalized query. */
+  float score(int index, float[] normalizedQuery) {
+    return dot(
+        normalizedQuery, blocks[index / BLOCK_ROWS], (index % BLOCK_ROWS) * dimension, dimension);
+  }
+
+  /** Copies the normalized embedding at {@code index} into {@code dst}. */
+  void getEmbedding(int index, float[] dst) {
+    System.arraycopy(
+        blocks[index / BLOCK_ROWS], (index % BLOCK_ROWS) * dimension, dst, 0, dimension);
+  }
+
+  /**
+   * Finds the {@code k} embeddings most similar to {@code embedding}.
+   *
+   * @param outIds receives the ids of the matches by decreasing similarity
+   * @param outScores receives their cosine similarities
+   * @return the number of matches, at most {@code k}
+   */
+  int search(float[] embedding, int k, long[] outIds, float[] outScores) {
+    prepareQuery(embedding, k);
+    for (int block = 0, start = 0; start < size; ++block, start += BLOCK_ROWS) {
+      float[] rows = blocks[block];
+      int count = Math.min(BLOCK_ROWS, size - start);
+      for (int row = 0; row < count; ++row) {
+        heap.offer(start + row, dot(query, rows, row * dimension, dimension));
+      }
+    }
+    int count = heap.drainDescending(topIndices, outScores);
+    for (int i = 0; i < count; ++i) {
+      outIds[i] = ids[topIndices[i]];
+    }
+    return count;
+  }
+
+  /** Normalizes the query into {@link #query} and sizes the search buffers for {@code k}. */
+  private void prepareQuery(float[] embedding, int k) {
+    normalize(embedding, query, 0);
+    if (topIndices.length < k) {
+      heap = new TopKHeap(k);
+      topIndices = new int[k];
+    }
+    heap.reset(k);
+  }
+
+  /** Dot product of {@code a} with {@code length} values of {@code b} from {@code offset}. */
+  static float dot(float[] a, float[] b, int offset, int length) {
+    return dot(a, 0, b, offset, length);
+  }
+
+  /**
+   * Dot product of {@code length} values of {@code a} and {@code b} from the given offsets,
+   * unrolled with independent accumulators so that the additions can overlap.
+   */
+  static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+    float s0 = 0;
+    float s1 = 0;
+    float s2 = 0;
+    float s3 = 0;
+    int i = 0;
+    for (; i + 3 < length; i += 4) {
+      s0 += a[aOffset + i] * b[bOffset + i];
+      s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+      s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+      s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+    }
+    for (; i < length; ++i) {
+      s0 += a[aOffset + i] * b[bOffset + i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /** Dot product of {@code a} with {@code length} values of a mapped buffer from {@code offset}. */
+  static float dot(float[] a, FloatBuffer b, int offset, int length) {
+    float s0 = 0;
+    float s1 = 0;
+    float s2 = 0;
+    float s3 = 0;
+    int i = 0;
+    for (; i + 3 < length; i += 4) {
+      s0 += a[i] * b.get(offset + i);
+      s1 += a[i + 1] * b.get(offset + i + 1);
+      s2 += a[i + 2] * b.get(offset + i + 2);
+      s3 += a[i + 3] * b.get(offset + i + 3);
+    }
+    for (; i < length; ++i) {
+      s0 += a[i] * b.get(offset + i);
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /** Writes {@code embedding} scaled to unit length into {@code dst} from {@code offset}. */
+  static void normalize(float[] embedding, float[] dst, int offset) {
+    float sum = dot(embedding, embedding, 0, embedding.length);
+    float scale = sum > 0 ? 1 / (float) Math.sqrt(sum) : 0;
+    for (int i = 0; i < embedding.length; ++i) {
+      dst[offset + i] = embedding[i] * scale;
+    }
+  }
+}
@@ -0,0 +1,526 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures enrollment and top-k search of a {@link FaceGallery} filled with random unit vectors
+ * of the model's embedding size. Gallery sizes that do not fit into the heap are skipped and
+ * reported as such.
+ *
+ * <p>The product quantized {@link PqFaceGallery} is measured on clustered vectors, which like real
+ * face embeddings have meaningful nearest neighbors: its memory footprint against the float
+ * gallery, and its recall@k against exact search with and without exact re-ranking.
+ *
+ * <p>The {@link HnswIndex} is measured on the same clustered vectors: its build time, and the
+ * latency and recall@k of its searches for a range of {@code ef}, both in memory and mapped from
+ * the file it was saved to.
+ *
+ * <p>The {@link MappedFaceGallery} is measured by appending random embeddings through its log,
+ * reopening the file and searching the mapped gallery.
+ *
+ * <p>The benchmark uses no Android classes, so besides {@link #runAll()} on a device it can be
+ * run on a desktop JVM through {@link #main(String[])}, optionally with the gallery sizes as
+ * arguments.
+ */
+final class FaceGalleryBenchmark {
+
+  /** Gallery sizes measured by default. */
+  static final int[] DEFAULT_SIZES = {10_000, 100_000, 1_000_000};
+
+  /** Number of neighbors searched. */
+  private static final int TOP_K = 10;
+
+  /** Searches that are not measured, to let the JIT compile the scoring loop. */
+  private static final int WARMUP_QUERIES = 5;
+
+  /** Measured searches. */
+  private static final int MEASURED_QUERIES = 20;
+
+  /** Gallery sizes measured with product quantization by default. */
+  static final int[] DEFAULT_PQ_SIZES = {10_000, 100_000};
+
+  /** Code bytes per embedding, i.e. 16 dimensions per subspace. */
+  private static final int PQ_SUBSPACES = 64;
+
+  /** Vectors and k-means iterations used to train the codebooks. */
+  private static final int PQ_TRAINING_SAMPLES = 4096;
+  private static final int PQ_TRAINING_ITERATIONS = 8;
+
+  /** Approximate candidates re-ranked with exact similarities. */
+  private static final int PQ_RERANK = 100;
+
+  /** Index sizes measured with HNSW by default. */
+  static final int[] DEFAULT_HNSW_SIZES = {10_000};
+
+  /** Gallery file sizes measured by default. */
+  static final int[] DEFAULT_MAPPED_SIZES = {10_000, 100_000};
+
+  /** Candidates kept by the HNSW searches, from fast to accurate. */
+  private static final int[] HNSW_EF = {10, 20, 40, 80, 160};
+
+  /** Number of clusters of the vectors used for product quantization and HNSW. */
+  private static final int CLUSTERS = 1000;
+
+  private FaceGalleryBenchmark() {}
+
+  public static void main(String[] args) {
+    int[] sizes = DEFAULT_SIZES;
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; ++i) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+    System.out.print(runAll(sizes));
+  }
+
+  /**
+   * Benchmarks the {@link #DEFAULT_SIZES}, {@link #DEFAULT_PQ_SIZES}, {@link
+   * #DEFAULT_HNSW_SIZES} and {@link #DEFAULT_MAPPED_SIZES}, returns the report.
+   */
+  static String runAll() {
+    return runAll(DEFAULT_SIZES, DEFAULT_PQ_SIZES, DEFAULT_HNSW_SIZES, DEFAULT_MAPPED_SIZES);
+  }
+
+  static String runAll(int[] sizes) {
+    return runAll(sizes, sizes, sizes, sizes);
+  }
+
+  static String runAll(int[] sizes, int[] pqSizes, int[] hnswSizes, int[] mappedSizes) {
+    StringBuilder str = new StringBuilder();
+    for (int size : sizes) {
+      str.append(run(size, AgeGenderResult.FEATURE_SIZE)).append('\n');
+    }
+    for (int size : pqSizes) {
+      str.append(runQuantized(size, AgeGenderResult.FEATURE_SIZE)).append('\n');
+    }
+    for (int size : hnswSizes) {
+      str.append(runHnsw(size, AgeGenderResult.FEATURE_SIZE)).append('\n');
+    }
+    for (int size : mappedSizes) {
+      str.append(runMapped(size, AgeGenderResult.FEATURE_SIZE)).append('\n');
+    }
+    return str.toString();
+  }
+
+  /** Fills a gallery with {@code size} random embeddings and measures searches in it. */
+  static String run(int size, int dimension) {
+    long needed = (long) size * dimension * 4;
+    Runtime runtime = Runtime.getRuntime();
+    long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    if (needed > available * 0.9) {
+      return String.format(
+          Locale.US,
+          "gallery %d x %d: skipped, needs %d MB of %d MB heap",
+          size,
+          dimension,
+          needed >> 20,
+          available >> 20);
+    }
+
+    Random random = new Random(42);
+    float[] embedding = new float[dimension];
+    FaceGallery gallery = new FaceGallery(dimension);
+    long startTime = System.nanoTime();
+    for (int i = 0; i < size; ++i) {
+      randomEmbedding(random, embedding);
+      gallery.enroll(i, embedding);
+    }
+    long enrollNs = System.nanoTime() - startTime;
+
+    long[] ids = new long[TOP_K];
+    float[] scores = new float[TOP_K];
+    float[] query = new float[dimension];
+    for (int i = 0; i < WARMUP_QUERIES; ++i) {
+      randomEmbedding(random, query);
+      gallery.search(query, TOP_K, ids, scores);
+    }
+    // Queries are noisy copies of enrolled embeddings, whose id should come out first.
+    int hits = 0;
+    long searchNs = 0;
+    for (int i = 0; i < MEASURED_QUERIES; ++i) {
+      int target = random.nextInt(size);
+      gallery.getEmbedding(target, query);
+      for (int j = 0; j < dimension; ++j) {
+        query[j] += 0.01f * (2 * random.nextFloat() - 1);
+      }
+      long queryStart = System.nanoTime();
+      gallery.search(query, TOP_K, ids, scores);
+      searchNs += System.nanoTime() - queryStart;
+      if (ids[0] == target) {
+        ++hits;
+      }
+    }
+    double searchMs = searchNs / 1e6 / MEASURED_QUERIES;
+    return String.format(
+        Locale.US,
+        "gallery %d x %d: %d MB, enroll %.0f/s, top-%d search %.2f ms (%.2f M vectors/s),"
+            + " top-1 hits %d/%d",
+        size,
+        dimension,
+        gallery.getMemoryBytes() >> 20,
+        size / (enrollNs / 1e9),
+        TOP_K,
+        searchMs,
+        size / searchMs / 1e3,
+        hits,
+        MEASURED_QUERIES);
+  }
+
+  /**
+   * Fills a product quantized gallery, which re-ranks from a float gallery file, and an exact one
+   * with the same clustered embeddings, and compares their searches.
+   */
+  static String runQuantized(int size, int dimension) {
+    // The exact gallery in memory is the ground truth.
+    long needed = (long) size * dimension * 4 + (long) CLUSTERS * dimension * 4;
+    Runtime runtime = Runtime.getRuntime();
+    long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    if (needed > available * 0.9) {
+      return String.format(
+          Locale.US,
+          "pq gallery %d x %d: skipped, needs %d MB of %d MB heap",
+          size,
+          dimension,
+          needed >> 20,
+          available >> 20);
+    }
+
+    Random random = new Random(42);
+    float[] centers = new float[CLUSTERS * dimension];
+    for (int i = 0; i < centers.length; ++i) {
+      centers[i] = 2 * random.nextFloat() - 1;
+    }
+    float[] embedding = new float[dimension];
+    int trainingCount = Math.min(size, PQ_TRAINING_SAMPLES);
+    float[] samples = new float[trainingCount * dimension];
+    for (int i = 0; i < trainingCount; ++i) {
+      clusteredEmbedding(random, centers, embedding);
+      FaceGallery.normalize(embedding, samples, i * dimension);
+    }
+    ProductQuantizer quantizer = new ProductQuantizer(dimension, PQ_SUBSPACES);
+    long startTime = System.nanoTime();
+    quantizer.train(samples, trainingCount, PQ_TRAINING_ITERATIONS, random);
+    long trainNs = System.nanoTime() - startTime;
+    samples = null;
+
+    FaceGallery exact = new FaceGallery(dimension);
+    File file = null;
+    try {
+      file = File.createTempFile("rerank", ".bin");
+      MappedFaceGallery floats = MappedFaceGallery.create(file, dimension, null);
+      PqFaceGallery gallery = new PqFaceGallery(quantizer, floats);
+      long enrollNs = 0;
+      for (int i = 0; i < size; ++i) {
+        clusteredEmbedding(random, centers, embedding);
+        startTime = System.nanoTime();
+        gallery.enroll(i, embedding);
+        enrollNs += System.nanoTime() - startTime;
+        exact.enroll(i, embedding);
+      }
+
+      long[] exactIds = new long[TOP_K];
+      long[] ids = new long[TOP_K];
+      float[] scores = new float[TOP_K];
+      for (int i = 0; i < WARMUP_QUERIES; ++i) {
+        clusteredEmbedding(random, centers, embedding);
+        gallery.search(embedding, TOP_K, 0, ids, scores);
+        gallery.search(embedding, TOP_K, PQ_RERANK, ids, scores);
+      }
+      long approximateNs = 0;
+      long rerankNs = 0;
+      int approximateHits = 0;
+      int rerankHits = 0;
+      for (int i = 0; i < MEASURED_QUERIES; ++i) {
+        clusteredEmbedding(random, centers, embedding);
+        int exactCount = exact.search(embedding, TOP_K, exactIds, scores);
+        long queryStart = System.nanoTime();
+        int count = gallery.search(embedding, TOP_K, 0, ids, scores);
+        approximateNs += System.nanoTime() - queryStart;
+        approximateHits += countCommon(exactIds, exactCount, ids, count);
+        queryStart = System.nanoTime();
+        count = gallery.search(embedding, TOP_K, PQ_RERANK, ids, scores);
+        rerankNs += System.nanoTime() - queryStart;
+        rerankHits += countCommon(exactIds, exactCount, ids, count);
+      }
+      floats.close();
+      long floatBytes = exact.getMemoryBytes();
+      long pqBytes = gallery.getMemoryBytes();
+      return String.format(
+          Locale.US,
+          "pq gallery %d x %d, %d bytes/code: %d KB vs %d MB float (%.0fx smaller),"
+              + " train %.1f s, enroll %.0f/s, top-%d %.2f ms recall %.2f,"
+              + " re-rank %d from file %.2f ms recall %.2f",
+          size,
+          dimension,
+          quantizer.getCodeSize(),
+          pqBytes >> 10,
+          floatBytes >> 20,
+          (double) floatBytes / pqBytes,
+          trainNs / 1e9,
+          size / (enrollNs / 1e9),
+          TOP_K,
+          approximateNs / 1e6 / MEASURED_QUERIES,
+          (double) approximateHits / (MEASURED_QUERIES * TOP_K),
+          PQ_RERANK,
+          rerankNs / 1e6 / MEASURED_QUERIES,
+          (double) rerankHits / (MEASURED_QUERIES * TOP_K));
+    } catch (IOException e) {
+      return "pq gallery " + size + " x " + dimension + ": " + e;
+    } finally {
+      if (file != null) {
+        file.delete();
+        new File(file.getPath() + ".wal").delete();
+      }
+    }
+  }
+
+  /**
+   * Builds an HNSW index and an exact gallery from the same clustered embeddings, and reports the
+   * recall of the index against exact search for every {@link #HNSW_EF}, in memory and from a
+   * mapped file.
+   */
+  static String runHnsw(int size, int dimension) {
+    // The index and the exact ground truth each hold the embeddings.
+    long needed = 2L * size * dimension * 4 + (long) CLUSTERS * dimension * 4;
+    Runtime runtime = Runtime.getRuntime();
+    long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    if (needed > available * 0.9) {
+      return String.format(
+          Locale.US,
+          "hnsw %d x %d: skipped, needs %d MB of %d MB heap",
+          size,
+          dimension,
+          needed >> 20,
+          available >> 20);
+    }
+
+    Random random = new Random(42);
+    float[] centers = new float[CLUSTERS * dimension];
+    for (int i = 0; i < centers.length; ++i) {
+      centers[i] = 2 * random.nextFloat() - 1;
+    }
+    float[] embedding = new float[dimension];
+    HnswIndex index = new HnswIndex(dimension);
+    FaceGallery exact = new FaceGallery(dimension);
+    long buildNs = 0;
+    for (int i = 0; i < size; ++i) {
+      clusteredEmbedding(random, centers, embedding);
+      exact.enroll(i, embedding);
+      long startTime = System.nanoTime();
+      index.insert(i, embedding);
+      buildNs += System.nanoTime() - startTime;
+    }
+
+    float[][] queries = new float[MEASURED_QUERIES][dimension];
+    long[][] exactIds = new long[MEASURED_QUERIES][TOP_K];
+    int[] exactCounts = new int[MEASURED_QUERIES];
+    long[] ids = new long[TOP_K];
+    float[] scores = new float[TOP_K];
+    long exactNs = 0;
+    for (int i = 0; i < MEASURED_QUERIES; ++i) {
+      clusteredEmbedding(random, centers, queries[i]);
+      long startTime = System.nanoTime();
+      exactCounts[i] = exact.search(queries[i], TOP_K, exactIds[i], scores);
+      exactNs += System.nanoTime() - startTime;
+    }
+
+    StringBuilder str = new StringBuilder();
+    str.append(
+        String.format(
+            Locale.US,
+            "hnsw %d x %d, M=%d efConstruction=%d: build %.0f/s, exact top-%d %.2f ms",
+            size,
+            dimension,
+            HnswIndex.DEFAULT_M,
+            HnswIndex.DEFAULT_EF_CONSTRUCTION,
+            size / (buildNs / 1e9),
+            TOP_K,
+            exactNs / 1e6 / MEASURED_QUERIES));
+    for (int ef : HNSW_EF) {
+      appendHnswSearches(str, "memory", index, ef, queries, exactIds, exactCounts);
+    }
+
+    File file = null;
+    try {
+      file = File.createTempFile("hnsw", ".index");
+      index.save(file);
+      long startTime = System.nanoTime();
+      MappedHnswIndex mapped = MappedHnswIndex.open(file);
+      long openNs = System.nanoTime() - startTime;
+      str.append(
+          String.format(
+              Locale.US,
+              "\n  file %d MB, mapped in %.2f ms",
+              mapped.getFileBytes() >> 20,
+              openNs / 1e6));
+      for (int ef : HNSW_EF) {
+        appendHnswSearches(str, "mapped", mapped, ef, queries, exactIds, exactCounts);
+      }
+    } catch (IOException e) {
+      str.append("\n  file: ").append(e);
+    } finally {
+      if (file != null) {
+        file.delete();
+      }
+    }
+    return str.toString();
+  }
+
+  /** Appends the latency and recall of searching {@code queries} with {@code ef}. */
+  private static void appendHnswSearches(
+      StringBuilder str,
+      String label,
+      HnswGraph index,
+      int ef,
+      float[][] queries,
+      long[][] exactIds,
+      int[] exactCounts) {
+    long[] ids = new long[TOP_K];
+    float[] scores = new float[TOP_K];
+    for (int i = 0; i < WARMUP_QUERIES; ++i) {
+      index.search(queries[i], TOP_K, ef, ids, scores);
+    }
+    long searchNs = 0;
+    int hits = 0;
+    for (int i = 0; i < queries.length; ++i) {
+      long startTime = System.nanoTime();
+      int count = index.search(queries[i], TOP_K, ef, ids, scores);
+      searchNs += System.nanoTime() - startTime;
+      hits += countCommon(exactIds[i], exactCounts[i], ids, count);
+    }
+    str.append(
+        String.format(
+            Locale.US,
+            "\n  %s ef=%d: top-%d %.3f ms recall %.2f",
+            label,
+            ef,
+            TOP_K,
+            searchNs / 1e6 / queries.length,
+            (double) hits / (queries.length * TOP_K)));
+  }
+
+  /**
+   * Appends {@code size} random embeddings to a new gallery file, reopens it and measures
+   * searches of noisy copies of some of them in the mapped gallery.
+   */
+  static String runMapped(int size, int dimension) {
+    Random random = new Random(42);
+    float[] embedding = new float[dimension];
+    float[][] queries = new float[MEASURED_QUERIES][];
+    int[] targets = new int[MEASURED_QUERIES];
+    for (int i = 0; i < MEASURED_QUERIES; ++i) {
+      targets[i] = random.nextInt(size);
+    }
+    File file = null;
+    try {
+      file = File.createTempFile("gallery", ".bin");
+      MappedFaceGallery gallery = MappedFaceGallery.create(file, dimension, null);
+      long startTime = System.nanoTime();
+      for (int i = 0; i < size; ++i) {
+        randomEmbedding(random, embedding);
+        gallery.append(i, embedding);
+        for (int j = 0; j < MEASURED_QUERIES; ++j) {
+          if (targets[j] == i) {
+            queries[j] = embedding.clone();
+          }
+        }
+      }
+      gallery.sync();
+      long appendNs = System.nanoTime() - startTime;
+      int logSize = gallery.getLogSize();
+      gallery.close();
+
+      startTime = System.nanoTime();
+      gallery = MappedFaceGallery.open(file);
+      long openNs = System.nanoTime() - startTime;
+      long[] ids = new long[TOP_K];
+      float[] scores = new float[TOP_K];
+      for (int i = 0; i < WARMUP_QUERIES; ++i) {
+        gallery.search(queries[i], TOP_K, ids, scores);
+      }
+      int hits = 0;
+      long searchNs = 0;
+      for (int i = 0; i < MEASURED_QUERIES; ++i) {
+        for (int j = 0; j < dimension; ++j) {
+          queries[i][j] += 0.01f * (2 * random.nextFloat() - 1);
+        }
+        long queryStart = System.nanoTime();
+        gallery.search(queries[i], TOP_K, ids, scores);
+        searchNs += System.nanoTime() - queryStart;
+        if (ids[0] == targets[i]) {
+          ++hits;
+        }
+      }
+      gallery.close();
+      return String.format(
+          Locale.US,
+          "gallery file %d x %d: %d MB, append %.0f/s (log %d), open %.2f ms,"
+              + " top-%d search %.2f ms, top-1 hits %d/%d",
+          size,
+          dimension,
+          file.length() >> 20,
+          size / (appendNs / 1e9),
+          logSize,
+          openNs / 1e6,
+          TOP_K,
+          searchNs / 1e6 / MEASURED_QUERIES,
+          hits,
+          MEASURED_QUERIES);
+    } catch (IOException e) {
+      return "gallery file " + size + " x " + dimension + ": " + e;
+    } finally {
+      if (file != null) {
+        file.delete();
+        new File(file.getPath() + ".wal").delete();
+      }
+    }
+  }
+
+  /** Number of ids among the first {@code countB} of {@code b} that are in {@code a}. */
+  private static int countCommon(long[] a, int countA, long[] b, int countB) {
+    int common = 0;
+    for (int i = 0; i < countB; ++i) {
+      for (int j = 0; j < countA; ++j) {
+        if (b[i] == a[j]) {
+          ++common;
+          break;
+        }
+      }
+    }
+    return common;
+  }
+
+  /** Fills {@code embedding} with a random cluster center plus noise of the same magnitude. */
+  static void clusteredEmbedding(Random random, float[] centers, float[] embedding) {
+    int center = random.nextInt(centers.length / embedding.length) * embedding.length;
+    for (int i = 0; i < embedding.length; ++i) {
+      embedding[i] = centers[center + i] + 2 * random.nextFloat() - 1;
+    }
+  }
+
+  /** Fills {@code embedding} with random values in [-1, 1); the gallery normalizes them. */
+  static void randomEmbedding(Random random, float[] embedding) {
+    for (int i = 0; i < embedding.length; ++i) {
+      embedding[i] = 2 * random.nextFloat() - 1;
+    }
+  }
+}
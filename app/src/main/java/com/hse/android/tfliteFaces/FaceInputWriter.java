@@ -0,0 +1,112 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the faces of a {@code YUV_420_888} camera frame straight into the float input of the
+ * model, in native code next to the {@link DetectionBasedTracker}. Every face is cropped, scaled,
+ * converted to RGB, mean-subtracted and written in the channel order of the model in one pass,
+ * instead of going through a {@code Bitmap}, its pixel array and a Java conversion loop.
+ *
+ * <p>The routine lives in {@code OpenCvDetectionLib}, which the fragment loads with OpenCV. If the
+ * loaded library predates it, the first call reports that it is not available and callers fall
+ * back to cropping bitmaps.
+ */
+final class FaceInputWriter {
+
+  /** Tag for the {@link Log}. */
+  private static final String TAG = "FaceInputWriter";
+
+  private static volatile boolean available = true;
+
+  private FaceInputWriter() {}
+
+  /** False once the native routine turned out to be missing. */
+  static boolean isAvailable() {
+    return available;
+  }
+
+  /**
+   * Writes {@code count} faces of a frame into {@code dst}, one after another. The planes of the
+   * frame must be direct buffers.
+   *
+   * @param rotation the clockwise rotation in degrees that turns the frame upright
+   * @param rects x, y, width and height of every face box in the upright frame
+   * @param dst a native-order direct buffer for at least {@code count} faces of {@code dstWidth}
+   *     x {@code dstHeight} x 3 floats
+   * @param bgr whether the model takes the channels in B, G, R order
+   * @return false if the native routine is not available
+   */
+  static boolean writeFaces(
+      YuvFrame frame,
+      int rotation,
+      int[] rects,
+      int count,
+      ByteBuffer dst,
+      int dstWidth,
+      int dstHeight,
+      boolean bgr) {
+    if (!available) {
+      return false;
+    }
+    try {
+      nativeWriteFaces(
+          frame.yBuffer,
+          frame.uBuffer,
+          frame.vBuffer,
+          frame.width,
+          frame.height,
+          frame.yRowStride,
+          frame.yPixelStride,
+          frame.uvRowStride,
+          frame.uvPixelStride,
+          rotation,
+          rects,
+          count,
+          dst,
+          dstWidth,
+          dstHeight,
+          bgr);
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      Log.w(TAG, "Native face input is not available, faces are cropped to bitmaps.", e);
+      available = false;
+      return false;
+    }
+  }
+
+  private static native void nativeWriteFaces(
+      ByteBuffer yBuffer,
+      ByteBuffer uBuffer,
+      ByteBuffer vBuffer,
+      int width,
+      int height,
+      int yRowStride,
+      int yPixelStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int rotation,
+      int[] rects,
+      int count,
+      ByteBuffer dst,
+      int dstWidth,
+      int dstHeight,
+      boolean bgr);
+}
@@ -0,0 +1,189 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.util.SparseArray;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+
+/**
+ * Fuses the predictions of every tracked face with an {@link AgeGenderFusion}, and decides per
+ * track when a face is worth classifying again. Between predictions the smoothed estimate of the
+ * track is reported.
+ *
+ * <p>A face is classified when its track is new, when its appearance changed noticeably since it
+ * was last classified, or when its estimate has been reused for as long as its fusion allows. The
+ * appearance of a face is summarized by a tiny gray thumbnail of its box; it changed when the mean
+ * difference of the thumbnails or the change of the box size exceeds a threshold.
+ *
+ * <p>Forgotten tracks are kept for new faces, so that a steady stream of faces allocates nothing.
+ */
+final class FaceTrackCache {
+
+  /** Number of frames a stable estimate is reused before the face is classified again. */
+  static final int DEFAULT_REFRESH_INTERVAL = 15;
+
+  /** Side of the gray thumbnail that summarizes the appearance of a face. */
+  private static final int SIGNATURE_SIDE = 8;
+
+  /** Mean absolute gray level difference of the thumbnails that counts as a new appearance. */
+  private static final int APPEARANCE_CHANGE_THRESHOLD = 12;
+
+  /** Relative change of the box width that counts as a new appearance. */
+  private static final float SIZE_CHANGE_THRESHOLD = 0.3f;
+
+  /** Number of frames after which a track that is no longer seen is forgotten. */
+  private static final int MAX_MISSED_FRAMES = 30;
+
+  private static final class Track {
+    final byte[] signature = new byte[SIGNATURE_SIDE * SIGNATURE_SIDE];
+    final AgeGenderFusion fusion = new AgeGenderFusion(AgeGenderFusion.DEFAULT_WEIGHT);
+    int width;
+    int reusedFrames;
+    int lastSeenFrame;
+
+    void reset() {
+      fusion.reset();
+      width = 0;
+      reusedFrames = 0;
+    }
+  }
+
+  private final int refreshInterval;
+
+  /* Guarded by this. */
+  private final SparseArray<Track> tracks = new SparseArray<>();
+  private final ArrayList<Track> freeTracks = new ArrayList<>();
+  private final Mat face = new Mat();
+  private final Size faceSize = new Size();
+  private final Point faceCenter = new Point();
+  private final Mat thumbnail = new Mat();
+  private final Size thumbnailSize = new Size(SIGNATURE_SIDE, SIGNATURE_SIDE);
+  private final byte[] signature = new byte[SIGNATURE_SIDE * SIGNATURE_SIDE];
+  private int frame = 0;
+  private long classifiedFaces = 0;
+  private long reusedFaces = 0;
+
+  /** @param refreshInterval the number of frames a stable estimate is reused */
+  FaceTrackCache(int refreshInterval) {
+    this.refreshInterval = refreshInterval;
+  }
+
+  /** Starts a new frame and forgets the tracks that have not been seen for a while. */
+  synchronized void beginFrame() {
+    ++frame;
+    for (int i = tracks.size() - 1; i >= 0; --i) {
+      if (frame - tracks.valueAt(i).lastSeenFrame > MAX_MISSED_FRAMES) {
+        freeTracks.add(tracks.valueAt(i));
+        tracks.removeAt(i);
+      }
+    }
+  }
+
+  /**
+   * Looks up the face of a track in the current frame.
+   *
+   * @param gray the upright gray frame
+   * @param box the face box in {@code gray}
+   * @param result receives the smoothed estimate if the face does not need to be classified
+   * @return true if the face has to be classified
+   */
+  synchronized boolean lookup(int trackId, Mat gray, Rect box, AgeGenderResult result) {
+    // A copy of the box instead of a submat, which would allocate a Mat per face.
+    faceSize.width = box.width;
+    faceSize.height = box.height;
+    faceCenter.x = box.x + (box.width - 1) * 0.5;
+    faceCenter.y = box.y + (box.height - 1) * 0.5;
+    Imgproc.getRectSubPix(gray, faceSize, faceCenter, face);
+    Imgproc.resize(face, thumbnail, thumbnailSize, 0, 0, Imgproc.INTER_AREA);
+    thumbnail.get(0, 0, signature);
+
+    Track track = tracks.get(trackId);
+    if (track == null) {
+      if (freeTracks.isEmpty()) {
+        track = new Track();
+      } else {
+        track = freeTracks.remove(freeTracks.size() - 1);
+        track.reset();
+      }
+      tracks.put(trackId, track);
+    }
+    track.lastSeenFrame = frame;
+    if (track.fusion.hasEstimate()
+        && track.reusedFrames < track.fusion.getReuseFrames(refreshInterval)
+        && !changed(track, box)) {
+      track.fusion.getEstimate(result);
+      ++track.reusedFrames;
+      ++reusedFaces;
+      return false;
+    }
+    // The appearance that is classified now is the reference for the next frames.
+    System.arraycopy(signature, 0, track.signature, 0, signature.length);
+    track.width = box.width;
+    track.reusedFrames = 0;
+    ++classifiedFaces;
+    return true;
+  }
+
+  /**
+   * Fuses a new prediction for the face of a track.
+   *
+   * @param estimate receives the smoothed estimate of the track
+   */
+  synchronized void update(int trackId, AgeGenderResult prediction, AgeGenderResult estimate) {
+    Track track = tracks.get(trackId);
+    if (track == null) {
+      estimate.set(prediction);
+      return;
+    }
+    track.fusion.add(prediction);
+    track.fusion.getEstimate(estimate);
+  }
+
+  /** Number of tracks that are followed; tracks are only allocated when it exceeds its peak. */
+  synchronized int getTrackCount() {
+    return tracks.size();
+  }
+
+  /** Appends how many faces were classified and how many reused a cached prediction. */
+  synchronized StringBuilder appendStats(StringBuilder str) {
+    return str.append("classified=").append(classifiedFaces).append(" reused=").append(reusedFaces);
+  }
+
+  synchronized void release() {
+    face.release();
+    thumbnail.release();
+    tracks.clear();
+    freeTracks.clear();
+  }
+
+  private boolean changed(Track track, Rect box) {
+    if (Math.abs(box.width - track.width) > SIZE_CHANGE_THRESHOLD * track.width) {
+      return true;
+    }
+    int difference = 0;
+    for (int i = 0; i < signature.length; ++i) {
+      difference += Math.abs((signature[i] & 0xFF) - (track.signature[i] & 0xFF));
+    }
+    return difference > APPEARANCE_CHANGE_THRESHOLD * signature.length;
+  }
+}
@@ -0,0 +1,145 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Runs a {@link FrameProcessor} on a {@link Handler} whenever the camera delivers a new frame.
+ *
+ * <p>At most one frame waits for processing. A frame that arrives while another one is waiting
+ * replaces it and the older one is dropped, so a slow processor always works on the freshest
+ * frame and never builds a backlog. Processing is additionally capped at a target rate. Nothing
+ * runs while no new frame is available.
+ *
+ * @param <T> the frame type
+ */
+final class FrameScheduler<T> {
+
+  /** Work done for one frame, always called on the scheduler's handler thread. */
+  interface FrameProcessor<T> {
+    /** Processes a frame; the processor owns it from now on and has to release it. */
+    void processFrame(T frame);
+
+    /** Called for frames that were dropped, to release their resources. */
+    void releaseFrame(T frame);
+  }
+
+  private final Handler handler;
+  private final FrameProcessor<T> processor;
+  private final long minIntervalMs;
+
+  /* Guarded by this. */
+  private T pendingFrame = null;
+  private boolean scheduled = false;
+  private boolean running = true;
+  private long lastStartTime = 0;
+  private long droppedFrames = 0;
+  private long processedFrames = 0;
+
+  private final Runnable processPending =
+      new Runnable() {
+        @Override
+        public void run() {
+          T frame;
+          synchronized (FrameScheduler.this) {
+            scheduled = false;
+            frame = pendingFrame;
+            pendingFrame = null;
+            if (frame == null || !running) {
+              return;
+            }
+            lastStartTime = SystemClock.uptimeMillis();
+          }
+          try {
+            processor.processFrame(frame);
+          } finally {
+            synchronized (FrameScheduler.this) {
+              ++processedFrames;
+              // A frame offered while processing has scheduled the next run already.
+              if (pendingFrame != null && !scheduled) {
+                scheduleLocked();
+              }
+            }
+          }
+        }
+      };
+
+  /**
+   * @param handler the handler whose thread processes the frames
+   * @param targetFps the highest processing rate, or 0 for no limit
+   */
+  FrameScheduler(Handler handler, FrameProcessor<T> processor, float targetFps) {
+    this.handler = handler;
+    this.processor = processor;
+    this.minIntervalMs = targetFps > 0 ? (long) (1000 / targetFps) : 0;
+  }
+
+  /** Offers a new frame; may be called from any thread. */
+  void onFrameAvailable(T frame) {
+    T dropped;
+    synchronized (this) {
+      if (!running) {
+        dropped = frame;
+      } else {
+        dropped = pendingFrame;
+        pendingFrame = frame;
+        if (dropped != null) {
+          ++droppedFrames;
+        }
+        if (!scheduled) {
+          scheduleLocked();
+        }
+      }
+    }
+    if (dropped != null) {
+      processor.releaseFrame(dropped);
+    }
+  }
+
+  /** Stops processing and releases the waiting frame, if any. */
+  void stop() {
+    T dropped;
+    synchronized (this) {
+      running = false;
+      dropped = pendingFrame;
+      pendingFrame = null;
+      handler.removeCallbacks(processPending);
+    }
+    if (dropped != null) {
+      processor.releaseFrame(dropped);
+    }
+  }
+
+  synchronized long getDroppedFrames() {
+    return droppedFrames;
+  }
+
+  synchronized long getProcessedFrames() {
+    return processedFrames;
+  }
+
+  private void scheduleLocked() {
+    scheduled = true;
+    long startTime = lastStartTime + minIntervalMs;
+    if (startTime <= SystemClock.uptimeMillis()) {
+      handler.post(processPending);
+    } else {
+      handler.postAtTime(processPending, startTime);
+    }
+  }
+}
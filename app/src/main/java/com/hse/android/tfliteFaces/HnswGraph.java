@@ -0,0 +1,295 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.util.Arrays;
+
+/**
+ * Search over a hierarchical navigable small world graph of face embeddings (Malkov and
+ * Yashunin, HNSW). Every node is on layer 0 and, with exponentially decreasing probability, on
+ * the layers above; each layer links a node to its approximately most similar nodes. A search
+ * descends greedily from the single entry node on the top layer and then runs a best-first search
+ * on layer 0 that keeps the {@code ef} most similar nodes seen.
+ *
+ * <p>Subclasses store the graph: {@link HnswIndex} in memory, open for inserts, and {@link
+ * MappedHnswIndex} in a memory-mapped file written by {@link HnswIndex#save}. Similarities are
+ * dot products of L2-normalized embeddings, i.e. cosine similarities.
+ *
+ * <p>Searches are thread-safe as long as the subclass reads are; every thread uses its own
+ * search buffers.
+ */
+abstract class HnswGraph {
+
+  /** Entry returned by {@link #getEntry()} for an empty graph. */
+  static final long NO_ENTRY = -1;
+
+  final int dimension;
+
+  /** Maximum number of links of a node on the layers above 0. */
+  final int maxLinks;
+
+  /** Maximum number of links of a node on layer 0. */
+  final int maxLinks0;
+
+  private final ThreadLocal<SearchContext> contexts =
+      new ThreadLocal<SearchContext>() {
+        @Override
+        protected SearchContext initialValue() {
+          return new SearchContext(HnswGraph.this);
+        }
+      };
+
+  HnswGraph(int dimension, int maxLinks, int maxLinks0) {
+    this.dimension = dimension;
+    this.maxLinks = maxLinks;
+    this.maxLinks0 = maxLinks0;
+  }
+
+  /** Number of nodes that are fully linked into the graph. */
+  abstract int size();
+
+  abstract long getId(int node);
+
+  /** Dot product of a normalized query with the embedding of {@code node}. */
+  abstract float similarity(float[] query, int node);
+
+  /**
+   * Copies the links of {@code node} on {@code layer} into {@code dst}, which has room for {@link
+   * #maxLinks0} entries.
+   *
+   * @return the number of links
+   */
+  abstract int getLinks(int node, int layer, int[] dst);
+
+  /**
+   * The entry node in the low 32 bits and its layer in the high 32 bits, or {@link #NO_ENTRY}.
+   * Both are read together, so that inserts can move the entry while searches run.
+   */
+  abstract long getEntry();
+
+  static long entry(int node, int layer) {
+    return ((long) layer << 32) | node;
+  }
+
+  /**
+   * Finds approximately the {@code k} embeddings most similar to {@code embedding}.
+   *
+   * @param ef the number of candidates kept by the search on layer 0; higher is slower and more
+   *     accurate, and at least {@code k} is used
+   * @param outIds receives the ids of the matches by decreasing similarity
+   * @param outScores receives their cosine similarities
+   * @return the number of matches, at most {@code k}
+   */
+  final int search(float[] embedding, int k, int ef, long[] outIds, float[] outScores) {
+    long entry = getEntry();
+    if (entry == NO_ENTRY) {
+      return 0;
+    }
+    SearchContext context = contexts.get();
+    float[] query = context.query;
+    FaceGallery.normalize(embedding, query, 0);
+    int node = searchUpperLayers(context, query, entry, 0);
+    searchLayer(context, query, node, similarity(query, node), 0, Math.max(ef, k));
+    int count = context.drainResults();
+    count = Math.min(count, k);
+    for (int i = 0; i < count; ++i) {
+      outIds[i] = getId(context.resultNodes[i]);
+      outScores[i] = context.resultScores[i];
+    }
+    return count;
+  }
+
+  /** Search buffers of the calling thread. */
+  final SearchContext getContext() {
+    return contexts.get();
+  }
+
+  /**
+   * Greedily moves from the entry node towards the query on every layer above {@code
+   * lowestLayer}.
+   *
+   * @return the node closest to the query found on layer {@code lowestLayer + 1}
+   */
+  final int searchUpperLayers(SearchContext context, float[] query, long entry, int lowestLayer) {
+    int node = (int) entry;
+    float best = similarity(query, node);
+    for (int layer = (int) (entry >>> 32); layer > lowestLayer; --layer) {
+      boolean moved = true;
+      while (moved) {
+        moved = false;
+        int count = getLinks(node, layer, context.links);
+        for (int i = 0; i < count; ++i) {
+          int neighbor = context.links[i];
+          float score = similarity(query, neighbor);
+          if (score > best) {
+            best = score;
+            node = neighbor;
+            moved = true;
+          }
+        }
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Best-first search on one layer from {@code entry}; leaves the {@code ef} most similar nodes
+   * found in the results of {@code context}.
+   */
+  final void searchLayer(
+      SearchContext context, float[] query, int entry, float entryScore, int layer, int ef) {
+    TopKHeap results = context.prepare(ef);
+    CandidateQueue candidates = context.candidates;
+    context.visit(entry);
+    results.offer(entry, entryScore);
+    candidates.push(entry, entryScore);
+    int[] links = context.links;
+    while (!candidates.isEmpty()) {
+      float score = candidates.peekScore();
+      if (score < results.threshold()) {
+        break;
+      }
+      int node = candidates.pop();
+      int count = getLinks(node, layer, links);
+      for (int i = 0; i < count; ++i) {
+        int neighbor = links[i];
+        if (!context.visit(neighbor)) {
+          continue;
+        }
+        float neighborScore = similarity(query, neighbor);
+        if (neighborScore > results.threshold()) {
+          candidates.push(neighbor, neighborScore);
+          results.offer(neighbor, neighborScore);
+        }
+      }
+    }
+  }
+
+  /** A growable max-heap of nodes by score, for the best-first search. */
+  static final class CandidateQueue {
+    private float[] scores = new float[64];
+    private int[] nodes = new int[64];
+    private int size;
+
+    void clear() {
+      size = 0;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    float peekScore() {
+      return scores[0];
+    }
+
+    void push(int node, float score) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, 2 * size);
+        scores = Arrays.copyOf(scores, 2 * size);
+      }
+      int pos = size++;
+      while (pos > 0) {
+        int parent = (pos - 1) >> 1;
+        if (scores[parent] >= score) {
+          break;
+        }
+        scores[pos] = scores[parent];
+        nodes[pos] = nodes[parent];
+        pos = parent;
+      }
+      scores[pos] = score;
+      nodes[pos] = node;
+    }
+
+    /** Removes the node with the highest score and returns it. */
+    int pop() {
+      int top = nodes[0];
+      --size;
+      int node = nodes[size];
+      float score = scores[size];
+      int pos = 0;
+      int half = size >> 1;
+      while (pos < half) {
+        int child = 2 * pos + 1;
+        if (child + 1 < size && scores[child + 1] > scores[child]) {
+          ++child;
+        }
+        if (score >= scores[child]) {
+          break;
+        }
+        scores[pos] = scores[child];
+        nodes[pos] = nodes[child];
+        pos = child;
+      }
+      scores[pos] = score;
+      nodes[pos] = node;
+      return top;
+    }
+  }
+
+  /** Buffers of one searching thread. */
+  static final class SearchContext {
+    final float[] query;
+    final int[] links;
+    final CandidateQueue candidates = new CandidateQueue();
+    TopKHeap results = new TopKHeap(64);
+    int[] resultNodes = new int[64];
+    float[] resultScores = new float[64];
+
+    /** Visit marks: a node was visited by the current search if its mark equals the epoch. */
+    private int[] visited = new int[1024];
+    private int epoch = 0;
+
+    SearchContext(HnswGraph graph) {
+      query = new float[graph.dimension];
+      links = new int[graph.maxLinks0];
+    }
+
+    /** Clears the candidates, visit marks and results for a search that keeps {@code ef}. */
+    TopKHeap prepare(int ef) {
+      if (resultNodes.length < ef) {
+        results = new TopKHeap(ef);
+        resultNodes = new int[ef];
+        resultScores = new float[ef];
+      }
+      results.reset(ef);
+      candidates.clear();
+      if (++epoch == 0) {
+        Arrays.fill(visited, 0);
+        epoch = 1;
+      }
+      return results;
+    }
+
+    /** Marks a node as visited; returns false if it already was. */
+    boolean visit(int node) {
+      if (node >= visited.length) {
+        visited = Arrays.copyOf(visited, Math.max(node + 1, 2 * visited.length));
+      }
+      if (visited[node] == epoch) {
+        return false;
+      }
+      visited[node] = epoch;
+      return true;
+    }
+
+    /** Moves the results into {@link #resultNodes} by decreasing score; returns their number. */
+    int drainResults() {
+      return results.drainDescending(resultNodes, resultScores);
+    }
+  }
+}
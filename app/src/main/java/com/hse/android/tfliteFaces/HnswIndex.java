@@ -0,0 +1,440 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An in-memory {@link HnswGraph} that embeddings are inserted into one at a time.
+ *
+ * <p>Inserts are serialized with each other, but searches may run on any number of threads while
+ * an insert is in progress. Every link list is guarded by one of a fixed set of striped locks,
+ * which an insert holds only while it rewrites a list and a search only while it copies one.
+ * A node is written completely before it is linked from another node, and the storage blocks are
+ * published through a volatile field, so a search either does not reach a new node or sees all of
+ * it.
+ *
+ * <p>{@link #save} writes the graph into a single file that {@link MappedHnswIndex} searches in
+ * place.
+ */
+final class HnswIndex extends HnswGraph {
+
+  /** Links per node on the upper layers; layer 0 allows twice as many. */
+  static final int DEFAULT_M = 16;
+
+  /** Candidates kept while searching for the links of a new node. */
+  static final int DEFAULT_EF_CONSTRUCTION = 100;
+
+  /** Candidates kept by {@link #search(float[], int, long[], float[])}. */
+  static final int DEFAULT_EF_SEARCH = 64;
+
+  /** Number of nodes per storage block. */
+  private static final int BLOCK_ROWS = 1024;
+
+  /** Number of striped link locks, a power of two. */
+  private static final int LOCK_STRIPES = 256;
+
+  /** Storage of {@link #BLOCK_ROWS} nodes. */
+  private static final class Block {
+    final float[] vectors;
+    final long[] ids = new long[BLOCK_ROWS];
+    final int[] levels = new int[BLOCK_ROWS];
+
+    /** Layer 0 links of every node: the count, then {@link #maxLinks0} slots. */
+    final int[] links0;
+
+    /** Links of every node on the layers above 0, each as a count and {@link #maxLinks} slots. */
+    final int[][] upperLinks = new int[BLOCK_ROWS][];
+
+    Block(int dimension, int maxLinks0) {
+      vectors = new float[BLOCK_ROWS * dimension];
+      links0 = new int[BLOCK_ROWS * (maxLinks0 + 1)];
+    }
+  }
+
+  private final int efConstruction;
+  private final double levelScale;
+  private final Random random;
+  private final Object[] locks = new Object[LOCK_STRIPES];
+  private final Object insertLock = new Object();
+  private volatile int efSearch = DEFAULT_EF_SEARCH;
+  private volatile Block[] blocks = new Block[0];
+  private volatile int size = 0;
+  private volatile long entry = NO_ENTRY;
+
+  /* Insert buffers, guarded by insertLock. */
+  private final float[] vector;
+  private final int[] candidates;
+  private final float[] candidateScores;
+  private final int[] selected;
+  private final int[] pruned;
+  private final int[] neighborLinks;
+  private final float[] neighborScores;
+
+  HnswIndex(int dimension) {
+    this(dimension, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, new Random(42));
+  }
+
+  /**
+   * @param m the number of links per node on the upper layers, twice as many on layer 0; more
+   *     links give a higher recall at a higher memory and search cost
+   * @param efConstruction the candidates considered for the links of a new node; more give a
+   *     better graph at a higher insert cost
+   * @param random chooses the layers of the nodes
+   */
+  HnswIndex(int dimension, int m, int efConstruction, Random random) {
+    super(dimension, m, 2 * m);
+    if (m < 2) {
+      throw new IllegalArgumentException("M has to be at least 2, got " + m);
+    }
+    this.efConstruction = Math.max(efConstruction, m);
+    this.levelScale = 1 / Math.log(m);
+    this.random = random;
+    for (int i = 0; i < LOCK_STRIPES; ++i) {
+      locks[i] = new Object();
+    }
+    vector = new float[dimension];
+    candidates = new int[this.efConstruction];
+    candidateScores = new float[this.efConstruction];
+    selected = new int[maxLinks0];
+    pruned = new int[maxLinks0];
+    neighborLinks = new int[maxLinks0 + 1];
+    neighborScores = new float[maxLinks0 + 1];
+  }
+
+  @Override
+  int size() {
+    return size;
+  }
+
+  @Override
+  long getId(int node) {
+    return blocks[node / BLOCK_ROWS].ids[node % BLOCK_ROWS];
+  }
+
+  @Override
+  long getEntry() {
+    return entry;
+  }
+
+  /** Sets the candidates kept by {@link #search(float[], int, long[], float[])}. */
+  void setEfSearch(int ef) {
+    efSearch = ef;
+  }
+
+  int getEfSearch() {
+    return efSearch;
+  }
+
+  /** Searches with the {@link #setEfSearch ef} of the index. */
+  int search(float[] embedding, int k, long[] outIds, float[] outScores) {
+    return search(embedding, k, efSearch, outIds, outScores);
+  }
+
+  @Override
+  float similarity(float[] query, int node) {
+    return FaceGallery.dot(
+        query, blocks[node / BLOCK_ROWS].vectors, (node % BLOCK_ROWS) * dimension, dimension);
+  }
+
+  /** Similarity of two nodes. */
+  private float similarity(int a, int b) {
+    Block[] blocks = this.blocks;
+    return FaceGallery.dot(
+        blocks[a / BLOCK_ROWS].vectors,
+        (a % BLOCK_ROWS) * dimension,
+        blocks[b / BLOCK_ROWS].vectors,
+        (b % BLOCK_ROWS) * dimension,
+        dimension);
+  }
+
+  @Override
+  int getLinks(int node, int layer, int[] dst) {
+    Block block = blocks[node / BLOCK_ROWS];
+    int row = node % BLOCK_ROWS;
+    synchronized (lockFor(node)) {
+      int[] links;
+      int offset;
+      if (layer == 0) {
+        links = block.links0;
+        offset = row * (maxLinks0 + 1);
+      } else {
+        links = block.upperLinks[row];
+        offset = (layer - 1) * (maxLinks + 1);
+      }
+      int count = links[offset];
+      System.arraycopy(links, offset + 1, dst, 0, count);
+      return count;
+    }
+  }
+
+  private Object lockFor(int node) {
+    return locks[node & (LOCK_STRIPES - 1)];
+  }
+
+  /**
+   * Adds an embedding and links it into the graph; it is normalized on the way in. Searches that
+   * start after the insert returns find it.
+   *
+   * @return the node of the embedding
+   */
+  int insert(long id, float[] embedding) {
+    if (embedding.length != dimension) {
+      throw new IllegalArgumentException(
+          "Embedding has " + embedding.length + " values, expected " + dimension);
+    }
+    synchronized (insertLock) {
+      int node = size;
+      int level = (int) (-Math.log(1 - random.nextDouble()) * levelScale);
+      Block block = blockFor(node);
+      int row = node % BLOCK_ROWS;
+      FaceGallery.normalize(embedding, block.vectors, row * dimension);
+      block.ids[row] = id;
+      block.levels[row] = level;
+      if (level > 0) {
+        block.upperLinks[row] = new int[level * (maxLinks + 1)];
+      }
+
+      long currentEntry = entry;
+      if (currentEntry == NO_ENTRY) {
+        size = node + 1;
+        entry = entry(node, level);
+        return node;
+      }
+      int entryLevel = (int) (currentEntry >>> 32);
+      System.arraycopy(block.vectors, row * dimension, vector, 0, dimension);
+      SearchContext context = getContext();
+      int nearest = searchUpperLayers(context, vector, currentEntry, level);
+      for (int layer = Math.min(level, entryLevel); layer >= 0; --layer) {
+        searchLayer(context, vector, nearest, similarity(vector, nearest), layer, efConstruction);
+        int count = context.results.drainDescending(candidates, candidateScores);
+        nearest = candidates[0];
+        int linkCount = selectNeighbors(candidates, candidateScores, count, maxLinks, selected);
+        setLinks(node, layer, selected, linkCount);
+        for (int i = 0; i < linkCount; ++i) {
+          addLink(selected[i], layer, node);
+        }
+      }
+      size = node + 1;
+      if (level > entryLevel) {
+        entry = entry(node, level);
+      }
+      return node;
+    }
+  }
+
+  /** The block of {@code node}, added and published if it is the first node of a new block. */
+  private Block blockFor(int node) {
+    Block[] current = blocks;
+    int index = node / BLOCK_ROWS;
+    if (index == current.length) {
+      Block[] grown = Arrays.copyOf(current, index + 1);
+      grown[index] = new Block(dimension, maxLinks0);
+      blocks = grown;
+      return grown[index];
+    }
+    return current[index];
+  }
+
+  /**
+   * Picks up to {@code max} links from candidates sorted by decreasing similarity, skipping a
+   * candidate that is more similar to an already picked one than to the new node. This keeps
+   * links into different directions, so that the graph stays navigable between clusters.
+   *
+   * @return the number of links written to {@code out}
+   */
+  private int selectNeighbors(int[] nodes, float[] scores, int count, int max, int[] out) {
+    int selectedCount = 0;
+    for (int i = 0; i < count && selectedCount < max; ++i) {
+      boolean diverse = true;
+      for (int j = 0; j < selectedCount; ++j) {
+        if (similarity(nodes[i], out[j]) > scores[i]) {
+          diverse = false;
+          break;
+        }
+      }
+      if (diverse) {
+        out[selectedCount++] = nodes[i];
+      }
+    }
+    return selectedCount;
+  }
+
+  private void setLinks(int node, int layer, int[] links, int count) {
+    Block block = blocks[node / BLOCK_ROWS];
+    int row = node % BLOCK_ROWS;
+    synchronized (lockFor(node)) {
+      int[] dst;
+      int offset;
+      if (layer == 0) {
+        dst = block.links0;
+        offset = row * (maxLinks0 + 1);
+      } else {
+        dst = block.upperLinks[row];
+        offset = (layer - 1) * (maxLinks + 1);
+      }
+      System.arraycopy(links, 0, dst, offset + 1, count);
+      dst[offset] = count;
+    }
+  }
+
+  /** Links {@code node} to {@code target}, pruning the links of {@code node} if they are full. */
+  private void addLink(int node, int layer, int target) {
+    int max = layer == 0 ? maxLinks0 : maxLinks;
+    int count = getLinks(node, layer, neighborLinks);
+    if (count < max) {
+      neighborLinks[count] = target;
+      setLinks(node, layer, neighborLinks, count + 1);
+      return;
+    }
+    neighborLinks[count++] = target;
+    for (int i = 0; i < count; ++i) {
+      neighborScores[i] = similarity(node, neighborLinks[i]);
+    }
+    // Insertion sort by decreasing similarity; the lists are short.
+    for (int i = 1; i < count; ++i) {
+      int link = neighborLinks[i];
+      float score = neighborScores[i];
+      int j = i - 1;
+      for (; j >= 0 && neighborScores[j] < score; --j) {
+        neighborLinks[j + 1] = neighborLinks[j];
+        neighborScores[j + 1] = neighborScores[j];
+      }
+      neighborLinks[j + 1] = link;
+      neighborScores[j + 1] = score;
+    }
+    int kept = selectNeighbors(neighborLinks, neighborScores, count, max, pruned);
+    setLinks(node, layer, pruned, kept);
+  }
+
+  /**
+   * Writes the index into {@code file} in the layout read by {@link MappedHnswIndex}. Inserts wait
+   * until the file is written; searches do not.
+   *
+   * <p>The index is written into a new file, which replaces {@code file} by a rename, so that a
+   * {@link MappedHnswIndex} that maps the previous file keeps its pages and a crash leaves either
+   * the previous file or the new one.
+   */
+  void save(File file) throws IOException {
+    synchronized (insertLock) {
+      File tmp = new File(file.getPath() + ".tmp");
+      write(tmp);
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Cannot replace " + file);
+      }
+      MappedFaceGallery.syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+  }
+
+  /** Writes the index into {@code file} and forces it to the storage device. */
+  private void write(File file) throws IOException {
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(0);
+      FileChannel channel = out.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+      int count = size;
+      Block[] blocks = this.blocks;
+      long entry = this.entry;
+
+      int upperInts = 0;
+      for (int node = 0; node < count; ++node) {
+        upperInts += blocks[node / BLOCK_ROWS].levels[node % BLOCK_ROWS] * (maxLinks + 1);
+      }
+      buffer.putInt(MappedHnswIndex.MAGIC);
+      buffer.putInt(MappedHnswIndex.VERSION);
+      buffer.putInt(dimension);
+      buffer.putInt(maxLinks);
+      buffer.putInt(count);
+      buffer.putInt((int) entry);
+      buffer.putInt(entry == NO_ENTRY ? -1 : (int) (entry >>> 32));
+      buffer.putInt(upperInts);
+      while (buffer.position() < MappedHnswIndex.HEADER_BYTES) {
+        buffer.put((byte) 0);
+      }
+
+      for (int node = 0; node < count; ++node) {
+        buffer = ensureRemaining(channel, buffer, 8);
+        buffer.putLong(blocks[node / BLOCK_ROWS].ids[node % BLOCK_ROWS]);
+      }
+      for (int node = 0; node < count; ++node) {
+        float[] vectors = blocks[node / BLOCK_ROWS].vectors;
+        int offset = (node % BLOCK_ROWS) * dimension;
+        for (int i = 0; i < dimension; ++i) {
+          buffer = ensureRemaining(channel, buffer, 4);
+          buffer.putFloat(vectors[offset + i]);
+        }
+      }
+      int[] links = new int[maxLinks0];
+      for (int node = 0; node < count; ++node) {
+        int linkCount = getLinks(node, 0, links);
+        buffer = ensureRemaining(channel, buffer, 4 * (maxLinks0 + 1));
+        buffer.putInt(linkCount);
+        for (int i = 0; i < maxLinks0; ++i) {
+          buffer.putInt(i < linkCount ? links[i] : -1);
+        }
+      }
+      // Offsets of the upper links of every node, in ints from the start of the upper links.
+      for (int node = 0, offset = 0; node < count; ++node) {
+        int level = blocks[node / BLOCK_ROWS].levels[node % BLOCK_ROWS];
+        buffer = ensureRemaining(channel, buffer, 8);
+        buffer.putInt(level);
+        buffer.putInt(offset);
+        offset += level * (maxLinks + 1);
+      }
+      for (int node = 0; node < count; ++node) {
+        int level = blocks[node / BLOCK_ROWS].levels[node % BLOCK_ROWS];
+        for (int layer = 1; layer <= level; ++layer) {
+          int linkCount = getLinks(node, layer, links);
+          buffer = ensureRemaining(channel, buffer, 4 * (maxLinks + 1));
+          buffer.putInt(linkCount);
+          for (int i = 0; i < maxLinks; ++i) {
+            buffer.putInt(i < linkCount ? links[i] : -1);
+          }
+        }
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      // The length is metadata, which has to be durable before the file replaces the saved one.
+      channel.force(true);
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Writes out {@code buffer} if it has fewer than {@code bytes} left. */
+  private static ByteBuffer ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes)
+      throws IOException {
+    if (buffer.remaining() < bytes) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+    return buffer;
+  }
+}
@@ -0,0 +1,655 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A face gallery kept in a file, so that it survives restarts without running the models on the
+ * enrolled faces again.
+ *
+ * <p>The gallery file is mapped with {@link FileChannel#map}, like the models, and searched in
+ * place; opening it reads only the header, whatever the number of embeddings, and the pages are
+ * shared with any other process that maps the file. It is little-endian: a {@value
+ * #HEADER_BYTES} byte header, the product quantizer codebooks if the embeddings are quantized, the
+ * normalized embeddings as floats or {@link ProductQuantizer} codes one after the other, with room
+ * for more up to the capacity of the file, and two slots for the table of their ids, of which the
+ * header names the current one.
+ *
+ * <p>Embeddings are appended to a write-ahead log next to the gallery file, {@code <file>.wal},
+ * and kept in memory until the log is compacted into the gallery file. While the capacity lasts,
+ * the logged embeddings are written after the others, and only the id table and the header are
+ * rewritten; the previous generation stays intact until the header switches over. A full file is
+ * rewritten with twice the capacity into a new file, which replaces the old one by a rename, so
+ * that every embedding is copied about once more however large the gallery grows. Both files
+ * carry a generation, so a log that was already compacted when the process died is not replayed
+ * again, and a record torn by a crash fails its checksum and is dropped.
+ *
+ * <p>A gallery is not thread-safe; {@link #search} reuses buffers of the gallery.
+ */
+final class MappedFaceGallery {
+
+  /** "FGAL" read as a little-endian int. */
+  static final int MAGIC = 0x4C414746;
+
+  /** "FWAL" read as a little-endian int. */
+  static final int WAL_MAGIC = 0x4C415746;
+
+  static final int VERSION = 1;
+
+  static final int HEADER_BYTES = 64;
+
+  private static final int WAL_HEADER_BYTES = 16;
+
+  private static final int ENCODING_FLOAT = 0;
+  private static final int ENCODING_QUANTIZED = 1;
+
+  /** Bytes per mapped region of embeddings; a single mapping cannot exceed 2 GB. */
+  private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+  /**
+   * Bounds of the number of logged embeddings that triggers a compaction, which keep the log that
+   * is held in memory small. In between it grows with the gallery, {@link #COMPACT_RATIO} of it,
+   * so that rewriting the id table stays cheap per append.
+   */
+  private static final int MIN_LOG_RECORDS = 1024;
+  private static final int MAX_LOG_RECORDS = 16384;
+  private static final int COMPACT_RATIO = 8;
+
+  /** Capacity of a new gallery file. */
+  private static final int MIN_CAPACITY = 1024;
+
+  /** Whether this runs on Android, which has the system calls to sync a directory. */
+  private static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+  private final File file;
+  private final File walFile;
+  private final int dimension;
+  private final ProductQuantizer quantizer;
+
+  /** Bytes of one stored embedding. */
+  private final int recordBytes;
+
+  private long generation;
+
+  /* The mapped gallery file. */
+  private int baseCount = 0;
+  private int capacity = 0;
+  private long vectorsOffset;
+  private long idsOffset;
+  private int chunkRows;
+  private ByteBuffer[] chunks = new ByteBuffer[0];
+  private FloatBuffer[] floatChunks = new FloatBuffer[0];
+  private ByteBuffer baseIdBytes;
+  private LongBuffer baseIds;
+
+  /* Embeddings in the log. */
+  private int tailCount = 0;
+  private float[] tailFloats;
+  private byte[] tailCodes;
+  private long[] tailIds = new long[64];
+
+  /* The open log. */
+  private RandomAccessFile wal;
+  private long walPosition;
+  private final ByteBuffer walRecord;
+  private final CRC32 crc = new CRC32();
+
+  /* Append and search buffers. */
+  private final float[] normalized;
+  private final byte[] code;
+  private final float[] scoreTable;
+  private TopKHeap heap = new TopKHeap(16);
+  private int[] topIndices = new int[16];
+
+  private MappedFaceGallery(File file, int dimension, ProductQuantizer quantizer, long generation) {
+    this.file = file;
+    this.walFile = new File(file.getPath() + ".wal");
+    this.dimension = dimension;
+    this.quantizer = quantizer;
+    this.generation = generation;
+    recordBytes = quantizer == null ? dimension * 4 : quantizer.getCodeSize();
+    if (quantizer == null) {
+      tailFloats = new float[64 * dimension];
+      code = null;
+      scoreTable = null;
+    } else {
+      tailCodes = new byte[64 * recordBytes];
+      code = new byte[recordBytes];
+      scoreTable = new float[recordBytes * ProductQuantizer.CENTROIDS];
+    }
+    normalized = new float[dimension];
+    walRecord = ByteBuffer.allocate(8 + recordBytes + 4).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Creates an empty gallery file, replacing any gallery at {@code file}.
+   *
+   * @param quantizer a trained quantizer to store codes instead of floats, or null
+   */
+  static MappedFaceGallery create(File file, int dimension, ProductQuantizer quantizer)
+      throws IOException {
+    if (quantizer != null && quantizer.getDimension() != dimension) {
+      throw new IllegalArgumentException(
+          "Quantizer has dimension " + quantizer.getDimension() + ", expected " + dimension);
+    }
+    MappedFaceGallery gallery = new MappedFaceGallery(file, dimension, quantizer, 0);
+    gallery.compact();
+    return gallery;
+  }
+
+  /** Maps a gallery file and replays its log. */
+  static MappedFaceGallery open(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    MappedFaceGallery gallery;
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer header = readHeader(file, channel);
+      int encoding = header.getInt(8);
+      int dimension = header.getInt(12);
+      int subspaces = header.getInt(16);
+      long generation = header.getLong(24);
+      ProductQuantizer quantizer = null;
+      if (encoding == ENCODING_QUANTIZED) {
+        quantizer = new ProductQuantizer(dimension, subspaces);
+        quantizer.readCodebooks(
+            map(channel, HEADER_BYTES, quantizer.getCodebookBytes()).asFloatBuffer());
+      } else if (encoding != ENCODING_FLOAT) {
+        throw new IOException(file + " has an unknown encoding " + encoding);
+      }
+      gallery = new MappedFaceGallery(file, dimension, quantizer, generation);
+      gallery.mapBase(channel);
+    } finally {
+      // The mappings stay valid after the file is closed.
+      in.close();
+    }
+    gallery.replayLog();
+    return gallery;
+  }
+
+  private static ByteBuffer readHeader(File file, FileChannel channel) throws IOException {
+    if (channel.size() < HEADER_BYTES) {
+      throw new IOException(file + " is too short for a gallery");
+    }
+    ByteBuffer header = map(channel, 0, HEADER_BYTES);
+    if (header.getInt(0) != MAGIC) {
+      throw new IOException(file + " is not a gallery file");
+    }
+    int version = header.getInt(4);
+    if (version != VERSION) {
+      throw new IOException(file + " has version " + version + ", expected " + VERSION);
+    }
+    return header;
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long bytes) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /** Maps the embeddings and ids of the gallery file. */
+  private void mapBase(FileChannel channel) throws IOException {
+    ByteBuffer header = readHeader(file, channel);
+    int count = header.getInt(20);
+    vectorsOffset = header.getLong(32);
+    idsOffset = header.getLong(40);
+    // Files written before the capacity was added have none, and are rewritten when compacted.
+    capacity = header.getInt(48);
+    if (channel.size() < idsOffset + (long) count * 8) {
+      throw new IOException(file + " is truncated");
+    }
+    chunkRows = Math.max(1, MAX_CHUNK_BYTES / recordBytes);
+    int chunkCount = (count + chunkRows - 1) / chunkRows;
+    chunks = new ByteBuffer[chunkCount];
+    floatChunks = new FloatBuffer[quantizer == null ? chunkCount : 0];
+    long offset = vectorsOffset;
+    for (int i = 0; i < chunkCount; ++i) {
+      long bytes = (long) Math.min(chunkRows, count - i * chunkRows) * recordBytes;
+      chunks[i] = map(channel, offset, bytes);
+      if (quantizer == null) {
+        floatChunks[i] = chunks[i].asFloatBuffer();
+      }
+      offset += bytes;
+    }
+    baseIdBytes = map(channel, idsOffset, (long) count * 8);
+    baseIds = baseIdBytes.asLongBuffer();
+    baseCount = count;
+  }
+
+  /** Adds the records of the log that belong to the mapped gallery file. */
+  private void replayLog() throws IOException {
+    if (!walFile.exists() || walFile.length() < WAL_HEADER_BYTES) {
+      startLog(generation);
+      return;
+    }
+    RandomAccessFile log = new RandomAccessFile(walFile, "rw");
+    FileChannel channel = log.getChannel();
+    ByteBuffer header = ByteBuffer.allocate(WAL_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    if (!readFully(channel, header, 0)
+        || header.getInt(0) != WAL_MAGIC
+        || header.getInt(4) != VERSION
+        || header.getLong(8) != generation) {
+      // The log was compacted into the gallery file already, or is not ours.
+      log.close();
+      startLog(generation);
+      return;
+    }
+    long position = WAL_HEADER_BYTES;
+    while (readFully(channel, walRecord, position)) {
+      crc.reset();
+      crc.update(walRecord.array(), 0, 8 + recordBytes);
+      if ((int) crc.getValue() != walRecord.getInt(8 + recordBytes)) {
+        break;
+      }
+      addTail(walRecord);
+      position += walRecord.capacity();
+    }
+    // Drop a record torn by a crash, so that appends continue after the last good one.
+    channel.truncate(position);
+    wal = log;
+    walPosition = position;
+  }
+
+  /** Starts an empty log for the gallery file of {@code generation}. */
+  private void startLog(long generation) throws IOException {
+    if (wal != null) {
+      wal.close();
+    }
+    boolean created = !walFile.exists();
+    wal = new RandomAccessFile(walFile, "rw");
+    wal.setLength(0);
+    ByteBuffer header = ByteBuffer.allocate(WAL_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(WAL_MAGIC).putInt(VERSION).putLong(generation).flip();
+    FileChannel channel = wal.getChannel();
+    writeFully(channel, header, 0);
+    channel.force(true);
+    if (created) {
+      // A synced append is only durable once the directory entry of a new log is.
+      syncDirectory(walFile.getAbsoluteFile().getParentFile());
+    }
+    walPosition = WAL_HEADER_BYTES;
+  }
+
+  /** Reads {@code buffer} completely from {@code position}; false at the end of the file. */
+  private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    buffer.clear();
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  int getDimension() {
+    return dimension;
+  }
+
+  int size() {
+    return baseCount + tailCount;
+  }
+
+  /** Whether the embeddings are stored as product quantizer codes. */
+  boolean isQuantized() {
+    return quantizer != null;
+  }
+
+  /** Number of embeddings in the log, not yet compacted into the gallery file. */
+  int getLogSize() {
+    return tailCount;
+  }
+
+  /** The id of the embedding at {@code index}, in append order. */
+  long getId(int index) {
+    return index < baseCount ? baseIds.get(index) : tailIds[index - baseCount];
+  }
+
+  /**
+   * Cosine similarity of the float embedding at {@code index} with a normalized query, read from
+   * the mapping, or from the log for an embedding that was not compacted yet.
+   *
+   * @throws IllegalStateException if the embeddings are quantized
+   */
+  float score(int index, float[] normalizedQuery) {
+    if (quantizer != null) {
+      throw new IllegalStateException("Quantized embeddings have no exact similarity");
+    }
+    if (index >= baseCount) {
+      return FaceGallery.dot(
+          normalizedQuery, 0, tailFloats, (index - baseCount) * dimension, dimension);
+    }
+    FloatBuffer vectors = floatChunks[index / chunkRows];
+    return FaceGallery.dot(normalizedQuery, vectors, (index % chunkRows) * dimension, dimension);
+  }
+
+  /**
+   * Appends an embedding; it is normalized on the way in. The embedding is in the log when this
+   * returns, and durable after {@link #sync()}. Compacts the log once it is large enough.
+   *
+   * @return the index of the embedding in the gallery
+   */
+  int append(long id, float[] embedding) throws IOException {
+    if (embedding.length != dimension) {
+      throw new IllegalArgumentException(
+          "Embedding has " + embedding.length + " values, expected " + dimension);
+    }
+    FaceGallery.normalize(embedding, normalized, 0);
+    walRecord.clear();
+    walRecord.putLong(id);
+    if (quantizer == null) {
+      for (int i = 0; i < dimension; ++i) {
+        walRecord.putFloat(normalized[i]);
+      }
+    } else {
+      quantizer.encode(normalized, 0, code, 0);
+      walRecord.put(code);
+    }
+    crc.reset();
+    crc.update(walRecord.array(), 0, walRecord.position());
+    walRecord.putInt((int) crc.getValue());
+    walRecord.flip();
+    writeFully(wal.getChannel(), walRecord, walPosition);
+    walPosition += walRecord.capacity();
+    int index = addTail(walRecord);
+    int threshold =
+        Math.max(MIN_LOG_RECORDS, Math.min(MAX_LOG_RECORDS, baseCount / COMPACT_RATIO));
+    if (tailCount >= threshold) {
+      compact();
+    }
+    return index;
+  }
+
+  /** Adds the embedding of a log record to the in-memory tail; returns its index. */
+  private int addTail(ByteBuffer record) {
+    if (tailCount == tailIds.length) {
+      tailIds = Arrays.copyOf(tailIds, 2 * tailCount);
+      if (quantizer == null) {
+        tailFloats = Arrays.copyOf(tailFloats, 2 * tailFloats.length);
+      } else {
+        tailCodes = Arrays.copyOf(tailCodes, 2 * tailCodes.length);
+      }
+    }
+    tailIds[tailCount] = record.getLong(0);
+    if (quantizer == null) {
+      int offset = tailCount * dimension;
+      for (int i = 0; i < dimension; ++i) {
+        tailFloats[offset + i] = record.getFloat(8 + 4 * i);
+      }
+    } else {
+      System.arraycopy(record.array(), 8, tailCodes, tailCount * recordBytes, recordBytes);
+    }
+    ++tailCount;
+    return baseCount + tailCount - 1;
+  }
+
+  /** Forces the appended embeddings to the storage device. */
+  void sync() throws IOException {
+    wal.getChannel().force(false);
+  }
+
+  /**
+   * Moves the log into the gallery file of the next generation, in place while its capacity
+   * lasts, maps the file again and starts an empty log.
+   */
+  void compact() throws IOException {
+    long nextGeneration = generation + 1;
+    int count = baseCount + tailCount;
+    if (capacity > 0 && count <= capacity) {
+      compactInPlace(nextGeneration);
+    } else {
+      File tmp = new File(file.getPath() + ".tmp");
+      writeGallery(tmp, nextGeneration, Math.max(MIN_CAPACITY, 2 * count));
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Cannot replace " + file);
+      }
+      // The rename has to be durable before records of the next generation are logged.
+      syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+    // A crash here leaves a log of the previous generation, which open() then ignores.
+    generation = nextGeneration;
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      mapBase(in.getChannel());
+    } finally {
+      in.close();
+    }
+    tailCount = 0;
+    startLog(generation);
+  }
+
+  /**
+   * Writes the logged embeddings after the mapped ones and the whole id table into the slot the
+   * header does not name, then the header of the next generation. Nothing the current header
+   * refers to is written, so a crash before the header leaves the previous generation intact.
+   */
+  private void compactInPlace(long nextGeneration) throws IOException {
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = out.getChannel();
+      writeFully(channel, tailVectors(), vectorsOffset + (long) baseCount * recordBytes);
+      long firstSlot = idSlot(vectorsOffset, capacity, 0);
+      long slot = idsOffset == firstSlot ? idSlot(vectorsOffset, capacity, 1) : firstSlot;
+      writeIds(channel, slot);
+      channel.force(true);
+      // The header is a single write within the first sector, which storage devices usually, but
+      // not always, write atomically. The checksummed log is what recovers the appends: it is not
+      // restarted until the header is forced.
+      writeFully(
+          channel,
+          header(baseCount + tailCount, nextGeneration, vectorsOffset, slot, capacity),
+          0);
+      channel.force(true);
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Writes a gallery file of the embeddings and the log with room for {@code capacity}. */
+  private void writeGallery(File dst, long generation, int capacity) throws IOException {
+    RandomAccessFile out = new RandomAccessFile(dst, "rw");
+    try {
+      out.setLength(0);
+      FileChannel channel = out.getChannel();
+      long vectorsOffset =
+          HEADER_BYTES + (quantizer == null ? 0 : quantizer.getCodebookBytes());
+      long idsOffset = idSlot(vectorsOffset, capacity, 0);
+      writeFully(
+          channel,
+          header(baseCount + tailCount, generation, vectorsOffset, idsOffset, capacity),
+          0);
+      if (quantizer != null) {
+        ByteBuffer codebooks =
+            ByteBuffer.allocate((int) quantizer.getCodebookBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        quantizer.writeCodebooks(codebooks.asFloatBuffer());
+        writeFully(channel, codebooks, HEADER_BYTES);
+      }
+
+      long position = vectorsOffset;
+      for (ByteBuffer chunk : chunks) {
+        ByteBuffer src = chunk.duplicate();
+        src.clear();
+        writeFully(channel, src, position);
+        position += chunk.capacity();
+      }
+      writeFully(channel, tailVectors(), position);
+      writeIds(channel, idsOffset);
+      // The free capacity stays a hole on file systems with sparse files.
+      out.setLength(idSlot(vectorsOffset, capacity, 2));
+      channel.force(true);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Position of an id table slot, behind the room for {@code capacity} embeddings and aligned for
+   * the long view of the mapping; slot 2 is the end of the file.
+   */
+  private long idSlot(long vectorsOffset, int capacity, int slot) {
+    long firstSlot = (vectorsOffset + (long) capacity * recordBytes + 7) & ~7L;
+    return firstSlot + slot * (long) capacity * 8;
+  }
+
+  private ByteBuffer header(
+      int count, long generation, long vectorsOffset, long idsOffset, int capacity) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header
+        .putInt(MAGIC)
+        .putInt(VERSION)
+        .putInt(quantizer == null ? ENCODING_FLOAT : ENCODING_QUANTIZED)
+        .putInt(dimension)
+        .putInt(quantizer == null ? 0 : quantizer.getCodeSize())
+        .putInt(count)
+        .putLong(generation)
+        .putLong(vectorsOffset)
+        .putLong(idsOffset)
+        .putInt(capacity);
+    header.clear();
+    return header;
+  }
+
+  /** The logged embeddings as they are stored in the gallery file. */
+  private ByteBuffer tailVectors() {
+    ByteBuffer tail = ByteBuffer.allocate(tailCount * recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+    if (quantizer == null) {
+      tail.asFloatBuffer().put(tailFloats, 0, tailCount * dimension);
+    } else {
+      tail.put(tailCodes, 0, tailCount * recordBytes).flip();
+    }
+    return tail;
+  }
+
+  /** Writes the ids of the mapped and the logged embeddings from {@code position}. */
+  private void writeIds(FileChannel channel, long position) throws IOException {
+    if (baseIdBytes != null) {
+      ByteBuffer src = baseIdBytes.duplicate();
+      src.clear();
+      writeFully(channel, src, position);
+      position += baseIdBytes.capacity();
+    }
+    ByteBuffer ids = ByteBuffer.allocate(tailCount * 8).order(ByteOrder.LITTLE_ENDIAN);
+    ids.asLongBuffer().put(tailIds, 0, tailCount);
+    writeFully(channel, ids, position);
+  }
+
+  /**
+   * Forces the entries of a directory, e.g. a rename into it, to the storage device. On a desktop
+   * JVM, where only the benchmark and the tests run, the directory is not synced, since Java 7
+   * cannot open a directory without {@code java.nio.file}, which Android lacks before API 26.
+   */
+  static void syncDirectory(File dir) throws IOException {
+    if (ANDROID) {
+      AndroidDirectory.sync(dir);
+    }
+  }
+
+  /**
+   * The system calls that sync a directory on Android, in a class of their own, which is only
+   * loaded there; a desktop JVM fails to verify a method that catches an {@link ErrnoException}.
+   */
+  private static final class AndroidDirectory {
+
+    static void sync(File dir) throws IOException {
+      try {
+        FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+        try {
+          Os.fsync(fd);
+        } finally {
+          Os.close(fd);
+        }
+      } catch (ErrnoException e) {
+        throw e.rethrowAsIOException();
+      }
+    }
+  }
+
+  /**
+   * Finds the {@code k} embeddings most similar to {@code embedding}. Similarities of quantized
+   * embeddings are approximate.
+   *
+   * @param outIds receives the ids of the matches by decreasing similarity
+   * @param outScores receives their cosine similarities
+   * @return the number of matches, at most {@code k}
+   */
+  int search(float[] embedding, int k, long[] outIds, float[] outScores) {
+    FaceGallery.normalize(embedding, normalized, 0);
+    if (quantizer != null) {
+      quantizer.computeScoreTable(normalized, scoreTable);
+    }
+    if (topIndices.length < k) {
+      heap = new TopKHeap(k);
+      topIndices = new int[k];
+    }
+    heap.reset(k);
+    for (int chunk = 0, start = 0; chunk < chunks.length; ++chunk, start += chunkRows) {
+      int rows = Math.min(chunkRows, baseCount - start);
+      if (quantizer == null) {
+        FloatBuffer vectors = floatChunks[chunk];
+        for (int row = 0; row < rows; ++row) {
+          heap.offer(start + row, FaceGallery.dot(normalized, vectors, row * dimension, dimension));
+        }
+      } else {
+        ByteBuffer codes = chunks[chunk];
+        for (int row = 0; row < rows; ++row) {
+          heap.offer(start + row, quantizer.score(scoreTable, codes, row * recordBytes));
+        }
+      }
+    }
+    for (int i = 0; i < tailCount; ++i) {
+      float score =
+          quantizer == null
+              ? FaceGallery.dot(normalized, 0, tailFloats, i * dimension, dimension)
+              : quantizer.score(scoreTable, tailCodes, i * recordBytes);
+      heap.offer(baseCount + i, score);
+    }
+    int count = heap.drainDescending(topIndices, outScores);
+    for (int i = 0; i < count; ++i) {
+      outIds[i] = getId(topIndices[i]);
+    }
+    return count;
+  }
+
+  /** Closes the log; the gallery can no longer be appended to. */
+  void close() throws IOException {
+    if (wal != null) {
+      wal.close();
+      wal = null;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only {@link HnswGraph} searched in place in a file written by {@link HnswIndex#save}.
+ * Opening the file maps it with {@link FileChannel#map}, like the models, instead of reading it,
+ * so it costs no heap and the pages are loaded on demand.
+ *
+ * <p>The file is little-endian: a {@value #HEADER_BYTES} byte header, the ids as longs, the
+ * normalized embeddings as floats, the layer 0 links of every node as a count and {@code 2 * M}
+ * slots, the top layer of every node and the offset of its upper links, and finally the upper
+ * links as a count and {@code M} slots per node and layer.
+ *
+ * <p>Searches are thread-safe.
+ */
+final class MappedHnswIndex extends HnswGraph {
+
+  /** "HNSW" read as a little-endian int. */
+  static final int MAGIC = 0x57534E48;
+
+  static final int VERSION = 1;
+
+  static final int HEADER_BYTES = 64;
+
+  /**
+   * Embeddings per mapped region; a single mapping cannot exceed 2 GB, which the embeddings of a
+   * million faces do.
+   */
+  private static final int VECTOR_CHUNK_ROWS = 1 << 16;
+
+  private final int size;
+  private final long entry;
+  private final LongBuffer ids;
+  private final FloatBuffer[] vectorChunks;
+  private final IntBuffer links0;
+
+  /** The top layer of every node and the offset of its upper links, in ints. */
+  private final IntBuffer levels;
+  private final IntBuffer upperLinks;
+  private final long fileBytes;
+
+  private MappedHnswIndex(
+      int dimension,
+      int maxLinks,
+      int size,
+      long entry,
+      LongBuffer ids,
+      FloatBuffer[] vectorChunks,
+      IntBuffer links0,
+      IntBuffer levels,
+      IntBuffer upperLinks,
+      long fileBytes) {
+    super(dimension, maxLinks, 2 * maxLinks);
+    this.size = size;
+    this.entry = entry;
+    this.ids = ids;
+    this.vectorChunks = vectorChunks;
+    this.links0 = links0;
+    this.levels = levels;
+    this.upperLinks = upperLinks;
+    this.fileBytes = fileBytes;
+  }
+
+  /** Maps an index file; the file must not change while the index is used. */
+  static MappedHnswIndex open(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      long fileBytes = channel.size();
+      if (fileBytes < HEADER_BYTES) {
+        throw new IOException(file + " is too short for an index");
+      }
+      ByteBuffer header = map(channel, 0, HEADER_BYTES);
+      if (header.getInt() != MAGIC) {
+        throw new IOException(file + " is not an index file");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException(file + " has version " + version + ", expected " + VERSION);
+      }
+      int dimension = header.getInt();
+      int maxLinks = header.getInt();
+      int size = header.getInt();
+      int entryNode = header.getInt();
+      int entryLevel = header.getInt();
+      int upperInts = header.getInt();
+      long entry = entryNode < 0 ? NO_ENTRY : entry(entryNode, entryLevel);
+
+      long offset = HEADER_BYTES;
+      long idBytes = (long) size * 8;
+      long vectorBytes = (long) size * dimension * 4;
+      long links0Bytes = (long) size * (2 * maxLinks + 1) * 4;
+      long levelBytes = (long) size * 8;
+      long upperBytes = (long) upperInts * 4;
+      long expected = offset + idBytes + vectorBytes + links0Bytes + levelBytes + upperBytes;
+      if (fileBytes != expected) {
+        throw new IOException(file + " has " + fileBytes + " bytes, expected " + expected);
+      }
+
+      LongBuffer ids = map(channel, offset, idBytes).asLongBuffer();
+      offset += idBytes;
+      FloatBuffer[] vectorChunks =
+          new FloatBuffer[(size + VECTOR_CHUNK_ROWS - 1) / VECTOR_CHUNK_ROWS];
+      for (int i = 0; i < vectorChunks.length; ++i) {
+        int rows = Math.min(VECTOR_CHUNK_ROWS, size - i * VECTOR_CHUNK_ROWS);
+        long bytes = (long) rows * dimension * 4;
+        vectorChunks[i] = map(channel, offset, bytes).asFloatBuffer();
+        offset += bytes;
+      }
+      IntBuffer links0 = map(channel, offset, links0Bytes).asIntBuffer();
+      offset += links0Bytes;
+      IntBuffer levels = map(channel, offset, levelBytes).asIntBuffer();
+      offset += levelBytes;
+      IntBuffer upperLinks = map(channel, offset, upperBytes).asIntBuffer();
+      return new MappedHnswIndex(
+          dimension, maxLinks, size, entry, ids, vectorChunks, links0, levels, upperLinks,
+          fileBytes);
+    } finally {
+      // The mappings stay valid after the file is closed.
+      in.close();
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long bytes) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Override
+  int size() {
+    return size;
+  }
+
+  /** Bytes of the mapped file. */
+  long getFileBytes() {
+    return fileBytes;
+  }
+
+  @Override
+  long getId(int node) {
+    return ids.get(node);
+  }
+
+  @Override
+  long getEntry() {
+    return entry;
+  }
+
+  @Override
+  float similarity(float[] query, int node) {
+    return FaceGallery.dot(
+        query,
+        vectorChunks[node / VECTOR_CHUNK_ROWS],
+        (node % VECTOR_CHUNK_ROWS) * dimension,
+        dimension);
+  }
+
+  @Override
+  int getLinks(int node, int layer, int[] dst) {
+    IntBuffer links;
+    int offset;
+    if (layer == 0) {
+      links = links0;
+      offset = node * (maxLinks0 + 1);
+    } else {
+      links = upperLinks;
+      offset = levels.get(2 * node + 1) + (layer - 1) * (maxLinks + 1);
+    }
+    int count = links.get(offset);
+    for (int i = 0; i < count; ++i) {
+      dst[i] = links.get(offset + 1 + i);
+    }
+    return count;
+  }
+}
@@ -0,0 +1,50 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+/**
+ * A bounded stack of reusable objects for the frame loop. Unlike a {@code BlockingQueue}, taking
+ * and returning objects never allocates, not even when threads contend for the pool, so the
+ * pooling needs no exemption from the {@link AllocationCheck}.
+ */
+final class ObjectPool<T> {
+
+  private final Object[] items;
+  private int size;
+
+  /** @param capacity the number of objects kept; further ones are dropped */
+  ObjectPool(int capacity) {
+    items = new Object[capacity];
+  }
+
+  /** Takes an object, or returns null if the pool is empty. */
+  @SuppressWarnings("unchecked")
+  synchronized T poll() {
+    if (size == 0) {
+      return null;
+    }
+    T item = (T) items[--size];
+    items[size] = null;
+    return item;
+  }
+
+  /** Returns an object to the pool, unless the pool is full. */
+  synchronized void offer(T item) {
+    if (size < items.length) {
+      items[size++] = item;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a processing pipeline: a bounded queue drained by a fixed number of worker
+ * threads. Each thread has its own {@link Worker}, so workers may keep state that is not
+ * thread-safe, such as a detector or an interpreter.
+ *
+ * <p>The stage counts processed and dropped items and measures how busy its threads are, which
+ * together with the queue depth shows which stage of a pipeline is the bottleneck.
+ *
+ * @param <T> the item type
+ */
+final class PipelineStage<T> {
+
+  /** Tag for the {@link Log}. */
+  private static final String TAG = "PipelineStage";
+
+  /** Processes the items taken by one worker thread. */
+  interface Worker<T> {
+    /**
+     * Processes an item; the worker owns it from now on and releases it even if processing
+     * throws. A {@link RuntimeException} only fails the item, the worker goes on with the next.
+     */
+    void process(T item) throws InterruptedException;
+
+    /** Called once on the worker thread when the stage stops. */
+    void close();
+  }
+
+  /** Creates the worker of each thread. */
+  interface WorkerFactory<T> {
+    Worker<T> createWorker(int index);
+
+    /** Releases an item that was dropped or left in the queue, without processing it. */
+    void release(T item);
+  }
+
+  private final String name;
+  private final BlockingQueue<T> queue;
+  private final WorkerFactory<T> factory;
+  private final Thread[] threads;
+
+  private final AtomicLong busyNanos = new AtomicLong();
+  private final AtomicLong processedItems = new AtomicLong();
+  private final AtomicLong droppedItems = new AtomicLong();
+  private final AtomicLong failedItems = new AtomicLong();
+  private long startTime;
+
+  /**
+   * @param name the name of the stage, used for its threads and statistics
+   * @param queueCapacity the number of items that may wait for a worker
+   * @param threadCount the number of worker threads
+   */
+  PipelineStage(String name, int queueCapacity, int threadCount, WorkerFactory<T> factory) {
+    this.name = name;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.factory = factory;
+    this.threads = new Thread[threadCount];
+  }
+
+  /** Starts the worker threads. */
+  void start() {
+    startTime = SystemClock.elapsedRealtimeNanos();
+    for (int i = 0; i < threads.length; ++i) {
+      final int index = i;
+      threads[i] =
+          new Thread(name + "-" + i) {
+            @Override
+            public void run() {
+              runWorker(index);
+            }
+          };
+      threads[i].start();
+    }
+  }
+
+  /** Stops the worker threads, waits for them and releases the queued items. */
+  void stop() {
+    for (Thread thread : threads) {
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+    for (Thread thread : threads) {
+      if (thread != null) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          Log.e(TAG, "Interrupted when stopping " + name, e);
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    T item;
+    while ((item = queue.poll()) != null) {
+      factory.release(item);
+    }
+  }
+
+  /**
+   * Queues an item without blocking. If the queue is full, its oldest item is dropped so that
+   * workers always get the most recent input.
+   */
+  void offerDropOldest(T item) {
+    while (!queue.offer(item)) {
+      T oldest = queue.poll();
+      if (oldest != null) {
+        droppedItems.incrementAndGet();
+        factory.release(oldest);
+      }
+    }
+  }
+
+  /** Queues an item, waiting while the queue is full. */
+  void put(T item) throws InterruptedException {
+    queue.put(item);
+  }
+
+  int getQueueDepth() {
+    return queue.size();
+  }
+
+  long getProcessedItems() {
+    return processedItems.get();
+  }
+
+  long getDroppedItems() {
+    return droppedItems.get();
+  }
+
+  /** Number of items whose processing threw. */
+  long getFailedItems() {
+    return failedItems.get();
+  }
+
+  /** Fraction of the time since {@link #start()} that the worker threads spent processing. */
+  float getUtilization() {
+    long elapsed = SystemClock.elapsedRealtimeNanos() - startTime;
+    if (elapsed <= 0) {
+      return 0;
+    }
+    return (float) busyNanos.get() / elapsed / threads.length;
+  }
+
+  /** Appends the statistics of the stage, e.g. {@code "detect q=1 busy=85%"}. */
+  StringBuilder appendStats(StringBuilder str) {
+    str.append(name).append(" q=").append(getQueueDepth());
+    str.append(" busy=").append(Math.round(100 * getUtilization())).append('%');
+    long dropped = getDroppedItems();
+    if (dropped > 0) {
+      str.append(" dropped=").append(dropped);
+    }
+    long failed = getFailedItems();
+    if (failed > 0) {
+      str.append(" failed=").append(failed);
+    }
+    return str;
+  }
+
+  private void runWorker(int index) {
+    Worker<T> worker = factory.createWorker(index);
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        T item = queue.take();
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+          worker.process(item);
+          processedItems.incrementAndGet();
+        } catch (RuntimeException e) {
+          // One bad item must not stop the thread and with it the whole stage.
+          failedItems.incrementAndGet();
+          Log.e(TAG, name + " failed to process an item.", e);
+        }
+        busyNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - start);
+      }
+    } catch (InterruptedException e) {
+      // Stopped.
+    } finally {
+      worker.close();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A face gallery that stores the embeddings as {@link ProductQuantizer} codes, one contiguous byte
+ * array for all of them, and scores them against a query with asymmetric distance tables.
+ *
+ * <p>If the gallery is given a float {@link MappedFaceGallery}, every embedding is also appended
+ * there, and a search may re-rank its best approximate candidates with exact cosine
+ * similarities. The codes stay in memory while the floats stay in the mapped file, apart from the
+ * few in its log, and a search only touches the pages of its candidates. Without it only the codes
+ * are kept.
+ *
+ * <p>A gallery is not thread-safe; {@link #search} reuses buffers of the gallery.
+ */
+final class PqFaceGallery {
+
+  private final ProductQuantizer quantizer;
+  private final MappedFaceGallery exact;
+  private final int codeSize;
+  private byte[] codes;
+  private long[] ids;
+  private int size = 0;
+
+  /* Search buffers. */
+  private final float[] query;
+  private final float[] normalized;
+  private final float[] scoreTable;
+  private TopKHeap heap = new TopKHeap(16);
+  private int[] candidates = new int[16];
+  private float[] candidateScores = new float[16];
+
+  /**
+   * @param quantizer a trained quantizer
+   * @param exact an empty float gallery file of the same dimension that keeps the embeddings for
+   *     re-ranking, or null
+   */
+  PqFaceGallery(ProductQuantizer quantizer, MappedFaceGallery exact) {
+    if (exact != null
+        && (exact.size() != 0
+            || exact.isQuantized()
+            || exact.getDimension() != quantizer.getDimension())) {
+      throw new IllegalArgumentException(
+          "The exact gallery has to be an empty float gallery of the quantizer's dimension");
+    }
+    this.quantizer = quantizer;
+    this.exact = exact;
+    codeSize = quantizer.getCodeSize();
+    codes = new byte[1024 * codeSize];
+    ids = new long[1024];
+    query = new float[quantizer.getDimension()];
+    normalized = new float[quantizer.getDimension()];
+    scoreTable = new float[codeSize * ProductQuantizer.CENTROIDS];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Whether {@link #search} can re-rank with exact similarities. */
+  boolean canRerank() {
+    return exact != null;
+  }
+
+  /** Bytes taken by the codes, ids and codebooks, without the exact gallery file. */
+  long getMemoryBytes() {
+    return codes.length + (long) ids.length * 8 + quantizer.getCodebookBytes();
+  }
+
+  /**
+   * Adds an embedding; it is normalized on the way in.
+   *
+   * @return the index of the embedding in the gallery
+   * @throws IOException if the embedding cannot be appended to the exact gallery; it is enrolled
+   *     all the same if it reached the log of the exact gallery, and only the compaction failed
+   */
+  int enroll(long id, float[] embedding) throws IOException {
+    FaceGallery.normalize(embedding, normalized, 0);
+    if (exact == null) {
+      return add(id);
+    }
+    try {
+      exact.append(id, normalized);
+    } finally {
+      // Keep the indices of both galleries in step.
+      if (exact.size() > size) {
+        add(id);
+      }
+    }
+    return size - 1;
+  }
+
+  /** Adds the code of {@link #normalized}; returns its index. */
+  private int add(long id) {
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, 2 * ids.length);
+      codes = Arrays.copyOf(codes, 2 * codes.length);
+    }
+    quantizer.encode(normalized, 0, codes, size * codeSize);
+    ids[size] = id;
+    return size++;
+  }
+
+  /**
+   * Finds the {@code k} embeddings most similar to {@code embedding}.
+   *
+   * @param rerank the number of approximate candidates re-ranked with exact similarities, or 0
+   *     to return approximate similarities; ignored without an exact gallery
+   * @param outIds receives the ids of the matches by decreasing similarity
+   * @param outScores receives their similarities
+   * @return the number of matches, at most {@code k}
+   */
+  int search(float[] embedding, int k, int rerank, long[] outIds, float[] outScores) {
+    FaceGallery.normalize(embedding, query, 0);
+    quantizer.computeScoreTable(query, scoreTable);
+    int candidateCount = exact != null && rerank > k ? rerank : k;
+    if (candidates.length < candidateCount) {
+      heap = new TopKHeap(candidateCount);
+      candidates = new int[candidateCount];
+      candidateScores = new float[candidateCount];
+    }
+    heap.reset(candidateCount);
+    for (int i = 0, offset = 0; i < size; ++i, offset += codeSize) {
+      heap.offer(i, quantizer.score(scoreTable, codes, offset));
+    }
+    int count = heap.drainDescending(candidates, candidateScores);
+
+    if (candidateCount > k) {
+      heap.reset(k);
+      for (int i = 0; i < count; ++i) {
+        heap.offer(candidates[i], exact.score(candidates[i], query));
+      }
+      count = heap.drainDescending(candidates, candidateScores);
+    }
+    count = Math.min(count, k);
+    for (int i = 0; i < count; ++i) {
+      outIds[i] = ids[candidates[i]];
+      outScores[i] = candidateScores[i];
+    }
+    return count;
+  }
+}
@@ -0,0 +1,248 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compresses embeddings with product quantization: the vector is split into equal subvectors,
+ * and every subvector is replaced by the index of its nearest centroid in a codebook trained with
+ * k-means for that subspace. With {@value #CENTROIDS} centroids a subvector takes one byte, so a
+ * 1024-d float embedding (4 KB) shrinks to as many bytes as there are subspaces.
+ *
+ * <p>Codes are scored against a query without decoding them: {@link #computeScoreTable} holds the
+ * dot product of every query subvector with every centroid, and the approximate similarity of a
+ * code is the sum of one table entry per subspace (asymmetric distance computation).
+ */
+final class ProductQuantizer {
+
+  /** Number of centroids per subspace, so that a code fits into a byte. */
+  static final int CENTROIDS = 256;
+
+  private final int dimension;
+  private final int subspaces;
+  private final int subDimension;
+
+  /** Centroids of all subspaces: subspace, then centroid, then component. */
+  private final float[] codebooks;
+
+  /** Squared norms of the centroids, to find the nearest one by dot products. */
+  private final float[] centroidNorms;
+
+  /**
+   * @param dimension the length of the embeddings
+   * @param subspaces the number of subvectors and code bytes; has to divide {@code dimension}
+   */
+  ProductQuantizer(int dimension, int subspaces) {
+    if (dimension % subspaces != 0) {
+      throw new IllegalArgumentException(
+          subspaces + " subspaces do not divide the dimension " + dimension);
+    }
+    this.dimension = dimension;
+    this.subspaces = subspaces;
+    this.subDimension = dimension / subspaces;
+    codebooks = new float[subspaces * CENTROIDS * subDimension];
+    centroidNorms = new float[subspaces * CENTROIDS];
+  }
+
+  int getDimension() {
+    return dimension;
+  }
+
+  /** Bytes of one code. */
+  int getCodeSize() {
+    return subspaces;
+  }
+
+  /** Bytes taken by the codebooks. */
+  long getCodebookBytes() {
+    return (long) codebooks.length * 4;
+  }
+
+  /** Writes the codebooks to {@code dst}, {@link #getCodebookBytes()} bytes. */
+  void writeCodebooks(FloatBuffer dst) {
+    dst.put(codebooks);
+  }
+
+  /** Replaces the codebooks with ones written by {@link #writeCodebooks}. */
+  void readCodebooks(FloatBuffer src) {
+    src.get(codebooks);
+    for (int m = 0; m < subspaces; ++m) {
+      updateNorms(m);
+    }
+  }
+
+  /**
+   * Trains the codebooks with k-means on every subspace.
+   *
+   * @param samples training vectors, one after the other
+   * @param count the number of training vectors, at least {@value #CENTROIDS}
+   * @param iterations the number of k-means iterations
+   */
+  void train(float[] samples, int count, int iterations, Random random) {
+    if (count < CENTROIDS) {
+      throw new IllegalArgumentException(
+          "Need at least " + CENTROIDS + " training vectors, got " + count);
+    }
+    int[] assignment = new int[count];
+    int[] clusterSizes = new int[CENTROIDS];
+    float[] sums = new float[CENTROIDS * subDimension];
+    for (int m = 0; m < subspaces; ++m) {
+      int base = m * CENTROIDS * subDimension;
+      int offset = m * subDimension;
+      // Start from distinct random samples.
+      int[] order = shuffledIndices(count, random);
+      for (int c = 0; c < CENTROIDS; ++c) {
+        System.arraycopy(
+            samples, order[c] * dimension + offset, codebooks, base + c * subDimension,
+            subDimension);
+      }
+      updateNorms(m);
+
+      for (int iteration = 0; iteration < iterations; ++iteration) {
+        for (int i = 0; i < count; ++i) {
+          assignment[i] = nearestCentroid(m, samples, i * dimension + offset);
+        }
+        Arrays.fill(sums, 0);
+        Arrays.fill(clusterSizes, 0);
+        for (int i = 0; i < count; ++i) {
+          int c = assignment[i];
+          ++clusterSizes[c];
+          int src = i * dimension + offset;
+          int dst = c * subDimension;
+          for (int j = 0; j < subDimension; ++j) {
+            sums[dst + j] += samples[src + j];
+          }
+        }
+        for (int c = 0; c < CENTROIDS; ++c) {
+          int dst = base + c * subDimension;
+          if (clusterSizes[c] == 0) {
+            // Reseed an empty cluster with a random sample.
+            System.arraycopy(
+                samples, random.nextInt(count) * dimension + offset, codebooks, dst,
+                subDimension);
+            continue;
+          }
+          float scale = 1f / clusterSizes[c];
+          for (int j = 0; j < subDimension; ++j) {
+            codebooks[dst + j] = sums[c * subDimension + j] * scale;
+          }
+        }
+        updateNorms(m);
+      }
+    }
+  }
+
+  /** Writes the code of {@code vector} from {@code vectorOffset} into {@code codes}. */
+  void encode(float[] vector, int vectorOffset, byte[] codes, int codeOffset) {
+    for (int m = 0; m < subspaces; ++m) {
+      codes[codeOffset + m] = (byte) nearestCentroid(m, vector, vectorOffset + m * subDimension);
+    }
+  }
+
+  /**
+   * Fills {@code table} with the dot products of the query subvectors with all centroids; it needs
+   * {@code getCodeSize() * CENTROIDS} entries.
+   */
+  void computeScoreTable(float[] query, float[] table) {
+    for (int m = 0; m < subspaces; ++m) {
+      int base = m * CENTROIDS;
+      for (int c = 0; c < CENTROIDS; ++c) {
+        table[base + c] =
+            FaceGallery.dot(
+                query, m * subDimension, codebooks, (base + c) * subDimension, subDimension);
+      }
+    }
+  }
+
+  /** Approximate dot product of the query of {@code table} with the code at {@code offset}. */
+  float score(float[] table, byte[] codes, int offset) {
+    float s0 = 0;
+    float s1 = 0;
+    float s2 = 0;
+    float s3 = 0;
+    int m = 0;
+    for (; m + 3 < subspaces; m += 4) {
+      s0 += table[m * CENTROIDS + (codes[offset + m] & 0xFF)];
+      s1 += table[(m + 1) * CENTROIDS + (codes[offset + m + 1] & 0xFF)];
+      s2 += table[(m + 2) * CENTROIDS + (codes[offset + m + 2] & 0xFF)];
+      s3 += table[(m + 3) * CENTROIDS + (codes[offset + m + 3] & 0xFF)];
+    }
+    for (; m < subspaces; ++m) {
+      s0 += table[m * CENTROIDS + (codes[offset + m] & 0xFF)];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /** {@link #score(float[], byte[], int)} of a code in a mapped buffer. */
+  float score(float[] table, ByteBuffer codes, int offset) {
+    float s0 = 0;
+    float s1 = 0;
+    int m = 0;
+    for (; m + 1 < subspaces; m += 2) {
+      s0 += table[m * CENTROIDS + (codes.get(offset + m) & 0xFF)];
+      s1 += table[(m + 1) * CENTROIDS + (codes.get(offset + m + 1) & 0xFF)];
+    }
+    for (; m < subspaces; ++m) {
+      s0 += table[m * CENTROIDS + (codes.get(offset + m) & 0xFF)];
+    }
+    return s0 + s1;
+  }
+
+  /** Index of the centroid of subspace {@code m} nearest to the subvector at {@code offset}. */
+  private int nearestCentroid(int m, float[] vector, int offset) {
+    int best = 0;
+    float bestDistance = Float.POSITIVE_INFINITY;
+    int base = m * CENTROIDS;
+    for (int c = 0; c < CENTROIDS; ++c) {
+      // |x - c|^2 - |x|^2 = |c|^2 - 2 x.c
+      float distance =
+          centroidNorms[base + c]
+              - 2 * FaceGallery.dot(codebooks, (base + c) * subDimension, vector, offset,
+                  subDimension);
+      if (distance < bestDistance) {
+        bestDistance = distance;
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  private void updateNorms(int m) {
+    int base = m * CENTROIDS;
+    for (int c = 0; c < CENTROIDS; ++c) {
+      int offset = (base + c) * subDimension;
+      centroidNorms[base + c] = FaceGallery.dot(codebooks, offset, codebooks, offset, subDimension);
+    }
+  }
+
+  private static int[] shuffledIndices(int count, Random random) {
+    int[] order = new int[count];
+    for (int i = 0; i < count; ++i) {
+      order[i] = i;
+    }
+    for (int i = count - 1; i > 0; --i) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+    return order;
+  }
+}
@@ -0,0 +1,268 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.util.Arrays;
+
+/**
+ * Runs a cascade only around the faces of the previous frame, since faces rarely move far between
+ * frames. The whole frame is scanned every {@code fullScanInterval} frames, when the frame changed
+ * noticeably outside of the known faces, or when there is no previous frame, so that faces that
+ * enter the frame are found too.
+ *
+ * <p>Boxes are kept as x, y, width and height in pooled {@code int} arrays that only grow when a
+ * frame has more faces than any frame before it, so detection allocates nothing per frame.
+ *
+ * <p>Not thread-safe; every detection thread uses its own detector and follows the faces of the
+ * frames it processes.
+ */
+final class RoiFaceDetector {
+
+  /** Margin around a previous face that is searched, relative to the face size on every side. */
+  private static final double ROI_MARGIN = 0.5;
+
+  /** Size of the thumbnails compared to detect motion. */
+  private static final Size MOTION_THUMBNAIL_SIZE = new Size(32, 24);
+
+  /** Change of a thumbnail pixel in gray levels that counts as motion. */
+  private static final double MOTION_THRESHOLD = 24;
+
+  /** Number of faces the pools hold initially. */
+  private static final int INITIAL_FACES = 8;
+
+  private static final Scalar ZERO = new Scalar(0);
+
+  private final CascadeClassifier detector;
+  private final int fullScanInterval;
+
+  private final MatOfRect detections = new MatOfRect();
+  private final Mat thumbnail = new Mat();
+  private final Mat previousThumbnail = new Mat();
+  private final Mat difference = new Mat();
+  private final Mat roi = new Mat();
+  private final Size maxSize = new Size();
+  private final Size roiSize = new Size();
+  private final Point roiCenter = new Point();
+  private final Point topLeft = new Point();
+  private final Point bottomRight = new Point();
+
+  /* x, y, width and height of every box. */
+  private int[] faces = new int[4 * INITIAL_FACES];
+  private int[] previousFaces = new int[4 * INITIAL_FACES];
+  private int[] detected = new int[4 * INITIAL_FACES];
+
+  /* Left, top, right and bottom of every region. */
+  private int[] regions = new int[4 * INITIAL_FACES];
+
+  private int faceCount;
+  private int previousCount;
+  private int regionCount;
+  private int previousWidth;
+  private int previousHeight;
+  private int framesSinceFullScan;
+  private boolean lastScanFull;
+
+  /**
+   * @param fullScanInterval the whole frame is scanned at least every this many frames; 1 scans
+   *     every frame
+   */
+  RoiFaceDetector(CascadeClassifier detector, int fullScanInterval) {
+    this.detector = detector;
+    this.fullScanInterval = Math.max(1, fullScanInterval);
+  }
+
+  /**
+   * Finds the faces of a frame.
+   *
+   * @param gray the gray frame
+   * @param minSize the smallest face in pixels of {@code gray}
+   * @return the number of faces, whose boxes are in {@link #getFaces()}
+   */
+  int detect(Mat gray, Size minSize) {
+    // The faces of the last frame become the previous ones, and their array is reused.
+    int[] swap = previousFaces;
+    previousFaces = faces;
+    faces = swap;
+    previousCount = faceCount;
+    faceCount = 0;
+
+    boolean sameSize = gray.cols() == previousWidth && gray.rows() == previousHeight;
+    boolean moved = detectMotion(gray, sameSize);
+    lastScanFull = !sameSize || moved || ++framesSinceFullScan >= fullScanInterval;
+    if (lastScanFull) {
+      detector.detectMultiScale(gray, detections, 1.1, 2, 2, minSize, maxSize);
+      addDetections(0, 0);
+      framesSinceFullScan = 0;
+    } else {
+      detectInRegions(gray, minSize);
+    }
+    previousWidth = gray.cols();
+    previousHeight = gray.rows();
+    return faceCount;
+  }
+
+  /**
+   * x, y, width and height of every face found by the last {@link #detect} call, one after
+   * another. The array is reused by later calls.
+   */
+  int[] getFaces() {
+    return faces;
+  }
+
+  /** Whether the last {@link #detect} call scanned the whole frame. */
+  boolean wasFullScan() {
+    return lastScanFull;
+  }
+
+  /**
+   * Compares a thumbnail of the frame with the one of the previous frame. The known faces are
+   * blanked out first, so that faces that move or talk do not trigger full scans.
+   */
+  private boolean detectMotion(Mat gray, boolean sameSize) {
+    Imgproc.resize(gray, thumbnail, MOTION_THUMBNAIL_SIZE, 0, 0, Imgproc.INTER_AREA);
+    boolean moved = false;
+    if (sameSize && !previousThumbnail.empty()) {
+      Core.absdiff(thumbnail, previousThumbnail, difference);
+      double sx = MOTION_THUMBNAIL_SIZE.width / gray.cols();
+      double sy = MOTION_THUMBNAIL_SIZE.height / gray.rows();
+      for (int i = 0; i < previousCount; ++i) {
+        int x = (int) Math.floor(previousFaces[4 * i] * sx);
+        int y = (int) Math.floor(previousFaces[4 * i + 1] * sy);
+        // The rectangle is clipped to the image and includes its bottom right corner.
+        topLeft.x = x;
+        topLeft.y = y;
+        bottomRight.x = x + (int) Math.ceil(previousFaces[4 * i + 2] * sx);
+        bottomRight.y = y + (int) Math.ceil(previousFaces[4 * i + 3] * sy);
+        Imgproc.rectangle(difference, topLeft, bottomRight, ZERO, Core.FILLED);
+      }
+      // Unlike minMaxLoc, threshold and countNonZero return no result object.
+      Imgproc.threshold(difference, difference, MOTION_THRESHOLD, 255, Imgproc.THRESH_BINARY);
+      moved = Core.countNonZero(difference) > 0;
+    }
+    thumbnail.copyTo(previousThumbnail);
+    return moved;
+  }
+
+  /** Scans the expanded, merged boxes of the previous faces. */
+  private void detectInRegions(Mat gray, Size minSize) {
+    regionCount = 0;
+    for (int i = 0; i < previousCount; ++i) {
+      int width = previousFaces[4 * i + 2];
+      int height = previousFaces[4 * i + 3];
+      int dw = (int) (width * ROI_MARGIN);
+      int dh = (int) (height * ROI_MARGIN);
+      int left = Math.max(previousFaces[4 * i] - dw, 0);
+      int top = Math.max(previousFaces[4 * i + 1] - dh, 0);
+      int right = Math.min(previousFaces[4 * i] + width + dw, gray.cols());
+      int bottom = Math.min(previousFaces[4 * i + 1] + height + dh, gray.rows());
+      if (left < right && top < bottom) {
+        addMerged(left, top, right, bottom);
+      }
+    }
+    for (int r = 0; r < regionCount; ++r) {
+      int x = regions[4 * r];
+      int y = regions[4 * r + 1];
+      int width = regions[4 * r + 2] - x;
+      int height = regions[4 * r + 3] - y;
+      if (width < minSize.width || height < minSize.height) {
+        continue;
+      }
+      // A copy of the region instead of a submat, which would allocate a Mat per region.
+      roiSize.width = width;
+      roiSize.height = height;
+      roiCenter.x = x + (width - 1) * 0.5;
+      roiCenter.y = y + (height - 1) * 0.5;
+      Imgproc.getRectSubPix(gray, roiSize, roiCenter, roi);
+      detector.detectMultiScale(roi, detections, 1.1, 2, 2, minSize, maxSize);
+      addDetections(x, y);
+    }
+  }
+
+  /** Appends the boxes in {@link #detections}, moved by {@code dx} and {@code dy}. */
+  private void addDetections(int dx, int dy) {
+    int count = detections.rows();
+    if (count == 0) {
+      return;
+    }
+    detected = reserve(detected, count);
+    detections.get(0, 0, detected);
+    if (faces.length < 4 * (faceCount + count)) {
+      faces = reserve(faces, faceCount + count);
+      // The two arrays take turns, so they grow together; the previous faces are read already.
+      previousFaces = new int[faces.length];
+    }
+    for (int i = 0; i < count; ++i) {
+      int face = 4 * (faceCount + i);
+      faces[face] = detected[4 * i] + dx;
+      faces[face + 1] = detected[4 * i + 1] + dy;
+      faces[face + 2] = detected[4 * i + 2];
+      faces[face + 3] = detected[4 * i + 3];
+    }
+    faceCount += count;
+  }
+
+  /** Adds a region, merging it with every region it overlaps, so no face is found twice. */
+  private void addMerged(int left, int top, int right, int bottom) {
+    for (int i = regionCount - 1; i >= 0; --i) {
+      int other = 4 * i;
+      if (left < regions[other + 2]
+          && regions[other] < right
+          && top < regions[other + 3]
+          && regions[other + 1] < bottom) {
+        left = Math.min(left, regions[other]);
+        top = Math.min(top, regions[other + 1]);
+        right = Math.max(right, regions[other + 2]);
+        bottom = Math.max(bottom, regions[other + 3]);
+        // The last region takes the place of the merged one.
+        --regionCount;
+        System.arraycopy(regions, 4 * regionCount, regions, other, 4);
+        // The grown region may now overlap regions that were checked already.
+        i = regionCount;
+      }
+    }
+    regions = reserve(regions, regionCount + 1);
+    int region = 4 * regionCount++;
+    regions[region] = left;
+    regions[region + 1] = top;
+    regions[region + 2] = right;
+    regions[region + 3] = bottom;
+  }
+
+  /** Returns {@code boxes} or a copy of it grown to hold at least {@code count} boxes. */
+  private static int[] reserve(int[] boxes, int count) {
+    if (boxes.length >= 4 * count) {
+      return boxes;
+    }
+    return Arrays.copyOf(boxes, Math.max(4 * count, 2 * boxes.length));
+  }
+
+  void release() {
+    detections.release();
+    thumbnail.release();
+    previousThumbnail.release();
+    difference.release();
+    roi.release();
+  }
+}
@@ -0,0 +1,90 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Draws cartoon faces that the LBP frontal face cascade detects, for benchmarks and tests that
+ * need faces without shipping photos of people: a bright oval with dark eyes, brows and mouth on
+ * a darker background, slightly blurred like a camera image.
+ */
+final class SyntheticFace {
+
+  private SyntheticFace() {}
+
+  /**
+   * Draws a face into the square of side {@code size} at {@code x}, {@code y} of an 8-bit
+   * gray image, over whatever the square held.
+   *
+   * @param skin the gray level of the face, e.g. 190; the background of the square is 120 darker
+   */
+  static void draw(Mat gray, int x, int y, int size, int skin) {
+    Mat square = gray.submat(new Rect(x, y, size, size));
+    double s = size;
+    square.setTo(new Scalar(Math.max(skin - 120, 0)));
+    Imgproc.ellipse(
+        square,
+        new Point(s / 2, s / 2),
+        new Size(s * 0.32, s * 0.42),
+        0,
+        0,
+        360,
+        new Scalar(skin),
+        -1);
+    Scalar dark = new Scalar(Math.max(skin - 150, 0));
+    int thickness = Math.max(1, size / 40);
+    for (int side = -1; side <= 1; side += 2) {
+      Imgproc.ellipse(
+          square,
+          new Point(s / 2 + side * s * 0.13, s * 0.40),
+          new Size(s * 0.07, s * 0.035),
+          0,
+          0,
+          360,
+          dark,
+          -1);
+      Imgproc.line(
+          square,
+          new Point(s / 2 + side * s * 0.06, s * 0.33),
+          new Point(s / 2 + side * s * 0.22, s * 0.32),
+          new Scalar(Math.max(skin - 130, 0)),
+          thickness);
+    }
+    Imgproc.line(
+        square,
+        new Point(s / 2, s * 0.45),
+        new Point(s / 2, s * 0.58),
+        new Scalar(Math.max(skin - 50, 0)),
+        Math.max(1, size / 50));
+    Imgproc.ellipse(
+        square,
+        new Point(s / 2, s * 0.70),
+        new Size(s * 0.12, s * 0.035),
+        0,
+        0,
+        360,
+        new Scalar(Math.max(skin - 130, 0)),
+        -1);
+    Imgproc.GaussianBlur(square, square, new Size(0, 0), s / 80 + 0.5);
+    square.release();
+  }
+}
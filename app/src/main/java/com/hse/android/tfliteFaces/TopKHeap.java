@@ -0,0 +1,108 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+/**
+ * Keeps the {@code k} highest scoring entries seen so far in a min-heap of primitive arrays, so
+ * that a search over many candidates neither boxes scores nor allocates. The heap can be reused
+ * for any number of searches with at most the capacity it was created with.
+ */
+final class TopKHeap {
+
+  private final float[] scores;
+  private final int[] indices;
+  private int k;
+  private int size;
+
+  TopKHeap(int capacity) {
+    scores = new float[capacity];
+    indices = new int[capacity];
+  }
+
+  /** Empties the heap and sets how many entries it keeps, at most its capacity. */
+  void reset(int k) {
+    this.k = Math.min(k, scores.length);
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** The lowest score kept, which a candidate has to beat once the heap is full. */
+  float threshold() {
+    return size < k ? Float.NEGATIVE_INFINITY : scores[0];
+  }
+
+  /** Offers a candidate; it is kept if the heap is not full or it beats the lowest score. */
+  void offer(int index, float score) {
+    if (size < k) {
+      int pos = size++;
+      while (pos > 0) {
+        int parent = (pos - 1) >> 1;
+        if (scores[parent] <= score) {
+          break;
+        }
+        scores[pos] = scores[parent];
+        indices[pos] = indices[parent];
+        pos = parent;
+      }
+      scores[pos] = score;
+      indices[pos] = index;
+    } else if (k > 0 && score > scores[0]) {
+      siftDown(index, score);
+    }
+  }
+
+  /**
+   * Moves the entries into {@code outIndices} and {@code outScores} by decreasing score and
+   * empties the heap.
+   *
+   * @return the number of entries written
+   */
+  int drainDescending(int[] outIndices, float[] outScores) {
+    int count = size;
+    for (int i = count - 1; i >= 0; --i) {
+      outIndices[i] = indices[0];
+      outScores[i] = scores[0];
+      --size;
+      if (size > 0) {
+        siftDown(indices[size], scores[size]);
+      }
+    }
+    return count;
+  }
+
+  /** Replaces the root with the given entry and restores the heap order. */
+  private void siftDown(int index, float score) {
+    int pos = 0;
+    int half = size >> 1;
+    while (pos < half) {
+      int child = 2 * pos + 1;
+      if (child + 1 < size && scores[child + 1] < scores[child]) {
+        ++child;
+      }
+      if (score <= scores[child]) {
+        break;
+      }
+      scores[pos] = scores[child];
+      indices[pos] = indices[child];
+      pos = child;
+    }
+    scores[pos] = score;
+    indices[pos] = index;
+  }
+}
@@ -0,0 +1,433 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Counts the unique people seen by clustering the face embeddings online: every cluster is one
+ * visitor, so a face seen in hundreds of frames counts once.
+ *
+ * <p>An embedding joins the most similar cluster if its cosine similarity to the cluster centroid
+ * reaches the match threshold, moving the centroid towards it, and starts a new cluster
+ * otherwise. After a centroid moved it is merged with a cluster it came close to, which undoes
+ * counting one person twice. Clusters not seen for the timeout are forgotten, and so are the least
+ * recently seen ones when the maximum number of clusters is reached.
+ *
+ * <p>All storage is allocated up front for the maximum number of clusters, a centroid and a few
+ * counters each. Similar clusters are found through random hyperplane hash tables, probing the
+ * bucket of the embedding and its neighbors at one bit distance in every table, so that an
+ * embedding is compared with a small part of the clusters only. An embedding of a tracked face
+ * is first compared with the cluster its track joined before, and needs no hash lookup if it
+ * still matches.
+ */
+final class VisitorCounter {
+
+  /** Cosine similarity at which an embedding joins a cluster. */
+  static final float DEFAULT_MATCH_THRESHOLD = 0.75f;
+
+  /** Cosine similarity at which two clusters are merged. */
+  static final float DEFAULT_MERGE_THRESHOLD = 0.85f;
+
+  /** Time after which a cluster that is not seen is forgotten, in milliseconds. */
+  static final long DEFAULT_TIMEOUT_MS = 5 * 60 * 1000;
+
+  /** Number of clusters kept at most. */
+  static final int DEFAULT_MAX_CLUSTERS = 1024;
+
+  /** Number of hash tables, and of hyperplanes per table. */
+  private static final int HASH_TABLES = 8;
+  private static final int HASH_BITS = 8;
+
+  /**
+   * Number of embeddings after which a centroid moves by a fixed fraction, so that it follows
+   * slow changes of the face instead of freezing.
+   */
+  private static final int MAX_CENTROID_WEIGHT = 20;
+
+  private final int dimension;
+  private final int maxClusters;
+  private final float matchThreshold;
+  private final float mergeThreshold;
+  private final long timeoutMs;
+
+  /** Random hyperplanes, {@link #HASH_BITS} per table. */
+  private final float[] hyperplanes;
+
+  /* Clusters by slot. */
+  private final float[] centroids;
+  private final int[] counts;
+  private final long[] lastSeen;
+  private final long[] visitorIds;
+  private final int[] lastTrack;
+  private final int[] hashKeys;
+
+  /** First slot of every hash bucket, and the next slot of every slot in each table. */
+  private final int[] bucketHeads;
+  private final int[] bucketNext;
+
+  /** Clusters from the most to the least recently seen. */
+  private final int[] newer;
+  private final int[] older;
+  private int newest = -1;
+  private int oldest = -1;
+
+  private final int[] freeSlots;
+  private int freeCount;
+
+  /**
+   * The cluster slot of every track that joined a cluster; at most one track per cluster, so it
+   * is sized for all clusters up front and never grows.
+   */
+  private final SparseIntArray trackSlots;
+
+  /* Search buffers. */
+  private final float[] query;
+  private final int[] queryKeys = new int[HASH_TABLES];
+  private final int[] visited;
+  private int epoch = 0;
+  private float bestScore;
+
+  private long nextVisitorId = 1;
+  private long mergedClusters = 0;
+  private long expiredClusters = 0;
+
+  /** Creates a counter with the default thresholds, timeout and capacity. */
+  VisitorCounter(int dimension) {
+    this(
+        dimension,
+        DEFAULT_MAX_CLUSTERS,
+        DEFAULT_MATCH_THRESHOLD,
+        DEFAULT_MERGE_THRESHOLD,
+        DEFAULT_TIMEOUT_MS);
+  }
+
+  VisitorCounter(
+      int dimension,
+      int maxClusters,
+      float matchThreshold,
+      float mergeThreshold,
+      long timeoutMs) {
+    this.dimension = dimension;
+    this.maxClusters = maxClusters;
+    this.matchThreshold = matchThreshold;
+    this.mergeThreshold = mergeThreshold;
+    this.timeoutMs = timeoutMs;
+    hyperplanes = new float[HASH_TABLES * HASH_BITS * dimension];
+    Random random = new Random(42);
+    for (int i = 0; i < hyperplanes.length; ++i) {
+      hyperplanes[i] = (float) random.nextGaussian();
+    }
+    centroids = new float[maxClusters * dimension];
+    counts = new int[maxClusters];
+    lastSeen = new long[maxClusters];
+    visitorIds = new long[maxClusters];
+    lastTrack = new int[maxClusters];
+    hashKeys = new int[maxClusters * HASH_TABLES];
+    bucketHeads = new int[HASH_TABLES << HASH_BITS];
+    Arrays.fill(bucketHeads, -1);
+    bucketNext = new int[maxClusters * HASH_TABLES];
+    newer = new int[maxClusters];
+    older = new int[maxClusters];
+    freeSlots = new int[maxClusters];
+    for (int i = 0; i < maxClusters; ++i) {
+      freeSlots[i] = maxClusters - 1 - i;
+    }
+    freeCount = maxClusters;
+    query = new float[dimension];
+    visited = new int[maxClusters];
+    trackSlots = new SparseIntArray(maxClusters);
+  }
+
+  /**
+   * Adds the embedding of a face to the clusters.
+   *
+   * @param trackId the track of the face, or -1 if it is not tracked
+   * @param timeMs the time the face was seen, in milliseconds of a monotonic clock
+   * @return the visitor id of the face
+   */
+  synchronized long observe(int trackId, float[] embedding, long timeMs) {
+    expire(timeMs);
+    FaceGallery.normalize(embedding, query, 0);
+
+    int slot = -1;
+    if (trackId >= 0) {
+      int trackSlot = trackSlots.get(trackId, -1);
+      if (trackSlot >= 0
+          && lastTrack[trackSlot] == trackId
+          && FaceGallery.dot(query, centroids, trackSlot * dimension, dimension)
+              >= matchThreshold) {
+        slot = trackSlot;
+      }
+    }
+    if (slot < 0) {
+      computeKeys(query, 0, queryKeys, 0);
+      slot = findMostSimilar(query, 0, queryKeys, 0, -1, matchThreshold);
+    }
+    if (slot < 0) {
+      slot = addCluster(timeMs);
+    } else {
+      updateCluster(slot, timeMs);
+      slot = mergeSimilar(slot);
+    }
+    if (trackId >= 0) {
+      assignTrack(slot, trackId);
+    }
+    return visitorIds[slot];
+  }
+
+  /** Number of distinct visitors seen, including the forgotten ones. */
+  synchronized long getUniqueVisitors() {
+    return nextVisitorId - 1 - mergedClusters;
+  }
+
+  /** Number of clusters currently kept. */
+  synchronized int getActiveClusters() {
+    return maxClusters - freeCount;
+  }
+
+  /** Appends the number of visitors, active clusters and forgotten clusters. */
+  synchronized StringBuilder appendStats(StringBuilder str) {
+    return str.append("visitors=")
+        .append(nextVisitorId - 1 - mergedClusters)
+        .append(" active=")
+        .append(maxClusters - freeCount)
+        .append(" expired=")
+        .append(expiredClusters);
+  }
+
+  /** Forgets the clusters that have not been seen within the timeout. */
+  private void expire(long timeMs) {
+    while (oldest >= 0 && timeMs - lastSeen[oldest] > timeoutMs) {
+      removeCluster(oldest);
+      ++expiredClusters;
+    }
+  }
+
+  /** Starts a cluster at {@link #query}, whose hash keys are in {@link #queryKeys}. */
+  private int addCluster(long timeMs) {
+    if (freeCount == 0) {
+      // Full: forget the least recently seen visitor.
+      removeCluster(oldest);
+      ++expiredClusters;
+    }
+    int slot = freeSlots[--freeCount];
+    System.arraycopy(query, 0, centroids, slot * dimension, dimension);
+    counts[slot] = 1;
+    lastSeen[slot] = timeMs;
+    visitorIds[slot] = nextVisitorId++;
+    lastTrack[slot] = -1;
+    System.arraycopy(queryKeys, 0, hashKeys, slot * HASH_TABLES, HASH_TABLES);
+    addToBuckets(slot);
+    linkNewest(slot);
+    return slot;
+  }
+
+  /** Moves the centroid of {@code slot} towards {@link #query} and rehashes it. */
+  private void updateCluster(int slot, long timeMs) {
+    int weight = Math.min(++counts[slot], MAX_CENTROID_WEIGHT);
+    float rate = 1f / weight;
+    int offset = slot * dimension;
+    for (int i = 0; i < dimension; ++i) {
+      centroids[offset + i] += rate * (query[i] - centroids[offset + i]);
+    }
+    renormalize(offset);
+    rehash(slot);
+    lastSeen[slot] = timeMs;
+    unlink(slot);
+    linkNewest(slot);
+  }
+
+  /**
+   * Merges the cluster at {@code slot} with the most similar cluster above the merge threshold,
+   * if any. The newer of the two visitors is merged into the older one.
+   *
+   * @return the slot of the merged cluster
+   */
+  private int mergeSimilar(int slot) {
+    int other =
+        findMostSimilar(
+            centroids, slot * dimension, hashKeys, slot * HASH_TABLES, slot, mergeThreshold);
+    if (other < 0) {
+      return slot;
+    }
+    int survivor = visitorIds[other] < visitorIds[slot] ? other : slot;
+    int merged = survivor == slot ? other : slot;
+    int survivorOffset = survivor * dimension;
+    int mergedOffset = merged * dimension;
+    float survivorWeight = Math.min(counts[survivor], MAX_CENTROID_WEIGHT);
+    float mergedWeight = Math.min(counts[merged], MAX_CENTROID_WEIGHT);
+    for (int i = 0; i < dimension; ++i) {
+      centroids[survivorOffset + i] =
+          survivorWeight * centroids[survivorOffset + i] + mergedWeight * centroids[mergedOffset + i];
+    }
+    renormalize(survivorOffset);
+    counts[survivor] += counts[merged];
+    lastSeen[survivor] = Math.max(lastSeen[survivor], lastSeen[merged]);
+    removeCluster(merged);
+    ++mergedClusters;
+    rehash(survivor);
+    unlink(survivor);
+    linkNewest(survivor);
+    return survivor;
+  }
+
+  /**
+   * The cluster most similar to the vector at {@code offset} among those sharing a hash bucket
+   * with it or a bucket at one bit distance, or -1 if none reaches {@code threshold}.
+   */
+  private int findMostSimilar(
+      float[] vector, int offset, int[] keys, int keyOffset, int excluded, float threshold) {
+    if (++epoch == 0) {
+      Arrays.fill(visited, 0);
+      epoch = 1;
+    }
+    int best = -1;
+    bestScore = threshold;
+    for (int table = 0; table < HASH_TABLES; ++table) {
+      int key = keys[keyOffset + table];
+      best = scanBucket(vector, offset, table, key, excluded, best);
+      for (int bit = 0; bit < HASH_BITS; ++bit) {
+        best = scanBucket(vector, offset, table, key ^ (1 << bit), excluded, best);
+      }
+    }
+    return best;
+  }
+
+  private int scanBucket(
+      float[] vector, int offset, int table, int key, int excluded, int best) {
+    for (int slot = bucketHeads[(table << HASH_BITS) | key];
+        slot >= 0;
+        slot = bucketNext[slot * HASH_TABLES + table]) {
+      if (visited[slot] == epoch || slot == excluded) {
+        continue;
+      }
+      visited[slot] = epoch;
+      float score = FaceGallery.dot(vector, offset, centroids, slot * dimension, dimension);
+      if (score >= bestScore) {
+        bestScore = score;
+        best = slot;
+      }
+    }
+    return best;
+  }
+
+  /** Writes the hash key of the vector at {@code offset} for every table into {@code keys}. */
+  private void computeKeys(float[] vector, int offset, int[] keys, int keyOffset) {
+    for (int table = 0; table < HASH_TABLES; ++table) {
+      int key = 0;
+      for (int bit = 0; bit < HASH_BITS; ++bit) {
+        int plane = (table * HASH_BITS + bit) * dimension;
+        if (FaceGallery.dot(vector, offset, hyperplanes, plane, dimension) > 0) {
+          key |= 1 << bit;
+        }
+      }
+      keys[keyOffset + table] = key;
+    }
+  }
+
+  /** Moves a cluster whose centroid changed to the buckets of its new hash keys. */
+  private void rehash(int slot) {
+    removeFromBuckets(slot);
+    computeKeys(centroids, slot * dimension, hashKeys, slot * HASH_TABLES);
+    addToBuckets(slot);
+  }
+
+  private void addToBuckets(int slot) {
+    for (int table = 0; table < HASH_TABLES; ++table) {
+      int bucket = (table << HASH_BITS) | hashKeys[slot * HASH_TABLES + table];
+      bucketNext[slot * HASH_TABLES + table] = bucketHeads[bucket];
+      bucketHeads[bucket] = slot;
+    }
+  }
+
+  private void removeFromBuckets(int slot) {
+    for (int table = 0; table < HASH_TABLES; ++table) {
+      int bucket = (table << HASH_BITS) | hashKeys[slot * HASH_TABLES + table];
+      int next = bucketNext[slot * HASH_TABLES + table];
+      if (bucketHeads[bucket] == slot) {
+        bucketHeads[bucket] = next;
+        continue;
+      }
+      int previous = bucketHeads[bucket];
+      while (bucketNext[previous * HASH_TABLES + table] != slot) {
+        previous = bucketNext[previous * HASH_TABLES + table];
+      }
+      bucketNext[previous * HASH_TABLES + table] = next;
+    }
+  }
+
+  private void removeCluster(int slot) {
+    removeFromBuckets(slot);
+    unlink(slot);
+    int track = lastTrack[slot];
+    if (track >= 0 && trackSlots.get(track, -1) == slot) {
+      trackSlots.delete(track);
+    }
+    freeSlots[freeCount++] = slot;
+  }
+
+  /**
+   * Remembers that {@code trackId} joined the cluster at {@code slot}. A cluster remembers only
+   * its latest track, so that the track map stays as small as the clusters.
+   */
+  private void assignTrack(int slot, int trackId) {
+    int previous = lastTrack[slot];
+    if (previous == trackId) {
+      return;
+    }
+    if (previous >= 0 && trackSlots.get(previous, -1) == slot) {
+      trackSlots.delete(previous);
+    }
+    trackSlots.put(trackId, slot);
+    lastTrack[slot] = trackId;
+  }
+
+  private void linkNewest(int slot) {
+    newer[slot] = -1;
+    older[slot] = newest;
+    if (newest >= 0) {
+      newer[newest] = slot;
+    } else {
+      oldest = slot;
+    }
+    newest = slot;
+  }
+
+  private void unlink(int slot) {
+    if (newer[slot] >= 0) {
+      older[newer[slot]] = older[slot];
+    } else {
+      newest = older[slot];
+    }
+    if (older[slot] >= 0) {
+      newer[older[slot]] = newer[slot];
+    } else {
+      oldest = newer[slot];
+    }
+  }
+
+  private void renormalize(int offset) {
+    float sum = FaceGallery.dot(centroids, offset, centroids, offset, dimension);
+    float scale = sum > 0 ? 1 / (float) Math.sqrt(sum) : 0;
+    for (int i = 0; i < dimension; ++i) {
+      centroids[offset + i] *= scale;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The planes of a {@code YUV_420_888} frame: a copy of a camera {@link Image} or buffers in
+ * memory, such as a synthetic frame. Fetching the planes of an image allocates, as {@link
+ * Image#getPlanes()} returns a new array on every call, so it is done once when the image is
+ * copied, on the thread that receives the images, and the frame loop only reads the fields.
+ */
+final class YuvFrame {
+
+  ByteBuffer yBuffer;
+  ByteBuffer uBuffer;
+  ByteBuffer vBuffer;
+  int yRowStride;
+  int yPixelStride;
+  int uvRowStride;
+  int uvPixelStride;
+  int width;
+  int height;
+
+  /** Whether the frame belongs to a pool that gets it back once it is processed. */
+  final boolean pooled;
+
+  /* The copies of the planes of the last image, which grow to the largest image. */
+  private ByteBuffer yCopy;
+  private ByteBuffer uCopy;
+  private ByteBuffer vCopy;
+
+  YuvFrame() {
+    this(false);
+  }
+
+  YuvFrame(boolean pooled) {
+    this.pooled = pooled;
+  }
+
+  /**
+   * Copies the planes of a camera image into the frame, so that the caller can close the image
+   * right away and the camera does not run out of images while frames wait in the pipeline.
+   */
+  void copyImage(Image image) {
+    Image.Plane[] planes = image.getPlanes();
+    yCopy = copyPlane(planes[0].getBuffer(), yCopy);
+    uCopy = copyPlane(planes[1].getBuffer(), uCopy);
+    vCopy = copyPlane(planes[2].getBuffer(), vCopy);
+    setPlanes(
+        yCopy,
+        uCopy,
+        vCopy,
+        planes[0].getRowStride(),
+        planes[0].getPixelStride(),
+        planes[1].getRowStride(),
+        planes[1].getPixelStride(),
+        image.getWidth(),
+        image.getHeight());
+  }
+
+  /** Copies {@code src} into {@code dst}, or into a new buffer if it is too small. */
+  private static ByteBuffer copyPlane(ByteBuffer src, ByteBuffer dst) {
+    if (dst == null || dst.capacity() < src.remaining()) {
+      dst = ByteBuffer.allocateDirect(src.remaining());
+    }
+    dst.clear();
+    dst.put(src);
+    dst.flip();
+    return dst;
+  }
+
+  /** Points the frame at planes in memory; they are read until the frame is processed. */
+  void setPlanes(
+      ByteBuffer yBuffer,
+      ByteBuffer uBuffer,
+      ByteBuffer vBuffer,
+      int yRowStride,
+      int yPixelStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int width,
+      int height) {
+    this.yBuffer = yBuffer;
+    this.uBuffer = uBuffer;
+    this.vBuffer = vBuffer;
+    this.yRowStride = yRowStride;
+    this.yPixelStride = yPixelStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+    this.width = width;
+    this.height = height;
+  }
+}
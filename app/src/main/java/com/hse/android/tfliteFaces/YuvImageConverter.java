@@ -0,0 +1,186 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import android.graphics.Bitmap;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads {@code YUV_420_888} camera images for face analysis without converting whole frames.
+ * The luma plane is used as the gray image for detection, and only the detected face regions are
+ * converted to RGB, resized on the fly to the classifier input size.
+ *
+ * <p>Coordinates are given in the upright image, i.e. the sensor image rotated clockwise by the
+ * rotation passed to the methods (0, 90, 180 or 270 degrees).
+ *
+ * <p>The methods take a {@link YuvFrame}, which holds the planes of the image. Buffers are
+ * preallocated and grow with the frame size, so converting a stream of equally sized frames
+ * allocates nothing.
+ */
+final class YuvImageConverter {
+
+  /** Fixed point (16 bit) coefficients of the full range BT.601 YUV to RGB conversion. */
+  private static final int V_TO_R = 91881;
+  private static final int U_TO_G = 22554;
+  private static final int V_TO_G = 46802;
+  private static final int U_TO_B = 116130;
+
+  /* Preallocated buffers, grown when needed. */
+  private final Mat luma = new Mat();
+  private final Mat scaled = new Mat();
+  private final Size scaledSize = new Size();
+  private byte[] lumaBytes = new byte[0];
+  private int[] pixels = new int[0];
+  private int[] sourceColumns = new int[0];
+
+  /**
+   * Writes the luma plane of a frame rotated upright into {@code gray}. The plane is copied
+   * rather than wrapped, since wrapping it would allocate a {@code Mat} per frame.
+   */
+  void toUprightGray(YuvFrame frame, int rotation, Mat gray) {
+    toUprightGray(frame, rotation, 1, gray);
+  }
+
+  /**
+   * Like {@link #toUprightGray(YuvFrame, int, Mat)}, but scales the luma plane by
+   * {@code scale} with area averaging before it is rotated, so that only the small image is
+   * rotated and copied.
+   *
+   * @param scale the size of {@code gray} relative to the frame, at most 1
+   */
+  void toUprightGray(YuvFrame frame, int rotation, double scale, Mat gray) {
+    ByteBuffer buffer = frame.yBuffer;
+    int rowStride = frame.yRowStride;
+    int width = frame.width;
+    int height = frame.height;
+
+    if (lumaBytes.length < width * height) {
+      lumaBytes = new byte[width * height];
+    }
+    if (rowStride == width) {
+      buffer.position(0);
+      buffer.get(lumaBytes, 0, width * height);
+    } else {
+      for (int y = 0; y < height; ++y) {
+        buffer.position(y * rowStride);
+        buffer.get(lumaBytes, y * width, width);
+      }
+    }
+    luma.create(height, width, CvType.CV_8UC1);
+    luma.put(0, 0, lumaBytes, 0, width * height);
+    Mat source = luma;
+    if (scale < 1) {
+      Imgproc.resize(luma, scaled, scaledSize, scale, scale, Imgproc.INTER_AREA);
+      source = scaled;
+    }
+
+    switch (rotation) {
+      case 90:
+        Core.rotate(source, gray, Core.ROTATE_90_CLOCKWISE);
+        break;
+      case 180:
+        Core.rotate(source, gray, Core.ROTATE_180);
+        break;
+      case 270:
+        Core.rotate(source, gray, Core.ROTATE_90_COUNTERCLOCKWISE);
+        break;
+      default:
+        source.copyTo(gray);
+    }
+  }
+
+  /**
+   * Converts the region {@code roi} of the upright frame to RGB and scales it to the size of
+   * {@code dst} with nearest neighbour sampling.
+   */
+  void cropToBitmap(YuvFrame frame, int rotation, Rect roi, Bitmap dst) {
+    int width = frame.width;
+    int height = frame.height;
+    int dstWidth = dst.getWidth();
+    int dstHeight = dst.getHeight();
+    if (pixels.length < dstWidth * dstHeight) {
+      pixels = new int[dstWidth * dstHeight];
+    }
+    if (sourceColumns.length < dstWidth) {
+      sourceColumns = new int[dstWidth];
+    }
+    for (int dx = 0; dx < dstWidth; ++dx) {
+      sourceColumns[dx] = roi.x + dx * roi.width / dstWidth;
+    }
+
+    ByteBuffer yBuffer = frame.yBuffer;
+    ByteBuffer uBuffer = frame.uBuffer;
+    ByteBuffer vBuffer = frame.vBuffer;
+    int yRowStride = frame.yRowStride;
+    int yPixelStride = frame.yPixelStride;
+    int uvRowStride = frame.uvRowStride;
+    int uvPixelStride = frame.uvPixelStride;
+
+    int pixel = 0;
+    for (int dy = 0; dy < dstHeight; ++dy) {
+      int uy = roi.y + dy * roi.height / dstHeight;
+      for (int dx = 0; dx < dstWidth; ++dx) {
+        int ux = sourceColumns[dx];
+        int sx;
+        int sy;
+        switch (rotation) {
+          case 90:
+            sx = uy;
+            sy = height - 1 - ux;
+            break;
+          case 180:
+            sx = width - 1 - ux;
+            sy = height - 1 - uy;
+            break;
+          case 270:
+            sx = width - 1 - uy;
+            sy = ux;
+            break;
+          default:
+            sx = ux;
+            sy = uy;
+        }
+        int yValue = yBuffer.get(sy * yRowStride + sx * yPixelStride) & 0xFF;
+        int uvIndex = (sy >> 1) * uvRowStride + (sx >> 1) * uvPixelStride;
+        int u = (uBuffer.get(uvIndex) & 0xFF) - 128;
+        int v = (vBuffer.get(uvIndex) & 0xFF) - 128;
+        int r = clamp(yValue + ((V_TO_R * v) >> 16));
+        int g = clamp(yValue - ((U_TO_G * u + V_TO_G * v) >> 16));
+        int b = clamp(yValue + ((U_TO_B * u) >> 16));
+        pixels[pixel++] = 0xFF000000 | (r << 16) | (g << 8) | b;
+      }
+    }
+    dst.setPixels(pixels, 0, dstWidth, 0, 0, dstWidth, dstHeight);
+  }
+
+  /** Releases the native buffers. */
+  void release() {
+    luma.release();
+    scaled.release();
+  }
+
+  private static int clamp(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+}
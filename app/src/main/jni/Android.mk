@@ -4,15 +4,21 @@ include $(CLEAR_VARS)
 
 #opencv
 #OPENCVROOT:= /Users/avsavchenko/Documents/my_soft/github/opencv/opencv/platforms/build_android_arm/install/
-OPENCVROOT:= /Users/avsavchenko/Documents/my_soft/github/opencv/OpenCV-android-sdk
+# Set by the ndkBuild task of app/build.gradle from -PopencvSdk or OPENCV_ANDROID_SDK.
+OPENCVROOT ?= /Users/avsavchenko/Documents/my_soft/github/opencv/OpenCV-android-sdk
 OPENCV_CAMERA_MODULES:=off
 OPENCV_INSTALL_MODULES:=on
 OPENCV_LIB_TYPE:=SHARED
 include ${OPENCVROOT}/sdk/native/jni/OpenCV.mk
 
-LOCAL_SRC_FILES := com_hse_android_tfliteFaces_DetectionBasedTracker.cpp
-LOCAL_CFLAGS += -mfloat-abi=softfp -mfpu=neon -std=c++11 # -march=armv7
+LOCAL_SRC_FILES := com_hse_android_tfliteFaces_DetectionBasedTracker.cpp \
+                   com_hse_android_tfliteFaces_FaceInputWriter.cpp
+LOCAL_CFLAGS += -std=c++11
+# NEON is optional on armv7 and always there on arm64, whose compiler rejects these flags.
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_CFLAGS += -mfloat-abi=softfp -mfpu=neon # -march=armv7
 LOCAL_ARM_NEON  := true
+endif
 LOCAL_LDLIBS += -llog
 LOCAL_MODULE := OpenCvDetectionLib
 
@@ -255,3 +255,43 @@ JNIEXPORT void JNICALL Java_com_hse_android_tfliteFaces_DetectionBasedTracker_na
     LOGD("Java_com_hse_android_tfliteFaces_DetectionBasedTracker_nativeDetect END");
 }
 
+JNIEXPORT void JNICALL Java_com_hse_android_tfliteFaces_DetectionBasedTracker_nativeDetectTracked
+(JNIEnv * jenv, jclass, jlong thiz, jlong imageGray, jlong faces, jlong ids)
+{
+    LOGD("Java_com_hse_android_tfliteFaces_DetectionBasedTracker_nativeDetectTracked");
+
+    try
+    {
+        vector<DetectionBasedTracker::Object> objects;
+        ((DetectorAgregator*)thiz)->tracker->process(*((Mat*)imageGray));
+        ((DetectorAgregator*)thiz)->tracker->getObjects(objects);
+
+        vector<Rect> RectFaces;
+        vector<int> FaceIds;
+        RectFaces.reserve(objects.size());
+        FaceIds.reserve(objects.size());
+        for (size_t i = 0; i < objects.size(); i++)
+        {
+            RectFaces.push_back(objects[i].first);
+            FaceIds.push_back(objects[i].second);
+        }
+
+        *((Mat*)faces) = Mat(RectFaces, true);
+        *((Mat*)ids) = Mat(FaceIds, true);
+    }
+    catch(cv::Exception& e)
+    {
+        LOGD("nativeDetectTracked caught cv::Exception: %s", e.what());
+        jclass je = jenv->FindClass("org/opencv/core/CvException");
+        if(!je)
+            je = jenv->FindClass("java/lang/Exception");
+        jenv->ThrowNew(je, e.what());
+    }
+    catch (...)
+    {
+        LOGD("nativeDetectTracked caught unknown exception");
+        jclass je = jenv->FindClass("java/lang/Exception");
+        jenv->ThrowNew(je, "Unknown exception in JNI code DetectionBasedTracker.nativeDetectTracked()");
+    }
+    LOGD("Java_com_hse_android_tfliteFaces_DetectionBasedTracker_nativeDetectTracked END");
+}
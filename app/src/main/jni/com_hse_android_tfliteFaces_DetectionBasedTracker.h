@@ -55,6 +55,14 @@ JNIEXPORT void JNICALL Java_com_hse_android_tfliteFaces_DetectionBasedTracker_na
 JNIEXPORT void JNICALL Java_com_hse_android_tfliteFaces_DetectionBasedTracker_nativeDetect
   (JNIEnv *, jclass, jlong, jlong, jlong);
 
+/*
+ * Class:     com_hse_android_tfliteFaces_DetectionBasedTracker
+ * Method:    nativeDetectTracked
+ * Signature: (JJJJ)V
+ */
+JNIEXPORT void JNICALL Java_com_hse_android_tfliteFaces_DetectionBasedTracker_nativeDetectTracked
+  (JNIEnv *, jclass, jlong, jlong, jlong, jlong);
+
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,121 @@
+#include <com_hse_android_tfliteFaces_FaceInputWriter.h>
+
+#include <stdint.h>
+#include <vector>
+
+#include <android/log.h>
+
+#define LOG_TAG "FaceDetection/FaceInputWriter"
+#define LOGD(...) ((void)__android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__))
+
+using namespace std;
+
+// Fixed point (16 bit) coefficients of the full range BT.601 YUV to RGB conversion, as in
+// YuvImageConverter.
+static const int V_TO_R = 91881;
+static const int U_TO_G = 22554;
+static const int V_TO_G = 46802;
+static const int U_TO_B = 116130;
+
+// Channel means subtracted by the age/gender models.
+static const float MEAN_R = 123.68f;
+static const float MEAN_G = 116.779f;
+static const float MEAN_B = 103.939f;
+
+static inline int clamp255(int value)
+{
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+}
+
+static void throwIllegalArgument(JNIEnv * jenv, const char * message)
+{
+    LOGD("nativeWriteFaces: %s", message);
+    jclass je = jenv->FindClass("java/lang/IllegalArgumentException");
+    jenv->ThrowNew(je, message);
+}
+
+// Crops every face box of the upright frame out of the YUV planes, scales it to the model input
+// size with nearest neighbour sampling, converts it to RGB, subtracts the channel means and
+// writes it in RGB or BGR order into the input buffer, all in one pass over the output pixels.
+JNIEXPORT void JNICALL Java_com_hse_android_tfliteFaces_FaceInputWriter_nativeWriteFaces
+(JNIEnv * jenv, jclass, jobject yBuffer, jobject uBuffer, jobject vBuffer, jint width, jint height,
+ jint yRowStride, jint yPixelStride, jint uvRowStride, jint uvPixelStride, jint rotation,
+ jintArray jRects, jint count, jobject dstBuffer, jint dstWidth, jint dstHeight, jboolean bgr)
+{
+    const uint8_t * yPlane = (const uint8_t *) jenv->GetDirectBufferAddress(yBuffer);
+    const uint8_t * uPlane = (const uint8_t *) jenv->GetDirectBufferAddress(uBuffer);
+    const uint8_t * vPlane = (const uint8_t *) jenv->GetDirectBufferAddress(vBuffer);
+    float * dst = (float *) jenv->GetDirectBufferAddress(dstBuffer);
+    if (!yPlane || !uPlane || !vPlane || !dst)
+    {
+        throwIllegalArgument(jenv, "All buffers must be direct");
+        return;
+    }
+    const size_t faceValues = (size_t) dstWidth * dstHeight * 3;
+    if (count < 0 || jenv->GetArrayLength(jRects) < 4 * count
+            || (size_t) jenv->GetDirectBufferCapacity(dstBuffer) < count * faceValues * sizeof(float))
+    {
+        throwIllegalArgument(jenv, "The input buffer is too small for the faces");
+        return;
+    }
+    vector<jint> rects(4 * count);
+    jenv->GetIntArrayRegion(jRects, 0, 4 * count, rects.data());
+
+    const bool sideways = rotation == 90 || rotation == 270;
+    const int uprightWidth = sideways ? height : width;
+    const int uprightHeight = sideways ? width : height;
+    const int rIndex = bgr ? 2 : 0;
+    const int bIndex = bgr ? 0 : 2;
+    vector<int> columns(dstWidth);
+
+    for (int face = 0; face < count; ++face)
+    {
+        const int x = rects[4 * face];
+        const int y = rects[4 * face + 1];
+        const int w = rects[4 * face + 2];
+        const int h = rects[4 * face + 3];
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > uprightWidth || y + h > uprightHeight)
+        {
+            throwIllegalArgument(jenv, "Face box outside of the frame");
+            return;
+        }
+        for (int dx = 0; dx < dstWidth; ++dx)
+            columns[dx] = x + dx * w / dstWidth;
+
+        float * out = dst + face * faceValues;
+        for (int dy = 0; dy < dstHeight; ++dy)
+        {
+            const int uy = y + dy * h / dstHeight;
+            for (int dx = 0; dx < dstWidth; ++dx, out += 3)
+            {
+                const int ux = columns[dx];
+                int sx, sy;
+                switch (rotation)
+                {
+                    case 90:
+                        sx = uy;
+                        sy = height - 1 - ux;
+                        break;
+                    case 180:
+                        sx = width - 1 - ux;
+                        sy = height - 1 - uy;
+                        break;
+                    case 270:
+                        sx = width - 1 - uy;
+                        sy = ux;
+                        break;
+                    default:
+                        sx = ux;
+                        sy = uy;
+                }
+                const int luma = yPlane[sy * yRowStride + sx * yPixelStride];
+                const int uvIndex = (sy >> 1) * uvRowStride + (sx >> 1) * uvPixelStride;
+                const int u = uPlane[uvIndex] - 128;
+                const int v = vPlane[uvIndex] - 128;
+                out[rIndex] = clamp255(luma + ((V_TO_R * v) >> 16)) - MEAN_R;
+                out[1] = clamp255(luma - ((U_TO_G * u + V_TO_G * v) >> 16)) - MEAN_G;
+                out[bIndex] = clamp255(luma + ((U_TO_B * u) >> 16)) - MEAN_B;
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AgeGenderFusionTest {
+
+  private static final int REFRESH_INTERVAL = 8;
+
+  private final AgeGenderFusion fusion = new AgeGenderFusion(AgeGenderFusion.DEFAULT_WEIGHT);
+  private final AgeGenderResult estimate = new AgeGenderResult();
+
+  @Test
+  public void estimateIsNotReusedBeforeThreePredictions() {
+    assertFalse(fusion.hasEstimate());
+    assertEquals(0, fusion.getReuseFrames(REFRESH_INTERVAL));
+    fusion.add(prediction(30, 0.9f));
+    assertTrue(fusion.hasEstimate());
+    assertEquals(0, fusion.getReuseFrames(REFRESH_INTERVAL));
+    fusion.add(prediction(30, 0.9f));
+    assertEquals(0, fusion.getReuseFrames(REFRESH_INTERVAL));
+  }
+
+  @Test
+  public void stableEstimateIsReusedForTheFullInterval() {
+    for (int i = 0; i < 3; ++i) {
+      fusion.add(prediction(30, 0.9f));
+    }
+    assertEquals(REFRESH_INTERVAL, fusion.getReuseFrames(REFRESH_INTERVAL));
+    fusion.getEstimate(estimate);
+    assertEquals(30.5f, estimate.age, 1e-3f);
+    assertEquals(0.9f, estimate.genderProbability, 1e-6f);
+  }
+
+  @Test
+  public void genderCloseToTheThresholdIsReusedBriefly() {
+    for (int i = 0; i < 3; ++i) {
+      fusion.add(prediction(30, AgeGenderResult.MALE_THRESHOLD + 0.05f));
+    }
+    assertEquals(REFRESH_INTERVAL / 4, fusion.getReuseFrames(REFRESH_INTERVAL));
+  }
+
+  @Test
+  public void movingAgeIsReusedBriefly() {
+    fusion.add(prediction(20, 0.1f));
+    fusion.add(prediction(60, 0.1f));
+    fusion.add(prediction(20, 0.1f));
+    assertEquals(REFRESH_INTERVAL / 4, fusion.getReuseFrames(REFRESH_INTERVAL));
+    fusion.getEstimate(estimate);
+    // The moving average weighs the first bin 0.79 and the second 0.21.
+    assertEquals(0.79f * 20.5f + 0.21f * 60.5f, estimate.age, 1e-3f);
+  }
+
+  @Test
+  public void resetForgetsThePredictions() {
+    for (int i = 0; i < 3; ++i) {
+      fusion.add(prediction(30, 0.9f));
+    }
+    fusion.reset();
+    assertFalse(fusion.hasEstimate());
+    assertEquals(0, fusion.getReuseFrames(REFRESH_INTERVAL));
+    fusion.add(prediction(50, 0.2f));
+    fusion.getEstimate(estimate);
+    assertEquals(50.5f, estimate.age, 1e-3f);
+    assertEquals(0.2f, estimate.genderProbability, 1e-6f);
+  }
+
+  /** A prediction that is certain of the age bin {@code bin}. */
+  private static AgeGenderResult prediction(int bin, float genderProbability) {
+    AgeGenderResult result =
+        new AgeGenderResult(AgeGenderResult.DEFAULT_TOP_K, 0, AgeGenderResult.AGE_BINS);
+    result.ageProbabilities[bin] = 1;
+    result.genderProbability = genderProbability;
+    return result;
+  }
+}
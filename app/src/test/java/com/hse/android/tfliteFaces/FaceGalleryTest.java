@@ -0,0 +1,122 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+public class FaceGalleryTest {
+
+  private static final int DIMENSION = 32;
+
+  @Test
+  public void searchReturnsTheMostSimilarEmbeddingsInOrder() {
+    // More embeddings than one storage block.
+    int size = 2500;
+    Random random = new Random(2);
+    float[][] embeddings = new float[size][DIMENSION];
+    FaceGallery gallery = new FaceGallery(DIMENSION);
+    for (int i = 0; i < size; ++i) {
+      FaceGalleryBenchmark.randomEmbedding(random, embeddings[i]);
+      assertEquals(i, gallery.enroll(100 + i, embeddings[i]));
+    }
+    assertEquals(size, gallery.size());
+
+    float[] query = new float[DIMENSION];
+    long[] ids = new long[10];
+    float[] scores = new float[10];
+    for (int q = 0; q < 20; ++q) {
+      FaceGalleryBenchmark.randomEmbedding(random, query);
+      assertEquals(10, gallery.search(query, 10, ids, scores));
+      final float[] expected = new float[size];
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; ++i) {
+        expected[i] = cosine(query, embeddings[i]);
+        order[i] = i;
+      }
+      Arrays.sort(
+          order,
+          new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+              return Float.compare(expected[b], expected[a]);
+            }
+          });
+      for (int i = 0; i < 10; ++i) {
+        assertEquals(100 + order[i], ids[i]);
+        assertEquals(expected[order[i]], scores[i], 1e-5f);
+      }
+    }
+  }
+
+  @Test
+  public void enrolledEmbeddingsAreNormalized() {
+    FaceGallery gallery = new FaceGallery(DIMENSION);
+    float[] embedding = new float[DIMENSION];
+    FaceGalleryBenchmark.randomEmbedding(new Random(3), embedding);
+    for (int i = 0; i < DIMENSION; ++i) {
+      embedding[i] *= 7;
+    }
+    gallery.enroll(1, embedding);
+    float[] stored = new float[DIMENSION];
+    gallery.getEmbedding(0, stored);
+    assertEquals(1, FaceGallery.dot(stored, stored, 0, DIMENSION), 1e-5f);
+    long[] ids = new long[1];
+    float[] scores = new float[1];
+    assertEquals(1, gallery.search(embedding, 5, ids, scores));
+    assertEquals(1, ids[0]);
+    assertEquals(1, scores[0], 1e-5f);
+  }
+
+  static float cosine(float[] a, float[] b) {
+    double dot = 0;
+    double normA = 0;
+    double normB = 0;
+    for (int i = 0; i < a.length; ++i) {
+      dot += a[i] * b[i];
+      normA += a[i] * a[i];
+      normB += b[i] * b[i];
+    }
+    return (float) (dot / Math.sqrt(normA * normB));
+  }
+
+  /** Fails unless the scores of a search decrease. */
+  static void assertDescending(float[] scores) {
+    for (int i = 1; i < scores.length; ++i) {
+      assertTrue(scores[i - 1] >= scores[i]);
+    }
+  }
+
+  /** Number of the {@code countB} ids of {@code b} among the {@code countA} ids of {@code a}. */
+  static int countCommon(long[] a, int countA, long[] b, int countB) {
+    int common = 0;
+    for (int i = 0; i < countB; ++i) {
+      for (int j = 0; j < countA; ++j) {
+        if (b[i] == a[j]) {
+          ++common;
+          break;
+        }
+      }
+    }
+    return common;
+  }
+}
@@ -0,0 +1,183 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class HnswIndexTest {
+
+  private static final int DIMENSION = 32;
+  private static final int SIZE = 4000;
+  private static final int CLUSTERS = 40;
+  private static final int TOP_K = 10;
+  private static final int QUERIES = 100;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Random random = new Random(5);
+  private final float[] centers = new float[CLUSTERS * DIMENSION];
+
+  public HnswIndexTest() {
+    for (int i = 0; i < centers.length; ++i) {
+      centers[i] = 2 * random.nextFloat() - 1;
+    }
+  }
+
+  @Test
+  public void searchRecallsTheExactNeighbors() throws IOException {
+    HnswIndex index =
+        new HnswIndex(
+            DIMENSION, HnswIndex.DEFAULT_M, HnswIndex.DEFAULT_EF_CONSTRUCTION, new Random(6));
+    FaceGallery exact = new FaceGallery(DIMENSION);
+    float[] embedding = new float[DIMENSION];
+    for (int i = 0; i < SIZE; ++i) {
+      FaceGalleryBenchmark.clusteredEmbedding(random, centers, embedding);
+      assertEquals(i, index.insert(i, embedding));
+      exact.enroll(i, embedding);
+    }
+    assertEquals(SIZE, index.size());
+    File file = folder.newFile("index");
+    index.save(file);
+    MappedHnswIndex mapped = MappedHnswIndex.open(file);
+    assertEquals(SIZE, mapped.size());
+
+    long[] exactIds = new long[TOP_K];
+    long[] ids = new long[TOP_K];
+    float[] scores = new float[TOP_K];
+    long[] mappedIds = new long[TOP_K];
+    float[] mappedScores = new float[TOP_K];
+    int hits = 0;
+    for (int q = 0; q < QUERIES; ++q) {
+      FaceGalleryBenchmark.clusteredEmbedding(random, centers, embedding);
+      int exactCount = exact.search(embedding, TOP_K, exactIds, scores);
+      int count = index.search(embedding, TOP_K, ids, scores);
+      assertEquals(TOP_K, count);
+      FaceGalleryTest.assertDescending(scores);
+      hits += FaceGalleryTest.countCommon(exactIds, exactCount, ids, count);
+      // The saved graph is the same graph, so the mapped search takes the same path.
+      int mappedCount =
+          mapped.search(embedding, TOP_K, index.getEfSearch(), mappedIds, mappedScores);
+      assertEquals(count, mappedCount);
+      assertArrayEquals(ids, mappedIds);
+      assertArrayEquals(scores, mappedScores, 1e-6f);
+    }
+    float recall = (float) hits / (QUERIES * TOP_K);
+    assertTrue("recall " + recall, recall > 0.9f);
+  }
+
+  @Test
+  public void savingOverAMappedIndexKeepsItSearchable() throws IOException {
+    HnswIndex index = new HnswIndex(DIMENSION);
+    float[] embedding = new float[DIMENSION];
+    for (int i = 0; i < SIZE / 4; ++i) {
+      FaceGalleryBenchmark.clusteredEmbedding(random, centers, embedding);
+      index.insert(i, embedding);
+    }
+    File file = folder.newFile("index");
+    index.save(file);
+    MappedHnswIndex mapped = MappedHnswIndex.open(file);
+    long[] ids = new long[TOP_K];
+    float[] scores = new float[TOP_K];
+    long[] mappedIds = new long[TOP_K];
+    float[] mappedScores = new float[TOP_K];
+    FaceGalleryBenchmark.clusteredEmbedding(random, centers, embedding);
+    int count = mapped.search(embedding, TOP_K, index.getEfSearch(), ids, scores);
+
+    for (int i = SIZE / 4; i < SIZE / 2; ++i) {
+      float[] inserted = new float[DIMENSION];
+      FaceGalleryBenchmark.clusteredEmbedding(random, centers, inserted);
+      index.insert(i, inserted);
+    }
+    index.save(file);
+    // The earlier mapping keeps the pages of the file it mapped.
+    assertEquals(
+        count, mapped.search(embedding, TOP_K, index.getEfSearch(), mappedIds, mappedScores));
+    assertArrayEquals(ids, mappedIds);
+    assertEquals(SIZE / 2, MappedHnswIndex.open(file).size());
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+  }
+
+  @Test
+  public void searchesRunWhileEmbeddingsAreInserted() throws InterruptedException {
+    final HnswIndex index = new HnswIndex(DIMENSION);
+    final AtomicInteger inserted = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread writer =
+        new Thread() {
+          @Override
+          public void run() {
+            float[] embedding = new float[DIMENSION];
+            for (int i = 0; i < SIZE; ++i) {
+              FaceGalleryBenchmark.clusteredEmbedding(random, centers, embedding);
+              // Counted first, since searches may find the node before the insert returns.
+              inserted.set(i + 1);
+              index.insert(i, embedding);
+            }
+          }
+        };
+    Thread[] readers = new Thread[3];
+    for (int r = 0; r < readers.length; ++r) {
+      final Random queries = new Random(10 + r);
+      readers[r] =
+          new Thread() {
+            @Override
+            public void run() {
+              float[] embedding = new float[DIMENSION];
+              long[] ids = new long[TOP_K];
+              float[] scores = new float[TOP_K];
+              try {
+                while (inserted.get() < SIZE) {
+                  FaceGalleryBenchmark.clusteredEmbedding(queries, centers, embedding);
+                  // Ids are inserted in order, so none may exceed those inserted after the search.
+                  int count = index.search(embedding, TOP_K, ids, scores);
+                  int limit = inserted.get();
+                  for (int i = 0; i < count; ++i) {
+                    assertTrue("id " + ids[i] + " of " + limit, ids[i] < limit);
+                    assertTrue("score order", i == 0 || scores[i - 1] >= scores[i]);
+                  }
+                }
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              }
+            }
+          };
+    }
+    for (Thread reader : readers) {
+      reader.start();
+    }
+    writer.start();
+    writer.join();
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    assertNull(failure.get());
+    assertEquals(SIZE, index.size());
+  }
+}
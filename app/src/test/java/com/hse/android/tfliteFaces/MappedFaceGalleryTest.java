@@ -0,0 +1,178 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+public class MappedFaceGalleryTest {
+
+  private static final int DIMENSION = 16;
+  private static final int WAL_HEADER_BYTES = 16;
+  /** An id, the floats of the embedding and a CRC. */
+  private static final int RECORD_BYTES = 8 + 4 * DIMENSION + 4;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Random random = new Random(7);
+  private final float[] embedding = new float[DIMENSION];
+  private File file;
+  private File walFile;
+
+  @Before
+  public void setUp() {
+    file = new File(folder.getRoot(), "gallery");
+    walFile = new File(file.getPath() + ".wal");
+  }
+
+  @Test
+  public void reopenKeepsTheCompactedAndTheLoggedEmbeddings() throws IOException {
+    MappedFaceGallery gallery = MappedFaceGallery.create(file, DIMENSION, null);
+    FaceGallery exact = new FaceGallery(DIMENSION);
+    // Spans several compactions and leaves part of the embeddings in the log.
+    int size = 3000;
+    for (int i = 0; i < size; ++i) {
+      FaceGalleryBenchmark.randomEmbedding(random, embedding);
+      assertEquals(i, gallery.append(100 + i, embedding));
+      exact.enroll(100 + i, embedding);
+    }
+    gallery.sync();
+    gallery.close();
+
+    gallery = MappedFaceGallery.open(file);
+    assertEquals(size, gallery.size());
+    assertEquals(size % 1024, gallery.getLogSize());
+    for (int i = 0; i < size; ++i) {
+      assertEquals(100 + i, gallery.getId(i));
+    }
+    long[] exactIds = new long[5];
+    float[] exactScores = new float[5];
+    long[] ids = new long[5];
+    float[] scores = new float[5];
+    for (int q = 0; q < 20; ++q) {
+      FaceGalleryBenchmark.randomEmbedding(random, embedding);
+      assertEquals(5, exact.search(embedding, 5, exactIds, exactScores));
+      assertEquals(5, gallery.search(embedding, 5, ids, scores));
+      assertArrayEquals(exactIds, ids);
+      assertArrayEquals(exactScores, scores, 1e-5f);
+    }
+    gallery.close();
+  }
+
+  @Test
+  public void tornLastRecordIsDroppedAndAppendsContinue() throws IOException {
+    appendAndClose(10);
+    RandomAccessFile log = new RandomAccessFile(walFile, "rw");
+    log.setLength(log.length() - RECORD_BYTES / 2);
+    log.close();
+
+    MappedFaceGallery gallery = MappedFaceGallery.open(file);
+    assertEquals(9, gallery.size());
+    assertEquals(WAL_HEADER_BYTES + 9 * RECORD_BYTES, walFile.length());
+    FaceGalleryBenchmark.randomEmbedding(random, embedding);
+    assertEquals(9, gallery.append(42, embedding));
+    gallery.close();
+
+    gallery = MappedFaceGallery.open(file);
+    assertEquals(10, gallery.size());
+    assertEquals(8, gallery.getId(8));
+    assertEquals(42, gallery.getId(9));
+    gallery.close();
+  }
+
+  @Test
+  public void corruptRecordIsDroppedWithTheRecordsAfterIt() throws IOException {
+    appendAndClose(10);
+    RandomAccessFile log = new RandomAccessFile(walFile, "rw");
+    long position = WAL_HEADER_BYTES + 5 * RECORD_BYTES + 12;
+    log.seek(position);
+    int value = log.read();
+    log.seek(position);
+    log.write(value ^ 0x01);
+    log.close();
+
+    MappedFaceGallery gallery = MappedFaceGallery.open(file);
+    assertEquals(5, gallery.size());
+    assertEquals(4, gallery.getId(4));
+    gallery.close();
+  }
+
+  @Test
+  public void logOfAnEarlierGenerationIsNotReplayed() throws IOException {
+    MappedFaceGallery gallery = MappedFaceGallery.create(file, DIMENSION, null);
+    for (int i = 0; i < 10; ++i) {
+      FaceGalleryBenchmark.randomEmbedding(random, embedding);
+      gallery.append(i, embedding);
+    }
+    gallery.sync();
+    byte[] staleLog = read(walFile);
+    gallery.compact();
+    gallery.close();
+    // As if the process died after the compaction, before the new log replaced the old one.
+    write(walFile, staleLog);
+
+    gallery = MappedFaceGallery.open(file);
+    assertEquals(10, gallery.size());
+    assertEquals(0, gallery.getLogSize());
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(i, gallery.getId(i));
+    }
+    gallery.close();
+  }
+
+  /** Creates a gallery of {@code count} logged embeddings with the ids 0 to count - 1. */
+  private void appendAndClose(int count) throws IOException {
+    MappedFaceGallery gallery = MappedFaceGallery.create(file, DIMENSION, null);
+    for (int i = 0; i < count; ++i) {
+      FaceGalleryBenchmark.randomEmbedding(random, embedding);
+      gallery.append(i, embedding);
+    }
+    gallery.sync();
+    gallery.close();
+    assertEquals(WAL_HEADER_BYTES + count * RECORD_BYTES, walFile.length());
+  }
+
+  private static byte[] read(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      byte[] bytes = new byte[(int) in.length()];
+      in.readFully(bytes);
+      return bytes;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(0);
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+}
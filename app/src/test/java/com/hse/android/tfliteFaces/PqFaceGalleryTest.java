@@ -0,0 +1,95 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+public class PqFaceGalleryTest {
+
+  private static final int DIMENSION = 64;
+  private static final int SUBSPACES = 16;
+  private static final int SIZE = 3000;
+  private static final int CLUSTERS = 50;
+  private static final int TOP_K = 10;
+  private static final int QUERIES = 50;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void searchRecallsTheExactNeighbors() throws IOException {
+    Random random = new Random(4);
+    float[] centers = new float[CLUSTERS * DIMENSION];
+    for (int i = 0; i < centers.length; ++i) {
+      centers[i] = 2 * random.nextFloat() - 1;
+    }
+    float[] embedding = new float[DIMENSION];
+    int trainingCount = 1000;
+    float[] samples = new float[trainingCount * DIMENSION];
+    for (int i = 0; i < trainingCount; ++i) {
+      FaceGalleryBenchmark.clusteredEmbedding(random, centers, embedding);
+      FaceGallery.normalize(embedding, samples, i * DIMENSION);
+    }
+    ProductQuantizer quantizer = new ProductQuantizer(DIMENSION, SUBSPACES);
+    quantizer.train(samples, trainingCount, 8, random);
+
+    MappedFaceGallery floats =
+        MappedFaceGallery.create(new File(folder.getRoot(), "floats"), DIMENSION, null);
+    PqFaceGallery gallery = new PqFaceGallery(quantizer, floats);
+    FaceGallery exact = new FaceGallery(DIMENSION);
+    for (int i = 0; i < SIZE; ++i) {
+      FaceGalleryBenchmark.clusteredEmbedding(random, centers, embedding);
+      assertEquals(i, gallery.enroll(i, embedding));
+      exact.enroll(i, embedding);
+    }
+    assertTrue(gallery.canRerank());
+    // The floats of the re-ranking were compacted into the file, apart from the log.
+    assertEquals(SIZE, floats.size());
+    assertTrue(floats.getLogSize() < SIZE);
+
+    long[] exactIds = new long[TOP_K];
+    long[] ids = new long[TOP_K];
+    float[] scores = new float[TOP_K];
+    int approximateHits = 0;
+    int rerankHits = 0;
+    for (int q = 0; q < QUERIES; ++q) {
+      FaceGalleryBenchmark.clusteredEmbedding(random, centers, embedding);
+      int exactCount = exact.search(embedding, TOP_K, exactIds, scores);
+      int count = gallery.search(embedding, TOP_K, 0, ids, scores);
+      assertEquals(TOP_K, count);
+      FaceGalleryTest.assertDescending(scores);
+      approximateHits += FaceGalleryTest.countCommon(exactIds, exactCount, ids, count);
+      count = gallery.search(embedding, TOP_K, 100, ids, scores);
+      assertEquals(TOP_K, count);
+      FaceGalleryTest.assertDescending(scores);
+      rerankHits += FaceGalleryTest.countCommon(exactIds, exactCount, ids, count);
+    }
+    floats.close();
+    float approximateRecall = (float) approximateHits / (QUERIES * TOP_K);
+    float rerankRecall = (float) rerankHits / (QUERIES * TOP_K);
+    // The codes alone find about two thirds of the neighbors; re-ranking from the floats all.
+    assertTrue("recall " + approximateRecall, approximateRecall > 0.5f);
+    assertTrue("re-ranked recall " + rerankRecall, rerankRecall > 0.95f);
+  }
+}
@@ -0,0 +1,95 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TopKHeapTest {
+
+  @Test
+  public void keepsTheHighestScoresInDescendingOrder() {
+    Random random = new Random(1);
+    float[] scores = new float[1000];
+    TopKHeap heap = new TopKHeap(10);
+    heap.reset(10);
+    for (int i = 0; i < scores.length; ++i) {
+      scores[i] = random.nextFloat();
+      heap.offer(i, scores[i]);
+    }
+    int[] indices = new int[10];
+    float[] topScores = new float[10];
+    assertEquals(10, heap.drainDescending(indices, topScores));
+
+    float[] sorted = scores.clone();
+    Arrays.sort(sorted);
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(sorted[sorted.length - 1 - i], topScores[i], 0);
+      assertEquals(scores[indices[i]], topScores[i], 0);
+    }
+    assertEquals(0, heap.size());
+  }
+
+  @Test
+  public void returnsFewerEntriesThanKWhenFewerWereOffered() {
+    TopKHeap heap = new TopKHeap(5);
+    heap.reset(5);
+    heap.offer(7, 0.2f);
+    heap.offer(3, 0.9f);
+    heap.offer(5, 0.5f);
+    int[] indices = new int[5];
+    float[] scores = new float[5];
+    assertEquals(3, heap.drainDescending(indices, scores));
+    assertArrayEquals(new int[] {3, 5, 7}, Arrays.copyOf(indices, 3));
+    assertArrayEquals(new float[] {0.9f, 0.5f, 0.2f}, Arrays.copyOf(scores, 3), 0);
+  }
+
+  @Test
+  public void thresholdIsTheLowestKeptScoreOnceFull() {
+    TopKHeap heap = new TopKHeap(2);
+    heap.reset(2);
+    heap.offer(0, 0.5f);
+    assertEquals(Float.NEGATIVE_INFINITY, heap.threshold(), 0);
+    heap.offer(1, 0.7f);
+    assertEquals(0.5f, heap.threshold(), 0);
+    heap.offer(2, 0.1f);
+    assertEquals(0.5f, heap.threshold(), 0);
+    heap.offer(3, 0.8f);
+    assertEquals(0.7f, heap.threshold(), 0);
+  }
+
+  @Test
+  public void resetEmptiesTheHeapAndCapsKAtTheCapacity() {
+    TopKHeap heap = new TopKHeap(3);
+    heap.reset(3);
+    heap.offer(0, 1);
+    heap.offer(1, 2);
+    heap.reset(10);
+    assertEquals(0, heap.size());
+    for (int i = 0; i < 10; ++i) {
+      heap.offer(i, i);
+    }
+    int[] indices = new int[3];
+    float[] scores = new float[3];
+    assertEquals(3, heap.drainDescending(indices, scores));
+    assertArrayEquals(new int[] {9, 8, 7}, indices);
+  }
+}
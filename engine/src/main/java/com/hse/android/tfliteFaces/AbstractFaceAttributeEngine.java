@@ -0,0 +1,370 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Classification flow shared by all backends: read the pixels, fill the model input, run the
+ * model and decode its age, gender and feature outputs. Subclasses only implement the
+ * library-specific input conversion and inference.
+ *
+ * <p>Several faces are stacked into one input tensor of up to {@link #getMaxBatchSize()} images,
+ * so a frame with many faces pays the per-invoke overhead of the interpreter only once.
+ *
+ * <p>Outputs are decoded into caller-owned {@link AgeGenderResult}s with primitive loops only, so
+ * classification does not allocate per face.
+ *
+ * <p>Nothing here touches Android classes, so that a model loaded with {@link
+ * #loadModelFile(File)} can also be run on a desktop JVM. Messages go to an {@link EngineLog},
+ * which the app routes to logcat; by default they go to a {@link Logger}.
+ */
+public abstract class AbstractFaceAttributeEngine implements FaceAttributeEngine {
+
+  /** Number of the most probable age bins used to compute the expected age. */
+  private static final int AGE_TOP_K = 2;
+
+  /** Largest number of faces fed to the interpreter in one call. */
+  private static final int MAX_BATCH_SIZE = 16;
+
+  /** Where engines created from now on log to. */
+  private static volatile EngineLog defaultLog = new JavaLoggingLog();
+
+  private final String tag;
+  private final EngineLog log;
+
+  /** Whether timings are logged, i.e. whether the log takes debug messages of the tag. */
+  private final boolean debugLogging;
+
+  /* Preallocated buffers for storing image data in. */
+  protected final int[] intValues;
+
+  /** @param tag the tag of the messages, the logcat tag on Android */
+  protected AbstractFaceAttributeEngine(String tag) {
+    this.tag = tag;
+    log = defaultLog;
+    debugLogging = log.isDebugEnabled(tag);
+    intValues = new int[getImageSizeX() * getImageSizeY()];
+  }
+
+  /** Sets the log of the engines that are created afterwards. */
+  public static void setLog(EngineLog log) {
+    defaultLog = log;
+  }
+
+  /** Logs a debug message; callers that build it per face check {@link #isDebugLogging()}. */
+  protected final void logDebug(String message) {
+    log.debug(tag, message);
+  }
+
+  protected final void logInfo(String message) {
+    log.info(tag, message);
+  }
+
+  protected final void logError(String message) {
+    log.error(tag, message);
+  }
+
+  /** Whether debug messages should be logged. */
+  protected final boolean isDebugLogging() {
+    return debugLogging;
+  }
+
+  /** Classifies one face crop as a batch of one. */
+  @Override
+  public boolean classifyFace(PixelSource face, AgeGenderResult result) {
+    if (!isInitialized()) {
+      logError("Image classifier has not been initialized; Skipped.");
+      return false;
+    }
+    prepareBatch(1);
+    convertFace(face, 0);
+    long timeCost = runBatch(1);
+    decodeResult(0, result);
+    result.inferenceTimeMs = timeCost;
+    result.batchSize = 1;
+    return true;
+  }
+
+  /** Classifies all faces of a frame with as few interpreter calls as possible. */
+  @Override
+  public boolean classifyPixels(List<? extends PixelSource> faces, List<AgeGenderResult> results) {
+    if (!isInitialized()) {
+      logError("Image classifier has not been initialized; Skipped.");
+      return false;
+    }
+    for (int start = 0; start < faces.size(); start += getMaxBatchSize()) {
+      int batchSize = Math.min(getMaxBatchSize(), faces.size() - start);
+      prepareBatch(batchSize);
+      for (int i = 0; i < batchSize; ++i) {
+        convertFace(faces.get(start + i), i);
+      }
+      long timeCost = runBatch(batchSize);
+      for (int i = 0; i < batchSize; ++i) {
+        AgeGenderResult result = results.get(start + i);
+        decodeResult(i, result);
+        result.inferenceTimeMs = timeCost;
+        result.batchSize = batchSize;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int getDirectInputOrder() {
+    return INPUT_NONE;
+  }
+
+  @Override
+  public boolean classifyInput(ByteBuffer input, int count, List<AgeGenderResult> results) {
+    if (!isInitialized() || getDirectInputOrder() == INPUT_NONE) {
+      logError("Image classifier takes no direct input; Skipped.");
+      return false;
+    }
+    if (count == 0) {
+      return true;
+    }
+    int bytesPerFace = getDirectInputBytesPerFace();
+    if (input.capacity() < count * bytesPerFace) {
+      logError("Direct input holds fewer than " + count + " faces; Skipped.");
+      return false;
+    }
+    for (int start = 0; start < count; start += getMaxBatchSize()) {
+      int batchSize = Math.min(getMaxBatchSize(), count - start);
+      ByteBuffer batch = input;
+      if (start != 0 || input.capacity() != batchSize * bytesPerFace) {
+        // Tensorflow Lite checks the size of the buffer against the input tensor, so a buffer
+        // with room for more faces is cut to the batch.
+        batch = input.duplicate();
+        batch.position(start * bytesPerFace).limit((start + batchSize) * bytesPerFace);
+        batch = batch.slice().order(input.order());
+      }
+      prepareBatch(batchSize);
+      long startTime = uptimeMillis();
+      runInference(batch, batchSize);
+      long timeCost = uptimeMillis() - startTime;
+      for (int i = 0; i < batchSize; ++i) {
+        AgeGenderResult result = results.get(start + i);
+        decodeResult(i, result);
+        result.inferenceTimeMs = timeCost;
+        result.batchSize = batchSize;
+      }
+    }
+    return true;
+  }
+
+  /** Size of one face of the direct input: native-order floats of three channels per pixel. */
+  private int getDirectInputBytesPerFace() {
+    return getImageSizeX() * getImageSizeY() * 3 * 4;
+  }
+
+  /** Largest number of faces fed to the interpreter in one call. */
+  protected int getMaxBatchSize() {
+    return MAX_BATCH_SIZE;
+  }
+
+  private void convertFace(PixelSource face, int batchIndex) {
+    face.getPixels(intValues);
+    convertPixelsToInput(intValues, batchIndex);
+  }
+
+  /** Runs the interpreter and returns its time cost in milliseconds. */
+  private long runBatch(int batchSize) {
+    // Here's where the magic happens!!!
+    long startTime = uptimeMillis();
+    runInference(batchSize);
+    long endTime = uptimeMillis();
+    if (debugLogging) {
+      logDebug("Timecost to run model inference for " + batchSize + " faces: "
+          + Long.toString(endTime - startTime));
+    }
+    return endTime - startTime;
+  }
+
+  /** Monotonic milliseconds, also outside of Android. */
+  protected static long uptimeMillis() {
+    return System.nanoTime() / 1000000;
+  }
+
+  @Override
+  public int getImageSizeX() {
+    return 224;
+  }
+
+  @Override
+  public int getImageSizeY() {
+    return 224;
+  }
+
+  /** Returns false once the interpreter has been closed or failed to load. */
+  protected abstract boolean isInitialized();
+
+  /**
+   * Makes the input and output buffers hold {@code batchSize} faces. Called before the faces of
+   * the batch are converted.
+   */
+  protected abstract void prepareBatch(int batchSize);
+
+  /**
+   * Writes the ARGB pixels of the face into the model input.
+   *
+   * @param pixels row-major pixels of a {@link #getImageSizeX()} x {@link #getImageSizeY()} image
+   * @param batchIndex position of the face in the batch
+   */
+  protected abstract void convertPixelsToInput(int[] pixels, int batchIndex);
+
+  /** Runs the model on the first {@code batchSize} prepared inputs. */
+  protected abstract void runInference(int batchSize);
+
+  /**
+   * Runs the model on {@code batchSize} faces written by the caller; only called by engines with
+   * a {@link #getDirectInputOrder()}.
+   *
+   * @param input exactly {@code batchSize} faces in the model input layout
+   */
+  protected abstract void runInference(ByteBuffer input, int batchSize);
+
+  /** Softmax over the age bins of the face at {@code batchIndex}. */
+  protected abstract float[] getAgeProbabilities(int batchIndex);
+
+  /** Gender sigmoid of the face at {@code batchIndex}. */
+  protected abstract float getGenderProbability(int batchIndex);
+
+  /** Face descriptor of the face at {@code batchIndex}, normalized in place. */
+  protected abstract float[] getFeatures(int batchIndex);
+
+  /** Memory-map a model file, e.g. outside of Android; models in Assets are mapped by the app. */
+  protected static MappedByteBuffer loadModelFile(File modelFile) throws IOException {
+    FileInputStream inputStream = new FileInputStream(modelFile);
+    try {
+      FileChannel fileChannel = inputStream.getChannel();
+      return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+    } finally {
+      // The mapping stays valid after the file is closed.
+      inputStream.close();
+    }
+  }
+
+  /** Logs to {@code java.util.logging}, with debug messages at {@link Level#FINE}. */
+  private static final class JavaLoggingLog implements EngineLog {
+
+    @Override
+    public boolean isDebugEnabled(String tag) {
+      return Logger.getLogger(tag).isLoggable(Level.FINE);
+    }
+
+    @Override
+    public void debug(String tag, String message) {
+      Logger.getLogger(tag).fine(message);
+    }
+
+    @Override
+    public void info(String tag, String message) {
+      Logger.getLogger(tag).info(message);
+    }
+
+    @Override
+    public void error(String tag, String message) {
+      Logger.getLogger(tag).severe(message);
+    }
+  }
+
+  /** Decodes the outputs of the face at {@code batchIndex} without allocating. */
+  private void decodeResult(int batchIndex, AgeGenderResult result) {
+    //normalize features (first dim)
+    float[] features = getFeatures(batchIndex);
+    float sum = 0;
+    for (int i = 0; i < features.length; ++i)
+      sum += features[i] * features[i];
+    if (sum > 0) {
+      float scale = 1 / (float) Math.sqrt(sum);
+      for (int i = 0; i < features.length; ++i)
+        features[i] *= scale;
+    }
+    if (result.features != null) {
+      System.arraycopy(
+          features, 0, result.features, 0, Math.min(features.length, result.features.length));
+    }
+
+    //age
+    float[] ageProbabilities = getAgeProbabilities(batchIndex);
+    decodeAge(ageProbabilities, result);
+    if (result.ageProbabilities != null) {
+      System.arraycopy(
+          ageProbabilities,
+          0,
+          result.ageProbabilities,
+          0,
+          Math.min(ageProbabilities.length, result.ageProbabilities.length));
+    }
+
+    //gender
+    result.genderProbability = getGenderProbability(batchIndex);
+  }
+
+  /**
+   * Sets the top age bins of {@code result} and the expected age over the two most probable
+   * ones.
+   */
+  static void decodeAge(float[] probabilities, AgeGenderResult result) {
+    selectTopAgeBins(probabilities, result);
+    int ageBins = Math.min(AGE_TOP_K, result.topK);
+    float sum = 0;
+    for (int j = 0; j < ageBins; ++j) {
+      sum += result.topAgeProbabilities[j];
+    }
+    double age = 0;
+    for (int j = 0; j < ageBins; ++j) {
+      age += (result.topAgeBins[j] + 0.5) * result.topAgeProbabilities[j] / sum;
+    }
+    result.age = (float) age;
+  }
+
+  /**
+   * Keeps the most probable bins in {@code result} in order of decreasing probability. A
+   * partial insertion selection: each bin costs one comparison unless it enters the short top-k
+   * list. Equal probabilities keep the lower bin first.
+   */
+  static void selectTopAgeBins(float[] probabilities, AgeGenderResult result) {
+    final int[] bins = result.topAgeBins;
+    final float[] probs = result.topAgeProbabilities;
+    final int k = bins.length;
+    int count = 0;
+    for (int bin = 0; bin < probabilities.length; ++bin) {
+      final float p = probabilities[bin];
+      if (count == k && p <= probs[k - 1]) {
+        continue;
+      }
+      int pos = count < k ? count++ : k - 1;
+      while (pos > 0 && probs[pos - 1] < p) {
+        probs[pos] = probs[pos - 1];
+        bins[pos] = bins[pos - 1];
+        --pos;
+      }
+      probs[pos] = p;
+      bins[pos] = bin;
+    }
+    result.topK = count;
+  }
+}
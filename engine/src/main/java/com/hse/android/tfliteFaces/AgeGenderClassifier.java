@@ -0,0 +1,331 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Classifies images with Tensorflow Lite.
+ *
+ * <p>In quantized mode the model takes uint8 RGB values, so the input buffer is four times
+ * smaller and needs no float conversion: the mean-subtracted values of the float model are
+ * quantized through a lookup table per channel. The uint8 outputs are dequantized before
+ * decoding. Scales and zero points are read from the model file.
+ */
+public class AgeGenderClassifier extends AbstractFaceAttributeEngine {
+
+  /** Tag of the log messages. */
+  private static final String TAG = "AgeGenderClassifier";
+
+  private static final int DIM_PIXEL_SIZE = 3;
+
+  /** Channel means subtracted from the RGB values, which the model was trained with. */
+  private static final float[] MEAN_RGB = {123.68f, 116.779f, 103.939f};
+
+  /** Whether the model takes uint8 input and produces uint8 outputs. */
+  private final boolean quantized;
+
+  /** The quantized input value of every channel value, in R, G, B order; null for floats. */
+  private final byte[][] inputTable;
+
+  /** Quantization of the age, gender and feature outputs; null for the float model. */
+  private final TfLiteQuantization[] outputQuantization;
+
+  /** An instance of the driver class to run model inference with Tensorflow Lite. */
+  protected Interpreter tflite;
+
+  /**
+   * A ByteBuffer to hold image data, to be feed into Tensorflow Lite as inputs. Holds up to
+   * {@link #getMaxBatchSize()} images one after another.
+   */
+  protected ByteBuffer imgData = null;
+
+  private final DirectInputBuffer input;
+
+  /** One converted row of the image, staged before the bulk copy into {@link #imgData}. */
+  private final float[] rowValues = new float[getImageSizeX() * DIM_PIXEL_SIZE];
+
+  /** One row of raw RGB bytes of the quantized input. */
+  private final byte[] rowBytes = new byte[getImageSizeX() * DIM_PIXEL_SIZE];
+
+  /** Output arrays of every batch size, since Tensorflow Lite copies outputs by exact shape. */
+  private final List<Map<Integer, Object>> batchOutputs;
+
+  /** Input shape of every batch size, and the input array, reused by every interpreter call. */
+  private final int[][] inputShapes;
+  private final Object[] inputs = new Object[1];
+
+  private float[][] ageProbArray = null;
+  private float[][] genderSigmoidArray = null;
+  private float[][] featuresArray = null;
+  private Map<Integer, Object> cnnOutputs = null;
+  private int inputBatchSize = 1;
+
+  /**
+   * Initializes the classifier outside of Android, from the model files in a directory, e.g. a
+   * copy of the assets.
+   *
+   * @param quantized true to load the uint8 model
+   */
+  AgeGenderClassifier(File modelDirectory, boolean quantized) throws IOException {
+    this(loadModelFile(new File(modelDirectory, modelPath(quantized))), quantized, 0);
+  }
+
+  /**
+   * Initializes the classifier from a model that is already mapped, e.g. shared by the instances
+   * of an {@link InterpreterPool}.
+   *
+   * @param numThreads the number of threads of the interpreter, or 0 for its default
+   */
+  AgeGenderClassifier(MappedByteBuffer model, boolean quantized, int numThreads) {
+    super(TAG);
+    this.quantized = quantized;
+    // Read first, so that a model without uint8 tensors fails before an interpreter exists.
+    if (quantized) {
+      TfLiteQuantization inputQuantization = TfLiteQuantization.ofInput(model, 0);
+      inputTable = new byte[DIM_PIXEL_SIZE][];
+      for (int c = 0; c < DIM_PIXEL_SIZE; ++c) {
+        inputTable[c] = inputQuantization.quantizeTable(MEAN_RGB[c]);
+      }
+      outputQuantization = new TfLiteQuantization[3];
+      for (int i = 0; i < outputQuantization.length; ++i) {
+        outputQuantization[i] = TfLiteQuantization.ofOutput(model, i);
+      }
+      logInfo("Quantized input " + inputQuantization + ", age output "
+          + outputQuantization[0] + ", gender output " + outputQuantization[1]
+          + ", feature output " + outputQuantization[2]);
+      // dequantized outputs, shared by all batch sizes
+      ageProbArray = new float[getMaxBatchSize()][100];
+      genderSigmoidArray = new float[getMaxBatchSize()][1];
+      featuresArray = new float[getMaxBatchSize()][1024];
+    } else {
+      inputTable = null;
+      outputQuantization = null;
+    }
+    tflite = new Interpreter(model);
+    if (numThreads > 0) {
+      tflite.setNumThreads(numThreads);
+    }
+    input = new DirectInputBuffer(getBytesPerImage(), getMaxBatchSize());
+    imgData = input.getBuffer();
+    // One slot per batch size, filled on first use.
+    batchOutputs =
+        new ArrayList<>(Collections.<Map<Integer, Object>>nCopies(getMaxBatchSize() + 1, null));
+    inputShapes = new int[getMaxBatchSize() + 1][];
+    if (isDebugLogging()) {
+      logDebug("Created a Tensorflow Lite Image Classifier.");
+    }
+  }
+
+  private int getBytesPerImage() {
+    return getImageSizeX() * getImageSizeY() * DIM_PIXEL_SIZE * getNumBytesPerChannel();
+  }
+
+  /** Closes tflite to release resources. */
+  @Override
+  public void close() {
+    tflite.close();
+    tflite = null;
+  }
+
+  @Override
+  protected boolean isInitialized() {
+    return tflite != null;
+  }
+
+  @Override
+  protected void prepareBatch(int batchSize) {
+    if (batchOutputs.get(batchSize) == null) {
+      Map<Integer, Object> outputs = new HashMap<>();
+      if (quantized) {
+        outputs.put(0, new byte[batchSize][100]);
+        outputs.put(1, new byte[batchSize][1]);
+        outputs.put(2, new byte[batchSize][1024]);
+      } else {
+        //age
+        outputs.put(0, new float[batchSize][100]);
+        //gender
+        outputs.put(1, new float[batchSize][1]);
+        //features
+        outputs.put(2, new float[batchSize][1024]);
+      }
+      batchOutputs.set(batchSize, outputs);
+    }
+    cnnOutputs = batchOutputs.get(batchSize);
+    if (!quantized) {
+      ageProbArray = (float[][]) cnnOutputs.get(0);
+      genderSigmoidArray = (float[][]) cnnOutputs.get(1);
+      featuresArray = (float[][]) cnnOutputs.get(2);
+    }
+    if (batchSize != inputBatchSize) {
+      if (inputShapes[batchSize] == null) {
+        inputShapes[batchSize] =
+            new int[] {batchSize, getImageSizeY(), getImageSizeX(), DIM_PIXEL_SIZE};
+      }
+      tflite.resizeInput(0, inputShapes[batchSize]);
+      inputBatchSize = batchSize;
+    }
+  }
+
+  /**
+   * Writes Image data into a {@code ByteBuffer}. Every row is converted into {@link #rowValues}
+   * by {@link #convertRow} and then bulk-copied through a {@link FloatBuffer} view.
+   */
+  @Override
+  protected void convertPixelsToInput(int[] pixels, int batchIndex) {
+    if (imgData == null) {
+      return;
+    }
+    final int width = getImageSizeX();
+    long startTime = uptimeMillis();
+    if (quantized) {
+      ByteBuffer byteValues = input.bytesAt(batchIndex);
+      for (int y = 0; y < getImageSizeY(); ++y) {
+        convertRowQuantized(pixels, y * width, width, rowBytes);
+        byteValues.put(rowBytes);
+      }
+    } else {
+      FloatBuffer floatValues = input.floatsAt(batchIndex);
+      // Convert the image to floating point.
+      for (int y = 0; y < getImageSizeY(); ++y) {
+        convertRow(pixels, y * width, width, rowValues);
+        floatValues.put(rowValues);
+      }
+    }
+    long endTime = uptimeMillis();
+    if (isDebugLogging()) {
+      logDebug("Timecost to put values into ByteBuffer: " + (endTime - startTime));
+    }
+  }
+
+  @Override
+  protected float[] getAgeProbabilities(int batchIndex) {
+    return ageProbArray[batchIndex];
+  }
+
+  @Override
+  protected float getGenderProbability(int batchIndex) {
+    return genderSigmoidArray[batchIndex][0];
+  }
+
+  @Override
+  protected float[] getFeatures(int batchIndex) {
+    return featuresArray[batchIndex];
+  }
+
+  protected String getModelPath() {
+    return modelPath(quantized);
+  }
+
+  /** The model file in the assets. */
+  static String modelPath(boolean quantized) {
+    //return "mobilenet_quant_v1_224.tflite";
+    if (quantized) {
+      return "age_gender_tf2_new-01-0.14-0.92_quant.tflite";
+    }
+    return "age_gender_tf2_new-01-0.14-0.92.tflite";
+  }
+
+  /**
+   * Get the number of bytes that is used to store a single color channel value.
+   *
+   * @return
+   */
+  protected int getNumBytesPerChannel() {
+    // the quantized model uses a single byte only
+    // a 32bit float value requires 4 bytes
+    return quantized ? 1 : 4;
+  }
+
+  /**
+   * Converts one row of ARGB pixels into normalized RGB values. Called once per row, so
+   * subclasses can supply their own normalization without a virtual call per pixel.
+   *
+   * @param pixels ARGB pixels of the whole image
+   * @param offset index of the first pixel of the row
+   * @param width number of pixels in the row
+   * @param dst receives {@code width * 3} values in R, G, B order
+   */
+  protected void convertRow(int[] pixels, int offset, int width, float[] dst) {
+    for (int x = 0, d = 0; x < width; ++x, d += DIM_PIXEL_SIZE) {
+      final int val = pixels[offset + x];
+      dst[d] = ((val >> 16) & 0xFF) - MEAN_RGB[0];
+      dst[d + 1] = ((val >> 8) & 0xFF) - MEAN_RGB[1];
+      dst[d + 2] = (val & 0xFF) - MEAN_RGB[2];
+    }
+  }
+
+  /**
+   * Converts one row of ARGB pixels into the quantized mean-subtracted RGB values of the model
+   * input, like {@link #convertRow} followed by the input quantization.
+   */
+  protected void convertRowQuantized(int[] pixels, int offset, int width, byte[] dst) {
+    final byte[] red = inputTable[0];
+    final byte[] green = inputTable[1];
+    final byte[] blue = inputTable[2];
+    for (int x = 0, d = 0; x < width; ++x, d += DIM_PIXEL_SIZE) {
+      final int val = pixels[offset + x];
+      dst[d] = red[(val >> 16) & 0xFF];
+      dst[d + 1] = green[(val >> 8) & 0xFF];
+      dst[d + 2] = blue[val & 0xFF];
+    }
+  }
+
+  /**
+   * Run inference using the prepared input in {@link #imgData}. Afterwards, the result will be
+   * provided by getProbability().
+   *
+   * <p>This additional method is necessary, because we don't have a common base for different
+   * primitive data types.
+   */
+  @Override
+  protected void runInference(int batchSize) {
+    runInference(input.forBatch(batchSize), batchSize);
+  }
+
+  /** The float model takes mean-subtracted RGB; the quantized one quantized bytes. */
+  @Override
+  public int getDirectInputOrder() {
+    return quantized ? INPUT_NONE : INPUT_RGB;
+  }
+
+  @Override
+  protected void runInference(ByteBuffer batchInput, int batchSize) {
+    inputs[0] = batchInput;
+    tflite.runForMultipleInputsOutputs(inputs, cnnOutputs);
+    if (quantized) {
+      byte[][] ageBytes = (byte[][]) cnnOutputs.get(0);
+      byte[][] genderBytes = (byte[][]) cnnOutputs.get(1);
+      byte[][] featureBytes = (byte[][]) cnnOutputs.get(2);
+      for (int i = 0; i < batchSize; ++i) {
+        outputQuantization[0].dequantize(ageBytes[i], ageProbArray[i]);
+        outputQuantization[1].dequantize(genderBytes[i], genderSigmoidArray[i]);
+        outputQuantization[2].dequantize(featureBytes[i], featuresArray[i]);
+      }
+    }
+  }
+}
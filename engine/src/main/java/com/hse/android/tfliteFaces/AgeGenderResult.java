@@ -0,0 +1,207 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+/**
+ * Decoded prediction for one face. Instances are mutable and meant to be reused from frame to
+ * frame, e.g. through a {@link Pool}, so that decoding does not allocate; the text for the UI
+ * is only built by {@link #appendTo(StringBuilder)} when it is shown.
+ */
+public final class AgeGenderResult {
+
+  /** Number of the most probable age bins kept by default. */
+  static final int DEFAULT_TOP_K = 2;
+
+  /** Gender sigmoid threshold above which a face is reported as male. */
+  static final float MALE_THRESHOLD = 0.6f;
+
+  /** Number of one year age bins predicted by the model. */
+  static final int AGE_BINS = 100;
+
+  /** Length of the face descriptor produced by the model. */
+  static final int FEATURE_SIZE = 1024;
+
+  /** Expected age over the {@link #topK} most probable age bins. */
+  float age;
+
+  /** Age bins in order of decreasing probability; bin {@code i} covers ages {@code [i, i+1)}. */
+  final int[] topAgeBins;
+
+  /** Probabilities of {@link #topAgeBins}. */
+  final float[] topAgeProbabilities;
+
+  /** Number of valid entries in {@link #topAgeBins}. */
+  int topK;
+
+  /** Probabilities of all age bins, or null if they are not kept. */
+  float[] ageProbabilities;
+
+  /** Gender sigmoid; close to 1 for male faces. */
+  float genderProbability;
+
+  /** L2-normalized face descriptor, or null if the features are not kept. */
+  float[] features;
+
+  /** Time cost of the interpreter call that produced this result, in milliseconds. */
+  long inferenceTimeMs;
+
+  /** Number of faces classified together in that interpreter call. */
+  int batchSize;
+
+  /** Creates a result that keeps the top {@link #DEFAULT_TOP_K} age bins and no features. */
+  public AgeGenderResult() {
+    this(DEFAULT_TOP_K, 0);
+  }
+
+  /**
+   * @param maxTopK number of the most probable age bins to keep
+   * @param featureSize length of the face descriptor to keep, or 0 to drop it
+   */
+  public AgeGenderResult(int maxTopK, int featureSize) {
+    this(maxTopK, featureSize, 0);
+  }
+
+  /**
+   * @param maxTopK number of the most probable age bins to keep
+   * @param featureSize length of the face descriptor to keep, or 0 to drop it
+   * @param ageBins number of age bin probabilities to keep, or 0 to keep only the top ones
+   */
+  public AgeGenderResult(int maxTopK, int featureSize, int ageBins) {
+    topAgeBins = new int[maxTopK];
+    topAgeProbabilities = new float[maxTopK];
+    features = featureSize > 0 ? new float[featureSize] : null;
+    ageProbabilities = ageBins > 0 ? new float[ageBins] : null;
+  }
+
+  public int getAge() {
+    return Math.round(age);
+  }
+
+  public float getExpectedAge() {
+    return age;
+  }
+
+  public int getTopK() {
+    return topK;
+  }
+
+  public int getTopAgeBin(int rank) {
+    return topAgeBins[rank];
+  }
+
+  public float getTopAgeProbability(int rank) {
+    return topAgeProbabilities[rank];
+  }
+
+  public float getGenderProbability() {
+    return genderProbability;
+  }
+
+  public boolean isMale() {
+    return genderProbability >= MALE_THRESHOLD;
+  }
+
+  /** Probabilities of all age bins, or null if they are not kept. */
+  public float[] getAgeProbabilities() {
+    return ageProbabilities;
+  }
+
+  /** The normalized face descriptor, or null if it is not kept. */
+  public float[] getFeatures() {
+    return features;
+  }
+
+  public long getInferenceTimeMs() {
+    return inferenceTimeMs;
+  }
+
+  /** Copies all fields of {@code other} into this result. */
+  void set(AgeGenderResult other) {
+    age = other.age;
+    topK = Math.min(other.topK, topAgeBins.length);
+    System.arraycopy(other.topAgeBins, 0, topAgeBins, 0, topK);
+    System.arraycopy(other.topAgeProbabilities, 0, topAgeProbabilities, 0, topK);
+    genderProbability = other.genderProbability;
+    features = copyOf(other.features, features);
+    ageProbabilities = copyOf(other.ageProbabilities, ageProbabilities);
+    inferenceTimeMs = other.inferenceTimeMs;
+    batchSize = other.batchSize;
+  }
+
+  /** Copies {@code src} into {@code dst}, reallocating it only if the lengths differ. */
+  private static float[] copyOf(float[] src, float[] dst) {
+    if (src == null) {
+      return null;
+    }
+    if (dst == null || dst.length != src.length) {
+      dst = new float[src.length];
+    }
+    System.arraycopy(src, 0, dst, 0, src.length);
+    return dst;
+  }
+
+  /** Appends the text shown in the UI, e.g. {@code "12ms age=25 female"}. */
+  public StringBuilder appendTo(StringBuilder str) {
+    str.append(inferenceTimeMs).append("ms");
+    if (batchSize > 1) {
+      str.append('/').append(batchSize);
+    }
+    str.append(" age=").append(getAge());
+    str.append(isMale() ? " male" : " female");
+    return str;
+  }
+
+  @Override
+  public String toString() {
+    return appendTo(new StringBuilder()).toString();
+  }
+
+  /** A thread-safe free list of results, so the frame loop does not allocate them. */
+  public static final class Pool {
+    private final int maxTopK;
+    private final int featureSize;
+    private AgeGenderResult[] free;
+    private int size = 0;
+
+    /**
+     * @param capacity number of released results kept for reuse
+     * @param maxTopK number of age bins kept by every result
+     * @param featureSize length of the face descriptor kept by every result, or 0
+     */
+    public Pool(int capacity, int maxTopK, int featureSize) {
+      this.maxTopK = maxTopK;
+      this.featureSize = featureSize;
+      free = new AgeGenderResult[capacity];
+    }
+
+    /** Returns a released result, or a new one if there is none. */
+    public synchronized AgeGenderResult acquire() {
+      if (size == 0) {
+        return new AgeGenderResult(maxTopK, featureSize);
+      }
+      AgeGenderResult result = free[--size];
+      free[size] = null;
+      return result;
+    }
+
+    /** Hands a result back for reuse; it is dropped if the pool is full. */
+    public synchronized void release(AgeGenderResult result) {
+      if (size < free.length) {
+        free[size++] = result;
+      }
+    }
+  }
+}
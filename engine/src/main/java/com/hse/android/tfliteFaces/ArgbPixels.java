@@ -0,0 +1,44 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+/** A face crop as packed ARGB pixels in a Java array. */
+final class ArgbPixels implements PixelSource {
+  final int width;
+  final int height;
+  final int[] pixels;
+
+  ArgbPixels(int width, int height) {
+    this.width = width;
+    this.height = height;
+    pixels = new int[width * height];
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public void getPixels(int[] dst) {
+    System.arraycopy(pixels, 0, dst, 0, pixels.length);
+  }
+}
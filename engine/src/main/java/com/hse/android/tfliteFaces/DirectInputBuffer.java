@@ -0,0 +1,75 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A native-order direct buffer that holds the model inputs of a whole batch back to back.
+ * Tensorflow Lite copies a direct {@code ByteBuffer} into the input tensor with a single
+ * {@code memcpy}, unlike Java arrays that are walked element by element.
+ */
+final class DirectInputBuffer {
+
+  private final ByteBuffer buffer;
+  private final FloatBuffer floatView;
+  private final int bytesPerImage;
+
+  /** Views of the first {@code N} images, indexed by the batch size N. */
+  private final ByteBuffer[] batchViews;
+
+  DirectInputBuffer(int bytesPerImage, int maxBatchSize) {
+    this.bytesPerImage = bytesPerImage;
+    buffer = ByteBuffer.allocateDirect(bytesPerImage * maxBatchSize);
+    buffer.order(ByteOrder.nativeOrder());
+    floatView = buffer.asFloatBuffer();
+    batchViews = new ByteBuffer[maxBatchSize + 1];
+    for (int batchSize = 1; batchSize <= maxBatchSize; ++batchSize) {
+      ByteBuffer duplicate = buffer.duplicate();
+      duplicate.position(0);
+      duplicate.limit(batchSize * bytesPerImage);
+      batchViews[batchSize] = duplicate.slice().order(ByteOrder.nativeOrder());
+    }
+  }
+
+  /** The whole buffer. */
+  ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /** Positions the byte buffer at the first byte of the image at {@code batchIndex}. */
+  ByteBuffer bytesAt(int batchIndex) {
+    buffer.position(batchIndex * bytesPerImage);
+    return buffer;
+  }
+
+  /** Positions the float view at the first value of the image at {@code batchIndex}. */
+  FloatBuffer floatsAt(int batchIndex) {
+    floatView.position(batchIndex * bytesPerImage / 4);
+    return floatView;
+  }
+
+  /**
+   * Returns a buffer that covers exactly the first {@code batchSize} images, as Tensorflow Lite
+   * checks its size against the input tensor. The views are created with the buffer, so that
+   * asking for one never allocates.
+   */
+  ByteBuffer forBatch(int batchSize) {
+    return batchViews[batchSize];
+  }
+}
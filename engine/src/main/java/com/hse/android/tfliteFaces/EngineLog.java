@@ -0,0 +1,33 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+/**
+ * Receives the messages of the engines, which use no Android classes: the app routes them to
+ * logcat, and otherwise they go to {@code java.util.logging}. Installed with {@link
+ * AbstractFaceAttributeEngine#setLog(EngineLog)}.
+ */
+public interface EngineLog {
+
+  /** Whether debug messages of {@code tag} are logged, so that they are only built if they are. */
+  boolean isDebugEnabled(String tag);
+
+  void debug(String tag, String message);
+
+  void info(String tag, String message);
+
+  void error(String tag, String message);
+}
@@ -0,0 +1,83 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Predicts age, gender and a face descriptor for a single face crop. On Android, implementations
+ * are created through {@code FaceAttributeBackend}, so the inference library can be chosen at
+ * runtime.
+ *
+ * <p>Faces are passed as {@link PixelSource}s and no Android classes are used, so that the engines
+ * also run on a desktop JVM; the app wraps its bitmaps in {@code BitmapPixels}.
+ */
+public interface FaceAttributeEngine {
+
+  /** {@link #getDirectInputOrder()} of engines that only classify pixels. */
+  int INPUT_NONE = 0;
+
+  /** Mean-subtracted float input in R, G, B order. */
+  int INPUT_RGB = 1;
+
+  /** Mean-subtracted float input in B, G, R order. */
+  int INPUT_BGR = 2;
+
+  /**
+   * Classifies a face crop of {@link #getImageSizeX()} x {@link #getImageSizeY()} pixels.
+   *
+   * @param result receives the prediction
+   * @return false if the classifier is not initialized
+   */
+  boolean classifyFace(PixelSource face, AgeGenderResult result);
+
+  /**
+   * Classifies all face crops of a frame, batching them into as few interpreter calls as
+   * possible.
+   *
+   * @param faces face crops of {@link #getImageSizeX()} x {@link #getImageSizeY()} pixels
+   * @param results receives the prediction for every face, in the order of {@code faces}; must
+   *     hold at least as many results as there are faces
+   * @return false if the classifier is not initialized
+   */
+  boolean classifyPixels(List<? extends PixelSource> faces, List<AgeGenderResult> results);
+
+  /**
+   * The channel order of the input that {@link #classifyInput} takes, or {@link #INPUT_NONE} if
+   * it only classifies pixels.
+   */
+  int getDirectInputOrder();
+
+  /**
+   * Classifies faces whose model input was already written, e.g. by the app's {@code
+   * FaceInputWriter}.
+   *
+   * @param input native-order floats of {@code count} faces of {@link #getImageSizeX()} x {@link
+   *     #getImageSizeY()} pixels back to back, mean-subtracted in {@link #getDirectInputOrder()}
+   * @return false if the classifier is not initialized or takes no direct input
+   */
+  boolean classifyInput(ByteBuffer input, int count, List<AgeGenderResult> results);
+
+  /** Get the image size along the x axis. */
+  int getImageSizeX();
+
+  /** Get the image size along the y axis. */
+  int getImageSizeY();
+
+  /** Releases the resources of the underlying interpreter. */
+  void close();
+}
@@ -0,0 +1,173 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A {@link FaceAttributeEngine} that can be called from several threads at once. Every caller
+ * checks out an engine of its own, with its own interpreter and input and output buffers, and
+ * all of them run the one memory-mapped model, so an extra thread costs the interpreter's tensors
+ * but not another copy of the weights.
+ *
+ * <p>The number of interpreter threads is set per instance: on a device with few cores, more
+ * classification threads with one interpreter thread each overlap the Java work of one batch
+ * with the inference of another, while a single classification thread with several interpreter
+ * threads gives a lower latency per batch.
+ *
+ * <p>Long-lived threads, such as the classification workers of the app's {@code
+ * FaceAnalysisPipeline}, {@link #acquire} an engine when they start and {@link #release} it when
+ * they stop, so that the threads of a pipeline that is rebuilt on every resume reuse the engines
+ * of the previous ones. The classification methods of the pool itself check an engine out for
+ * the one call. Engines are only created when all are checked out, and live until the pool is
+ * closed.
+ */
+final class InterpreterPool implements FaceAttributeEngine {
+
+  /** Creates an engine around the shared model. */
+  interface InstanceFactory {
+    /** @param numThreads the number of threads of the interpreter, or 0 for its default */
+    FaceAttributeEngine create(MappedByteBuffer model, int numThreads);
+  }
+
+  private final MappedByteBuffer model;
+  private final int numThreads;
+  private final InstanceFactory factory;
+
+  /** Every instance created so far, closed with the pool. */
+  private final List<FaceAttributeEngine> instances = new ArrayList<>();
+
+  /** The instances that are not checked out. */
+  private final Deque<FaceAttributeEngine> free = new ArrayDeque<>();
+
+  /** The instance created with the pool, which also answers for the pool's sizes and order. */
+  private final FaceAttributeEngine first;
+
+  private boolean closed = false;
+
+  /**
+   * Creates the pool and its first instance, which also checks that the model loads.
+   *
+   * @param numThreads the number of threads of every interpreter, or 0 for its default
+   */
+  InterpreterPool(MappedByteBuffer model, int numThreads, InstanceFactory factory) {
+    this.model = model;
+    this.numThreads = numThreads;
+    this.factory = factory;
+    first = factory.create(model, numThreads);
+    instances.add(first);
+    free.push(first);
+  }
+
+  /**
+   * Checks out an engine for the calling thread, creating one if all are checked out. The engine
+   * is not used by anyone else until it is returned with {@link #release}.
+   */
+  synchronized FaceAttributeEngine acquire() {
+    if (closed) {
+      // The closed engine rejects every call like a closed classifier does.
+      return first;
+    }
+    FaceAttributeEngine instance = free.poll();
+    if (instance == null) {
+      instance = factory.create(model, numThreads);
+      instances.add(instance);
+    }
+    return instance;
+  }
+
+  /** Returns an engine checked out with {@link #acquire}. */
+  synchronized void release(FaceAttributeEngine instance) {
+    if (!closed) {
+      free.push(instance);
+    }
+  }
+
+  /** Number of engines created so far. */
+  synchronized int getInstanceCount() {
+    return instances.size();
+  }
+
+  int getNumThreads() {
+    return numThreads;
+  }
+
+  @Override
+  public boolean classifyFace(PixelSource face, AgeGenderResult result) {
+    FaceAttributeEngine instance = acquire();
+    try {
+      return instance.classifyFace(face, result);
+    } finally {
+      release(instance);
+    }
+  }
+
+  @Override
+  public boolean classifyPixels(List<? extends PixelSource> faces, List<AgeGenderResult> results) {
+    FaceAttributeEngine instance = acquire();
+    try {
+      return instance.classifyPixels(faces, results);
+    } finally {
+      release(instance);
+    }
+  }
+
+  @Override
+  public int getDirectInputOrder() {
+    return first.getDirectInputOrder();
+  }
+
+  @Override
+  public boolean classifyInput(ByteBuffer input, int count, List<AgeGenderResult> results) {
+    FaceAttributeEngine instance = acquire();
+    try {
+      return instance.classifyInput(input, count, results);
+    } finally {
+      release(instance);
+    }
+  }
+
+  @Override
+  public int getImageSizeX() {
+    return first.getImageSizeX();
+  }
+
+  @Override
+  public int getImageSizeY() {
+    return first.getImageSizeY();
+  }
+
+  /**
+   * Closes the interpreters of all threads. Must not race with classification; closing twice
+   * does nothing.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    free.clear();
+    for (FaceAttributeEngine instance : instances) {
+      instance.close();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+/**
+ * A face crop as ARGB pixels. Lets the engines classify images that are not {@code Bitmap}s, such
+ * as images decoded with OpenCV on a desktop JVM.
+ */
+public interface PixelSource {
+
+  int getWidth();
+
+  int getHeight();
+
+  /** Copies the pixels into {@code dst} row by row, as {@code 0xAARRGGBB} values. */
+  void getPixels(int[] dst);
+}
@@ -0,0 +1,358 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Classifies images with Tensorflow Lite.
+ *
+ * <p>By default the BGR input is written row by row into a reused {@link DirectInputBuffer} that
+ * the interpreter copies into its input tensor in one block. The original nested
+ * {@code float[N][224][224][3]} input is kept for comparison; Tensorflow Lite has to walk it
+ * element by element on every run.
+ *
+ * <p>In quantized mode the uint8 model is fed BGR bytes from the direct buffer, quantized through
+ * a lookup table per channel, and its outputs are dequantized before decoding, like the quantized
+ * mode of {@link AgeGenderClassifier}.
+ */
+public class TfLiteImageClassifier extends AbstractFaceAttributeEngine {
+
+  /** Tag of the log messages. */
+  private static final String TAG = "TfLiteCameraDemo";
+
+  private static final int inputSize = 224;
+
+  private static final int DIM_PIXEL_SIZE = 3;
+
+  /** Channel means subtracted from the BGR values, which the model was trained with. */
+  private static final float[] MEAN_BGR = {103.939f, 116.779f, 123.68f};
+
+  /* Preallocated buffers for storing image data in. */
+  private float[][] age_outputs = null;
+  private float[][] gender_outputs = null;
+  private float[][] feature_outputs = null;
+  private Map<Integer, Object> outputMap = null;
+
+  /** Output arrays of every batch size, since Tensorflow Lite copies outputs by exact shape. */
+  private final List<Map<Integer, Object>> batchOutputs;
+
+  /** Input shape of every batch size, and the input array, reused by every interpreter call. */
+  private final int[][] inputShapes;
+  private final Object[] inputArray = new Object[1];
+
+  /** Whether the input is fed from {@link #input} or from {@link #img}. */
+  private final boolean useDirectBuffer;
+
+  /** Whether the model takes uint8 input and produces uint8 outputs. */
+  private final boolean quantized;
+
+  /** The quantized input value of every channel value, in B, G, R order; null for floats. */
+  private final byte[][] inputTable;
+
+  /** Quantization of the age, gender and feature outputs; null for the float model. */
+  private final TfLiteQuantization[] outputQuantization;
+
+  private final DirectInputBuffer input;
+
+  /** One BGR row of the face, bulk-copied into {@link #input}. */
+  private final float[] rowValues = new float[inputSize * DIM_PIXEL_SIZE];
+
+  /** One row of quantized BGR bytes of the quantized input. */
+  private final byte[] rowBytes = new byte[inputSize * DIM_PIXEL_SIZE];
+
+  private float[][][][] img = null;
+
+  private int inputBatchSize = 1;
+
+  /** Time spent on filling the input and handing it to the interpreter for the last batch. */
+  private long inputCopyNanos = 0;
+
+  /** An instance of the driver class to run model inference with Tensorflow Lite. */
+  protected Interpreter tflite;
+
+  /**
+   * Initializes the classifier for the float model from a model that is already mapped, e.g.
+   * shared by the instances of an {@link InterpreterPool}.
+   *
+   * @param useDirectBuffer false to feed the model from a nested Java array
+   * @param numThreads the number of threads of the interpreter, or 0 for its default
+   */
+  TfLiteImageClassifier(MappedByteBuffer model, boolean useDirectBuffer, int numThreads) {
+    this(model, useDirectBuffer, false, numThreads);
+  }
+
+  /**
+   * Initializes the classifier from a model that is already mapped.
+   *
+   * @param useDirectBuffer false to feed the model from a nested Java array
+   * @param quantized true for the uint8 model, which is always fed from the direct buffer
+   * @param numThreads the number of threads of the interpreter, or 0 for its default
+   */
+  TfLiteImageClassifier(
+      MappedByteBuffer model, boolean useDirectBuffer, boolean quantized, int numThreads) {
+    super(TAG);
+    if (quantized && !useDirectBuffer) {
+      throw new IllegalArgumentException("The quantized model is fed from the direct buffer.");
+    }
+    this.useDirectBuffer = useDirectBuffer;
+    this.quantized = quantized;
+    // Read first, so that a model without uint8 tensors fails before an interpreter exists.
+    if (quantized) {
+      TfLiteQuantization inputQuantization = TfLiteQuantization.ofInput(model, 0);
+      inputTable = new byte[DIM_PIXEL_SIZE][];
+      for (int c = 0; c < DIM_PIXEL_SIZE; ++c) {
+        inputTable[c] = inputQuantization.quantizeTable(MEAN_BGR[c]);
+      }
+      outputQuantization = new TfLiteQuantization[3];
+      for (int i = 0; i < outputQuantization.length; ++i) {
+        outputQuantization[i] = TfLiteQuantization.ofOutput(model, i);
+      }
+      // dequantized outputs, shared by all batch sizes
+      age_outputs = new float[getMaxBatchSize()][100];
+      gender_outputs = new float[getMaxBatchSize()][1];
+      feature_outputs = new float[getMaxBatchSize()][1024];
+    } else {
+      inputTable = null;
+      outputQuantization = null;
+    }
+    tflite = new Interpreter(model);
+    if (numThreads > 0) {
+      tflite.setNumThreads(numThreads);
+    }
+    // One slot per batch size, filled on first use.
+    batchOutputs =
+        new ArrayList<>(Collections.<Map<Integer, Object>>nCopies(getMaxBatchSize() + 1, null));
+    inputShapes = new int[getMaxBatchSize() + 1][];
+    if (useDirectBuffer) {
+      int bytesPerChannel = quantized ? 1 : 4;
+      input =
+          new DirectInputBuffer(
+              inputSize * inputSize * DIM_PIXEL_SIZE * bytesPerChannel, getMaxBatchSize());
+    } else {
+      input = null;
+      img = new float[1][inputSize][inputSize][DIM_PIXEL_SIZE];
+    }
+    logDebug("Created a Tensorflow Lite Image Classifier.");
+  }
+
+  /** Closes tflite to release resources. */
+  @Override
+  public void close() {
+    tflite.close();
+    tflite = null;
+  }
+
+  @Override
+  protected boolean isInitialized() {
+    return tflite != null;
+  }
+
+  /**
+   * Time spent in the last batch on converting the pixels and on the Java side of the
+   * interpreter call, i.e. everything except the native inference itself.
+   */
+  long getInputCopyNanos() {
+    return inputCopyNanos;
+  }
+
+  @Override
+  protected void prepareBatch(int batchSize) {
+    inputCopyNanos = 0;
+    if (batchOutputs.get(batchSize) == null) {
+      Map<Integer, Object> outputs = new HashMap<>();
+      if (quantized) {
+        outputs.put(0, new byte[batchSize][100]);
+        outputs.put(1, new byte[batchSize][1]);
+        outputs.put(2, new byte[batchSize][1024]);
+      } else {
+        outputs.put(0, new float[batchSize][100]);
+        outputs.put(1, new float[batchSize][1]);
+        outputs.put(2, new float[batchSize][1024]);
+      }
+      batchOutputs.set(batchSize, outputs);
+    }
+    outputMap = batchOutputs.get(batchSize);
+    if (!quantized) {
+      age_outputs = (float[][]) outputMap.get(0);
+      gender_outputs = (float[][]) outputMap.get(1);
+      feature_outputs = (float[][]) outputMap.get(2);
+    }
+    if (!useDirectBuffer && img.length != batchSize) {
+      img = new float[batchSize][inputSize][inputSize][DIM_PIXEL_SIZE];
+    }
+    if (batchSize != inputBatchSize) {
+      if (inputShapes[batchSize] == null) {
+        inputShapes[batchSize] = new int[] {batchSize, inputSize, inputSize, DIM_PIXEL_SIZE};
+      }
+      tflite.resizeInput(0, inputShapes[batchSize]);
+      inputBatchSize = batchSize;
+    }
+  }
+
+  /** Writes Image data into a {@code ByteBuffer}. */
+  @Override
+  protected void convertPixelsToInput(int[] pixels, int batchIndex) {
+    long startTime = System.nanoTime();
+    if (quantized) {
+      convertPixelsToBytes(pixels, batchIndex);
+    } else if (useDirectBuffer) {
+      convertPixelsToBuffer(pixels, batchIndex);
+    } else {
+      convertPixelsToArray(pixels, batchIndex);
+    }
+    inputCopyNanos += System.nanoTime() - startTime;
+  }
+
+  /** Writes the face row by row in memory order, one bulk copy per row. */
+  private void convertPixelsToBuffer(int[] pixels, int batchIndex) {
+    FloatBuffer floatValues = input.floatsAt(batchIndex);
+    int pixel = 0;
+    for (int y = 0; y < inputSize; ++y) {
+      for (int x = 0; x < inputSize; ++x) {
+        final int val = pixels[pixel++];
+        //'RGB'->'BGR'
+        rowValues[x * 3 + 0] = ((val & 0xFF) - 103.939f);
+        rowValues[x * 3 + 1] = (((val >> 8) & 0xFF) - 116.779f);
+        rowValues[x * 3 + 2] = (((val >> 16) & 0xFF) - 123.68f);
+      }
+      floatValues.put(rowValues);
+    }
+  }
+
+  /** Writes the face row by row as quantized BGR bytes, one bulk copy per row. */
+  private void convertPixelsToBytes(int[] pixels, int batchIndex) {
+    ByteBuffer byteValues = input.bytesAt(batchIndex);
+    final byte[] blue = inputTable[0];
+    final byte[] green = inputTable[1];
+    final byte[] red = inputTable[2];
+    int pixel = 0;
+    for (int y = 0; y < inputSize; ++y) {
+      for (int x = 0, d = 0; x < inputSize; ++x, d += DIM_PIXEL_SIZE) {
+        final int val = pixels[pixel++];
+        rowBytes[d] = blue[val & 0xFF];
+        rowBytes[d + 1] = green[(val >> 8) & 0xFF];
+        rowBytes[d + 2] = red[(val >> 16) & 0xFF];
+      }
+      byteValues.put(rowBytes);
+    }
+  }
+
+  private void convertPixelsToArray(int[] pixels, int batchIndex) {
+    float[][][] face = img[batchIndex];
+    for (int i = 0; i < inputSize; ++i) {
+      for (int j = 0; j < inputSize; ++j) {
+        int val = pixels[j * inputSize + i];
+        face[j][i][2] = (((val >> 16) & 0xFF) - 123.68f);
+        face[j][i][1] = (((val >> 8) & 0xFF) - 116.779f);
+        face[j][i][0] = ((val & 0xFF) - 103.939f);
+      }
+    }
+  }
+
+  @Override
+  protected void runInference(int batchSize) {
+    runInterpreter(useDirectBuffer ? input.forBatch(batchSize) : img, batchSize);
+  }
+
+  /** The float model takes mean-subtracted BGR floats; the quantized one quantized bytes. */
+  @Override
+  public int getDirectInputOrder() {
+    return useDirectBuffer && !quantized ? INPUT_BGR : INPUT_NONE;
+  }
+
+  @Override
+  protected void runInference(ByteBuffer batchInput, int batchSize) {
+    runInterpreter(batchInput, batchSize);
+  }
+
+  private void runInterpreter(Object input, int batchSize) {
+    inputArray[0] = input;
+    long startTime = System.nanoTime();
+    tflite.runForMultipleInputsOutputs(inputArray, outputMap);
+    long runTime = System.nanoTime() - startTime;
+    Long nativeTime = tflite.getLastNativeInferenceDurationNanoseconds();
+    if (nativeTime != null) {
+      inputCopyNanos += runTime - nativeTime;
+    }
+    if (quantized) {
+      byte[][] ageBytes = (byte[][]) outputMap.get(0);
+      byte[][] genderBytes = (byte[][]) outputMap.get(1);
+      byte[][] featureBytes = (byte[][]) outputMap.get(2);
+      for (int i = 0; i < batchSize; ++i) {
+        outputQuantization[0].dequantize(ageBytes[i], age_outputs[i]);
+        outputQuantization[1].dequantize(genderBytes[i], gender_outputs[i]);
+        outputQuantization[2].dequantize(featureBytes[i], feature_outputs[i]);
+      }
+    }
+  }
+
+  @Override
+  protected float[] getAgeProbabilities(int batchIndex) {
+    return age_outputs[batchIndex];
+  }
+
+  @Override
+  protected float getGenderProbability(int batchIndex) {
+    return gender_outputs[batchIndex][0];
+  }
+
+  @Override
+  protected float[] getFeatures(int batchIndex) {
+    return feature_outputs[batchIndex];
+  }
+
+  /**
+   * Get the name of the model file stored in Assets.
+   *
+   * @return
+   */
+  protected String getModelPath() {
+    return modelPath(quantized);
+  }
+
+  /** The model file in the assets. */
+  static String modelPath() {
+    // you can download this file from
+    // https://storage.googleapis.com/download.tensorflow.org/models/tflite/mobilenet_v1_224_android_quant_2017_11_08.zip
+    return "age_gender_tf2_new-01-0.14-0.92.tflite";
+    //return "mobilenet_quant_v1_224.tflite";
+  }
+
+  /** The model file in the assets, the uint8 one if {@code quantized}. */
+  static String modelPath(boolean quantized) {
+    return quantized ? "age_gender_tf2_new-01-0.14-0.92_quant.tflite" : modelPath();
+  }
+
+  @Override
+  public int getImageSizeX() {
+    return inputSize;
+  }
+
+  @Override
+  public int getImageSizeY() {
+    return inputSize;
+  }
+}
@@ -0,0 +1,191 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * The quantization of a uint8 tensor, {@code real = scale * (q - zeroPoint)}, read from the
+ * model file itself, since the Java API of Tensorflow Lite 1.0 does not expose it.
+ *
+ * <p>A {@code .tflite} file is a FlatBuffer of the Tensorflow Lite schema: the model holds
+ * subgraphs, the first of which lists its tensors and the indices of its inputs and outputs, and
+ * every tensor has its type and quantization parameters. Only these fields are read, directly
+ * from the mapped file.
+ */
+final class TfLiteQuantization {
+
+  /** {@code TensorType.UINT8} of the schema. */
+  private static final int TYPE_UINT8 = 3;
+
+  // Field indices of the schema tables that are read.
+  private static final int MODEL_SUBGRAPHS = 2;
+  private static final int SUBGRAPH_TENSORS = 0;
+  private static final int SUBGRAPH_INPUTS = 1;
+  private static final int SUBGRAPH_OUTPUTS = 2;
+  private static final int TENSOR_TYPE = 1;
+  private static final int TENSOR_NAME = 3;
+  private static final int TENSOR_QUANTIZATION = 4;
+  private static final int QUANTIZATION_SCALE = 2;
+  private static final int QUANTIZATION_ZERO_POINT = 3;
+
+  final float scale;
+  final int zeroPoint;
+
+  TfLiteQuantization(float scale, int zeroPoint) {
+    this.scale = scale;
+    this.zeroPoint = zeroPoint;
+  }
+
+  /**
+   * Reads the quantization of an input of the model.
+   *
+   * @param model the model file, e.g. the buffer the interpreter was created from; its position
+   *     and byte order are left alone
+   * @param index the index of the input, as passed to the interpreter
+   * @throws IllegalArgumentException if the tensor is not a quantized uint8 tensor
+   */
+  static TfLiteQuantization ofInput(ByteBuffer model, int index) {
+    return new Reader(model).read(SUBGRAPH_INPUTS, index);
+  }
+
+  /** Reads the quantization of an output of the model, like {@link #ofInput}. */
+  static TfLiteQuantization ofOutput(ByteBuffer model, int index) {
+    return new Reader(model).read(SUBGRAPH_OUTPUTS, index);
+  }
+
+  /** Converts uint8 values to real values. */
+  void dequantize(byte[] src, float[] dst) {
+    for (int i = 0; i < src.length; ++i) {
+      dst[i] = scale * ((src[i] & 0xFF) - zeroPoint);
+    }
+  }
+
+  /** Converts a real value to the nearest uint8 value. */
+  byte quantize(float value) {
+    int q = Math.round(value / scale) + zeroPoint;
+    return (byte) Math.max(0, Math.min(255, q));
+  }
+
+  /**
+   * The quantized value of {@code value - mean} for every channel value from 0 to 255, so that a
+   * mean-subtracted input is quantized with one lookup per value.
+   */
+  byte[] quantizeTable(float mean) {
+    byte[] table = new byte[256];
+    for (int value = 0; value < table.length; ++value) {
+      table[value] = quantize(value - mean);
+    }
+    return table;
+  }
+
+  @Override
+  public String toString() {
+    return "scale=" + scale + " zeroPoint=" + zeroPoint;
+  }
+
+  /** Walks the FlatBuffer tables; every position is an absolute index into the buffer. */
+  private static final class Reader {
+
+    private final ByteBuffer buffer;
+
+    Reader(ByteBuffer model) {
+      buffer = model.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    TfLiteQuantization read(int listField, int index) {
+      int root = indirect(0);
+      int subgraphs = vector(root, MODEL_SUBGRAPHS);
+      if (length(subgraphs) == 0) {
+        throw new IllegalArgumentException("The model has no subgraph.");
+      }
+      int subgraph = indirect(subgraphs + 4);
+      int list = vector(subgraph, listField);
+      if (index < 0 || index >= length(list)) {
+        throw new IllegalArgumentException("The model has no tensor " + index + ".");
+      }
+      int tensors = vector(subgraph, SUBGRAPH_TENSORS);
+      int tensorIndex = buffer.getInt(list + 4 + 4 * index);
+      if (tensorIndex < 0 || tensorIndex >= length(tensors)) {
+        throw new IllegalArgumentException("Tensor index " + tensorIndex + " is out of range.");
+      }
+      int tensor = indirect(tensors + 4 + 4 * tensorIndex);
+      String name = string(tensor, TENSOR_NAME);
+      int typeField = field(tensor, TENSOR_TYPE);
+      int type = typeField == 0 ? 0 : buffer.get(typeField);
+      if (type != TYPE_UINT8) {
+        throw new IllegalArgumentException("Tensor " + name + " has type " + type + ", not uint8.");
+      }
+      int quantizationField = field(tensor, TENSOR_QUANTIZATION);
+      int scales = 0;
+      int zeroPoints = 0;
+      if (quantizationField != 0) {
+        int quantization = indirect(quantizationField);
+        scales = vector(quantization, QUANTIZATION_SCALE);
+        zeroPoints = vector(quantization, QUANTIZATION_ZERO_POINT);
+      }
+      if (length(scales) == 0) {
+        throw new IllegalArgumentException("Tensor " + name + " has no quantization.");
+      }
+      // Tensors of the supported models are quantized per tensor, i.e. with a single value.
+      float scale = buffer.getFloat(scales + 4);
+      int zeroPoint = length(zeroPoints) == 0 ? 0 : (int) buffer.getLong(zeroPoints + 4);
+      return new TfLiteQuantization(scale, zeroPoint);
+    }
+
+    /** Follows the unsigned offset stored at {@code position}. */
+    private int indirect(int position) {
+      return position + buffer.getInt(position);
+    }
+
+    /** The position of a field of the table at {@code table}, or 0 if it is not set. */
+    private int field(int table, int field) {
+      int vtable = table - buffer.getInt(table);
+      int vtableSize = buffer.getShort(vtable) & 0xFFFF;
+      int entry = 4 + 2 * field;
+      if (entry >= vtableSize) {
+        return 0;
+      }
+      int offset = buffer.getShort(vtable + entry) & 0xFFFF;
+      return offset == 0 ? 0 : table + offset;
+    }
+
+    /** The position of the length of a vector field, or 0 if it is not set. */
+    private int vector(int table, int field) {
+      int position = field(table, field);
+      return position == 0 ? 0 : indirect(position);
+    }
+
+    /** The length of the vector at {@code vector}, which is 0 for a field that is not set. */
+    private int length(int vector) {
+      return vector == 0 ? 0 : buffer.getInt(vector);
+    }
+
+    private String string(int table, int field) {
+      int position = vector(table, field);
+      if (position == 0) {
+        return "?";
+      }
+      byte[] bytes = new byte[buffer.getInt(position)];
+      for (int i = 0; i < bytes.length; ++i) {
+        bytes[i] = buffer.get(position + 4 + i);
+      }
+      return new String(bytes, Charset.forName("UTF-8"));
+    }
+  }
+}
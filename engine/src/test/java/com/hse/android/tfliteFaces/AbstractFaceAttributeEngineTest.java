@@ -0,0 +1,155 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AbstractFaceAttributeEngineTest {
+
+  /** Side of the faces of the test engine. */
+  private static final int SIZE = 2;
+
+  private static final int BYTES_PER_FACE = SIZE * SIZE * 3 * 4;
+
+  private final RecordingEngine engine = new RecordingEngine();
+
+  @Test
+  public void zeroFacesRunNothing() {
+    assertTrue(engine.classifyInput(faces(1), 0, results(0)));
+    assertEquals(0, engine.capacities.size());
+  }
+
+  @Test
+  public void bufferWithRoomForMoreFacesIsCutToTheFaces() {
+    List<AgeGenderResult> results = results(3);
+    assertTrue(engine.classifyInput(faces(4), 3, results));
+    assertEquals(1, engine.capacities.size());
+    assertEquals(3 * BYTES_PER_FACE, (int) engine.capacities.get(0));
+    assertEquals(0, engine.firstFaces.get(0).intValue());
+    assertEquals(3, results.get(2).batchSize);
+  }
+
+  @Test
+  public void facesBeyondTheLargestBatchAreRunSeparately() {
+    int count = engine.getMaxBatchSize() + 4;
+    assertTrue(engine.classifyInput(faces(count), count, results(count)));
+    assertEquals(2, engine.capacities.size());
+    assertEquals(engine.getMaxBatchSize() * BYTES_PER_FACE, (int) engine.capacities.get(0));
+    assertEquals(4 * BYTES_PER_FACE, (int) engine.capacities.get(1));
+    assertEquals(engine.getMaxBatchSize(), engine.firstFaces.get(1).intValue());
+  }
+
+  @Test
+  public void bufferWithoutRoomForTheFacesIsRejected() {
+    assertFalse(engine.classifyInput(faces(2), 3, results(3)));
+    assertEquals(0, engine.capacities.size());
+  }
+
+  /** Direct input for {@code count} faces whose first value is the index of the face. */
+  private static ByteBuffer faces(int count) {
+    ByteBuffer input = ByteBuffer.allocateDirect(count * BYTES_PER_FACE);
+    input.order(ByteOrder.nativeOrder());
+    for (int i = 0; i < count; ++i) {
+      input.putFloat(i * BYTES_PER_FACE, i);
+    }
+    return input;
+  }
+
+  private static List<AgeGenderResult> results(int count) {
+    List<AgeGenderResult> results = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      results.add(new AgeGenderResult());
+    }
+    return results;
+  }
+
+  /** Takes direct input and records the buffers it is run on. */
+  private static final class RecordingEngine extends AbstractFaceAttributeEngine {
+
+    final List<Integer> capacities = new ArrayList<>();
+    final List<Float> firstFaces = new ArrayList<>();
+    private final float[] ageProbabilities = new float[AgeGenderResult.AGE_BINS];
+    private final float[] features = new float[4];
+
+    RecordingEngine() {
+      super("RecordingEngine");
+      ageProbabilities[30] = 1;
+    }
+
+    @Override
+    public int getImageSizeX() {
+      return SIZE;
+    }
+
+    @Override
+    public int getImageSizeY() {
+      return SIZE;
+    }
+
+    @Override
+    public int getDirectInputOrder() {
+      return INPUT_RGB;
+    }
+
+    @Override
+    protected boolean isInitialized() {
+      return true;
+    }
+
+    @Override
+    protected void prepareBatch(int batchSize) {}
+
+    @Override
+    protected void convertPixelsToInput(int[] pixels, int batchIndex) {}
+
+    @Override
+    protected void runInference(int batchSize) {}
+
+    @Override
+    protected void runInference(ByteBuffer input, int batchSize) {
+      assertEquals(batchSize * BYTES_PER_FACE, input.capacity());
+      capacities.add(input.capacity());
+      firstFaces.add(input.getFloat(0));
+    }
+
+    @Override
+    protected float[] getAgeProbabilities(int batchIndex) {
+      return ageProbabilities;
+    }
+
+    @Override
+    protected float getGenderProbability(int batchIndex) {
+      return 0.5f;
+    }
+
+    @Override
+    protected float[] getFeatures(int batchIndex) {
+      return features;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,221 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the quantization from a hand-built model buffer that holds only the tables and fields
+ * {@link TfLiteQuantization} reads, laid out like the FlatBuffers of a {@code .tflite} file.
+ */
+public class TfLiteQuantizationTest {
+
+  /** {@code TensorType.FLOAT32} and {@code TensorType.UINT8} of the schema. */
+  private static final int FLOAT32 = 0;
+  private static final int UINT8 = 3;
+
+  /** Tensors of the model: its input is the third, its outputs the others. */
+  private static final int AGE = 0;
+  private static final int FEATURES = 1;
+  private static final int INPUT = 2;
+  private static final int UNQUANTIZED = 3;
+
+  private final ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+  private int end;
+
+  @Test
+  public void readsTheQuantizationOfAnInputAndAnOutput() {
+    ByteBuffer model = buildModel();
+    TfLiteQuantization input = TfLiteQuantization.ofInput(model, 0);
+    assertEquals(0.5f, input.scale, 0);
+    assertEquals(128, input.zeroPoint);
+    TfLiteQuantization age = TfLiteQuantization.ofOutput(model, 0);
+    assertEquals(1 / 256f, age.scale, 0);
+    assertEquals(0, age.zeroPoint);
+    // The position and byte order of the model are left alone.
+    assertEquals(0, model.position());
+    assertEquals(ByteOrder.BIG_ENDIAN, model.order());
+  }
+
+  @Test
+  public void rejectsATensorThatIsNotUint8() {
+    assertRejected(buildModel(), 1, "not uint8");
+  }
+
+  @Test
+  public void rejectsATensorWithoutQuantization() {
+    assertRejected(buildModel(), 2, "no quantization");
+  }
+
+  @Test
+  public void rejectsAMissingTensor() {
+    assertRejected(buildModel(), 3, "no tensor 3");
+  }
+
+  @Test
+  public void quantizeRoundsAndClamps() {
+    TfLiteQuantization quantization = new TfLiteQuantization(0.5f, 128);
+    assertEquals((byte) 128, quantization.quantize(0));
+    assertEquals((byte) 149, quantization.quantize(10.3f));
+    assertEquals((byte) 0, quantization.quantize(-100));
+    assertEquals((byte) 255, quantization.quantize(100));
+    float[] values = new float[3];
+    quantization.dequantize(new byte[] {(byte) 128, (byte) 148, 0}, values);
+    assertArrayEquals(new float[] {0, 10, -64}, values, 0);
+    byte[] table = quantization.quantizeTable(100);
+    assertEquals(256, table.length);
+    for (int value = 0; value < table.length; ++value) {
+      assertEquals(quantization.quantize(value - 100), table[value]);
+    }
+  }
+
+  private static void assertRejected(ByteBuffer model, int output, String reason) {
+    try {
+      TfLiteQuantization.ofOutput(model, output);
+      fail("Output " + output + " has no uint8 quantization.");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(reason));
+    }
+  }
+
+  /**
+   * A model with one subgraph of four tensors: the quantized age output, the float feature
+   * output, the quantized input and a uint8 output without quantization parameters.
+   */
+  private ByteBuffer buildModel() {
+    // The root offset and the file identifier.
+    end = 8;
+    putString(4, "TFL3");
+    int[] model = table(false, false, true);
+    point(0, model[0]);
+    int[] subgraph = table(true, true, true);
+    int subgraphs = vector(0);
+    point(subgraphs + 4, subgraph[0]);
+    point(model[3], subgraphs);
+
+    int tensors = vector(0, 0, 0, 0);
+    point(subgraph[1], tensors);
+    point(subgraph[2], vector(INPUT));
+    point(subgraph[3], vector(AGE, FEATURES, UNQUANTIZED));
+    point(tensors + 4 + 4 * AGE, tensor("age", UINT8, quantization(1 / 256f, 0)));
+    point(tensors + 4 + 4 * FEATURES, tensor("features", FLOAT32, 0));
+    point(tensors + 4 + 4 * INPUT, tensor("input", UINT8, quantization(0.5f, 128)));
+    point(tensors + 4 + 4 * UNQUANTIZED, tensor("unquantized", UINT8, 0));
+
+    byte[] bytes = new byte[end];
+    buffer.position(0);
+    buffer.get(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /** A tensor table with a type, a name and, unless {@code quantization} is 0, quantization. */
+  private int tensor(String name, int type, int quantization) {
+    int[] tensor = table(false, true, false, true, quantization != 0);
+    buffer.put(tensor[2], (byte) type);
+    point(tensor[4], string(name));
+    if (quantization != 0) {
+      point(tensor[5], quantization);
+    }
+    return tensor[0];
+  }
+
+  /** A quantization table with a scale and a zero point. */
+  private int quantization(float scale, long zeroPoint) {
+    int[] quantization = table(false, false, true, true);
+    int scales = vector(0);
+    buffer.putFloat(scales + 4, scale);
+    point(quantization[3], scales);
+    int zeroPoints = align(end, 8) + 4;
+    buffer.putInt(zeroPoints, 1);
+    buffer.putLong(zeroPoints + 4, zeroPoint);
+    end = zeroPoints + 12;
+    point(quantization[4], zeroPoints);
+    return quantization[0];
+  }
+
+  /**
+   * Appends a vtable and a table whose set fields are 4 bytes wide.
+   *
+   * @param present whether each field of the table is set
+   * @return the position of the table, followed by the position of every field, or 0 if it is
+   *     not set
+   */
+  private int[] table(boolean... present) {
+    int vtable = align(end, 2);
+    int vtableSize = 4 + 2 * present.length;
+    int table = align(vtable + vtableSize, 4);
+    int[] positions = new int[present.length + 1];
+    positions[0] = table;
+    int tableSize = 4;
+    for (int i = 0; i < present.length; ++i) {
+      if (present[i]) {
+        buffer.putShort(vtable + 4 + 2 * i, (short) tableSize);
+        positions[i + 1] = table + tableSize;
+        tableSize += 4;
+      }
+    }
+    buffer.putShort(vtable, (short) vtableSize);
+    buffer.putShort(vtable + 2, (short) tableSize);
+    buffer.putInt(table, table - vtable);
+    end = table + tableSize;
+    return positions;
+  }
+
+  /** Appends a vector of ints, e.g. tensor indices or offset placeholders. */
+  private int vector(int... values) {
+    int vector = align(end, 4);
+    buffer.putInt(vector, values.length);
+    for (int i = 0; i < values.length; ++i) {
+      buffer.putInt(vector + 4 + 4 * i, values[i]);
+    }
+    end = vector + 4 + 4 * values.length;
+    return vector;
+  }
+
+  private int string(String value) {
+    int string = align(end, 4);
+    byte[] bytes = value.getBytes(Charset.forName("UTF-8"));
+    buffer.putInt(string, bytes.length);
+    putString(string + 4, value);
+    end = string + 4 + bytes.length + 1;
+    return string;
+  }
+
+  private void putString(int position, String value) {
+    byte[] bytes = value.getBytes(Charset.forName("UTF-8"));
+    for (int i = 0; i < bytes.length; ++i) {
+      buffer.put(position + i, bytes[i]);
+    }
+  }
+
+  /** Stores the offset from {@code position} to {@code target}. */
+  private void point(int position, int target) {
+    buffer.putInt(position, target - position);
+  }
+
+  private static int align(int position, int alignment) {
+    return (position + alignment - 1) / alignment * alignment;
+  }
+}
@@ -0,0 +1,435 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifies the faces in a directory tree of images on a desktop JVM, e.g. to reprocess an
+ * archive on a server. Uses no Android classes: images are decoded and searched for faces with
+ * OpenCV, and the faces are classified as {@link PixelSource}s by engines loaded from model files.
+ *
+ * <p>Images are decoded and their faces detected and cropped on a pool of threads, each with its
+ * own cascade classifier. The crops go through a bounded queue to the classification threads,
+ * each of which owns one engine, so no interpreter is shared between threads. Results are written
+ * to a {@link ResultSink}, and the throughput is reported in images and faces per second.
+ *
+ * <p>Run {@link #main(String[])} with {@code ./gradlew :tools:run}, see the README for the
+ * desktop builds of OpenCV and Tensorflow Lite it needs.
+ */
+final class FaceBatchProcessor {
+
+  /** Image file extensions that are processed. */
+  private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp"};
+
+  /** Smallest face in pixels that is detected. */
+  private static final int MIN_FACE_SIZE = 40;
+
+  /** Images between two progress reports. */
+  private static final int REPORT_INTERVAL = 1000;
+
+  /** Creates the engine of a classification thread. */
+  interface EngineFactory {
+    FaceAttributeEngine create() throws IOException;
+  }
+
+  /** Receives the predictions of every face; called from several threads. */
+  interface ResultSink extends Closeable {
+    /**
+     * @param faceIndex the index of the face in the image
+     * @param box the face box in image pixels
+     */
+    void write(String path, int faceIndex, Rect box, AgeGenderResult result) throws IOException;
+  }
+
+  /** Writes one CSV line per face: path, face index, box, expected age, probability of male. */
+  static final class CsvSink implements ResultSink {
+    private final Writer writer;
+
+    CsvSink(File file) throws IOException {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      writer.write("path,face,x,y,width,height,age,male_probability\n");
+    }
+
+    @Override
+    public synchronized void write(String path, int faceIndex, Rect box, AgeGenderResult result)
+        throws IOException {
+      writer.write(
+          String.format(
+              Locale.US,
+              "\"%s\",%d,%d,%d,%d,%d,%.2f,%.4f\n",
+              path.replace("\"", "\"\""),
+              faceIndex,
+              box.x,
+              box.y,
+              box.width,
+              box.height,
+              result.getExpectedAge(),
+              result.getGenderProbability()));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      writer.close();
+    }
+  }
+
+  /**
+   * Writes one big-endian record per face: the path as modified UTF-8, the face index and box as
+   * ints, expected age and probability of male as floats, and the number of features followed by
+   * the normalized features.
+   */
+  static final class BinarySink implements ResultSink {
+    private final DataOutputStream out;
+
+    BinarySink(File file) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    @Override
+    public synchronized void write(String path, int faceIndex, Rect box, AgeGenderResult result)
+        throws IOException {
+      out.writeUTF(path);
+      out.writeInt(faceIndex);
+      out.writeInt(box.x);
+      out.writeInt(box.y);
+      out.writeInt(box.width);
+      out.writeInt(box.height);
+      out.writeFloat(result.getExpectedAge());
+      out.writeFloat(result.getGenderProbability());
+      float[] features = result.getFeatures();
+      out.writeInt(features != null ? features.length : 0);
+      if (features != null) {
+        for (float value : features) {
+          out.writeFloat(value);
+        }
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /** The faces of one image, handed from a decoding to a classification thread. */
+  private static final class DecodedImage {
+    final String path;
+    final Rect[] boxes;
+    final List<ArgbPixels> faces;
+
+    DecodedImage(String path, Rect[] boxes, List<ArgbPixels> faces) {
+      this.path = path;
+      this.boxes = boxes;
+      this.faces = faces;
+    }
+  }
+
+  /** Tells a classification thread that no more images follow. */
+  private static final DecodedImage END = new DecodedImage(null, new Rect[0], null);
+
+  private final String cascadePath;
+  private final EngineFactory engineFactory;
+  private final ResultSink sink;
+  private final int decodeThreads;
+  private final int classifyThreads;
+  private final int faceWidth;
+  private final int faceHeight;
+  private final BlockingQueue<DecodedImage> decoded;
+
+  private final AtomicLong images = new AtomicLong();
+  private final AtomicLong faces = new AtomicLong();
+  private final AtomicLong failedImages = new AtomicLong();
+  private long startNanos;
+
+  /**
+   * @param faceWidth the input width of the engines
+   * @param faceHeight the input height of the engines
+   */
+  FaceBatchProcessor(
+      String cascadePath,
+      EngineFactory engineFactory,
+      ResultSink sink,
+      int decodeThreads,
+      int classifyThreads,
+      int faceWidth,
+      int faceHeight) {
+    this.cascadePath = cascadePath;
+    this.engineFactory = engineFactory;
+    this.sink = sink;
+    this.decodeThreads = decodeThreads;
+    this.classifyThreads = classifyThreads;
+    this.faceWidth = faceWidth;
+    this.faceHeight = faceHeight;
+    decoded = new ArrayBlockingQueue<>(2 * classifyThreads);
+  }
+
+  /**
+   * Arguments: model directory, cascade file, image directory, output file ending in {@code .csv}
+   * for CSV and anything else for the binary format, and optionally the number of decoding and
+   * classification threads and {@code quantized} to use the uint8 model.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 4) {
+      System.err.println(
+          "Usage: FaceBatchProcessor <model dir> <cascade.xml> <image dir> <output.csv|.bin>"
+              + " [decode threads] [classify threads] [quantized]");
+      System.exit(2);
+    }
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    if (new CascadeClassifier(args[1]).empty()) {
+      System.err.println("Cannot load the cascade classifier " + args[1]);
+      System.exit(2);
+    }
+    final File modelDirectory = new File(args[0]);
+    int cores = Runtime.getRuntime().availableProcessors();
+    int decodeThreads = args.length > 4 ? Integer.parseInt(args[4]) : Math.max(1, cores / 2);
+    int classifyThreads = args.length > 5 ? Integer.parseInt(args[5]) : Math.max(1, cores / 2);
+    final boolean quantized = args.length > 6 && "quantized".equals(args[6]);
+    File output = new File(args[3]);
+    ResultSink sink =
+        output.getName().endsWith(".csv") ? new CsvSink(output) : new BinarySink(output);
+    FaceBatchProcessor processor =
+        new FaceBatchProcessor(
+            args[1],
+            new EngineFactory() {
+              @Override
+              public FaceAttributeEngine create() throws IOException {
+                return new AgeGenderClassifier(modelDirectory, quantized);
+              }
+            },
+            sink,
+            decodeThreads,
+            classifyThreads,
+            224,
+            224);
+    try {
+      processor.run(new File(args[2]));
+    } finally {
+      sink.close();
+    }
+  }
+
+  /** Processes all images below {@code directory} and prints the throughput. */
+  void run(File directory) throws InterruptedException {
+    List<File> files = new ArrayList<>();
+    collectImages(directory, files);
+    System.err.println("Found " + files.size() + " images in " + directory);
+
+    startNanos = System.nanoTime();
+    List<Thread> classifiers = new ArrayList<>();
+    for (int i = 0; i < classifyThreads; ++i) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          classifyLoop();
+        }
+      }, "classify-" + i);
+      thread.start();
+      classifiers.add(thread);
+    }
+    ExecutorService decoders = Executors.newFixedThreadPool(decodeThreads);
+    final ThreadLocal<Decoder> threadDecoders =
+        new ThreadLocal<Decoder>() {
+          @Override
+          protected Decoder initialValue() {
+            return new Decoder();
+          }
+        };
+    for (final File file : files) {
+      decoders.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            DecodedImage image = threadDecoders.get().decode(file);
+            if (image == null) {
+              failedImages.incrementAndGet();
+              System.err.println("Cannot read " + file);
+            } else {
+              decoded.put(image);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } catch (RuntimeException e) {
+            failedImages.incrementAndGet();
+            System.err.println("Cannot process " + file + ": " + e);
+          }
+        }
+      });
+    }
+    decoders.shutdown();
+    decoders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    for (int i = 0; i < classifyThreads; ++i) {
+      decoded.put(END);
+    }
+    for (Thread thread : classifiers) {
+      thread.join();
+    }
+    System.err.println(formatThroughput());
+  }
+
+  private static void collectImages(File directory, List<File> files) {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        collectImages(child, files);
+      } else if (isImage(child.getName())) {
+        files.add(child);
+      }
+    }
+  }
+
+  private static boolean isImage(String name) {
+    String lower = name.toLowerCase(Locale.US);
+    for (String extension : IMAGE_EXTENSIONS) {
+      if (lower.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Classifies decoded images with an engine of its own until {@link #END}. An image that fails
+   * is counted and skipped; the loop always drains the queue to {@link #END}, so that the decoders
+   * and {@link #run} never block on a queue that nobody takes from.
+   */
+  private void classifyLoop() {
+    FaceAttributeEngine engine;
+    try {
+      engine = engineFactory.create();
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Cannot load the model: " + e);
+      // Keep consuming, so that the decoders do not block forever.
+      engine = null;
+    }
+    List<AgeGenderResult> results = new ArrayList<>();
+    try {
+      while (true) {
+        DecodedImage image = decoded.take();
+        if (image == END) {
+          break;
+        }
+        try {
+          classify(engine, image, results);
+        } catch (IOException | RuntimeException e) {
+          failedImages.incrementAndGet();
+          System.err.println("Cannot classify " + image.path + ": " + e);
+        }
+        if (images.incrementAndGet() % REPORT_INTERVAL == 0) {
+          System.err.println(formatThroughput());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (engine != null) {
+        engine.close();
+      }
+    }
+  }
+
+  private void classify(
+      FaceAttributeEngine engine, DecodedImage image, List<AgeGenderResult> results)
+      throws IOException {
+    while (results.size() < image.faces.size()) {
+      results.add(
+          new AgeGenderResult(AgeGenderResult.DEFAULT_TOP_K, AgeGenderResult.FEATURE_SIZE));
+    }
+    if (engine != null
+        && !image.faces.isEmpty()
+        && engine.classifyPixels(image.faces, results)) {
+      for (int i = 0; i < image.faces.size(); ++i) {
+        sink.write(image.path, i, image.boxes[i], results.get(i));
+      }
+    }
+    faces.addAndGet(image.faces.size());
+  }
+
+  private String formatThroughput() {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return String.format(
+        Locale.US,
+        "%d images (%d failed), %d faces in %.1f s: %.1f images/s, %.1f faces/s",
+        images.get(),
+        failedImages.get(),
+        faces.get(),
+        seconds,
+        images.get() / seconds,
+        faces.get() / seconds);
+  }
+
+  /** Decodes images and crops their faces; owns the OpenCV objects of one thread. */
+  private final class Decoder {
+    private final CascadeClassifier detector = new CascadeClassifier(cascadePath);
+    private final Mat gray = new Mat();
+    private final MatOfRect detections = new MatOfRect();
+    private final Size minFaceSize = new Size(MIN_FACE_SIZE, MIN_FACE_SIZE);
+    private final FaceCropper cropper = new FaceCropper(faceWidth, faceHeight);
+
+    /** Returns the faces of the image, or null if it cannot be read. */
+    DecodedImage decode(File file) {
+      Mat image = Imgcodecs.imread(file.getPath(), Imgcodecs.IMREAD_COLOR);
+      try {
+        if (image.empty()) {
+          return null;
+        }
+        Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+        detector.detectMultiScale(gray, detections, 1.1, 2, 2, minFaceSize, new Size());
+        Rect[] boxes = detections.toArray();
+        List<ArgbPixels> crops = new ArrayList<>(boxes.length);
+        for (int i = 0; i < boxes.length; ++i) {
+          boxes[i] = FaceCropper.pad(boxes[i], image.cols(), image.rows());
+          crops.add(cropper.crop(image, boxes[i]));
+        }
+        return new DecodedImage(file.getPath(), boxes, crops);
+      } finally {
+        image.release();
+      }
+    }
+  }
+}
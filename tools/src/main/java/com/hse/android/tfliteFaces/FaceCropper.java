@@ -0,0 +1,73 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Crops faces out of BGR images into {@link ArgbPixels} at the classifier input size, for the
+ * headless processors. Not thread-safe; every thread uses its own cropper.
+ */
+final class FaceCropper {
+
+  private final int width;
+  private final int height;
+  private final Size size;
+  private final Mat face = new Mat();
+  private final byte[] bgr;
+
+  FaceCropper(int width, int height) {
+    this.width = width;
+    this.height = height;
+    size = new Size(width, height);
+    bgr = new byte[width * height * 3];
+  }
+
+  /**
+   * Grows a detected box by an eighth of its size on every side, clipped to the image, like the
+   * camera pipeline does.
+   */
+  static Rect pad(Rect box, int imageWidth, int imageHeight) {
+    int dw = box.width / 8;
+    int dh = box.height / 8;
+    int x = Math.max(box.x - dw, 0);
+    int y = Math.max(box.y - dh, 0);
+    int w = Math.min(box.width + 2 * dw, imageWidth - x);
+    int h = Math.min(box.height + 2 * dh, imageHeight - y);
+    return new Rect(x, y, w, h);
+  }
+
+  /** Crops {@code box} out of a BGR image and scales it to the classifier input size. */
+  ArgbPixels crop(Mat image, Rect box) {
+    Mat region = image.submat(box);
+    Imgproc.resize(region, face, size);
+    region.release();
+    face.get(0, 0, bgr);
+    ArgbPixels pixels = new ArgbPixels(width, height);
+    for (int i = 0, j = 0; i < pixels.pixels.length; ++i, j += 3) {
+      pixels.pixels[i] =
+          0xFF000000 | ((bgr[j + 2] & 0xFF) << 16) | ((bgr[j + 1] & 0xFF) << 8) | (bgr[j] & 0xFF);
+    }
+    return pixels;
+  }
+
+  void release() {
+    face.release();
+  }
+}
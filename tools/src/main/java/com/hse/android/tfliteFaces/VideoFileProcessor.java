@@ -0,0 +1,608 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.hse.android.tfliteFaces;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs recorded footage through face detection, tracking and age/gender classification on a
+ * desktop JVM, the stages of the camera's {@link FaceAnalysisPipeline} for a video file.
+ *
+ * <p>Frames are decoded one at a time with OpenCV's {@link VideoCapture}, so the file is never
+ * buffered, and sampled either every {@code stride} frames or every {@code intervalMs} of video
+ * time; skipped frames are only grabbed, not converted. Sampled frames are decoded into a fixed
+ * pool of images, which bounds the memory of the frames in flight: the reader waits for a free
+ * image when detection or classification fall behind.
+ *
+ * <p>Faces are detected on a pool of threads. A single tracker thread puts the detections back in
+ * frame order and links them into tracks by box overlap, and the faces are classified on threads
+ * that own one engine each. Every classified face is written with its frame, time and track.
+ *
+ * <p>Run with {@code ./gradlew :tools:processVideo}, like {@link FaceBatchProcessor}.
+ */
+final class VideoFileProcessor {
+
+  /** Smallest face in pixels that is detected. */
+  private static final int MIN_FACE_SIZE = 40;
+
+  /** Overlap of a detection with the last box of a track that continues the track. */
+  private static final float TRACK_MIN_OVERLAP = 0.3f;
+
+  /** Number of sampled frames a track survives without a detection. */
+  private static final int TRACK_MAX_MISSED = 5;
+
+  /** Sampled frames between two progress reports. */
+  private static final int REPORT_INTERVAL = 500;
+
+  /** Receives the prediction of every face; called from several threads, not in frame order. */
+  interface FrameResultSink extends Closeable {
+    /**
+     * @param frameIndex the index of the frame in the video
+     * @param timeMs the position of the frame in the video
+     * @param trackId the track of the face
+     * @param box the face box in frame pixels
+     */
+    void write(long frameIndex, double timeMs, int trackId, Rect box, AgeGenderResult result)
+        throws IOException;
+  }
+
+  /** Writes one CSV line per face: frame, time, track, box, expected age, probability of male. */
+  static final class CsvSink implements FrameResultSink {
+    private final Writer writer;
+
+    CsvSink(File file) throws IOException {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      writer.write("frame,time_ms,track,x,y,width,height,age,male_probability\n");
+    }
+
+    @Override
+    public synchronized void write(
+        long frameIndex, double timeMs, int trackId, Rect box, AgeGenderResult result)
+        throws IOException {
+      writer.write(
+          String.format(
+              Locale.US,
+              "%d,%.0f,%d,%d,%d,%d,%d,%.2f,%.4f\n",
+              frameIndex,
+              timeMs,
+              trackId,
+              box.x,
+              box.y,
+              box.width,
+              box.height,
+              result.getExpectedAge(),
+              result.getGenderProbability()));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      writer.close();
+    }
+  }
+
+  /** A sampled frame on its way through the stages. */
+  private static final class Frame {
+    final long sequence;
+    final long index;
+    final double timeMs;
+    final Mat image;
+    Rect[] boxes;
+    List<ArgbPixels> faces;
+    int[] trackIds;
+
+    Frame(long sequence, long index, double timeMs, Mat image) {
+      this.sequence = sequence;
+      this.index = index;
+      this.timeMs = timeMs;
+      this.image = image;
+    }
+  }
+
+  /** Tells the next stage that no more frames follow. */
+  private static final Frame END = new Frame(-1, -1, 0, null);
+
+  private final String cascadePath;
+  private final FaceBatchProcessor.EngineFactory engineFactory;
+  private final FrameResultSink sink;
+  private final int stride;
+  private final double intervalMs;
+  private final int detectThreads;
+  private final int classifyThreads;
+  private final int faceWidth;
+  private final int faceHeight;
+
+  /** Images that sampled frames are decoded into. */
+  private final BlockingQueue<Mat> freeImages;
+
+  private final BlockingQueue<Frame> sampled;
+  private final BlockingQueue<Frame> detected;
+  private final BlockingQueue<Frame> tracked;
+
+  private final AtomicLong decodedFrames = new AtomicLong();
+  private final AtomicLong processedFrames = new AtomicLong();
+  private final AtomicLong faces = new AtomicLong();
+  private final AtomicLong failedFrames = new AtomicLong();
+  private final AtomicLong failedEngines = new AtomicLong();
+  private volatile double videoTimeMs;
+  private long startNanos;
+
+  /**
+   * @param stride classify every {@code stride}-th frame; 1 for all frames
+   * @param intervalMs if positive, classify a frame every {@code intervalMs} of video time
+   *     instead
+   */
+  VideoFileProcessor(
+      String cascadePath,
+      FaceBatchProcessor.EngineFactory engineFactory,
+      FrameResultSink sink,
+      int stride,
+      double intervalMs,
+      int detectThreads,
+      int classifyThreads,
+      int faceWidth,
+      int faceHeight) {
+    this.cascadePath = cascadePath;
+    this.engineFactory = engineFactory;
+    this.sink = sink;
+    this.stride = Math.max(1, stride);
+    this.intervalMs = intervalMs;
+    this.detectThreads = detectThreads;
+    this.classifyThreads = classifyThreads;
+    this.faceWidth = faceWidth;
+    this.faceHeight = faceHeight;
+    int images = 2 * detectThreads + 2;
+    freeImages = new ArrayBlockingQueue<>(images);
+    for (int i = 0; i < images; ++i) {
+      freeImages.add(new Mat());
+    }
+    // Every frame holds an image until it is tracked, so these queues never fill up.
+    sampled = new ArrayBlockingQueue<>(images + detectThreads);
+    detected = new ArrayBlockingQueue<>(images + detectThreads);
+    tracked = new ArrayBlockingQueue<>(2 * classifyThreads);
+  }
+
+  /**
+   * Arguments: model directory, cascade file, video file, output CSV file, and optionally the
+   * sampling as {@code stride:N} or {@code ms:T}, the number of detection and classification
+   * threads, and {@code quantized} to use the uint8 model.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 4) {
+      System.err.println(
+          "Usage: VideoFileProcessor <model dir> <cascade.xml> <video> <output.csv>"
+              + " [stride:N|ms:T] [detect threads] [classify threads] [quantized]");
+      System.exit(2);
+    }
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    if (new CascadeClassifier(args[1]).empty()) {
+      System.err.println("Cannot load the cascade classifier " + args[1]);
+      System.exit(2);
+    }
+    final File modelDirectory = new File(args[0]);
+    int stride = 1;
+    double intervalMs = 0;
+    if (args.length > 4) {
+      if (args[4].startsWith("ms:")) {
+        intervalMs = Double.parseDouble(args[4].substring(3));
+      } else if (args[4].startsWith("stride:")) {
+        stride = Integer.parseInt(args[4].substring(7));
+      }
+    }
+    int cores = Runtime.getRuntime().availableProcessors();
+    int detectThreads = args.length > 5 ? Integer.parseInt(args[5]) : Math.max(1, cores / 2);
+    int classifyThreads = args.length > 6 ? Integer.parseInt(args[6]) : Math.max(1, cores / 2);
+    final boolean quantized = args.length > 7 && "quantized".equals(args[7]);
+    CsvSink sink = new CsvSink(new File(args[3]));
+    VideoFileProcessor processor =
+        new VideoFileProcessor(
+            args[1],
+            new FaceBatchProcessor.EngineFactory() {
+              @Override
+              public FaceAttributeEngine create() throws IOException {
+                return new AgeGenderClassifier(modelDirectory, quantized);
+              }
+            },
+            sink,
+            stride,
+            intervalMs,
+            detectThreads,
+            classifyThreads,
+            224,
+            224);
+    boolean opened;
+    try {
+      opened = processor.run(args[2]);
+    } finally {
+      sink.close();
+    }
+    if (!opened) {
+      System.err.println("Cannot open " + args[2]);
+      System.exit(1);
+    }
+    if (processor.getFailedEngines() > 0) {
+      System.err.println("The model could not be loaded, faces were not classified");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Processes a video file and prints the throughput.
+   *
+   * @return false if the video cannot be opened
+   */
+  boolean run(String path) throws InterruptedException {
+    VideoCapture capture = new VideoCapture(path);
+    if (!capture.isOpened()) {
+      return false;
+    }
+    startNanos = System.nanoTime();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < detectThreads; ++i) {
+      threads.add(start("detect-" + i, new Runnable() {
+        @Override
+        public void run() {
+          detectLoop();
+        }
+      }));
+    }
+    threads.add(start("track", new Runnable() {
+      @Override
+      public void run() {
+        trackLoop();
+      }
+    }));
+    for (int i = 0; i < classifyThreads; ++i) {
+      threads.add(start("classify-" + i, new Runnable() {
+        @Override
+        public void run() {
+          classifyLoop();
+        }
+      }));
+    }
+    try {
+      readFrames(capture);
+    } finally {
+      capture.release();
+      putEnd(sampled, detectThreads);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (Mat image : freeImages) {
+      image.release();
+    }
+    System.err.println(formatThroughput());
+    return true;
+  }
+
+  /** Number of classification threads that could not load their engine. */
+  long getFailedEngines() {
+    return failedEngines.get();
+  }
+
+  private static Thread start(String name, Runnable runnable) {
+    Thread thread = new Thread(runnable, name);
+    thread.start();
+    return thread;
+  }
+
+  /** Grabs every frame and decodes the sampled ones into free images. */
+  private void readFrames(VideoCapture capture) throws InterruptedException {
+    long index = -1;
+    long sequence = 0;
+    double nextSampleMs = 0;
+    while (capture.grab()) {
+      ++index;
+      decodedFrames.incrementAndGet();
+      double timeMs = capture.get(Videoio.CAP_PROP_POS_MSEC);
+      if (intervalMs > 0) {
+        if (timeMs < nextSampleMs) {
+          continue;
+        }
+        nextSampleMs = timeMs + intervalMs;
+      } else if (index % stride != 0) {
+        continue;
+      }
+      Mat image = freeImages.take();
+      boolean retrieved;
+      try {
+        retrieved = capture.retrieve(image);
+      } catch (RuntimeException e) {
+        failedFrames.incrementAndGet();
+        System.err.println("Cannot decode frame " + index + ": " + e);
+        retrieved = false;
+      }
+      if (!retrieved) {
+        freeImages.put(image);
+        continue;
+      }
+      sampled.put(new Frame(sequence++, index, timeMs, image));
+    }
+  }
+
+  /**
+   * Detects and crops the faces of sampled frames. A frame that fails is passed on without faces,
+   * since the tracker waits for every frame in order and frees its image.
+   */
+  private void detectLoop() {
+    CascadeClassifier detector = new CascadeClassifier(cascadePath);
+    FaceCropper cropper = new FaceCropper(faceWidth, faceHeight);
+    Mat gray = new Mat();
+    MatOfRect detections = new MatOfRect();
+    Size minFaceSize = new Size(MIN_FACE_SIZE, MIN_FACE_SIZE);
+    try {
+      while (true) {
+        Frame frame = sampled.take();
+        if (frame == END) {
+          break;
+        }
+        Mat image = frame.image;
+        try {
+          Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+          detector.detectMultiScale(gray, detections, 1.1, 2, 2, minFaceSize, new Size());
+          Rect[] boxes = detections.toArray();
+          frame.faces = new ArrayList<>(boxes.length);
+          for (int i = 0; i < boxes.length; ++i) {
+            boxes[i] = FaceCropper.pad(boxes[i], image.cols(), image.rows());
+            frame.faces.add(cropper.crop(image, boxes[i]));
+          }
+          frame.boxes = boxes;
+        } catch (RuntimeException e) {
+          failedFrames.incrementAndGet();
+          System.err.println("Cannot detect faces in frame " + frame.index + ": " + e);
+          frame.boxes = new Rect[0];
+          frame.faces = new ArrayList<>();
+        }
+        detected.put(frame);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      putEnd(detected, 1);
+      gray.release();
+      detections.release();
+      cropper.release();
+    }
+  }
+
+  /** Restores the frame order, assigns the faces to tracks and frees the frame images. */
+  private void trackLoop() {
+    Tracker tracker = new Tracker();
+    Map<Long, Frame> pending = new HashMap<>();
+    long nextSequence = 0;
+    int ends = 0;
+    try {
+      while (ends < detectThreads) {
+        Frame frame = detected.take();
+        if (frame == END) {
+          ++ends;
+          continue;
+        }
+        pending.put(frame.sequence, frame);
+        for (Frame next = pending.remove(nextSequence);
+            next != null;
+            next = pending.remove(++nextSequence)) {
+          try {
+            next.trackIds = tracker.assign(next.boxes);
+          } catch (RuntimeException e) {
+            failedFrames.incrementAndGet();
+            System.err.println("Cannot track the faces of frame " + next.index + ": " + e);
+            next.trackIds = new int[next.boxes.length];
+            Arrays.fill(next.trackIds, -1);
+          }
+          freeImages.put(next.image);
+          tracked.put(next);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      putEnd(tracked, classifyThreads);
+    }
+  }
+
+  /**
+   * Classifies tracked frames with an engine of its own until {@link #END}. A frame that fails is
+   * counted and skipped.
+   */
+  private void classifyLoop() {
+    FaceAttributeEngine engine;
+    try {
+      engine = engineFactory.create();
+    } catch (IOException | RuntimeException e) {
+      failedEngines.incrementAndGet();
+      System.err.println("Cannot load the model: " + e);
+      // Keep consuming, so that the other stages do not block forever.
+      engine = null;
+    }
+    List<AgeGenderResult> results = new ArrayList<>();
+    try {
+      while (true) {
+        Frame frame = tracked.take();
+        if (frame == END) {
+          break;
+        }
+        try {
+          classify(engine, frame, results);
+        } catch (IOException | RuntimeException e) {
+          failedFrames.incrementAndGet();
+          System.err.println("Cannot classify frame " + frame.index + ": " + e);
+        }
+        videoTimeMs = Math.max(videoTimeMs, frame.timeMs);
+        if (processedFrames.incrementAndGet() % REPORT_INTERVAL == 0) {
+          System.err.println(formatThroughput());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (engine != null) {
+        engine.close();
+      }
+    }
+  }
+
+  private void classify(FaceAttributeEngine engine, Frame frame, List<AgeGenderResult> results)
+      throws IOException {
+    while (results.size() < frame.faces.size()) {
+      results.add(new AgeGenderResult());
+    }
+    if (engine != null
+        && !frame.faces.isEmpty()
+        && engine.classifyPixels(frame.faces, results)) {
+      for (int i = 0; i < frame.faces.size(); ++i) {
+        sink.write(frame.index, frame.timeMs, frame.trackIds[i], frame.boxes[i], results.get(i));
+      }
+    }
+    faces.addAndGet(frame.faces.size());
+  }
+
+  /**
+   * Puts {@code count} {@link #END}s even if the thread is interrupted, so that the next stage
+   * always finishes, whichever way this one ended.
+   */
+  private static void putEnd(BlockingQueue<Frame> queue, int count) {
+    boolean interrupted = false;
+    for (int i = 0; i < count; ) {
+      try {
+        queue.put(END);
+        ++i;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private String formatThroughput() {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return String.format(
+        Locale.US,
+        "%d frames decoded, %d classified (%d failed), %d faces in %.1f s: %.1f frames/s,"
+            + " %.1f faces/s, %.1fx real time",
+        decodedFrames.get(),
+        processedFrames.get(),
+        failedFrames.get(),
+        faces.get(),
+        seconds,
+        processedFrames.get() / seconds,
+        faces.get() / seconds,
+        videoTimeMs / 1000 / seconds);
+  }
+
+  /**
+   * Links the faces of consecutive sampled frames into tracks: a face continues the track whose
+   * last box it overlaps most, greedily from the largest overlap.
+   */
+  private static final class Tracker {
+    private final List<Rect> boxes = new ArrayList<>();
+    private final List<Integer> ids = new ArrayList<>();
+    private final List<Integer> missed = new ArrayList<>();
+    private int nextId = 0;
+
+    int[] assign(Rect[] detections) {
+      int[] assigned = new int[detections.length];
+      boolean[] matchedTracks = new boolean[boxes.size()];
+      boolean[] matchedFaces = new boolean[detections.length];
+      while (true) {
+        float best = TRACK_MIN_OVERLAP;
+        int bestTrack = -1;
+        int bestFace = -1;
+        for (int t = 0; t < boxes.size(); ++t) {
+          if (matchedTracks[t]) {
+            continue;
+          }
+          for (int f = 0; f < detections.length; ++f) {
+            if (matchedFaces[f]) {
+              continue;
+            }
+            float overlap = overlap(boxes.get(t), detections[f]);
+            if (overlap >= best) {
+              best = overlap;
+              bestTrack = t;
+              bestFace = f;
+            }
+          }
+        }
+        if (bestTrack < 0) {
+          break;
+        }
+        matchedTracks[bestTrack] = true;
+        matchedFaces[bestFace] = true;
+        assigned[bestFace] = ids.get(bestTrack);
+        boxes.set(bestTrack, detections[bestFace]);
+        missed.set(bestTrack, 0);
+      }
+      for (int t = boxes.size() - 1; t >= 0; --t) {
+        if (!matchedTracks[t]) {
+          missed.set(t, missed.get(t) + 1);
+          if (missed.get(t) > TRACK_MAX_MISSED) {
+            boxes.remove(t);
+            ids.remove(t);
+            missed.remove(t);
+          }
+        }
+      }
+      for (int f = 0; f < detections.length; ++f) {
+        if (!matchedFaces[f]) {
+          assigned[f] = nextId;
+          boxes.add(detections[f]);
+          ids.add(nextId++);
+          missed.add(0);
+        }
+      }
+      return assigned;
+    }
+
+    /** Intersection over union of two boxes. */
+    private static float overlap(Rect a, Rect b) {
+      int w = Math.min(a.x + a.width, b.x + b.width) - Math.max(a.x, b.x);
+      int h = Math.min(a.y + a.height, b.y + b.height) - Math.max(a.y, b.y);
+      if (w <= 0 || h <= 0) {
+        return 0;
+      }
+      float intersection = (float) w * h;
+      return intersection / (float) (a.area() + b.area() - intersection);
+    }
+  }
+}